@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parser throughput: one operation feeds a whole corpus to
+ * {@link TerminalEmulator#append}, in batches the size a {@link TermSession}
+ * uses by default.  With the built-in corpora, ops/s is MiB/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AppendBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int TRANSCRIPT_ROWS = 5000;
+    private static final int BATCH_SIZE = 4 * 1024;
+
+    @Param({"ascii", "cjk", "sgr", "vim", "combining"})
+    public String corpus;
+
+    private byte[] mData;
+    private TerminalEmulator mEmulator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mData = Corpus.get(corpus);
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, TRANSCRIPT_ROWS, ROWS);
+        mEmulator = new TerminalEmulator(null, screen, COLUMNS, ROWS,
+                PaintRenderer.defaultColorScheme);
+        mEmulator.setDefaultUTF8Mode(true);
+    }
+
+    @Benchmark
+    public void append() {
+        byte[] data = mData;
+        TerminalEmulator emulator = mEmulator;
+        for (int offset = 0; offset < data.length; offset += BATCH_SIZE) {
+            emulator.append(data, offset, Math.min(BATCH_SIZE, data.length - offset));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Terminal output to feed the emulator in the benchmarks.
+ * <p>
+ * Each built-in corpus imitates a kind of output people actually run: log
+ * files, CJK text, colored directory listings, full-screen editor redraws and
+ * text with combining marks.  They are generated from a fixed seed, so every
+ * run sees the same bytes, and are exactly {@link #SIZE} bytes long.  A real
+ * recording (for instance from <code>script</code>) can be used instead by
+ * naming it as <code>file:/path/to/recording</code>.
+ */
+final class Corpus {
+    static final int SIZE = 1024 * 1024;
+
+    private static final String ESC = "\033";
+
+    private Corpus() {
+    }
+
+    static byte[] get(String name) throws IOException {
+        if (name.startsWith("file:")) {
+            return Files.readAllBytes(Paths.get(name.substring("file:".length())));
+        }
+        Random random = new Random(42);
+        switch (name) {
+            case "ascii":
+                return fill(() -> asciiLog(random));
+            case "cjk":
+                return fill(() -> cjkText(random));
+            case "sgr":
+                return fill(() -> colorListing(random));
+            case "vim":
+                return fill(() -> editorRedraw(random));
+            case "combining":
+                return fill(() -> combiningText(random));
+            default:
+                throw new IllegalArgumentException("unknown corpus " + name);
+        }
+    }
+
+    private interface Generator {
+        String next();
+    }
+
+    /**
+     * Concatenate generated chunks up to SIZE, padding the remainder with
+     * spaces rather than cutting a chunk (and maybe an escape sequence) short.
+     */
+    private static byte[] fill(Generator generator) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(SIZE);
+        while (true) {
+            byte[] chunk = generator.next().getBytes(StandardCharsets.UTF_8);
+            if (out.size() + chunk.length > SIZE) {
+                break;
+            }
+            out.write(chunk, 0, chunk.length);
+        }
+        byte[] data = Arrays.copyOf(out.toByteArray(), SIZE);
+        Arrays.fill(data, out.size(), SIZE, (byte) ' ');
+        return data;
+    }
+
+    private static final String[] LEVELS = {"DEBUG", "INFO", "INFO", "INFO", "WARN", "ERROR"};
+
+    private static String asciiLog(Random random) {
+        return String.format(Locale.ROOT, "2019-03-%02d %02d:%02d:%02d.%03d %-5s [worker-%d] "
+                        + "Processed request id=%08x path=/api/v1/items/%d in %d ms\r\n",
+                1 + random.nextInt(28), random.nextInt(24), random.nextInt(60),
+                random.nextInt(60), random.nextInt(1000), LEVELS[random.nextInt(LEVELS.length)],
+                random.nextInt(16), random.nextInt(), random.nextInt(100000),
+                random.nextInt(500));
+    }
+
+    private static String cjkText(Random random) {
+        StringBuilder line = new StringBuilder();
+        int length = 10 + random.nextInt(30);
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                // CJK unified ideographs
+                line.append((char) (0x4e00 + random.nextInt(0x5000)));
+            } else if (kind < 8) {
+                // Hiragana
+                line.append((char) (0x3041 + random.nextInt(0x56)));
+            } else if (kind < 9) {
+                line.append('\u3002');
+            } else {
+                line.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return line.append("\r\n").toString();
+    }
+
+    private static final String[] LS_COLORS = {"0", "01;34", "01;32", "01;36", "40;33;01", "01;31", "01;35"};
+
+    private static String colorListing(Random random) {
+        // What ls --color prints: every name wrapped in its own SGR sequence
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            String color = LS_COLORS[random.nextInt(LS_COLORS.length)];
+            line.append(ESC).append("[0m").append(ESC).append('[').append(color).append('m');
+            int length = 3 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                line.append((char) ('a' + random.nextInt(26)));
+            }
+            line.append(ESC).append("[0m  ");
+        }
+        return line.append("\r\n").toString();
+    }
+
+    private static String editorRedraw(Random random) {
+        StringBuilder redraw = new StringBuilder();
+        switch (random.nextInt(4)) {
+            case 0:
+                // Full screen redraw with syntax highlighting
+                redraw.append(ESC).append("[H").append(ESC).append("[2J");
+                for (int row = 1; row < 24; row++) {
+                    redraw.append(ESC).append('[').append(row).append(";1H");
+                    redraw.append(ESC).append("[33m").append(String.format(Locale.ROOT, "%3d ", row));
+                    redraw.append(ESC).append("[m").append(ESC).append("[1;34mint")
+                            .append(ESC).append("[m value").append(row).append(" = ")
+                            .append(ESC).append("[31m").append(random.nextInt(1000))
+                            .append(ESC).append("[m;").append(ESC).append("[K");
+                }
+                break;
+            case 1:
+                // Scroll the text region down a line and fill in the top one
+                redraw.append(ESC).append("[1;23r").append(ESC).append("[1;1H")
+                        .append(ESC).append('M').append(ESC).append("[r")
+                        .append(ESC).append("[1;1H").append("    // comment ")
+                        .append(random.nextInt(1000)).append(ESC).append("[K");
+                break;
+            case 2:
+                // Insert and delete lines
+                redraw.append(ESC).append('[').append(1 + random.nextInt(22)).append(";1H")
+                        .append(ESC).append("[L").append("inserted line")
+                        .append(ESC).append('[').append(1 + random.nextInt(22)).append(";1H")
+                        .append(ESC).append("[M");
+                break;
+            default:
+                // Type a character and update the status line
+                redraw.append(ESC).append('[').append(1 + random.nextInt(23)).append(';')
+                        .append(1 + random.nextInt(79)).append('H')
+                        .append((char) ('a' + random.nextInt(26)))
+                        .append(ESC).append("[24;1H").append(ESC).append("[7m")
+                        .append(String.format(Locale.ROOT, " file.c  line %d  col %d ",
+                                random.nextInt(1000), random.nextInt(80)))
+                        .append(ESC).append("[m").append(ESC).append("[K");
+                break;
+        }
+        return redraw.toString();
+    }
+
+    private static final char[] MARKS = {'\u0301', '\u0300', '\u0308', '\u0302', '\u0327', '\u0323'};
+
+    private static String combiningText(Random random) {
+        StringBuilder line = new StringBuilder();
+        int length = 20 + random.nextInt(40);
+        for (int i = 0; i < length; i++) {
+            line.append((char) ('a' + random.nextInt(26)));
+            int marks = random.nextInt(4) == 0 ? 1 + random.nextInt(2) : 0;
+            for (int j = 0; j < marks; j++) {
+                line.append(MARKS[random.nextInt(MARKS.length)]);
+            }
+        }
+        return line.append("\r\n").toString();
+    }
+}
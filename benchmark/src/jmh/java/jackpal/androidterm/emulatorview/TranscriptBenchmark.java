@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The transcript operations which the parser leans on hardest (scrolling and
+ * block copies), and extracting, exporting and searching the text of a full
+ * transcript.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TranscriptBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int TRANSCRIPT_ROWS = 5000;
+    /** Request paths which turn up in a few dozen of the ascii corpus's lines. */
+    private static final String FIND_TEXT = "/items/42";
+
+    /** Drops what's written to it, so that only the formatting is measured. */
+    private static final Writer NULL_WRITER = new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public Writer append(CharSequence text) {
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private UnicodeTranscript mTranscript;
+    private TranscriptScreen mFullScreen;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int style = TextStyle.kNormalTextStyle;
+        int otherStyle = TextStyle.encode(1, 0, TextStyle.fxBold);
+        mTranscript = new UnicodeTranscript(COLUMNS, TRANSCRIPT_ROWS, ROWS, style);
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                mTranscript.setChar(column, row, 'a' + (row + column) % 26,
+                        column < 10 ? otherStyle : style);
+            }
+        }
+
+        mFullScreen = new TranscriptScreen(COLUMNS, TRANSCRIPT_ROWS, ROWS);
+        TerminalEmulator emulator = new TerminalEmulator(null, mFullScreen, COLUMNS, ROWS,
+                PaintRenderer.defaultColorScheme);
+        emulator.setDefaultUTF8Mode(true);
+        byte[] data = Corpus.get("ascii");
+        emulator.append(data, 0, data.length);
+        if (findText() == 0) {
+            throw new IllegalStateException("no lines with " + FIND_TEXT);
+        }
+    }
+
+    /** A line feed at the bottom of the screen. */
+    @Benchmark
+    public void scroll() {
+        mTranscript.scroll(0, ROWS, TextStyle.kNormalTextStyle);
+    }
+
+    /** A line feed at the bottom of a scrolling region, as in an editor. */
+    @Benchmark
+    public void scrollRegion() {
+        mTranscript.scroll(1, ROWS - 1, TextStyle.kNormalTextStyle);
+    }
+
+    /** Moving all but the top row up, as delete-line does. */
+    @Benchmark
+    public void blockCopy() {
+        mTranscript.blockCopy(0, 1, COLUMNS, ROWS - 1, 0, 0);
+    }
+
+    @Benchmark
+    public String getTranscriptText() {
+        return mFullScreen.getTranscriptText();
+    }
+
+    /** The same text as getTranscriptText(), streamed a batch of rows at a time. */
+    @Benchmark
+    public boolean writeTranscript() throws IOException {
+        TranscriptWriter writer = new TranscriptWriter(TermSession.TRANSCRIPT_PLAIN,
+                PaintRenderer.defaultColorScheme, null);
+        return writer.write(NULL_WRITER, this, mFullScreen);
+    }
+
+    /**
+     * Finding text which turns up in a few lines; setUp() builds the index,
+     * so this measures searching with it up to date.
+     */
+    @Benchmark
+    public int findText() {
+        return mFullScreen.findText(FIND_TEXT, false, new GrowableIntArray(16));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link WcWidth#wcwidth(int)}, which the parser calls for every character
+ * that isn't plain ASCII, over code points drawn from different ranges.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(WcWidthBenchmark.COUNT)
+public class WcWidthBenchmark {
+    static final int COUNT = 4096;
+
+    @Param({"ascii", "latin", "cjk", "emoji", "mixed"})
+    public String range;
+
+    private final int[] mCodePoints = new int[COUNT];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < COUNT; i++) {
+            mCodePoints[i] = codePoint(random, range.equals("mixed") ? random.nextInt(4) : -1);
+        }
+    }
+
+    private int codePoint(Random random, int kind) {
+        if (kind == 0 || range.equals("ascii")) {
+            return 0x20 + random.nextInt(0x5f);
+        } else if (kind == 1 || range.equals("latin")) {
+            // Latin-1 supplement through combining diacritical marks
+            return 0xa0 + random.nextInt(0x370 - 0xa0);
+        } else if (kind == 2 || range.equals("cjk")) {
+            return 0x4e00 + random.nextInt(0x5200);
+        } else {
+            return 0x1f300 + random.nextInt(0x300);
+        }
+    }
+
+    @Benchmark
+    public int wcwidth() {
+        int[] codePoints = mCodePoints;
+        int sum = 0;
+        for (int i = 0; i < codePoints.length; i++) {
+            sum += WcWidth.wcwidth(codePoints[i]);
+        }
+        return sum;
+    }
+}
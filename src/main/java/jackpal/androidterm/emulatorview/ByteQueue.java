@@ -16,60 +16,127 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * A multi-thread-safe produce-consumer byte array.
  * Only allows one producer and one consumer.
+ * <p>
+ * The queue is a lock-free ring buffer.  The producer only ever advances the
+ * tail and the consumer only ever advances the head, so neither side takes a
+ * monitor.  A side which has to wait (the consumer on an empty queue, the
+ * producer on a full one) parks its thread, and the other side unparks it
+ * once it has made progress.  The capacity is always a power of two, so that
+ * positions can be mapped into the array with a mask.
  */
 
 class ByteQueue {
     ByteQueue(int size) {
-        mBuffer = new byte[size];
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
     }
 
     public int getBytesAvailable() {
-        synchronized(this) {
-            return mStoredBytes;
-        }
+        return (int) (mTail.value - mHead.value);
     }
 
+    /**
+     * Read from the queue, waiting until at least one byte is available.
+     * Only the consumer thread may call this.
+     */
     public int read(byte[] buffer, int offset, int length)
         throws InterruptedException {
-        if (length + offset > buffer.length) {
-            throw
-                new IllegalArgumentException("length + offset > buffer.length");
+        checkBounds(buffer, offset, length);
+        if (length == 0) {
+            return 0;
         }
-        if (length < 0) {
-            throw
-            new IllegalArgumentException("length < 0");
+        int totalRead;
+        while ((totalRead = tryRead(buffer, offset, length)) == 0) {
+            awaitBytes();
+        }
+        return totalRead;
+    }
 
+    /**
+     * Read whatever is available from the queue without waiting.  Only the
+     * consumer thread may call this.
+     *
+     * @return The number of bytes read, which may be zero.
+     */
+    public int tryRead(byte[] buffer, int offset, int length) {
+        checkBounds(buffer, offset, length);
+        long head = mHead.value;
+        long tail = mCachedTail;
+        if (tail - head < length) {
+            tail = mCachedTail = mTail.value;
         }
-        if (length == 0) {
+        int bytesToCopy = (int) Math.min(tail - head, length);
+        if (bytesToCopy == 0) {
             return 0;
         }
-        synchronized(this) {
-            while (mStoredBytes == 0) {
-                wait();
-            }
-            int totalRead = 0;
-            int bufferLength = mBuffer.length;
-            boolean wasFull = bufferLength == mStoredBytes;
-            while (length > 0 && mStoredBytes > 0) {
-                int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
-                int bytesToCopy = Math.min(length, oneRun);
-                System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
-                mHead += bytesToCopy;
-                if (mHead >= bufferLength) {
-                    mHead = 0;
-                }
-                mStoredBytes -= bytesToCopy;
-                length -= bytesToCopy;
-                offset += bytesToCopy;
-                totalRead += bytesToCopy;
-            }
-            if (wasFull) {
-                notify();
-            }
-            return totalRead;
+        int index = (int) head & mMask;
+        int oneRun = Math.min(mBuffer.length - index, bytesToCopy);
+        System.arraycopy(mBuffer, index, buffer, offset, oneRun);
+        if (oneRun < bytesToCopy) {
+            System.arraycopy(mBuffer, 0, buffer, offset + oneRun, bytesToCopy - oneRun);
+        }
+        release(bytesToCopy);
+        return bytesToCopy;
+    }
+
+    /**
+     * Make everything currently available for reading visible without copying
+     * it out of the queue.  Because the queue is a ring, the data is in (at
+     * most) two contiguous segments of the array returned by
+     * {@link #getBuffer}.  The data stays in the queue until the consumer
+     * calls {@link #release}.  Only the consumer thread may call this.
+     *
+     * @param segments An int[4] which receives the offset and length of the
+     *                 first segment, followed by the offset and length of the
+     *                 second (the second length is zero if there is only one).
+     * @return The total number of bytes available.
+     */
+    public int readSegments(int[] segments) {
+        long head = mHead.value;
+        long tail = mCachedTail = mTail.value;
+        int available = (int) (tail - head);
+        int index = (int) head & mMask;
+        int oneRun = Math.min(mBuffer.length - index, available);
+        segments[0] = index;
+        segments[1] = oneRun;
+        segments[2] = 0;
+        segments[3] = available - oneRun;
+        return available;
+    }
+
+    /**
+     * Get the array backing the queue, for use with {@link #readSegments}.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Discard bytes from the head of the queue once the consumer is done with
+     * them, freeing their space for the producer.  Only the consumer thread
+     * may call this.
+     */
+    public void release(int count) {
+        if (count < 0 || count > getBytesAvailable()) {
+            throw new IllegalArgumentException("count out of range");
+        }
+        mHead.value += count;
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
         }
     }
 
@@ -77,10 +144,84 @@ class ByteQueue {
      * Attempt to write the specified portion of the provided buffer to
      * the queue.  Returns the number of bytes actually written to the queue;
      * it is the caller's responsibility to check whether all of the data
-     * was written and repeat the call to write() if necessary.
+     * was written and repeat the call to write() if necessary.  Waits until
+     * there is room for at least one byte.  Only the producer thread may call
+     * this.
      */
     public int write(byte[] buffer, int offset, int length)
     throws InterruptedException {
+        checkBounds(buffer, offset, length);
+        if (length == 0) {
+            return 0;
+        }
+        int written;
+        while ((written = tryWrite(buffer, offset, length)) == 0) {
+            awaitSpace();
+        }
+        return written;
+    }
+
+    /**
+     * Write as much of the provided buffer as there is room for, without
+     * waiting.  Only the producer thread may call this.
+     *
+     * @return The number of bytes written, which may be zero.
+     */
+    public int tryWrite(byte[] buffer, int offset, int length) {
+        checkBounds(buffer, offset, length);
+        int bufferLength = mBuffer.length;
+        long tail = mTail.value;
+        long head = mCachedHead;
+        if (bufferLength - (tail - head) < length) {
+            head = mCachedHead = mHead.value;
+        }
+        int bytesToCopy = (int) Math.min(bufferLength - (tail - head), length);
+        if (bytesToCopy == 0) {
+            return 0;
+        }
+        int index = (int) tail & mMask;
+        int oneRun = Math.min(bufferLength - index, bytesToCopy);
+        System.arraycopy(buffer, offset, mBuffer, index, oneRun);
+        if (oneRun < bytesToCopy) {
+            System.arraycopy(buffer, offset + oneRun, mBuffer, 0, bytesToCopy - oneRun);
+        }
+        mTail.value = tail + bytesToCopy;
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+        return bytesToCopy;
+    }
+
+    private void awaitBytes() throws InterruptedException {
+        mWaitingReader = Thread.currentThread();
+        try {
+            while (getBytesAvailable() == 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            mWaitingReader = null;
+        }
+    }
+
+    private void awaitSpace() throws InterruptedException {
+        mWaitingWriter = Thread.currentThread();
+        try {
+            while (getBytesAvailable() == mBuffer.length) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            mWaitingWriter = null;
+        }
+    }
+
+    private static void checkBounds(byte[] buffer, int offset, int length) {
         if (length + offset > buffer.length) {
             throw
                 new IllegalArgumentException("length + offset > buffer.length");
@@ -90,35 +231,38 @@ class ByteQueue {
             new IllegalArgumentException("length < 0");
 
         }
-        if (length == 0) {
-            return 0;
-        }
-        synchronized(this) {
-            int bufferLength = mBuffer.length;
-            boolean wasEmpty = mStoredBytes == 0;
-            while(bufferLength == mStoredBytes) {
-                wait();
-            }
-            int tail = mHead + mStoredBytes;
-            int oneRun;
-            if (tail >= bufferLength) {
-                tail = tail - bufferLength;
-                oneRun = mHead - tail;
-            } else {
-                oneRun = bufferLength - tail;
-            }
-            int bytesToCopy = Math.min(oneRun, length);
-            System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-            offset += bytesToCopy;
-            mStoredBytes += bytesToCopy;
-            if (wasEmpty) {
-                notify();
-            }
-            return bytesToCopy;
-        }
     }
 
-    private byte[] mBuffer;
-    private int mHead;
-    private int mStoredBytes;
+    /*
+     * The head and tail are each padded out to their own cache line, so that
+     * the producer advancing the tail doesn't keep invalidating the line the
+     * consumer is reading the head from, and vice versa.  The padding goes in
+     * superclasses and subclasses because the VM is free to reorder the
+     * fields declared within a single class.
+     */
+    @SuppressWarnings("unused")
+    private static class LeftPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private static class PositionValue extends LeftPadding {
+        /** A count of bytes, not an index into the array; never wraps. */
+        volatile long value;
+    }
+
+    @SuppressWarnings("unused")
+    private static final class Position extends PositionValue {
+        long p9, p10, p11, p12, p13, p14, p15;
+    }
+
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final Position mHead = new Position();
+    private final Position mTail = new Position();
+    /** The producer's last view of the head; only touched by the producer. */
+    private long mCachedHead;
+    /** The consumer's last view of the tail; only touched by the consumer. */
+    private long mCachedTail;
+    private volatile Thread mWaitingReader;
+    private volatile Thread mWaitingWriter;
 }
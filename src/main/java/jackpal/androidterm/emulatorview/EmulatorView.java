@@ -21,6 +21,7 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
@@ -31,11 +32,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
-import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
-import android.text.style.URLSpan;
-import android.text.util.Linkify;
-import android.text.util.Linkify.MatchFilter;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -67,10 +64,8 @@ import android.widget.Toast;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Hashtable;
 
 import jackpal.androidterm.emulatorview.compat.KeycodeConstants;
-import jackpal.androidterm.emulatorview.compat.Patterns;
 import mao.emulatorview.BuildConfig;
 import mao.emulatorview.R;
 
@@ -121,7 +116,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
     /**
      * Used to render text
      */
-    private final PaintRenderer mTextRenderer;
+    private PaintRenderer mTextRenderer;
 
     /**
      * Text size. Zero means 4 x 8 font.
@@ -174,6 +169,38 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     private int mLeftColumn;
 
+    /*
+     * The screen, cursor row and video mode as of the last update, to work
+     * out which rows the next update has to repaint.
+     */
+    private TranscriptScreen mLastUpdatedScreen;
+    private int mLastCursorRow;
+    private boolean mLastReverseVideo;
+    private final Rect mClipBounds = new Rect();
+
+    /*
+     * Bitmap cache of the rendered screen, see setUseBitmapCache().  Rows
+     * whose cached pixels are out of date are flagged in mCacheRowStale.  A
+     * scroll since the last draw is applied to the cache by blitting the
+     * region from mCacheBlitTop to mCacheBlitBottom up mCacheBlitLines rows,
+     * from one bitmap into the other.
+     */
+    private boolean mUseBitmapCache;
+    private Bitmap mCacheBitmap;
+    private Canvas mCacheCanvas;
+    private Bitmap mCacheBackBitmap;
+    private Canvas mCacheBackCanvas;
+    private boolean[] mCacheRowStale;
+    private boolean mCacheAllStale = true;
+    private int mCacheBlitTop;
+    private int mCacheBlitBottom;
+    private int mCacheBlitLines;
+    private TranscriptScreen mCacheScreen;
+    private boolean mCacheReverseVideo;
+    private int mCacheLeftColumn;
+    private final Rect mBlitSrc = new Rect();
+    private final Rect mBlitDst = new Rect();
+
     private static final int CURSOR_BLINK_PERIOD = 1000;
 
     private boolean mCursorVisible = true;
@@ -222,8 +249,13 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
             } else {
                 mCursorVisible = true;
             }
-            // Perhaps just invalidate the character with the cursor.
-            invalidate();
+            if (mEmulator != null) {
+                int cursorRow = mEmulator.getCursorRow();
+                markCacheRowStale(cursorRow);
+                invalidateRows(cursorRow, cursorRow + 1);
+            } else {
+                invalidate();
+            }
         }
     };
 
@@ -255,191 +287,9 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
     };
 
     /**
-     * A hash table of underlying URLs to implement clickable links.
+     * The links in the rows shown, to implement clickable links.
      */
-    private Hashtable<Integer, URLSpan[]> mLinkLayer = new Hashtable<Integer, URLSpan[]>();
-
-    /**
-     * Accept links that start with http[s]:
-     */
-    private static class HttpMatchFilter implements MatchFilter {
-        public boolean acceptMatch(CharSequence s, int start, int end) {
-            return startsWith(s, start, end, "http:") ||
-                    startsWith(s, start, end, "https:");
-        }
-
-        private boolean startsWith(CharSequence s, int start, int end,
-                                   String prefix) {
-            int prefixLen = prefix.length();
-            int fragmentLen = end - start;
-            if (prefixLen > fragmentLen) {
-                return false;
-            }
-            for (int i = 0; i < prefixLen; i++) {
-                if (s.charAt(start + i) != prefix.charAt(i)) {
-                    return false;
-                }
-            }
-            return true;
-        }
-    }
-
-    private static MatchFilter sHttpMatchFilter = new HttpMatchFilter();
-
-    /**
-     * Convert any URLs in the current row into a URLSpan,
-     * and store that result in a hash table of URLSpan entries.
-     *
-     * @param row The number of the row to check for links
-     * @return The number of lines in a multi-line-wrap set of links
-     */
-    private int createLinks(int row) {
-        int lineCount = 1;
-
-        TranscriptScreen transcriptScreen = mEmulator.getScreen();
-        if (transcriptScreen == null) {
-            return lineCount;
-        }
-        char[] line = transcriptScreen.getScriptLine(row);
-        //Nothing to do if there's no text.
-        if (line == null)
-            return lineCount;
-
-        /* If this is not a basic line, the array returned from getScriptLine()
-         * could have arbitrary garbage at the end -- find the point at which
-         * the line ends and only include that in the text to linkify.
-         *
-         * XXX: The fact that the array returned from getScriptLine() on a
-         * basic line contains no garbage is an implementation detail -- the
-         * documented behavior explicitly allows garbage at the end! */
-        int lineLen;
-        boolean textIsBasic = transcriptScreen.isBasicLine(row);
-        if (textIsBasic) {
-            lineLen = line.length;
-        } else {
-            // The end of the valid data is marked by a NUL character
-            for (lineLen = 0; line[lineLen] != 0; ++lineLen) ;
-        }
-
-        SpannableStringBuilder textToLinkify = new SpannableStringBuilder(new String(line, 0, lineLen));
-
-        boolean lineWrap = transcriptScreen.getScriptLineWrap(row);
-
-        //While the current line has a wrap
-        while (lineWrap) {
-            //Get next line
-            int nextRow = row + lineCount;
-            line = transcriptScreen.getScriptLine(nextRow);
-
-            //If next line is blank, don't try and append
-            if (line == null)
-                break;
-
-            boolean lineIsBasic = transcriptScreen.isBasicLine(nextRow);
-            if (textIsBasic && !lineIsBasic) {
-                textIsBasic = lineIsBasic;
-            }
-            if (lineIsBasic) {
-                lineLen = line.length;
-            } else {
-                // The end of the valid data is marked by a NUL character
-                for (lineLen = 0; line[lineLen] != 0; ++lineLen) ;
-            }
-
-            textToLinkify.append(new String(line, 0, lineLen));
-
-            //Check if line after next is wrapped
-            lineWrap = transcriptScreen.getScriptLineWrap(nextRow);
-            ++lineCount;
-        }
-
-        Linkify.addLinks(textToLinkify, Patterns.WEB_URL,
-                null, sHttpMatchFilter, null);
-        URLSpan[] urls = textToLinkify.getSpans(0, textToLinkify.length(), URLSpan.class);
-        if (urls.length > 0) {
-            int columns = mColumns;
-
-            //re-index row to 0 if it is negative
-            int screenRow = row - mTopRow;
-
-            //Create and initialize set of links
-            URLSpan[][] linkRows = new URLSpan[lineCount][];
-            for (int i = 0; i < lineCount; ++i) {
-                linkRows[i] = new URLSpan[columns];
-                Arrays.fill(linkRows[i], null);
-            }
-
-            //For each URL:
-            for (int urlNum = 0; urlNum < urls.length; ++urlNum) {
-                URLSpan url = urls[urlNum];
-                int spanStart = textToLinkify.getSpanStart(url);
-                int spanEnd = textToLinkify.getSpanEnd(url);
-
-                // Build accurate indices for links
-                int startRow;
-                int startCol;
-                int endRow;
-                int endCol;
-                if (textIsBasic) {
-                    /* endRow/endCol must be the last character of the link,
-                     * not one after -- otherwise endRow might be too large */
-                    int spanLastPos = spanEnd - 1;
-                    // Basic line -- can assume one char per column
-                    startRow = spanStart / mColumns;
-                    startCol = spanStart % mColumns;
-                    endRow = spanLastPos / mColumns;
-                    endCol = spanLastPos % mColumns;
-                } else {
-                    /* Iterate over the line to get starting and ending columns
-                     * for this span */
-                    startRow = 0;
-                    startCol = 0;
-                    for (int i = 0; i < spanStart; ++i) {
-                        char c = textToLinkify.charAt(i);
-                        if (Character.isHighSurrogate(c)) {
-                            ++i;
-                            startCol += WcWidth.wcwidth(c, textToLinkify.charAt(i));
-                        } else {
-                            startCol += WcWidth.wcwidth(c);
-                        }
-                        if (startCol >= columns) {
-                            ++startRow;
-                            startCol %= columns;
-                        }
-                    }
-
-                    endRow = startRow;
-                    endCol = startCol;
-                    for (int i = spanStart; i < spanEnd; ++i) {
-                        char c = textToLinkify.charAt(i);
-                        if (Character.isHighSurrogate(c)) {
-                            ++i;
-                            endCol += WcWidth.wcwidth(c, textToLinkify.charAt(i));
-                        } else {
-                            endCol += WcWidth.wcwidth(c);
-                        }
-                        if (endCol >= columns) {
-                            ++endRow;
-                            endCol %= columns;
-                        }
-                    }
-                }
-
-                //Fill linkRows with the URL where appropriate
-                for (int i = startRow; i <= endRow; ++i) {
-                    int runStart = (i == startRow) ? startCol : 0;
-                    int runEnd = (i == endRow) ? endCol : mColumns - 1;
-
-                    Arrays.fill(linkRows[i], runStart, runEnd + 1, url);
-                }
-            }
-
-            //Add links into the link layer for later retrieval
-            for (int i = 0; i < lineCount; ++i)
-                mLinkLayer.put(screenRow + i, linkRows[i]);
-        }
-        return lineCount;
-    }
+    private TranscriptLinks mLinks;
 
     /**
      * Sends mouse wheel codes to terminal in response to fling.
@@ -501,12 +351,178 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
      */
     private UpdateCallback mUpdateNotify = new UpdateCallback() {
         public void onUpdate() {
-            mEmulator.clearScrollCounter();
-            ensureCursorVisible();
-            invalidate();
+            synchronized (mTermSession.getEmulatorLock()) {
+                int oldTopRow = mTopRow;
+                int oldLeftColumn = mLeftColumn;
+                ensureCursorVisible();
+                invalidateChangedRows(oldTopRow != mTopRow || oldLeftColumn != mLeftColumn);
+            }
         }
     };
 
+    /**
+     * Invalidate only the rows which have changed since the last update.
+     * The whole view is still invalidated when everything moves or changes
+     * (the view was scrolled, the emulator switched screens or toggled
+     * reverse video), and when the session parses on its own thread,
+     * because then the snapshot drawn next may include several updates'
+     * worth of changes.
+     * <p>
+     * A region which scrolled is invalidated whole, since every pixel in it
+     * has moved and a view keeps no pixels of its own between frames.  With
+     * the bitmap cache, though, only the dirty rows and the strip which
+     * scrolled in are rendered again; the rest of the region is blitted.
+     *
+     * @param viewMoved Whether the visible part of the screen has moved.
+     */
+    private void invalidateChangedRows(boolean viewMoved) {
+        TranscriptScreen screen = mEmulator.getScreen();
+        int cursorRow = mEmulator.getCursorRow();
+        boolean reverseVideo = mEmulator.getReverseVideo();
+        int scrolled = mEmulator.getScrollCounter();
+        mEmulator.clearScrollCounter();
+        if (viewMoved || screen != mLastUpdatedScreen || reverseVideo != mLastReverseVideo
+                || mTermSession.hasParseThread()) {
+            mCacheAllStale = true;
+            invalidate();
+        } else {
+            int shift = screen.getScrollShift();
+            if (shift > 0) {
+                int top = screen.getScrollShiftTop();
+                int bottom = screen.getScrollShiftBottom();
+                // The pixels of the whole region have moved
+                invalidateRows(top, bottom);
+                // Every scroll since the last update went to the same region
+                // exactly when the emulator's count matches the screen's
+                if (scrolled == shift) {
+                    recordCacheScroll(top, bottom, shift);
+                    if (mLastCursorRow - shift >= top && mLastCursorRow < bottom) {
+                        // The old cursor's pixels move up too
+                        markCacheRowStale(mLastCursorRow - shift);
+                    }
+                } else {
+                    mCacheAllStale = true;
+                }
+            } else if (scrolled > 0) {
+                mCacheAllStale = true;
+            }
+            int rows = Math.min(mRows, screen.getScreenRows());
+            for (int row = 0; row < rows; row++) {
+                if (screen.isRowDirty(row)) {
+                    markCacheRowStale(row);
+                    invalidateRows(row, row + 1);
+                }
+            }
+            markCacheRowStale(mLastCursorRow);
+            markCacheRowStale(cursorRow);
+            invalidateRows(mLastCursorRow, mLastCursorRow + 1);
+            invalidateRows(cursorRow, cursorRow + 1);
+        }
+        screen.forgetChangedLinks(mLinks, scrolled);
+        screen.clearDirtyRows();
+        mLastUpdatedScreen = screen;
+        mLastCursorRow = cursorRow;
+        mLastReverseVideo = reverseVideo;
+    }
+
+    /**
+     * Choose whether to keep a bitmap of the rendered screen between frames.
+     * With the cache, a frame only renders the rows which have changed, and a
+     * scroll moves the cached pixels up instead of drawing every row again.
+     * This costs two bitmaps the size of the view.  The cache is bypassed
+     * while scrolled back into the transcript, while selecting text, and for
+     * sessions which parse on their own thread.
+     *
+     * @param useBitmapCache Whether to use the cache.
+     */
+    public void setUseBitmapCache(boolean useBitmapCache) {
+        mUseBitmapCache = useBitmapCache;
+        if (!useBitmapCache) {
+            releaseBitmapCache();
+        }
+        invalidate();
+    }
+
+    public boolean getUseBitmapCache() {
+        return mUseBitmapCache;
+    }
+
+    /**
+     * Choose whether to draw text from an atlas of pre-rasterized glyphs.
+     * Each character is then rasterized once and copied to the screen on
+     * later frames, which is cheaper than shaping text every frame but costs
+     * a bitmap of a few hundred glyphs.  Like changing the text size, this
+     * resets the typeface.
+     *
+     * @param useGlyphAtlas Whether to use the glyph atlas.
+     */
+    public void setUseGlyphAtlas(boolean useGlyphAtlas) {
+        if (useGlyphAtlas == getUseGlyphAtlas()) {
+            return;
+        }
+        mTextRenderer = useGlyphAtlas ? new GlyphAtlasRenderer() : new PaintRenderer();
+        updateText();
+        invalidate();
+    }
+
+    public boolean getUseGlyphAtlas() {
+        return mTextRenderer instanceof GlyphAtlasRenderer;
+    }
+
+    private void releaseBitmapCache() {
+        if (mCacheBitmap != null) {
+            mCacheBitmap.recycle();
+            mCacheBackBitmap.recycle();
+            mCacheBitmap = mCacheBackBitmap = null;
+            mCacheCanvas = mCacheBackCanvas = null;
+        }
+        mCacheAllStale = true;
+    }
+
+    private void markCacheRowStale(int row) {
+        boolean[] stale = mCacheRowStale;
+        if (stale != null && row >= 0 && row < stale.length) {
+            stale[row] = true;
+        }
+    }
+
+    /**
+     * Note that rows top to bottom of the screen have scrolled up by the given
+     * number of lines, to be blitted in the cache at the next draw.
+     */
+    private void recordCacheScroll(int top, int bottom, int lines) {
+        boolean[] stale = mCacheRowStale;
+        if (mCacheAllStale || stale == null || bottom > stale.length) {
+            mCacheAllStale = true;
+            return;
+        }
+        if (mCacheBlitLines > 0 && (top != mCacheBlitTop || bottom != mCacheBlitBottom)) {
+            mCacheAllStale = true;
+            return;
+        }
+        mCacheBlitTop = top;
+        mCacheBlitBottom = bottom;
+        mCacheBlitLines += lines;
+        // Stale rows move up with their pixels; the exposed ones are stale
+        for (int row = top; row < bottom; row++) {
+            stale[row] = row + lines >= bottom || stale[row + lines];
+        }
+    }
+
+    /**
+     * Invalidate the part of the view showing the given screen rows.
+     *
+     * @param top    The first row.
+     * @param bottom One after the last row.
+     */
+    // The rect still limits what onDraw() redraws with software rendering
+    @SuppressWarnings("deprecation")
+    private void invalidateRows(int top, int bottom) {
+        int charHeight = mTextRenderer.mCharHeight;
+        int y = mTopOfScreenMargin + (top - mTopRow) * charHeight;
+        invalidate(0, y, getWidth(), y + (bottom - top) * charHeight);
+    }
+
     /**
      * Constructor called when inflating this view from XML.
      * <p>
@@ -558,6 +574,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         setFocusableInTouchMode(true);
 
         mTermSession = session;
+        mLinks = new TranscriptLinks(session);
 
         mKeyListener.setTermSession(session);
         session.setKeyListener(mKeyListener);
@@ -962,7 +979,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         if (mEmulator == null || mEmulator.getScreen() == null) {
             return 0;
         }
-        return mEmulator.getScreen().getActiveRows();
+        return getActiveRows();
     }
 
     /**
@@ -985,7 +1002,27 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         if (mEmulator == null || mEmulator.getScreen() == null) {
             return 0;
         }
-        return mTopRow + mEmulator.getScreen().getActiveRows() - mRows;
+        return mTopRow + getActiveRows() - mRows;
+    }
+
+    /**
+     * Get the number of rows the screen and its transcript have.  The parse
+     * thread may be changing them, so this takes the emulator lock.
+     */
+    private int getActiveRows() {
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getScreen().getActiveRows();
+        }
+    }
+
+    /**
+     * Get the number of transcript rows above the screen, under the
+     * emulator lock.
+     */
+    private int getActiveTranscriptRows() {
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getScreen().getActiveTranscriptRows();
+        }
     }
 
     /**
@@ -1038,9 +1075,106 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
      */
     public void page(int delta) {
         mTopRow =
-                Math.min(0, Math.max(-(mEmulator.getScreen()
-                        .getActiveTranscriptRows()), mTopRow + mRows * delta));
+                Math.min(0, Math.max(-getActiveTranscriptRows(), mTopRow + mRows * delta));
+        invalidate();
+    }
+
+    /**
+     * Scroll the view back to put the shell's last prompt above the top of
+     * the view at the top.  Prompts are only known for shells which mark
+     * them (with OSC 133 shell integration sequences).
+     *
+     * @return Whether the view scrolled.
+     */
+    public boolean jumpToPreviousPrompt() {
+        return jumpToPrompt(false);
+    }
+
+    /**
+     * Scroll the view on to put the shell's next prompt below the top of the
+     * view at the top, or as near the top as it'll go.
+     *
+     * @return Whether the view scrolled.
+     * @see #jumpToPreviousPrompt
+     */
+    public boolean jumpToNextPrompt() {
+        return jumpToPrompt(true);
+    }
+
+    private boolean jumpToPrompt(boolean forward) {
+        if (mEmulator == null) {
+            return false;
+        }
+        int oldTopRow = mTopRow;
+        synchronized (mTermSession.getEmulatorLock()) {
+            TranscriptScreen screen = mEmulator.getScreen();
+            int[] position = new int[2];
+            if (!screen.findMark(TranscriptMarks.PROMPT, mTopRow, forward, position)) {
+                return false;
+            }
+            mTopRow = Math.min(0, Math.max(-screen.getActiveTranscriptRows(), position[1]));
+        }
+        if (mTopRow == oldTopRow) {
+            return false;
+        }
         invalidate();
+        return true;
+    }
+
+    /**
+     * Select the output of the last command to finish, and scroll to its
+     * start.  Commands are only known for shells which mark their output
+     * (with OSC 133 shell integration sequences).
+     *
+     * @return Whether there was any output to select.
+     */
+    public boolean selectLastCommandOutput() {
+        if (mEmulator == null) {
+            return false;
+        }
+        synchronized (mTermSession.getEmulatorLock()) {
+            TranscriptScreen screen = mEmulator.getScreen();
+            int[] range = new int[4];
+            if (!screen.findLastOutput(range)) {
+                return false;
+            }
+            int endColumn = range[2];
+            int endRow = range[3];
+            if (endColumn == 0) {
+                // The output ended with a newline
+                endColumn = screen.getColumns();
+                --endRow;
+            }
+            if (endRow < range[1] || (endRow == range[1] && endColumn <= range[0])) {
+                return false;
+            }
+            mSelX1 = range[0];
+            mSelY1 = range[1];
+            mSelX2 = endColumn;
+            mSelY2 = endRow;
+            mTopRow = Math.min(0, Math.max(-screen.getActiveTranscriptRows(), mSelY1));
+        }
+        startTextSelectionMode();
+        return true;
+    }
+
+    /**
+     * Get the working directory the shell had reported by the row at the
+     * specified screen coordinate, as a file: URL.  Only shells which report
+     * it (with OSC 7) do.
+     *
+     * @param y The y coordinate being queried (from 0 to screen height)
+     * @return The directory, or null if there's none known.
+     */
+    public String getDirectoryAt(float y) {
+        float h = getHeight();
+        if (h == 0 || mEmulator == null) {
+            return null;
+        }
+        int row = (int) Math.floor(y / h * mRows);
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getScreen().getDirectory(row + mTopRow);
+        }
     }
 
     /**
@@ -1131,15 +1265,17 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         mSelX1 = getCursorX(ev.getX());
         mSelX2 = mSelX1 + 1;
         mSelY1 = mSelY2 = getCursorY(ev.getY(), ev.isFromSource(InputDevice.SOURCE_MOUSE));
-        final TranscriptScreen screen = mEmulator.getScreen();
-        if (!" ".equals(screen.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY1))) {
-            // Selecting something other than whitespace. Expand to word.
-            String text;
-            while (mSelX1 > 0 && !"".equals((text = screen.getSelectedText(mSelX1 - 1, mSelY1, mSelX1, mSelY1))) && !wordSplit(text)) {
-                mSelX1--;
-            }
-            while (mSelX2 < mColumns - 1 && !"".equals((text = screen.getSelectedText(mSelX2, mSelY1, mSelX2 + 1, mSelY1))) && !wordSplit(text)) {
-                mSelX2++;
+        synchronized (mTermSession.getEmulatorLock()) {
+            final TranscriptScreen screen = mEmulator.getScreen();
+            if (!" ".equals(screen.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY1))) {
+                // Selecting something other than whitespace. Expand to word.
+                String text;
+                while (mSelX1 > 0 && !"".equals((text = screen.getSelectedText(mSelX1 - 1, mSelY1, mSelX1, mSelY1))) && !wordSplit(text)) {
+                    mSelX1--;
+                }
+                while (mSelX2 < mColumns - 1 && !"".equals((text = screen.getSelectedText(mSelX2, mSelY1, mSelX2 + 1, mSelY1))) && !wordSplit(text)) {
+                    mSelX2++;
+                }
             }
         }
 
@@ -1185,8 +1321,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         }
 
         mTopRow =
-                Math.min(0, Math.max(-(mEmulator.getScreen()
-                        .getActiveTranscriptRows()), mTopRow + deltaRows));
+                Math.min(0, Math.max(-getActiveTranscriptRows(), mTopRow + deltaRows));
         if (!awakenScrollBars()) invalidate();
 
         return true;
@@ -1202,7 +1337,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     public boolean onJumpTapUp(MotionEvent e1, MotionEvent e2) {
         // Scroll to top
-        mTopRow = -mEmulator.getScreen().getActiveTranscriptRows();
+        mTopRow = -getActiveTranscriptRows();
         invalidate();
         return true;
     }
@@ -1221,7 +1356,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
             mScroller.fling(0, mTopRow,
                     -(int) (velocityX * SCALE), -(int) (velocityY * SCALE),
                     0, 0,
-                    -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                    -getActiveTranscriptRows(), 0);
             // onScroll(e1, e2, 0.1f * velocityX, -0.1f * velocityY);
             post(mFlingRunner);
         }
@@ -1472,6 +1607,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
     private void updateText() {
         ColorScheme scheme = mColorScheme;
         mTextRenderer.updateSize(mTextSize, scheme);
+        mCacheAllStale = true;
 
         mForegroundPaint.setColor(scheme.getForeColor());
         mBackgroundPaint.setColor(scheme.getBackColor());
@@ -1486,6 +1622,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     public void setTypeface(Typeface typeface) {
         mTextRenderer.setTypeface(typeface);
+        mCacheAllStale = true;
     }
 
     /**
@@ -1518,11 +1655,16 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         mRows = Math.max(1, (h - mTopOfScreenMargin) / mTextRenderer.mCharHeight);
         mVisibleRows = Math.max(1, (mVisibleHeight - mTopOfScreenMargin) / mTextRenderer.mCharHeight);
         mTermSession.updateSize(mColumns, mRows);
+        synchronized (mTermSession.getEmulatorLock()) {
+            // The rows may have moved between the screen and the transcript
+            mLinks.clear();
+        }
 
         // Reset our paging:
         mTopRow = 0;
         mLeftColumn = 0;
 
+        mCacheAllStale = true;
         invalidate();
     }
 
@@ -1533,8 +1675,6 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
      *              view's size has not changed.
      */
     public void updateSize(boolean force) {
-        //Need to clear saved links on each display refresh
-        mLinkLayer.clear();
         if (mKnownSize) {
             int w = getWidth();
             int h = getHeight();
@@ -1561,11 +1701,48 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
             return;
         }
 
+        mTermSession.markViewed();
+        mTextRenderer.beginFrame();
+        ScreenSnapshot snapshot = mTermSession.acquireScreenSnapshot();
+        if (snapshot != null && mTopRow == 0
+                && snapshot.mColumns == mColumns && snapshot.mRows == mRows) {
+            drawScreen(canvas, snapshot.mScreen, snapshot.mReverseVideo,
+                    snapshot.mCursorCol, snapshot.mCursorRow, snapshot.mShowCursor);
+        } else {
+            // No parse thread, or showing the transcript, which only the live
+            // screen has
+            synchronized (mTermSession.getEmulatorLock()) {
+                // A scrollback budget may have trimmed the rows we were
+                // scrolled to
+                mTopRow = Math.max(mTopRow,
+                        -mEmulator.getScreen().getActiveTranscriptRows());
+                if (mUseBitmapCache && mTopRow == 0 && !mIsInTextSelectionMode) {
+                    drawCached(canvas, mEmulator.getScreen(), mEmulator.getReverseVideo(),
+                            mEmulator.getCursorCol(), mEmulator.getCursorRow(),
+                            mEmulator.getShowCursor());
+                } else {
+                    mCacheAllStale = true;
+                    drawScreen(canvas, mEmulator.getScreen(), mEmulator.getReverseVideo(),
+                            mEmulator.getCursorCol(), mEmulator.getCursorRow(),
+                            mEmulator.getShowCursor());
+                }
+            }
+        }
+
+        mLinks.request(mTopRow, mTopRow + mRows);
+
+        if (mSelectionModifierCursorController != null &&
+                mSelectionModifierCursorController.isActive()) {
+            mSelectionModifierCursorController.updatePosition();
+        }
+    }
+
+    private void drawScreen(Canvas canvas, TranscriptScreen screen, boolean reverseVideo,
+                            int cx, int cy, boolean showCursor) {
         int left = mLeftOfScreenMargin;
         int right = getWidth();
         int h = getHeight();
 
-        boolean reverseVideo = mEmulator.getReverseVideo();
         mTextRenderer.setReverseVideo(reverseVideo);
 
         Paint backgroundPaint =
@@ -1574,12 +1751,16 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
         final int characterHeight = mTextRenderer.mCharHeight;
 
+        // Rows outside the clip haven't changed, so don't bother drawing them
+        Rect clip = mClipBounds;
+        if (!canvas.getClipBounds(clip)) {
+            return;
+        }
+
         float x = left - mLeftColumn * mTextRenderer.mCharWidth;
         float y = characterHeight + mTopOfScreenMargin;
         int endLine = mTopRow + mRows;
-        int cx = mEmulator.getCursorCol();
-        int cy = mEmulator.getCursorRow();
-        boolean cursorVisible = mCursorVisible && mEmulator.getShowCursor();
+        boolean cursorVisible = mCursorVisible && showCursor;
 //        String effectiveImeBuffer = mImeBuffer;
 //        int combiningAccent = mKeyListener.getCombiningAccent();
 //        if (combiningAccent != 0) {
@@ -1587,41 +1768,112 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 //        }
 //        int cursorStyle = mKeyListener.getCursorMode();
 
-//        int linkLinesToSkip = 0; //for multi-line links
-
-        int selY1 = this.mSelY1;
-        int selY2 = this.mSelY2;
         for (int i = mTopRow; i < endLine; i++) {
-            int cursorX = -1;
-            if (i == cy && cursorVisible) {
-                cursorX = cx;
-            }
-            int selx1 = -1;
-            int selx2 = -1;
-            if (i >= selY1 && i <= selY2) {
-                if (i == selY1) {
-                    selx1 = mSelX1;
-                }
-                if (i == selY2) {
-                    selx2 = mSelX2 - 1;
-                } else {
-                    selx2 = mColumns - 1;
-                }
+            if (y - characterHeight >= clip.bottom || y <= clip.top) {
+                y += characterHeight;
+                continue;
             }
-            mEmulator.getScreen().drawText(i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, null, 0);
+            drawRow(canvas, screen, i, x, y, cx, cy, cursorVisible);
             y += characterHeight;
-            //if no lines to skip, create links for the line being drawn
-//            if (linkLinesToSkip == 0)
-//                linkLinesToSkip = createLinks(i);
+        }
+    }
 
-            //createLinks always returns at least 1
-//            --linkLinesToSkip;
+    private void drawRow(Canvas canvas, TranscriptScreen screen, int row, float x, float y,
+                         int cx, int cy, boolean cursorVisible) {
+        int cursorX = -1;
+        if (row == cy && cursorVisible) {
+            cursorX = cx;
         }
+        int selx1 = -1;
+        int selx2 = -1;
+        if (row >= mSelY1 && row <= mSelY2) {
+            if (row == mSelY1) {
+                selx1 = mSelX1;
+            }
+            if (row == mSelY2) {
+                selx2 = mSelX2 - 1;
+            } else {
+                selx2 = mColumns - 1;
+            }
+        }
+        screen.drawText(row, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, null, 0);
+    }
 
-        if (mSelectionModifierCursorController != null &&
-                mSelectionModifierCursorController.isActive()) {
-            mSelectionModifierCursorController.updatePosition();
+    /**
+     * Draw the screen through the bitmap cache: apply any pending scroll to
+     * the cached pixels, render just the stale rows into the cache, and then
+     * copy the cache to the canvas.
+     */
+    private void drawCached(Canvas canvas, TranscriptScreen screen, boolean reverseVideo,
+                            int cx, int cy, boolean showCursor) {
+        int width = getWidth();
+        int height = getHeight();
+        if (mCacheBitmap == null || mCacheBitmap.getWidth() != width
+                || mCacheBitmap.getHeight() != height) {
+            releaseBitmapCache();
+            mCacheBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mCacheCanvas = new Canvas(mCacheBitmap);
+            mCacheBackBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mCacheBackCanvas = new Canvas(mCacheBackBitmap);
+        }
+        if (mCacheRowStale == null || mCacheRowStale.length != mRows) {
+            mCacheRowStale = new boolean[mRows];
+            mCacheAllStale = true;
+        }
+        if (screen != mCacheScreen || reverseVideo != mCacheReverseVideo
+                || mLeftColumn != mCacheLeftColumn) {
+            mCacheAllStale = true;
         }
+
+        final int characterHeight = mTextRenderer.mCharHeight;
+        boolean[] stale = mCacheRowStale;
+        Canvas cacheCanvas = mCacheCanvas;
+        mTextRenderer.setReverseVideo(reverseVideo);
+        Paint backgroundPaint =
+                reverseVideo ? mForegroundPaint : mBackgroundPaint;
+        if (mCacheAllStale) {
+            Arrays.fill(stale, true);
+            cacheCanvas.drawRect(0, 0, width, height, backgroundPaint);
+        } else if (mCacheBlitLines > 0
+                && mCacheBlitLines < mCacheBlitBottom - mCacheBlitTop) {
+            // Copy everything, then move the scrolled region up over itself
+            int top = mTopOfScreenMargin + mCacheBlitTop * characterHeight;
+            int bottom = mTopOfScreenMargin + mCacheBlitBottom * characterHeight;
+            int shift = mCacheBlitLines * characterHeight;
+            mBlitSrc.set(0, top + shift, width, bottom);
+            mBlitDst.set(0, top, width, bottom - shift);
+            mCacheBackCanvas.drawBitmap(mCacheBitmap, 0, 0, null);
+            mCacheBackCanvas.drawBitmap(mCacheBitmap, mBlitSrc, mBlitDst, null);
+
+            Bitmap bitmap = mCacheBitmap;
+            mCacheBitmap = mCacheBackBitmap;
+            mCacheBackBitmap = bitmap;
+            cacheCanvas = mCacheBackCanvas;
+            mCacheBackCanvas = mCacheCanvas;
+            mCacheCanvas = cacheCanvas;
+        }
+
+        float x = mLeftOfScreenMargin - mLeftColumn * mTextRenderer.mCharWidth;
+        boolean cursorVisible = mCursorVisible && showCursor;
+        for (int row = 0; row < stale.length; row++) {
+            if (!stale[row]) {
+                continue;
+            }
+            int top = mTopOfScreenMargin + row * characterHeight;
+            cacheCanvas.save();
+            cacheCanvas.clipRect(0, top, width, top + characterHeight);
+            cacheCanvas.drawRect(0, top, width, top + characterHeight, backgroundPaint);
+            drawRow(cacheCanvas, screen, row, x, top + characterHeight, cx, cy, cursorVisible);
+            cacheCanvas.restore();
+            stale[row] = false;
+        }
+        mCacheAllStale = false;
+        mCacheBlitLines = 0;
+        mCacheScreen = screen;
+        mCacheReverseVideo = reverseVideo;
+        mCacheLeftColumn = mLeftColumn;
+
+        canvas.drawBitmap(mCacheBitmap, 0, 0, null);
     }
 
     private void ensureCursorVisible() {
@@ -1644,7 +1896,9 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
      * @return A {@link String} with the selected text.
      */
     public String getSelectedText() {
-        return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        }
     }
 
     /**
@@ -1735,15 +1989,13 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         int row = (int) Math.floor(y_pos * mRows);
         int col = (int) Math.floor(x_pos * mColumns);
 
-        //Grab row from link layer
-        URLSpan[] linkRow = mLinkLayer.get(row);
-        URLSpan link;
-
-        //If row exists, and link exists at column, return it
-        if (linkRow != null && (link = linkRow[col]) != null)
-            return link.getURL();
-        else
+        if (mEmulator == null) {
             return null;
+        }
+        //Look the cell up in the links found so far
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getScreen().getLinkURL(mLinks, col + mLeftColumn, row + mTopRow);
+        }
     }
 
     /**
@@ -2155,8 +2407,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
             if (DEBUG)
                 Log.d(TAG, "updatePosition: " + x + "  " + y + "   " + mTopRow + "   "
                         + mTextRenderer.mCharHeight + "   " + EmulatorView.this.getHeight());
-            final TranscriptScreen screen = mEmulator.getScreen();
-            final int scrollRows = screen.getActiveRows() - mRows;
+            final int scrollRows = getActiveRows() - mRows;
             if (handle == mStartHandle) {
                 mSelX1 = getCursorX(x);
                 mSelY1 = getCursorY(y, false);
@@ -2193,7 +2444,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
                 }
 
 
-                mSelX1 = getValidCurX(screen, mSelY1, mSelX1);
+                mSelX1 = getValidCurX(mSelY1, mSelX1);
 
                 if (DEBUG)
                     Log.d(TAG, "updatePosition: left " + mSelX1 + "   " + mSelY1);
@@ -2230,7 +2481,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
                     }
                 }
 
-                mSelX2 = getValidCurX(screen, mSelY2, mSelX2);
+                mSelX2 = getValidCurX(mSelY2, mSelX2);
             }
             if (DEBUG)
                 Log.d(TAG, "updatePosition: selx1= " + mSelX1 + "  selx2 = " + mSelX2);
@@ -2239,33 +2490,35 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         }
 
         //得到有效的字符间隙
-        private int getValidCurX(TranscriptScreen screen, int cy, int cx) {
-            char[] line = screen.getScriptLine(cy);
-            if (line != null) {
-                int col = 0;
-                for (int i = 0, len = line.length; i < len; i++) {
-                    char ch1 = line[i];
-                    if (ch1 == 0) {
-                        break;
-                    }
+        private int getValidCurX(int cy, int cx) {
+            synchronized (mTermSession.getEmulatorLock()) {
+                char[] line = mEmulator.getScreen().getScriptLine(cy);
+                if (line != null) {
+                    int col = 0;
+                    for (int i = 0, len = line.length; i < len; i++) {
+                        char ch1 = line[i];
+                        if (ch1 == 0) {
+                            break;
+                        }
 
 
-                    int wc;
-                    if (Character.isHighSurrogate(ch1) && i + 1 < len) {
-                        char ch2 = line[++i];
-                        wc = WcWidth.wcwidth(ch1, ch2);
-                    } else {
-                        wc = WcWidth.wcwidth(ch1);
-                    }
+                        int wc;
+                        if (Character.isHighSurrogate(ch1) && i + 1 < len) {
+                            char ch2 = line[++i];
+                            wc = WcWidth.wcwidth(ch1, ch2);
+                        } else {
+                            wc = WcWidth.wcwidth(ch1);
+                        }
 
-                    final int cend = col + wc;
-                    if (cx > col && cx < cend) {
-                        return cend;
+                        final int cend = col + wc;
+                        if (cx > col && cx < cend) {
+                            return cend;
+                        }
+                        col = cend;
                     }
-                    col = cend;
                 }
+                return cx;
             }
-            return cx;
         }
 
         public void updatePosition() {
@@ -2350,6 +2603,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
             getViewTreeObserver().removeOnTouchModeChangeListener(mSelectionModifierCursorController);
             mSelectionModifierCursorController.onDetached();
         }
+        releaseBitmapCache();
     }
 
     private void startTextSelectionMode() {
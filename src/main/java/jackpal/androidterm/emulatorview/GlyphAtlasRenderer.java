@@ -0,0 +1,320 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.util.LongSparseArray;
+
+/**
+ * A renderer which draws text from an atlas of pre-rasterized glyphs instead
+ * of shaping it with {@link Canvas#drawText} on every frame.
+ * <p>
+ * Each (code point, bold, underline) combination is rasterized once, in
+ * white, into a slot of an alpha-only atlas bitmap.  A cell is then drawn by
+ * copying its slot to the canvas through a paint whose color tints it, so the
+ * cost of a row depends on its number of cells rather than on how many style
+ * runs it has, and the text paint's state never has to change.  When the
+ * atlas is full, the least recently used glyph is evicted.
+ * <p>
+ * A hardware canvas only records the copies, and reads the atlas when the
+ * frame is played back, so a slot used earlier in the frame mustn't be
+ * rasterized over.  Slots are stamped with the frame which last used them;
+ * when every slot has been used in the current frame, the atlas grows by a
+ * page, and once it can't grow any more, the glyph is drawn with
+ * {@link Canvas#drawText}.  The atlas is split into pages so that a new
+ * glyph only makes its own page be uploaded again.
+ * <p>
+ * Slots are two cells wide so that East Asian wide characters fit.  Cells
+ * made of a character plus combining characters are rare enough that they
+ * are drawn with {@link Canvas#drawText} as before.
+ */
+class GlyphAtlasRenderer extends PaintRenderer {
+    private static final int PAGE_COLUMNS = 32;
+    private static final int PAGE_ROWS = 4;
+    private static final int MAX_PAGES = 16;
+
+    private static final long KEY_BOLD = 1L << 32;
+    private static final long KEY_UNDERLINE = 1L << 33;
+
+    /** A slot of the atlas, and its place in the LRU list. */
+    private static final class Slot {
+        final Bitmap mPage;
+        final Canvas mPageCanvas;
+        final int mLeft;
+        final int mTop;
+        long mKey = -1;
+        /** The frame which last drew this slot. */
+        int mFrame = -1;
+        Slot mPrev;
+        Slot mNext;
+
+        Slot(Bitmap page, Canvas pageCanvas, int left, int top) {
+            mPage = page;
+            mPageCanvas = pageCanvas;
+            mLeft = left;
+            mTop = top;
+        }
+    }
+
+    private final Bitmap[] mPages = new Bitmap[MAX_PAGES];
+    private int mPageCount;
+    private final LongSparseArray<Slot> mSlots = new LongSparseArray<>();
+    /** Most recently used slot; its mPrev is the least recently used one. */
+    private Slot mHead;
+    private int mSlotWidth;
+    private int mSlotHeight;
+    private int mFrame;
+
+    private final Paint mTintPaint = new Paint();
+    private final Rect mSrc = new Rect();
+    private final Rect mDst = new Rect();
+
+    GlyphAtlasRenderer() {
+        // Scaling doesn't happen, so filtering would only blur the glyphs
+        mTintPaint.setFilterBitmap(false);
+    }
+
+    @Override
+    void updateSize(int fontSize, ColorScheme scheme) {
+        super.updateSize(fontSize, scheme);
+        releaseAtlas();
+    }
+
+    @Override
+    public void setTypeface(Typeface typeface) {
+        super.setTypeface(typeface);
+        releaseAtlas();
+    }
+
+    @Override
+    void beginFrame() {
+        mFrame++;
+    }
+
+    private void releaseAtlas() {
+        for (int i = 0; i < mPageCount; i++) {
+            mPages[i].recycle();
+            mPages[i] = null;
+        }
+        mPageCount = 0;
+        mSlots.clear();
+        mHead = null;
+    }
+
+    /**
+     * Add a page of unused slots to the atlas.  They go at the least recently
+     * used end of the list, so they're taken before any glyph is evicted.
+     */
+    private void addPage() {
+        mSlotWidth = 2 * mCharWidth;
+        mSlotHeight = mCharHeight;
+        Bitmap page = Bitmap.createBitmap(PAGE_COLUMNS * mSlotWidth, PAGE_ROWS * mSlotHeight,
+                Bitmap.Config.ALPHA_8);
+        Canvas pageCanvas = new Canvas(page);
+        mPages[mPageCount++] = page;
+
+        for (int row = 0; row < PAGE_ROWS; row++) {
+            for (int column = 0; column < PAGE_COLUMNS; column++) {
+                Slot slot = new Slot(page, pageCanvas, column * mSlotWidth, row * mSlotHeight);
+                if (mHead == null) {
+                    slot.mNext = slot;
+                    slot.mPrev = slot;
+                    mHead = slot;
+                } else {
+                    slot.mNext = mHead;
+                    slot.mPrev = mHead.mPrev;
+                    mHead.mPrev.mNext = slot;
+                    mHead.mPrev = slot;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the slot holding a glyph, rasterizing it (over the least recently
+     * used glyph) if it isn't in the atlas, and mark it most recently used.
+     *
+     * @return The slot, or null if the glyph isn't in the atlas and every
+     * slot has already been drawn in this frame.
+     */
+    private Slot getSlot(int codePoint, boolean bold, boolean underline) {
+        if (mHead == null) {
+            addPage();
+        }
+        long key = codePoint | (bold ? KEY_BOLD : 0) | (underline ? KEY_UNDERLINE : 0);
+        Slot slot = mSlots.get(key);
+        if (slot == null) {
+            slot = mHead.mPrev;
+            if (slot.mFrame == mFrame) {
+                // Even the least recently used slot is in this frame
+                if (mPageCount == MAX_PAGES) {
+                    return null;
+                }
+                addPage();
+                slot = mHead.mPrev;
+            }
+            // Evict the least recently used glyph
+            if (slot.mKey != -1) {
+                mSlots.remove(slot.mKey);
+            }
+            slot.mKey = key;
+            mSlots.put(key, slot);
+            rasterize(slot, codePoint, bold, underline);
+        }
+        slot.mFrame = mFrame;
+        if (slot != mHead) {
+            if (slot == mHead.mPrev) {
+                // The list is circular, so making the tail the head is just
+                // a rotation
+                mHead = slot;
+            } else {
+                slot.mPrev.mNext = slot.mNext;
+                slot.mNext.mPrev = slot.mPrev;
+                slot.mNext = mHead;
+                slot.mPrev = mHead.mPrev;
+                mHead.mPrev.mNext = slot;
+                mHead.mPrev = slot;
+                mHead = slot;
+            }
+        }
+        return slot;
+    }
+
+    private final char[] mGlyphChars = new char[2];
+
+    private void rasterize(Slot slot, int codePoint, boolean bold, boolean underline) {
+        Canvas canvas = slot.mPageCanvas;
+        canvas.save();
+        canvas.clipRect(slot.mLeft, slot.mTop, slot.mLeft + mSlotWidth, slot.mTop + mSlotHeight);
+        canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        Paint textPaint = mTextPaint;
+        textPaint.setColor(0xffffffff);
+        textPaint.setFakeBoldText(bold);
+        textPaint.setUnderlineText(underline);
+        int count = Character.toChars(codePoint, mGlyphChars, 0);
+        canvas.drawText(mGlyphChars, 0, count, slot.mLeft,
+                slot.mTop + mSlotHeight - mCharDescent, textPaint);
+        textPaint.setFakeBoldText(false);
+        textPaint.setUnderlineText(false);
+        canvas.restore();
+    }
+
+    @Override
+    public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
+                            int runWidth, char[] text, int index, int count,
+                            boolean selectionStyle, int textStyle,
+                            int cursorOffset, int cursorIndex, int cursorIncr, int cursorWidth, int cursorMode) {
+        int foreColor = TextStyle.decodeForeColor(textStyle);
+        int backColor = TextStyle.decodeBackColor(textStyle);
+        int effect = TextStyle.decodeEffect(textStyle);
+
+        boolean inverse = mReverseVideo ^
+                (effect & (TextStyle.fxInverse | TextStyle.fxItalic)) != 0;
+        if (inverse) {
+            int temp = foreColor;
+            foreColor = backColor;
+            backColor = temp;
+        }
+
+        if (selectionStyle) {
+            backColor = TextStyle.ciCursorBackground;
+        }
+
+        boolean blink = (effect & TextStyle.fxBlink) != 0;
+        if (blink && backColor < 8) {
+            backColor += 8;
+        }
+        Paint textPaint = this.mTextPaint;
+        if (textPaint == null) {
+            return;
+        }
+
+        float left = x + lineOffset * mCharWidth;
+
+        if (selectionStyle) {
+            textPaint.setColor(getColor(backColor));
+            canvas.drawRect(left, y + mCharAscent - mCharDescent,
+                    left + runWidth * mCharWidth, y,
+                    textPaint);
+        }
+
+        boolean cursorVisible = lineOffset <= cursorOffset && cursorOffset < (lineOffset + runWidth);
+        if (cursorVisible) {
+            float cursorX = x + cursorOffset * mCharWidth;
+            drawCursorImp(canvas, (int) cursorX, y, cursorWidth * mCharWidth, mCharHeight, cursorMode);
+        }
+
+        if ((effect & TextStyle.fxInvisible) != 0) {
+            return;
+        }
+        boolean bold = (effect & TextStyle.fxBold) != 0;
+        boolean underline = (effect & TextStyle.fxUnderline) != 0;
+        int textColor;
+        if (foreColor < 8 && bold) {
+            // In 16-color mode, bold also implies bright foreground colors
+            textColor = mPalette[foreColor + 8];
+        } else {
+            textColor = getColor(foreColor);
+        }
+        int cursorColor = mPalette[TextStyle.ciCursorForeground];
+
+        float cellX = left;
+        int end = index + count;
+        int i = index;
+        while (i < end) {
+            int codePoint = Character.codePointAt(text, i, end);
+            int next = i + Character.charCount(codePoint);
+            // Gather any combining characters which belong to this cell
+            int clusterEnd = next;
+            while (clusterEnd < end) {
+                int c = Character.codePointAt(text, clusterEnd, end);
+                if (WcWidth.wcwidth(c) != 0) {
+                    break;
+                }
+                clusterEnd += Character.charCount(c);
+            }
+            int width = Math.max(1, WcWidth.wcwidth(codePoint));
+            int color = cursorVisible && i == cursorIndex ? cursorColor : textColor;
+
+            Slot slot = null;
+            if (clusterEnd == next && (codePoint != ' ' || underline)) {
+                slot = getSlot(codePoint, bold, underline);
+            }
+            if (slot != null) {
+                mSrc.set(slot.mLeft, slot.mTop, slot.mLeft + mSlotWidth, slot.mTop + mSlotHeight);
+                int cellLeft = (int) cellX;
+                int cellTop = (int) y - mSlotHeight;
+                mDst.set(cellLeft, cellTop, cellLeft + mSlotWidth, cellTop + mSlotHeight);
+                mTintPaint.setColor(color);
+                canvas.drawBitmap(slot.mPage, mSrc, mDst, mTintPaint);
+            } else if (clusterEnd != next || codePoint != ' ' || underline) {
+                // A cell with combining characters, or the atlas is full
+                textPaint.setColor(color);
+                textPaint.setFakeBoldText(bold);
+                textPaint.setUnderlineText(underline);
+                canvas.drawText(text, i, clusterEnd - i, cellX, y - mCharDescent, textPaint);
+                textPaint.setFakeBoldText(false);
+                textPaint.setUnderlineText(false);
+            }
+            cellX += width * mCharWidth;
+            i = clusterEnd;
+        }
+    }
+}
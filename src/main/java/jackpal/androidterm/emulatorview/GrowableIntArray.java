@@ -20,6 +20,10 @@ class GrowableIntArray {
         return mLength;
     }
 
+    void clear() {
+        mLength = 0;
+    }
+
     int at(int index) {
         return mData[index];
     }
@@ -314,6 +314,8 @@ class PaintRenderer {
     private Path mFnCursor;
     protected boolean mReverseVideo;
     protected int[] mPalette;
+    /** The 24-bit colors of the screen being drawn, or null. */
+    private TrueColorTable mTrueColors;
     private RectF mTempSrc;
     private RectF mTempDst;
     private Matrix mScaleMatrix;
@@ -395,6 +397,12 @@ class PaintRenderer {
         mTextPaint.setTypeface(typeface);
     }
 
+    /**
+     * Called before the rows of a frame are drawn.
+     */
+    void beginFrame() {
+    }
+
     private static int[] cloneDefaultColors() {
         int length = sXterm256Paint.length;
         int[] clone = new int[TextStyle.ciColorLength];
@@ -402,6 +410,25 @@ class PaintRenderer {
         return clone;
     }
 
+    void setTrueColors(TrueColorTable trueColors) {
+        mTrueColors = trueColors;
+    }
+
+    /**
+     * Get the ARGB color for a color index, which may be one of the 24-bit
+     * colors of the screen being drawn.
+     */
+    protected final int getColor(int colorIndex) {
+        if (colorIndex < TextStyle.ciColorLength) {
+            return mPalette[colorIndex];
+        }
+        TrueColorTable trueColors = mTrueColors;
+        if (trueColors == null) {
+            return mPalette[TextStyle.ciForeground];
+        }
+        return trueColors.getColor(colorIndex);
+    }
+
     public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
                             int runWidth, char[] text, int index, int count,
                             boolean selectionStyle, int textStyle,
@@ -431,7 +458,7 @@ class PaintRenderer {
             return;
         }
 
-        textPaint.setColor(mPalette[backColor]);
+        textPaint.setColor(getColor(backColor));
 
         float left = x + lineOffset * mCharWidth;
 
@@ -463,7 +490,7 @@ class PaintRenderer {
                 // In 16-color mode, bold also implies bright foreground colors
                 textPaintColor = mPalette[foreColor + 8];
             } else {
-                textPaintColor = mPalette[foreColor];
+                textPaintColor = getColor(foreColor);
             }
             textPaint.setColor(textPaintColor);
 
@@ -503,11 +530,11 @@ class PaintRenderer {
         return 0;
     }
 
-    private Paint mTextPaint;
+    protected Paint mTextPaint;
     int mCharWidth;
     int mCharHeight;
-    private int mCharAscent;
-    private int mCharDescent;
+    protected int mCharAscent;
+    protected int mCharDescent;
     private static final char[] EXAMPLE_CHAR = {'X'};
 
     public void setReverseVideo(boolean reverseVideo) {
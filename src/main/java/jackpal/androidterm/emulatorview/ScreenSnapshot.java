@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A copy of what a terminal emulator's screen looked like at the end of a
+ * batch of input: the screen rows (not the transcript), the cursor, and the
+ * few modes that affect drawing.
+ * <p>
+ * When a {@link TermSession} parses on its own thread, the parse thread
+ * captures one of these at each frame boundary and the UI thread draws from
+ * it, so that drawing never has to wait for the parser.  Once published, a
+ * snapshot is only read, until the UI thread hands it back for reuse.
+ */
+final class ScreenSnapshot {
+    /** Increases by one with every snapshot published by a session. */
+    long mVersion;
+    final TranscriptScreen mScreen;
+    final int mColumns;
+    final int mRows;
+    int mCursorCol;
+    int mCursorRow;
+    boolean mShowCursor;
+    boolean mReverseVideo;
+
+    ScreenSnapshot(int columns, int rows) {
+        mColumns = columns;
+        mRows = rows;
+        mScreen = new TranscriptScreen(columns, rows, rows);
+    }
+
+    boolean fits(TerminalEmulator emulator) {
+        TranscriptScreen screen = emulator.getScreen();
+        return screen.getColumns() == mColumns && screen.getScreenRows() == mRows;
+    }
+
+    /**
+     * Capture the emulator's current state.  The caller must make sure that
+     * nothing modifies the emulator meanwhile, and that the snapshot
+     * {@link #fits} it.
+     */
+    void capture(TerminalEmulator emulator, long version) {
+        emulator.getScreen().copyScreenTo(mScreen);
+        mCursorCol = emulator.getCursorCol();
+        mCursorRow = emulator.getCursorRow();
+        mShowCursor = emulator.getShowCursor();
+        mReverseVideo = emulator.getReverseVideo();
+        mVersion = version;
+    }
+}
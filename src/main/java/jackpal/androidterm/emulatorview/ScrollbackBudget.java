@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.ArrayList;
+
+/**
+ * A limit on the memory used by the transcripts of a group of sessions,
+ * usually every session in the process.
+ * <p>
+ * Give the same budget to each session's {@link TermSessionConfig}.  Every
+ * few batches of output a session processes, it measures its transcript, the
+ * memory used by all of them is added up, and if it's over the budget,
+ * transcript rows are dropped until it's comfortably under again.  The
+ * oldest rows go first, from the session which was least recently on
+ * screen, so a shell left idle in the background gives up its scrollback
+ * before the build log the user is watching does.
+ * <p>
+ * Only transcript rows are ever dropped, so the screens of many sessions can
+ * exceed a small budget on their own.
+ */
+public final class ScrollbackBudget {
+    private final long mMaxBytes;
+
+    /** The registered sessions; guarded by this. */
+    private final ArrayList<TermSession> mSessions = new ArrayList<>();
+
+    /**
+     * @param maxBytes The most memory the transcripts may use, in bytes.
+     * @throws IllegalArgumentException if maxBytes is not positive.
+     */
+    public ScrollbackBudget(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("bad budget " + maxBytes);
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Get an estimate of the memory used by the transcripts of all the
+     * running sessions on this budget, as of the last output each processed.
+     */
+    public synchronized long getMemoryUsage() {
+        long usage = 0;
+        for (int i = 0; i < mSessions.size(); i++) {
+            usage += mSessions.get(i).getLastTranscriptMemoryUsage();
+        }
+        return usage;
+    }
+
+    synchronized void add(TermSession session) {
+        mSessions.add(session);
+    }
+
+    synchronized void remove(TermSession session) {
+        mSessions.remove(session);
+    }
+
+    /**
+     * Bring the memory used back under the budget if it's over.  Trims down
+     * to seven eighths of the budget, so that a session streaming output
+     * doesn't have to trim on every batch.
+     * <p>
+     * Takes each session's emulator lock in turn, so it must not be called
+     * with any of them held.
+     */
+    synchronized void enforce() {
+        long usage = getMemoryUsage();
+        if (usage <= mMaxBytes) {
+            return;
+        }
+        long target = mMaxBytes - mMaxBytes / 8;
+        // Insertion sort on when each was last viewed as of now, since the
+        // main thread may change that mid-sort; there are only a few sessions
+        int count = mSessions.size();
+        TermSession[] sessions = new TermSession[count];
+        long[] lastViewed = new long[count];
+        for (int i = 0; i < count; i++) {
+            TermSession session = mSessions.get(i);
+            long viewed = session.getLastViewed();
+            int j = i;
+            for (; j > 0 && lastViewed[j - 1] > viewed; j--) {
+                sessions[j] = sessions[j - 1];
+                lastViewed[j] = lastViewed[j - 1];
+            }
+            sessions[j] = session;
+            lastViewed[j] = viewed;
+        }
+        for (int i = 0; i < count && usage > target; i++) {
+            usage -= sessions[i].trimTranscript(usage - target);
+        }
+    }
+}
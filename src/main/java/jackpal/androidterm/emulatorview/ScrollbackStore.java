@@ -0,0 +1,762 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact store for the oldest part of a transcript.
+ * <p>
+ * A {@link UnicodeTranscript} keeps every row as two or three objects (the
+ * text, its StyleRow and maybe a FullUnicodeLine's offset table), which is
+ * fine for the screen but adds up to tens of thousands of objects for a long
+ * transcript.  Rows which have scrolled out of the transcript's ring are
+ * moved here instead, and packed one after the other into large char[]
+ * chunks.  Each row costs one long in the index, pointing at its record:
+ * <pre>
+ *   flags          WRAP, FULL and BLANK
+ *   text length    trailing spaces trimmed, for "basic" rows
+ *   run count
+ *   offsets        columns - 1 of them, only for "full" rows
+ *   text
+ *   style runs     each a column count and the style's two halves
+ * </pre>
+ * Rows are only ever appended at the bottom and dropped from the top, either
+ * because the store is full or to free memory, so the chunks form a queue,
+ * and a chunk is freed once its last row is dropped.  Stored rows can't be
+ * modified.
+ * <p>
+ * Rows are read back by decoding them into scratch objects owned by the
+ * store, which stay valid until the next call to {@link #load}.
+ * <p>
+ * Optionally, all but the newest {@link #RAW_CHUNKS} chunks are compressed,
+ * since older rows are rarely looked at again.  Compression runs on a
+ * background thread shared by all stores, and a chunk keeps its char[] until
+ * its compressed copy is ready.  Reading a row from a compressed chunk
+ * inflates the whole chunk, and the last few inflated chunks are kept, so
+ * scrolling back through the transcript or reading all of it only inflates
+ * each chunk once.
+ * <p>
+ * Also optionally, all but the newest {@link #RESIDENT_CHUNKS} chunks are
+ * spilled, compressed or not, to a file which is memory mapped a segment at a
+ * time.  Rows keep their place in the index, so reading one back is a lookup
+ * in the index, a copy out of the mapping, and maybe inflating it; chunks
+ * read back share the cache of inflated chunks.  Segments whose chunks have
+ * all been dropped are reused, so the file only grows as far as the rows
+ * kept need.  {@link #close} deletes the file.
+ */
+final class ScrollbackStore {
+    private static final String TAG = "ScrollbackStore";
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /** The number of chunks, counting the one being filled, left uncompressed. */
+    private static final int RAW_CHUNKS = 2;
+    /** The number of inflated or read back chunks kept. */
+    private static final int CACHED_CHUNKS = 4;
+    /** The number of chunks, counting the one being filled, kept in memory. */
+    private static final int RESIDENT_CHUNKS = 16;
+    /** The size in bytes of each mapped part of the spill file. */
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int FLAG_WRAP = 1;
+    private static final int FLAG_FULL = 2;
+    private static final int FLAG_BLANK = 4;
+
+    private static final int HEADER_SIZE = 3;
+
+    private final int mColumns;
+    private final int mMaxRows;
+    private final boolean mCompress;
+    private final File mSpillDirectory;
+
+    /*
+     * The index: for each row, the sequence number of its chunk in the upper
+     * half and the offset of its record in the lower half.  A ring, with the
+     * oldest row at mFirstRow.
+     */
+    private long[] mIndex;
+    private int mFirstRow;
+    private int mRowCount;
+
+    /**
+     * A chunk of records.  Once the chunk is full, its records never change,
+     * so the compressor thread can read mChars without locking; it then
+     * publishes mCompressed before dropping mChars, which means a reader who
+     * finds mChars null will find mCompressed set, unless the chunk has been
+     * spilled, which only the store's own thread does.
+     */
+    private static final class Chunk {
+        volatile char[] mChars;
+        volatile byte[] mCompressed;
+        /** The chars in use, set when the chunk is full. */
+        int mLength;
+        /** Set once the chunk's rows have all been dropped; guarded by this. */
+        boolean mFreed;
+
+        /* Where the chunk is in the spill file, if it's been spilled */
+        int mSegment = -1;
+        int mSegmentOffset;
+        /** The length in bytes of the chunk's compressed data, or 0 if raw. */
+        int mSpilledCompressed;
+
+        Chunk(int size) {
+            mChars = new char[size];
+        }
+
+        /** The memory used by the chunk's data, in bytes. */
+        long getMemoryUsage() {
+            char[] chars = mChars;
+            if (chars != null) {
+                return 2L * chars.length;
+            }
+            byte[] compressed = mCompressed;
+            return compressed != null ? compressed.length : 0;
+        }
+    }
+
+    /* The chunks, as a ring of mChunkCount starting at mFirstChunk. */
+    private Chunk[] mChunks = new Chunk[4];
+    private int mFirstChunk;
+    private int mChunkCount;
+    /** The sequence number of the chunk at mFirstChunk. */
+    private int mFirstChunkSeq;
+    /** Where the next record goes in the newest chunk. */
+    private int mChunkPos;
+    /** The memory used by the chunks, which the compressor thread updates. */
+    private final AtomicLong mChunkBytes = new AtomicLong();
+
+    /* The most recently inflated chunks, and when each was last used */
+    private final Chunk[] mCachedChunks = new Chunk[CACHED_CHUNKS];
+    private final char[][] mCachedChars = new char[CACHED_CHUNKS][];
+    private final long[] mCachedUse = new long[CACHED_CHUNKS];
+    private long mCacheClock;
+    private byte[] mInflateBuffer;
+    private byte[] mSpillBuffer;
+
+    /*
+     * The spill file, created when the first chunk is spilled, and its
+     * mapped segments, with the number of chunks in each.  Chunks before
+     * mSpillCursor (counting from the oldest) have been spilled, or tried.
+     */
+    private File mSpillFile;
+    private RandomAccessFile mSpillRaf;
+    private MappedByteBuffer[] mSegments = new MappedByteBuffer[4];
+    private int[] mSegmentChunks = new int[4];
+    private int mSegmentCount;
+    private int mSegment = -1;
+    private int mSegmentPos;
+    private int mSpillCursor;
+    private boolean mSpillDisabled;
+
+    /* The last row loaded, decoded */
+    private int mLoadedRow = -1;
+    private char[] mBasicLine;
+    private FullUnicodeLine mFullLine;
+    private StyleRow mColor;
+    private Object mLine;
+    private boolean mLineWrap;
+
+    private char[] mEncodeBuffer;
+
+    ScrollbackStore(int columns, int maxRows) {
+        this(columns, maxRows, false, null);
+    }
+
+    /**
+     * @param columns        The width of the rows, which can't change.
+     * @param maxRows        The most rows to keep; once there are this many,
+     *                       each new row pushes out the oldest one.
+     * @param compress       Whether to compress older chunks.
+     * @param spillDirectory Where to create a file for older chunks, or null
+     *                       to keep them all in memory.
+     */
+    ScrollbackStore(int columns, int maxRows, boolean compress, File spillDirectory) {
+        if (columns <= 0 || maxRows <= 0) {
+            throw new IllegalArgumentException("columns " + columns + ", rows " + maxRows);
+        }
+        mColumns = columns;
+        mMaxRows = maxRows;
+        mCompress = compress;
+        mSpillDirectory = spillDirectory;
+        mIndex = new long[Math.min(maxRows, 256)];
+        mEncodeBuffer = new char[HEADER_SIZE + 5 * columns];
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
+    int getRowCount() {
+        return mRowCount;
+    }
+
+    int getMaxRows() {
+        return mMaxRows;
+    }
+
+    /**
+     * An estimate of the memory used by the store, in bytes: the chunks
+     * (compressed or not), the index and the inflated chunks.
+     */
+    long getMemoryUsage() {
+        long usage = mChunkBytes.get() + 8L * mIndex.length;
+        for (char[] chars : mCachedChars) {
+            if (chars != null) {
+                usage += 2L * chars.length;
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Append a row at the bottom of the store, dropping the oldest row if
+     * the store is full.
+     *
+     * @param line     The row's text: null, a char[] or a FullUnicodeLine.
+     * @param color    The row's styles; may be null only for a blank row.
+     * @param lineWrap Whether the row wraps onto the next one.
+     */
+    void append(Object line, StyleRow color, boolean lineWrap) {
+        int columns = mColumns;
+        int flags = lineWrap ? FLAG_WRAP : 0;
+        char[] text;
+        int textLength;
+        int offsetCount = 0;
+        FullUnicodeLine fullLine = null;
+        if (line == null) {
+            flags |= FLAG_BLANK;
+            text = null;
+            textLength = 0;
+        } else if (line instanceof char[]) {
+            text = (char[]) line;
+            textLength = columns;
+            while (textLength > 0 && text[textLength - 1] == ' ') {
+                --textLength;
+            }
+        } else {
+            flags |= FLAG_FULL;
+            fullLine = (FullUnicodeLine) line;
+            text = fullLine.getLine();
+            textLength = fullLine.getSpaceUsed();
+            offsetCount = columns - 1;
+        }
+
+        int maxSize = HEADER_SIZE + offsetCount + textLength + 3 * columns;
+        char[] record = mEncodeBuffer;
+        if (record.length < maxSize) {
+            record = mEncodeBuffer = new char[maxSize];
+        }
+        int pos = HEADER_SIZE;
+        if (fullLine != null) {
+            fullLine.writeOffsets(record, pos);
+            pos += offsetCount;
+        }
+        if (textLength > 0) {
+            System.arraycopy(text, 0, record, pos, textLength);
+            pos += textLength;
+        }
+        int runCount = 0;
+        if (line != null && color != null) {
+            int column = 0;
+            while (column < columns) {
+                int style = color.get(column);
+                int end = color.getRunEnd(column);
+                record[pos++] = (char) (end - column);
+                record[pos++] = (char) style;
+                record[pos++] = (char) (style >>> 16);
+                ++runCount;
+                column = end;
+            }
+        }
+        record[0] = (char) flags;
+        record[1] = (char) textLength;
+        record[2] = (char) runCount;
+
+        if (mRowCount == mMaxRows) {
+            removeOldestRow();
+        }
+        long location = write(record, pos);
+        if (mRowCount == mIndex.length) {
+            growIndex();
+        }
+        mIndex[(mFirstRow + mRowCount) % mIndex.length] = location;
+        ++mRowCount;
+    }
+
+    /** Copy a record into the newest chunk, starting a new one if needed. */
+    private long write(char[] record, int length) {
+        if (mChunkCount == 0 || mChunkPos + length > chunk(mChunkCount - 1).mChars.length) {
+            addChunk(Math.max(CHUNK_SIZE, length));
+        }
+        char[] chunk = chunk(mChunkCount - 1).mChars;
+        int pos = mChunkPos;
+        System.arraycopy(record, 0, chunk, pos, length);
+        mChunkPos = pos + length;
+        long seq = mFirstChunkSeq + mChunkCount - 1;
+        return seq << 32 | pos;
+    }
+
+    private Chunk chunk(int i) {
+        return mChunks[(mFirstChunk + i) % mChunks.length];
+    }
+
+    private void addChunk(int size) {
+        if (mChunkCount > 0) {
+            chunk(mChunkCount - 1).mLength = mChunkPos;
+        }
+        if (mChunkCount == mChunks.length) {
+            Chunk[] chunks = new Chunk[mChunkCount * 2];
+            for (int i = 0; i < mChunkCount; ++i) {
+                chunks[i] = chunk(i);
+            }
+            mChunks = chunks;
+            mFirstChunk = 0;
+        }
+        mChunks[(mFirstChunk + mChunkCount) % mChunks.length] = new Chunk(size);
+        ++mChunkCount;
+        mChunkPos = 0;
+        mChunkBytes.addAndGet(2L * size);
+        if (mCompress && mChunkCount > RAW_CHUNKS) {
+            compressLater(chunk(mChunkCount - 1 - RAW_CHUNKS), mChunkBytes);
+        }
+        if (mSpillDirectory != null) {
+            while (!mSpillDisabled && mChunkCount - mSpillCursor > RESIDENT_CHUNKS) {
+                spill(chunk(mSpillCursor++));
+            }
+        }
+    }
+
+    private void growIndex() {
+        resizeIndex(Math.min(mMaxRows, mIndex.length * 2));
+    }
+
+    private void resizeIndex(int length) {
+        long[] index = new long[length];
+        for (int i = 0; i < mRowCount; ++i) {
+            index[i] = mIndex[(mFirstRow + i) % mIndex.length];
+        }
+        mIndex = index;
+        mFirstRow = 0;
+    }
+
+    /**
+     * Shrink the index once removeOldestRow() has left most of it unused.
+     */
+    void trimIndex() {
+        int length = Math.max(Math.min(mMaxRows, 256), mRowCount);
+        if (length <= mIndex.length / 2) {
+            resizeIndex(length);
+        }
+    }
+
+    /** Drop the oldest row, freeing its chunk if no other row uses it. */
+    void removeOldestRow() {
+        mFirstRow = (mFirstRow + 1) % mIndex.length;
+        --mRowCount;
+        mLoadedRow = -1;
+        // Free the chunks which no longer hold any rows
+        int firstSeq = mRowCount > 0 ? (int) (mIndex[mFirstRow] >>> 32)
+                : mFirstChunkSeq + mChunkCount - 1;
+        while (mFirstChunkSeq < firstSeq) {
+            freeChunk(mChunks[mFirstChunk]);
+            mChunks[mFirstChunk] = null;
+            mFirstChunk = (mFirstChunk + 1) % mChunks.length;
+            --mChunkCount;
+            ++mFirstChunkSeq;
+            if (mSpillCursor > 0) {
+                --mSpillCursor;
+            }
+        }
+    }
+
+    private void freeChunk(Chunk chunk) {
+        synchronized (chunk) {
+            chunk.mFreed = true;
+            mChunkBytes.addAndGet(-chunk.getMemoryUsage());
+        }
+        if (chunk.mSegment >= 0) {
+            --mSegmentChunks[chunk.mSegment];
+        }
+        for (int i = 0; i < CACHED_CHUNKS; ++i) {
+            if (mCachedChunks[i] == chunk) {
+                mCachedChunks[i] = null;
+                mCachedChars[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Decode a row, making it available from {@link #getLine},
+     * {@link #getColor} and {@link #getLineWrap}.
+     *
+     * @param row The row, from 0 (the oldest) to getRowCount() - 1.
+     */
+    void load(int row) {
+        if (row < 0 || row >= mRowCount) {
+            throw new IllegalArgumentException("row " + row + " of " + mRowCount);
+        }
+        if (row == mLoadedRow) {
+            return;
+        }
+        long location = mIndex[(mFirstRow + row) % mIndex.length];
+        char[] chunk = getChars(chunk((int) (location >>> 32) - mFirstChunkSeq));
+        int pos = (int) location;
+        int columns = mColumns;
+
+        int flags = chunk[pos];
+        int textLength = chunk[pos + 1];
+        int runCount = chunk[pos + 2];
+        pos += HEADER_SIZE;
+        mLineWrap = (flags & FLAG_WRAP) != 0;
+
+        if ((flags & FLAG_BLANK) != 0) {
+            mLine = null;
+            mColor = null;
+            mLoadedRow = row;
+            return;
+        }
+        if ((flags & FLAG_FULL) != 0) {
+            if (mFullLine == null) {
+                mFullLine = new FullUnicodeLine(columns);
+            }
+            mFullLine.readFrom(chunk, pos, pos + columns - 1, textLength);
+            pos += columns - 1 + textLength;
+            mLine = mFullLine;
+        } else {
+            if (mBasicLine == null) {
+                mBasicLine = new char[columns];
+            }
+            char[] text = mBasicLine;
+            System.arraycopy(chunk, pos, text, 0, textLength);
+            for (int i = textLength; i < columns; ++i) {
+                text[i] = ' ';
+            }
+            pos += textLength;
+            mLine = text;
+        }
+
+        if (mColor == null) {
+            mColor = new StyleRow(0, columns);
+        }
+        StyleRow color = mColor;
+        // Start from a solid row, so the runs stay runs
+        color.set(0, columns, 0);
+        int column = 0;
+        for (int i = 0; i < runCount; ++i) {
+            int count = chunk[pos];
+            int style = chunk[pos + 1] | chunk[pos + 2] << 16;
+            pos += 3;
+            color.set(column, count, style);
+            column += count;
+        }
+        mLoadedRow = row;
+    }
+
+    /** The loaded row's text: null if blank, else a char[] or FullUnicodeLine. */
+    Object getLine() {
+        return mLine;
+    }
+
+    /** The loaded row's styles, or null if it's blank. */
+    StyleRow getColor() {
+        return mLine == null ? null : mColor;
+    }
+
+    boolean getLineWrap() {
+        return mLineWrap;
+    }
+
+    /** Get a chunk's records, inflating them if need be. */
+    private char[] getChars(Chunk chunk) {
+        char[] chars = chunk.mChars;
+        if (chars != null) {
+            return chars;
+        }
+        int oldest = 0;
+        for (int i = 0; i < CACHED_CHUNKS; ++i) {
+            if (mCachedChunks[i] == chunk) {
+                mCachedUse[i] = ++mCacheClock;
+                return mCachedChars[i];
+            }
+            if (mCachedUse[i] < mCachedUse[oldest]) {
+                oldest = i;
+            }
+        }
+        int length = chunk.mLength;
+        chars = mCachedChars[oldest];
+        if (chars == null || chars.length < length) {
+            chars = new char[Math.max(CHUNK_SIZE, length)];
+        }
+        if (chunk.mSegment >= 0) {
+            readSpilled(chunk, chars);
+        } else {
+            byte[] compressed = chunk.mCompressed;
+            inflate(compressed, compressed.length, chars, length);
+        }
+        mCachedChunks[oldest] = chunk;
+        mCachedChars[oldest] = chars;
+        mCachedUse[oldest] = ++mCacheClock;
+        return chars;
+    }
+
+    private void inflate(byte[] compressed, int compressedLength, char[] chars, int length) {
+        byte[] planes = mInflateBuffer;
+        if (planes == null || planes.length < 2 * length) {
+            planes = mInflateBuffer = new byte[2 * length];
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, 0, compressedLength);
+            int done = 0;
+            while (done < 2 * length) {
+                int n = inflater.inflate(planes, done, 2 * length - done);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("truncated chunk");
+                }
+                done += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+        for (int i = 0; i < length; ++i) {
+            chars[i] = (char) ((planes[i] & 0xff) | (planes[length + i] & 0xff) << 8);
+        }
+    }
+
+    /**
+     * Move a full chunk's data, compressed or not, out to the spill file.
+     * If that fails, the chunk stays in memory and spilling stops.
+     */
+    private void spill(Chunk chunk) {
+        int size;
+        synchronized (chunk) {
+            char[] chars = chunk.mChars;
+            byte[] compressed = chunk.mCompressed;
+            size = chars != null ? 2 * chunk.mLength : compressed.length;
+            if (size > SEGMENT_SIZE || !reserveSpillSpace(size)) {
+                return;
+            }
+            ByteBuffer buffer = mSegments[mSegment].duplicate();
+            buffer.position(mSegmentPos);
+            if (chars != null) {
+                buffer.asCharBuffer().put(chars, 0, chunk.mLength);
+                chunk.mSpilledCompressed = 0;
+            } else {
+                buffer.put(compressed);
+                chunk.mSpilledCompressed = size;
+            }
+            mChunkBytes.addAndGet(-chunk.getMemoryUsage());
+            chunk.mSegment = mSegment;
+            chunk.mSegmentOffset = mSegmentPos;
+            chunk.mChars = null;
+            chunk.mCompressed = null;
+        }
+        ++mSegmentChunks[mSegment];
+        // Keep raw chunks aligned for asCharBuffer()
+        mSegmentPos += (size + 1) & ~1;
+    }
+
+    /**
+     * Make sure the current segment has room for size more bytes, switching
+     * to a free segment or mapping a new one if it doesn't.
+     */
+    private boolean reserveSpillSpace(int size) {
+        if (mSegment >= 0 && mSegmentPos + size <= SEGMENT_SIZE) {
+            return true;
+        }
+        int segment = -1;
+        for (int i = 0; i < mSegmentCount; ++i) {
+            if (i != mSegment && mSegmentChunks[i] == 0) {
+                segment = i;
+                break;
+            }
+        }
+        if (segment < 0) {
+            try {
+                if (mSpillRaf == null) {
+                    mSpillFile = File.createTempFile("scrollback", null, mSpillDirectory);
+                    mSpillRaf = new RandomAccessFile(mSpillFile, "rw");
+                }
+                segment = mSegmentCount;
+                if (segment == mSegments.length) {
+                    mSegments = Arrays.copyOf(mSegments, 2 * segment);
+                    mSegmentChunks = Arrays.copyOf(mSegmentChunks, 2 * segment);
+                }
+                mSegments[segment] = mSpillRaf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        (long) segment * SEGMENT_SIZE, SEGMENT_SIZE);
+                ++mSegmentCount;
+            } catch (IOException e) {
+                Log.w(TAG, "can't spill scrollback to " + mSpillDirectory, e);
+                mSpillDisabled = true;
+                return false;
+            }
+        }
+        mSegment = segment;
+        mSegmentPos = 0;
+        return true;
+    }
+
+    private void readSpilled(Chunk chunk, char[] chars) {
+        ByteBuffer buffer = mSegments[chunk.mSegment].duplicate();
+        buffer.position(chunk.mSegmentOffset);
+        int compressedLength = chunk.mSpilledCompressed;
+        if (compressedLength == 0) {
+            buffer.asCharBuffer().get(chars, 0, chunk.mLength);
+            return;
+        }
+        byte[] compressed = mSpillBuffer;
+        if (compressed == null || compressed.length < compressedLength) {
+            compressed = mSpillBuffer = new byte[compressedLength];
+        }
+        buffer.get(compressed, 0, compressedLength);
+        inflate(compressed, compressedLength, chars, chunk.mLength);
+    }
+
+    /**
+     * Delete the spill file, dropping the rows which were in it, and stop
+     * spilling.  The rest of the store carries on as before.
+     */
+    void close() {
+        mSpillDisabled = true;
+        if (mSpillRaf == null) {
+            return;
+        }
+        int lastSpilled = -1;
+        for (int i = 0; i < mChunkCount; ++i) {
+            if (chunk(i).mSegment >= 0) {
+                lastSpilled = i;
+            }
+        }
+        int lastSeq = mFirstChunkSeq + lastSpilled;
+        while (mRowCount > 0 && (int) (mIndex[mFirstRow] >>> 32) <= lastSeq) {
+            removeOldestRow();
+        }
+        try {
+            mSpillRaf.close();
+        } catch (IOException e) {
+            // We're deleting it anyway
+        }
+        if (!mSpillFile.delete()) {
+            Log.w(TAG, "can't delete " + mSpillFile);
+        }
+        mSpillRaf = null;
+        mSegments = null;
+    }
+
+    private static final ExecutorService sCompressor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ScrollbackStore compressor");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    /* Only used on the compressor thread */
+    private static final Deflater sDeflater = new Deflater(Deflater.BEST_SPEED);
+    private static byte[] sPlanes = new byte[2 * CHUNK_SIZE];
+    private static byte[] sCompressed = new byte[2 * CHUNK_SIZE];
+
+    /**
+     * Wait until the chunks queued for compression so far have been
+     * compressed (or found not worth it).  For tests.
+     */
+    static void waitForCompressor() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        sCompressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    private static void compressLater(final Chunk chunk, final AtomicLong chunkBytes) {
+        sCompressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compress(chunk, chunkBytes);
+            }
+        });
+    }
+
+    /**
+     * Compress a full chunk, and swap the result in if it's worth it.  Runs
+     * on the compressor thread.
+     */
+    private static void compress(Chunk chunk, AtomicLong chunkBytes) {
+        char[] chars = chunk.mChars;
+        if (chars == null) {
+            // Already spilled
+            return;
+        }
+        int length = chunk.mLength;
+        // Low bytes first, then high bytes: for mostly ASCII text the second
+        // half is nearly all zeros and almost vanishes
+        if (sPlanes.length < 2 * length) {
+            sPlanes = new byte[2 * length];
+            sCompressed = new byte[2 * length];
+        }
+        byte[] planes = sPlanes;
+        for (int i = 0; i < length; ++i) {
+            char c = chars[i];
+            planes[i] = (byte) c;
+            planes[length + i] = (byte) (c >> 8);
+        }
+        Deflater deflater = sDeflater;
+        deflater.reset();
+        deflater.setInput(planes, 0, 2 * length);
+        deflater.finish();
+        // Give up on chunks which don't shrink by at least a quarter
+        int limit = 3 * length / 2;
+        int size = 0;
+        while (!deflater.finished() && size < limit) {
+            size += deflater.deflate(sCompressed, size, limit - size);
+        }
+        if (!deflater.finished()) {
+            return;
+        }
+        byte[] compressed = Arrays.copyOf(sCompressed, size);
+        synchronized (chunk) {
+            if (!chunk.mFreed && chunk.mSegment < 0) {
+                chunk.mCompressed = compressed;
+                chunk.mChars = null;
+                chunkBytes.addAndGet(compressed.length - 2L * chars.length);
+            }
+        }
+    }
+}
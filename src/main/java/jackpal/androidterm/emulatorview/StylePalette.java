@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * An intern table for the styles used in a transcript.
+ * <p>
+ * A StyleRow which has been expanded to one entry per column stores an index
+ * into its transcript's palette in each entry instead of the style itself.
+ * Real sessions use a few dozen distinct styles at most, so the index
+ * usually fits in a byte, and only rows which use one of the styles past the
+ * first 256 need two.
+ * <p>
+ * Entries are never removed one by one.  Instead, once the palette has
+ * grown to needsCompaction(), the transcript marks the indices its rows
+ * still use and calls compact() to drop the rest and renumber the survivors.
+ */
+final class StylePalette {
+    /** The number of indices which fit in a byte. */
+    static final int NARROW_STYLES = 256;
+    /** The number of indices which fit in a char. */
+    static final int MAX_STYLES = 65536;
+
+    private int[] mStyles = new int[16];
+    private int mSize;
+    /**
+     * Open addressing hash table from style to index + 1, with 0 marking an
+     * empty slot.  Always less than half full.
+     */
+    private int[] mTable = new int[32];
+    private int mCompactAt = NARROW_STYLES;
+
+    /**
+     * Get the index of a style, adding it to the palette if need be.
+     *
+     * @return The index, or -1 if the palette is full.
+     */
+    int intern(int style) {
+        int[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash(style) & mask;
+        for (int entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask) {
+            if (mStyles[entry - 1] == style) {
+                return entry - 1;
+            }
+        }
+        int index = mSize;
+        if (index == MAX_STYLES) {
+            return -1;
+        }
+        if (index == mStyles.length) {
+            int[] styles = new int[2 * index];
+            System.arraycopy(mStyles, 0, styles, 0, index);
+            mStyles = styles;
+        }
+        mStyles[index] = style;
+        mSize = index + 1;
+        table[slot] = index + 1;
+        if (2 * mSize > table.length) {
+            rehash(2 * table.length);
+        }
+        return index;
+    }
+
+    int getStyle(int index) {
+        return mStyles[index];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Whether the palette has grown enough since it was last compacted that
+     * it's worth compacting again.
+     */
+    boolean needsCompaction() {
+        return mSize >= mCompactAt;
+    }
+
+    /**
+     * Drop the styles which are no longer used.
+     *
+     * @param used Whether each index is still in use.
+     * @return The new index of each old index which is still in use, for
+     *         {@link StyleRow#remapStyles}.
+     */
+    int[] compact(boolean[] used) {
+        int size = mSize;
+        int[] styles = mStyles;
+        int[] map = new int[size];
+        int newSize = 0;
+        for (int i = 0; i < size; i++) {
+            if (used[i]) {
+                styles[newSize] = styles[i];
+                map[i] = newSize++;
+            } else {
+                map[i] = -1;
+            }
+        }
+        mSize = newSize;
+        rehash(mTable.length);
+
+        // Compacting again before the palette has doubled would make a
+        // transcript that really does use many styles compact all the time
+        if (newSize <= NARROW_STYLES / 2) {
+            mCompactAt = NARROW_STYLES;
+        } else {
+            mCompactAt = Math.min(MAX_STYLES, 2 * Math.max(newSize, NARROW_STYLES));
+        }
+        return map;
+    }
+
+    private void rehash(int capacity) {
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = hash(mStyles[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        mTable = table;
+    }
+
+    private static int hash(int style) {
+        int h = style * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,97 +1,467 @@
 package jackpal.androidterm.emulatorview;
 
+import java.util.Arrays;
+
 /**
  * Utility class for dealing with text style lines.
  *
  * We pack color and formatting information for a particular character into an
  * int -- see the TextStyle class for details.  The simplest way of storing
  * that information for a screen row would be to use an array of int -- but
- * given that we only use the lower three bytes of the int to store information,
- * that effectively wastes one byte per character -- nearly 8 KB per 100 lines
- * with an 80-column transcript.
+ * that wastes most of each int, as a screen only ever shows a few dozen
+ * distinct styles.
  *
- * Instead, we use an array of bytes and store the bytes of each int
- * consecutively in big-endian order.
+ * Instead, a row starts out as a single style for all its columns, and while
+ * it has only a few differently styled stretches (a colored prompt, the names
+ * in an ls --color listing) it is stored as runs, pairs of (start column,
+ * style) in an int array.  Only once a row has so many runs that they would
+ * take more memory than one byte per column is it expanded, into an array
+ * holding the index of each column's style in the transcript's StylePalette:
+ * a byte per column, or a char per column in the rare row which uses one of
+ * the styles past the first 256.  Rows without a palette are never expanded.
+ * Use {@link #getRunEnd} to walk a row a run at a time.
  */
 final class StyleRow {
+    /** The initial capacity of mRuns, in runs. */
+    private static final int INITIAL_RUNS = 4;
+
     private int mStyle;
     private int mColumns;
-    /** Initially null, will be allocated when needed. */
+    private final StylePalette mPalette;
+    /**
+     * The runs, as start column and style pairs, with the first run starting
+     * at column 0; null unless the row is stored as runs.
+     */
+    private int[] mRuns;
+    private int mRunCount;
+    /** The palette index of each column's style, if the row is expanded. */
     private byte[] mData;
+    /** Used instead of mData if any of the indices doesn't fit in a byte. */
+    private char[] mWideData;
+    /** Arrays kept from before the row was last reset, for reuse. */
+    private int[] mSpareRuns;
+    private byte[] mSpareData;
 
     StyleRow(int style, int columns) {
+        this(style, columns, null);
+    }
+
+    StyleRow(int style, int columns, StylePalette palette) {
         mStyle = style;
         mColumns = columns;
+        mPalette = palette;
     }
 
     void set(int column, int style) {
-        if (style == mStyle && mData == null) {
+        set(column, 1, style);
+    }
+
+    /**
+     * Set the style of count consecutive columns starting at column.  A row
+     * whose every column is overwritten goes back to being a solid style.
+     */
+    void set(int column, int count, int style) {
+        if (column == 0 && count == mColumns) {
+            mStyle = style;
+            mRuns = null;
+            mData = null;
+            mWideData = null;
+            return;
+        }
+        if (count <= 0) {
             return;
         }
-        ensureData();
-        setStyle(column, style);
+        if (isExpanded()) {
+            int index = mPalette.intern(style);
+            if (index >= 0) {
+                setIndex(column, count, index);
+                return;
+            }
+            // The palette is full, so go back to runs
+            collapse();
+        }
+        if (mRuns == null) {
+            if (style == mStyle) {
+                return;
+            }
+            if (mSpareRuns != null) {
+                mRuns = mSpareRuns;
+                mSpareRuns = null;
+            } else {
+                mRuns = new int[2 * INITIAL_RUNS];
+            }
+            mRuns[0] = 0;
+            mRuns[1] = mStyle;
+            mRunCount = 1;
+        }
+        setRuns(column, column + count, style);
+        if (mRunCount == 1) {
+            mStyle = mRuns[1];
+            mRuns = null;
+        } else if (8 * mRunCount > mColumns && mPalette != null) {
+            // The runs now take more memory than a byte per column would
+            expand();
+        }
+    }
+
+    /**
+     * Make the row a single style again, like a set() of every column, but
+     * hold on to its arrays so that a recycled row can use them again.
+     */
+    void reset(int style) {
+        if (mRuns != null) {
+            mSpareRuns = mRuns;
+        }
+        if (mData != null) {
+            mSpareData = mData;
+        }
+        mStyle = style;
+        mRuns = null;
+        mData = null;
+        mWideData = null;
     }
 
     int get(int column) {
-        if (mData == null) {
-            return mStyle;
+        if (mData != null) {
+            return mPalette.getStyle(mData[column] & 0xff);
         }
-        return getStyle(column);
+        if (mWideData != null) {
+            return mPalette.getStyle(mWideData[column]);
+        }
+        if (mRuns != null) {
+            return mRuns[2 * findRun(column) + 1];
+        }
+        return mStyle;
+    }
+
+    /**
+     * Get the end of the run of columns with the same style which includes
+     * the given column, so that a row can be walked a run at a time:
+     * <pre>
+     * for (int column = 0; column &lt; columns; column = row.getRunEnd(column)) {
+     *     int style = row.get(column);
+     *     ...
+     * }
+     * </pre>
+     * Expanded rows are scanned for the end of the run.
+     *
+     * @return The first column after the run, or the number of columns.
+     */
+    int getRunEnd(int column) {
+        int columns = mColumns;
+        if (column >= columns) {
+            return column + 1;
+        }
+        if (isExpanded()) {
+            int index = getIndex(column);
+            int end = column + 1;
+            while (end < columns && getIndex(end) == index) {
+                ++end;
+            }
+            return end;
+        }
+        if (mRuns != null) {
+            int run = findRun(column) + 1;
+            return run < mRunCount ? mRuns[2 * run] : columns;
+        }
+        return columns;
     }
 
     boolean isSolidStyle() {
-        return mData == null;
+        return mRuns == null && !isExpanded();
     }
 
     int getSolidStyle() {
-        if (mData != null) {
+        if (!isSolidStyle()) {
             throw new IllegalArgumentException("Not a solid style");
         }
         return mStyle;
     }
 
     void copy(int start, StyleRow dst, int offset, int len) {
-        // fast case
-        if (mData == null && dst.mData == null && start == 0 && offset == 0
-                && len == mColumns) {
-            dst.mStyle = mStyle;
+        // fast cases
+        if (mPalette == dst.mPalette) {
+            if (mData != null && dst.mData != null) {
+                System.arraycopy(mData, start, dst.mData, offset, len);
+                return;
+            }
+            if (mWideData != null && dst.mWideData != null) {
+                System.arraycopy(mWideData, start, dst.mWideData, offset, len);
+                return;
+            }
+        }
+        if (dst == this) {
+            if (isSolidStyle()) {
+                return;
+            }
+            // The runs are about to change under us
+            StyleRow src = new StyleRow(mStyle, mColumns, mPalette);
+            src.copyFrom(this);
+            src.copy(start, dst, offset, len);
+            return;
+        }
+        int end = start + len;
+        for (int column = start; column < end; ) {
+            int runEnd = Math.min(getRunEnd(column), end);
+            dst.set(offset + column - start, runEnd - column, get(column));
+            column = runEnd;
+        }
+    }
+
+    /**
+     * Make this row a copy of another row of the same width.
+     */
+    void copyFrom(StyleRow src) {
+        if (src == this) {
+            return;
+        }
+        mStyle = src.mStyle;
+        mData = null;
+        mWideData = null;
+        if (src.mRuns != null) {
+            if (mRuns == null || mRuns.length < 2 * src.mRunCount) {
+                mRuns = new int[src.mRuns.length];
+            }
+            System.arraycopy(src.mRuns, 0, mRuns, 0, 2 * src.mRunCount);
+            mRunCount = src.mRunCount;
             return;
         }
-        // There are other potentially fast cases, but let's just treat them
-        // all the same for simplicity.
-        ensureData();
-        dst.ensureData();
-        System.arraycopy(mData, 3*start, dst.mData, 3*offset, 3*len);
+        mRuns = null;
+        if (!src.isExpanded()) {
+            return;
+        }
+        if (src.mPalette != mPalette) {
+            // The indices mean nothing in our palette
+            src.copy(0, this, 0, mColumns);
+        } else if (src.mData != null) {
+            mData = src.mData.clone();
+        } else {
+            mWideData = src.mWideData.clone();
+        }
+    }
 
+    /** An estimate of the memory used by this row, in bytes. */
+    long getMemoryUsage() {
+        long usage = 32;
+        if (mRuns != null) {
+            usage += 16 + 4 * mRuns.length;
+        }
+        if (mData != null) {
+            usage += 16 + mData.length;
+        }
+        if (mWideData != null) {
+            usage += 16 + 2 * mWideData.length;
+        }
+        if (mSpareRuns != null) {
+            usage += 16 + 4 * mSpareRuns.length;
+        }
+        if (mSpareData != null) {
+            usage += 16 + mSpareData.length;
+        }
+        return usage;
     }
 
-    void ensureData() {
-        if (mData == null) {
-            allocate();
+    /**
+     * Mark the palette indices this row uses, before compacting the palette.
+     */
+    void markStyles(boolean[] used) {
+        byte[] data = mData;
+        if (data != null) {
+            for (int i = 0; i < data.length; i++) {
+                used[data[i] & 0xff] = true;
+            }
+        }
+        char[] wideData = mWideData;
+        if (wideData != null) {
+            for (int i = 0; i < wideData.length; i++) {
+                used[wideData[i]] = true;
+            }
         }
     }
 
-    private void allocate() {
-        mData = new byte[3*mColumns];
-        for (int i = 0; i < mColumns; i++) {
-            setStyle(i, mStyle);
+    /**
+     * Renumber the palette indices this row uses, after compacting the
+     * palette, going back to a byte per column if they now all fit.
+     *
+     * @param map The new index for each old one, from
+     *            {@link StylePalette#compact}.
+     */
+    void remapStyles(int[] map) {
+        byte[] data = mData;
+        if (data != null) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) map[data[i] & 0xff];
+            }
+        }
+        char[] wideData = mWideData;
+        if (wideData != null) {
+            int max = 0;
+            for (int i = 0; i < wideData.length; i++) {
+                int index = map[wideData[i]];
+                wideData[i] = (char) index;
+                max = Math.max(max, index);
+            }
+            if (max < StylePalette.NARROW_STYLES) {
+                data = new byte[wideData.length];
+                for (int i = 0; i < wideData.length; i++) {
+                    data[i] = (byte) wideData[i];
+                }
+                mData = data;
+                mWideData = null;
+            }
         }
     }
 
-    private int getStyle(int column) {
-        int index = 3 * column;
-        byte[] line = mData;
-        return line[index] & 0xff | (line[index+1] & 0xff) << 8
-                | (line[index+2] & 0xff) << 16;
+    private boolean isExpanded() {
+        return mData != null || mWideData != null;
     }
 
-    private void setStyle(int column, int value) {
-        int index = 3 * column;
-        byte[] line = mData;
-        line[index] = (byte) (value & 0xff);
-        line[index+1] = (byte) ((value >> 8) & 0xff);
-        line[index+2] = (byte) ((value >> 16) & 0xff);
+    private int getIndex(int column) {
+        return mData != null ? mData[column] & 0xff : mWideData[column];
     }
 
+    private void setIndex(int column, int count, int index) {
+        if (mData != null) {
+            if (index < StylePalette.NARROW_STYLES) {
+                Arrays.fill(mData, column, column + count, (byte) index);
+                return;
+            }
+            byte[] data = mData;
+            char[] wideData = new char[data.length];
+            for (int i = 0; i < data.length; i++) {
+                wideData[i] = (char) (data[i] & 0xff);
+            }
+            mWideData = wideData;
+            mData = null;
+        }
+        Arrays.fill(mWideData, column, column + count, (char) index);
+    }
 
+    /**
+     * Expand the runs into an index per column, unless the palette has no
+     * room for their styles.
+     */
+    private void expand() {
+        StylePalette palette = mPalette;
+        int[] runs = mRuns;
+        int count = mRunCount;
+        int[] indices = new int[count];
+        int max = 0;
+        for (int run = 0; run < count; run++) {
+            int index = palette.intern(runs[2 * run + 1]);
+            if (index < 0) {
+                return;
+            }
+            indices[run] = index;
+            max = Math.max(max, index);
+        }
+        int columns = mColumns;
+        if (max < StylePalette.NARROW_STYLES) {
+            if (mSpareData != null) {
+                mData = mSpareData;
+                mSpareData = null;
+            } else {
+                mData = new byte[columns];
+            }
+        } else {
+            mWideData = new char[columns];
+        }
+        for (int run = 0; run < count; run++) {
+            int end = run + 1 < count ? runs[2 * (run + 1)] : columns;
+            setIndex(runs[2 * run], end - runs[2 * run], indices[run]);
+        }
+        mRuns = null;
+    }
+
+    /** Turn an expanded row back into runs. */
+    private void collapse() {
+        int[] runs = new int[2 * INITIAL_RUNS];
+        int count = 0;
+        for (int column = 0; column < mColumns; column = getRunEnd(column)) {
+            if (2 * count == runs.length) {
+                int[] grown = new int[2 * runs.length];
+                System.arraycopy(runs, 0, grown, 0, runs.length);
+                runs = grown;
+            }
+            runs[2 * count] = column;
+            runs[2 * count + 1] = get(column);
+            count++;
+        }
+        mData = null;
+        mWideData = null;
+        mStyle = runs[1];
+        if (count > 1) {
+            mRuns = runs;
+            mRunCount = count;
+        }
+    }
+
+    /** Find the run containing a column, by binary search. */
+    private int findRun(int column) {
+        int[] runs = mRuns;
+        int low = 0;
+        int high = mRunCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (runs[2 * mid] <= column) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Give the columns from start to end a style, replacing the runs they
+     * overlap with at most three: what's left of the first one before start,
+     * the new one, and what's left of the last one after end, merging runs
+     * of the same style.
+     */
+    private void setRuns(int start, int end, int style) {
+        int[] runs = mRuns;
+        int count = mRunCount;
+        int first = findRun(start);
+        int last = findRun(end - 1);
+        int lastStyle = runs[2 * last + 1];
+
+        boolean head = runs[2 * first] < start;
+        int headStart = runs[2 * first];
+        int headStyle = runs[2 * first + 1];
+        boolean mid = head ? headStyle != style
+                : first == 0 || runs[2 * (first - 1) + 1] != style;
+        boolean tail = end < mColumns && (last + 1 == count || runs[2 * (last + 1)] != end)
+                && lastStyle != style;
+        if (!tail && last + 1 < count && runs[2 * (last + 1) + 1] == style) {
+            // The next run now continues this one
+            last++;
+        }
+
+        int replaced = last - first + 1;
+        int added = (head ? 1 : 0) + (mid ? 1 : 0) + (tail ? 1 : 0);
+        int newCount = count - replaced + added;
+        if (2 * newCount > runs.length) {
+            int[] grown = new int[Math.max(2 * newCount, 2 * runs.length)];
+            System.arraycopy(runs, 0, grown, 0, 2 * count);
+            runs = mRuns = grown;
+        }
+        System.arraycopy(runs, 2 * (last + 1), runs, 2 * (first + added),
+                2 * (count - last - 1));
+        int run = first;
+        if (head) {
+            runs[2 * run] = headStart;
+            runs[2 * run + 1] = headStyle;
+            run++;
+        }
+        if (mid) {
+            runs[2 * run] = start;
+            runs[2 * run + 1] = style;
+            run++;
+        }
+        if (tail) {
+            runs[2 * run] = end;
+            runs[2 * run + 1] = lastStyle;
+        }
+        mRunCount = newCount;
+    }
 }
@@ -18,18 +18,27 @@ package jackpal.androidterm.emulatorview;
 
 import android.annotation.SuppressLint;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 /**
  * A terminal session, consisting of a VT100 terminal emulator and its
@@ -52,11 +61,24 @@ import java.nio.charset.CodingErrorAction;
  * the view will take care of setting the screen size and initializing the
  * emulator for you.)
  * <p>
+ * If the session is created with a {@link TermSessionConfig} that asks for a
+ * parse thread, {@link #processInput processInput} (and so the terminal
+ * emulator) runs on a dedicated thread instead.  At the end of each batch of
+ * input the parse thread publishes a {@link ScreenSnapshot} of the screen for
+ * {@link EmulatorView} to draw, and the update, title and UTF-8 mode
+ * callbacks and {@link TerminalClient} are still called on the main thread.
+ * <p>
  * When you're done with the session, you should call {@link #finish} on it.
  * This frees emulator data from memory, stops the reader and writer threads,
  * and closes the attached I/O streams.
  */
 public class TermSession {
+    /** Export the transcript as plain text; see {@link #writeTranscript}. */
+    public static final int TRANSCRIPT_PLAIN = 0;
+    /** Export the transcript as text, with ANSI escape sequences for the colors and effects. */
+    public static final int TRANSCRIPT_ANSI = 1;
+    /** Export the transcript as an HTML {@code <pre>} element. */
+    public static final int TRANSCRIPT_HTML = 2;
 
     private ColorScheme mColorScheme = PaintRenderer.defaultColorScheme;
     private UpdateCallback mNotify;
@@ -73,7 +95,17 @@ public class TermSession {
 
     private Thread mReaderThread;
     private ByteQueue mByteQueue;
-    private byte[] mReceiveBuffer;
+    private final int[] mReceiveSegments = new int[4];
+    /** True while a NEW_INPUT message is queued and not yet handled. */
+    private final AtomicBoolean mInputDrainPending = new AtomicBoolean();
+
+    private final TermSessionConfig mConfig;
+    // Parse batch bookkeeping; only touched on the thread which parses
+    // input, apart from write() resetting the batch size
+    private volatile int mBatchSize;
+    private int mPeakBatchSize;
+    private long mBatchCount;
+    private long mBytesProcessed;
 
     private Thread mWriterThread;
     private ByteQueue mWriteQueue;
@@ -83,14 +115,23 @@ public class TermSession {
     private final ByteBuffer mWriteByteBuffer;
     private final CharsetEncoder mUTF8Encoder;
 
-    // Number of rows in the transcript
-    private static final int TRANSCRIPT_ROWS = 5000;
+    // With packed scrollback, the number of rows kept as row objects; the
+    // rest of the transcript is packed
+    private static final int PACKED_TRANSCRIPT_ROWS = 256;
 
     private static final int NEW_INPUT = 1;
     private static final int NEW_OUTPUT = 2;
     private static final int FINISH = 3;
     private static final int EOF = 4;
 
+    // How long one NEW_INPUT message may spend parsing before it yields the
+    // looper, in milliseconds
+    private static final int INPUT_DRAIN_BUDGET_MS = 8;
+
+    // How many batches of input go by between measurements of the memory
+    // the transcript uses, which takes time in proportion to its rows
+    private static final int MEMORY_MEASURE_BATCHES = 16;
+
     /**
      * Callback to be invoked when a {@link TermSession} finishes.
      *
@@ -107,27 +148,43 @@ public class TermSession {
 
     private FinishCallback mFinishCallback;
 
-    private boolean mIsRunning = false;
-    @SuppressLint("HandlerLeak")
-    private Handler mMsgHandler = new Handler() {
+    private volatile boolean mIsRunning = false;
+    private final Handler mMsgHandler;
+
+    /*
+     * Only used with a parse thread.  The emulator lock guards the emulator
+     * and its screens against the parse thread and the main thread using them
+     * at the same time.  Snapshots are triple buffered: the parse thread
+     * fills a spare one and swaps it into the pending slot, and the main
+     * thread takes it from there when it draws, handing back the one it drew
+     * last time as the new spare.
+     */
+    private HandlerThread mParseThread;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Object mEmulatorLock = new Object();
+    private final AtomicReference<ScreenSnapshot> mPendingSnapshot =
+            new AtomicReference<>();
+    private final AtomicReference<ScreenSnapshot> mSpareSnapshot =
+            new AtomicReference<>();
+    private ScreenSnapshot mDrawnSnapshot;
+    private long mSnapshotVersion;
+    private final AtomicBoolean mUpdatePending = new AtomicBoolean();
+    private final Runnable mNotifyUpdateRunnable = new Runnable() {
         @Override
-        public void handleMessage(Message msg) {
-            if (!mIsRunning) {
-                return;
-            }
-            if (msg.what == NEW_INPUT) {
-                readFromProcess();
-            } else if (msg.what == EOF) {
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        onProcessExit();
-                    }
-                });
-            }
+        public void run() {
+            mUpdatePending.set(false);
+            notifyUpdate();
         }
     };
 
+    /*
+     * For the scrollback budget: when the session was last drawn, the memory
+     * its transcript used when last measured, and the batch count then.
+     */
+    private volatile long mLastViewed;
+    private volatile long mTranscriptMemoryUsage;
+    private long mMeasuredBatchCount;
+
     private UpdateCallback mTitleChangedListener;
 
 
@@ -141,16 +198,39 @@ public class TermSession {
     }
 
     public TermSession(final boolean exitOnEOF) {
+        this(exitOnEOF, TermSessionConfig.DEFAULT);
+    }
+
+    /**
+     * Create a session whose I/O buffers are sized by the given config.
+     *
+     * @param exitOnEOF Whether to call {@link #onProcessExit} when the input
+     *                  stream reaches end of file.
+     * @param config    The buffer sizes to use.
+     */
+    public TermSession(final boolean exitOnEOF, TermSessionConfig config) {
+        mConfig = config;
+        mBatchSize = config.isAdaptiveBatching()
+                ? config.getMinBatchSize() : config.getMaxBatchSize();
+        mPeakBatchSize = mBatchSize;
+
+        Looper looper = Looper.myLooper();
+        if (config.isParseThread()) {
+            mParseThread = new HandlerThread("TermSession parser");
+            mParseThread.start();
+            looper = mParseThread.getLooper();
+        }
+        mMsgHandler = createMsgHandler(looper);
+
         mWriteCharBuffer = new char[2];
         mWriteByteBuffer = ByteBuffer.allocate(4);
         mUTF8Encoder = Charset.forName("UTF-8").newEncoder();
         mUTF8Encoder.onMalformedInput(CodingErrorAction.REPLACE);
         mUTF8Encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
 
-        mReceiveBuffer = new byte[4 * 1024];
-        mByteQueue = new ByteQueue(4 * 1024);
+        mByteQueue = new ByteQueue(config.getInputQueueSize());
         mReaderThread = new Thread() {
-            private byte[] mBuffer = new byte[4096];
+            private byte[] mBuffer = new byte[mConfig.getReadChunkSize()];
 
             @Override
             public void run() {
@@ -167,8 +247,7 @@ public class TermSession {
                                     offset, read);
                             offset += written;
                             read -= written;
-                            mMsgHandler.sendMessage(
-                                    mMsgHandler.obtainMessage(NEW_INPUT));
+                            scheduleInputDrain();
                         }
                     }
                 } catch (IOException | InterruptedException ignored) {
@@ -179,9 +258,9 @@ public class TermSession {
         };
         mReaderThread.setName("TermSession input reader");
 
-        mWriteQueue = new ByteQueue(4096);
+        mWriteQueue = new ByteQueue(config.getOutputQueueSize());
         mWriterThread = new Thread() {
-            private byte[] mBuffer = new byte[4096];
+            private final int[] mSegments = new int[4];
 
             @SuppressLint("HandlerLeak")
             @Override
@@ -208,31 +287,62 @@ public class TermSession {
 
             private void writeToOutput() {
                 ByteQueue writeQueue = mWriteQueue;
-                byte[] buffer = mBuffer;
+                int[] segments = mSegments;
                 OutputStream termOut = mTermOut;
 
-                int bytesAvailable = writeQueue.getBytesAvailable();
-                int bytesToWrite = Math.min(bytesAvailable, buffer.length);
+                // Write straight out of the queue's ring rather than copying
+                int bytesToWrite = writeQueue.readSegments(segments);
 
                 if (bytesToWrite == 0) {
                     return;
                 }
 
                 try {
-                    bytesToWrite = writeQueue.read(buffer, 0, bytesToWrite);
-                    termOut.write(buffer, 0, bytesToWrite);
+                    byte[] buffer = writeQueue.getBuffer();
+                    termOut.write(buffer, segments[0], segments[1]);
+                    if (segments[3] > 0) {
+                        termOut.write(buffer, segments[2], segments[3]);
+                    }
                     termOut.flush();
-                } catch (IOException | InterruptedException e) {
+                } catch (IOException e) {
                     // Ignore exception
                     // We don't really care if the receiver isn't listening.
                     // We just make a best effort to answer the query.
                     e.printStackTrace();
+                } finally {
+                    writeQueue.release(bytesToWrite);
                 }
             }
         };
         mWriterThread.setName("TermSession output writer");
     }
 
+    @SuppressLint("HandlerLeak")
+    private Handler createMsgHandler(Looper looper) {
+        return new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (!mIsRunning) {
+                    return;
+                }
+                if (msg.what == NEW_INPUT) {
+                    drainInput(false);
+                } else if (msg.what == EOF) {
+                    // A drain cut short by its time budget leaves a NEW_INPUT
+                    // behind this message, so parse the rest of the output
+                    // before the exit is handled
+                    drainInput(true);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onProcessExit();
+                        }
+                    });
+                }
+            }
+        };
+    }
+
     public void setKeyListener(TermKeyListener l) {
         mKeyListener = l;
     }
@@ -252,11 +362,28 @@ public class TermSession {
      * @param screenRows The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int screenRows) {
-        mTranscriptScreen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, screenRows);
-        mEmulator = new TerminalEmulator(this, mTranscriptScreen, columns, screenRows, mColorScheme);
-        mEmulator.setDefaultUTF8Mode(mDefaultUTF8Mode);
-        mEmulator.setKeyListener(mKeyListener);
-        mEmulator.setTerminalClient(mTerminalClient);
+        int transcriptRows = mConfig.getTranscriptRows();
+        synchronized (mEmulatorLock) {
+            if (mConfig.isPackedScrollback() && transcriptRows > PACKED_TRANSCRIPT_ROWS) {
+                mTranscriptScreen = new TranscriptScreen(columns,
+                        Math.max(PACKED_TRANSCRIPT_ROWS, screenRows), screenRows,
+                        transcriptRows - PACKED_TRANSCRIPT_ROWS,
+                        mConfig.isCompressedScrollback(), mConfig.getScrollbackSpillDirectory());
+            } else {
+                mTranscriptScreen = new TranscriptScreen(columns,
+                        Math.max(transcriptRows, screenRows), screenRows);
+            }
+            mEmulator = new TerminalEmulator(this, mTranscriptScreen, columns, screenRows, mColorScheme);
+            mEmulator.setDefaultUTF8Mode(mDefaultUTF8Mode);
+            mEmulator.setKeyListener(mKeyListener);
+            mEmulator.setTerminalClient(onMainThread(mTerminalClient));
+            publishScreenSnapshot();
+            mTranscriptMemoryUsage = mTranscriptScreen.getMemoryUsage();
+        }
+        ScrollbackBudget budget = mConfig.getScrollbackBudget();
+        if (budget != null) {
+            budget.add(this);
+        }
 
         mIsRunning = true;
         mReaderThread.start();
@@ -280,14 +407,22 @@ public class TermSession {
      * @param count  The number of bytes to be written.
      */
     public void write(byte[] data, int offset, int count) {
-        try {
-            while (count > 0) {
-                int written = mWriteQueue.write(data, offset, count);
-                offset += written;
-                count -= written;
-                notifyNewOutput();
+        if (mConfig.isAdaptiveBatching()) {
+            // The user is typing, so favor latency over throughput again
+            mBatchSize = mConfig.getMinBatchSize();
+        }
+        // With a parse thread, the emulator's replies to the process are
+        // written from there, so the queue can have two producers
+        synchronized (mWriteQueue) {
+            try {
+                while (count > 0) {
+                    int written = mWriteQueue.write(data, offset, count);
+                    offset += written;
+                    count -= written;
+                    notifyNewOutput();
+                }
+            } catch (InterruptedException e) {
             }
-        } catch (InterruptedException e) {
         }
     }
 
@@ -435,6 +570,19 @@ public class TermSession {
         return mTitle;
     }
 
+    /**
+     * Get the working directory the shell last reported with OSC 7, as a
+     * file: URL, or null if it hasn't.
+     */
+    public String getCurrentDirectory() {
+        if (mEmulator == null) {
+            return null;
+        }
+        synchronized (mEmulatorLock) {
+            return mEmulator.getDirectory();
+        }
+    }
+
     /**
      * Change the terminal session's title.
      */
@@ -460,7 +608,7 @@ public class TermSession {
     protected void notifyTitleChanged() {
         UpdateCallback listener = mTitleChangedListener;
         if (listener != null) {
-            listener.onUpdate();
+            onMainThread(listener).onUpdate();
         }
     }
 
@@ -481,7 +629,10 @@ public class TermSession {
         if (mEmulator == null) {
             initializeEmulator(columns, rows);
         } else {
-            mEmulator.updateSize(columns, rows);
+            synchronized (mEmulatorLock) {
+                mEmulator.updateSize(columns, rows);
+                publishScreenSnapshot();
+            }
         }
     }
 
@@ -492,25 +643,385 @@ public class TermSession {
      * scrollback buffer.
      */
     public String getTranscriptText() {
-        return mTranscriptScreen.getTranscriptText();
+        synchronized (mEmulatorLock) {
+            return mTranscriptScreen.getTranscriptText();
+        }
+    }
+
+    /**
+     * Write the terminal's screen and scrollback buffer to out, a batch of
+     * rows at a time, so that a long scrollback buffer doesn't have to be
+     * turned into one String first.  The text is laid out as
+     * {@link #getTranscriptText} lays it out.  Output arriving meanwhile
+     * isn't held up for long, and isn't included.
+     *
+     * @param format {@link #TRANSCRIPT_PLAIN}, {@link #TRANSCRIPT_ANSI} or
+     *               {@link #TRANSCRIPT_HTML}.
+     * @return false if the screen was resized to a new width part way
+     *         through, which cuts the export short.
+     */
+    public boolean writeTranscript(Writer out, int format) throws IOException {
+        TranscriptWriter writer;
+        TranscriptScreen screen;
+        synchronized (mEmulatorLock) {
+            screen = mTranscriptScreen;
+            writer = new TranscriptWriter(format, mColorScheme,
+                    screen != null ? screen.getTrueColors() : null);
+        }
+        return writer.write(out, mEmulatorLock, screen);
+    }
+
+    /**
+     * Write the terminal's screen and scrollback buffer to out, as for
+     * {@link #writeTranscript(Writer, int)}, encoded with the given charset.
+     * The stream is flushed, but not closed.
+     */
+    public boolean writeTranscript(OutputStream out, Charset charset, int format)
+            throws IOException {
+        return writeTranscript(new BufferedWriter(new OutputStreamWriter(out, charset)), format);
+    }
+
+    /**
+     * Find the occurrences of some text in the terminal's screen and
+     * scrollback buffer, oldest first.  This doesn't read the whole buffer
+     * each time, so it stays quick however long the buffer gets.
+     *
+     * @param ignoreCase Whether to ignore the difference between upper and
+     *                   lower case.
+     * @return Four ints for each match: the column and row of its first
+     *         cell, and the column after its last cell and that cell's row.
+     *         Rows are numbered from the top of the screen, so those in the
+     *         scrollback buffer are negative.
+     */
+    public int[] findTranscriptText(String text, boolean ignoreCase) {
+        synchronized (mEmulatorLock) {
+            if (mTranscriptScreen == null) {
+                return new int[0];
+            }
+            GrowableIntArray matches = new GrowableIntArray(16);
+            mTranscriptScreen.findText(text, ignoreCase, matches);
+            return Arrays.copyOf(matches.mData, matches.length());
+        }
+    }
+
+    /**
+     * Search the screen and scrollback buffer for a regular expression on a
+     * background thread, line by line, with each line's wrapped rows joined.
+     * The listener is called from that thread as matches are found.
+     *
+     * @return The search, so that it can be cancelled.
+     */
+    public TranscriptSearch searchTranscript(Pattern pattern, TranscriptSearch.Listener listener) {
+        TranscriptSearch search;
+        synchronized (mEmulatorLock) {
+            search = new TranscriptSearch(pattern, listener, mEmulatorLock, mTranscriptScreen);
+        }
+        search.start();
+        return search;
+    }
+
+    /**
+     * Get an estimate of the memory used by the terminal's screen and
+     * scrollback buffer, in bytes.
+     */
+    public long getTranscriptMemoryUsage() {
+        synchronized (mEmulatorLock) {
+            if (mTranscriptScreen == null) {
+                return 0;
+            }
+            return mTranscriptMemoryUsage = mTranscriptScreen.getMemoryUsage();
+        }
+    }
+
+    /**
+     * The memory used by the transcript as last measured, for the scrollback
+     * budget, which can't afford to measure every session.
+     */
+    long getLastTranscriptMemoryUsage() {
+        return mTranscriptMemoryUsage;
+    }
+
+    /**
+     * Drop the oldest transcript rows to free memory for the scrollback
+     * budget.  Must not be called with the emulator lock held.
+     *
+     * @return The number of bytes freed.
+     */
+    long trimTranscript(long bytes) {
+        synchronized (mEmulatorLock) {
+            if (!mIsRunning || mTranscriptScreen == null) {
+                return 0;
+            }
+            long freed = mTranscriptScreen.trimTranscript(bytes);
+            mTranscriptMemoryUsage -= freed;
+            return freed;
+        }
+    }
+
+    /**
+     * Record that the session is on screen, which makes its transcript the
+     * last one the scrollback budget trims.
+     */
+    void markViewed() {
+        mLastViewed = SystemClock.uptimeMillis();
+    }
+
+    long getLastViewed() {
+        return mLastViewed;
+    }
+
+    /**
+     * Post a NEW_INPUT message unless one is already waiting to be handled,
+     * so that a fast-writing process can't flood the looper.
+     */
+    private void scheduleInputDrain() {
+        if (mInputDrainPending.compareAndSet(false, true)) {
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(NEW_INPUT));
+        }
+    }
+
+    /**
+     * Handle a NEW_INPUT message: keep parsing input until the queue is empty
+     * or the time budget runs out, then update the screen once.  If input is
+     * left over, yield to the rest of the looper and continue in a fresh
+     * message.
+     * <p>
+     * With adaptive batching, a batch that fills up means the process is
+     * streaming output, so the batch size doubles (up to the maximum); a
+     * drain that doesn't even fill half a batch halves it again.
+     *
+     * @param all Whether to ignore the time budget and parse everything
+     *            that's queued, as once the reader thread has finished.
+     */
+    private void drainInput(boolean all) {
+        // Clear the flag before draining, so input which arrives while we're
+        // busy schedules another drain instead of being stranded
+        mInputDrainPending.set(false);
+        TermSessionConfig config = mConfig;
+        long deadline = SystemClock.uptimeMillis() + INPUT_DRAIN_BUDGET_MS;
+        int totalRead = 0;
+        int bytesRead;
+        while ((bytesRead = readFromProcess(mBatchSize)) > 0) {
+            totalRead += bytesRead;
+            if (config.isAdaptiveBatching() && bytesRead == mBatchSize
+                    && mBatchSize < config.getMaxBatchSize()) {
+                mBatchSize = Math.min(2 * mBatchSize, config.getMaxBatchSize());
+                mPeakBatchSize = Math.max(mPeakBatchSize, mBatchSize);
+            }
+            if (!all && SystemClock.uptimeMillis() >= deadline) {
+                break;
+            }
+        }
+        if (!mIsRunning) {
+            // finish() was called while we were parsing; there's no screen
+            // to update any more
+            return;
+        }
+        if (config.isAdaptiveBatching() && totalRead < mBatchSize / 2) {
+            mBatchSize = Math.max(mBatchSize / 2, config.getMinBatchSize());
+        }
+        if (totalRead > 0) {
+            ScrollbackBudget budget = config.getScrollbackBudget();
+            if (budget != null && mBatchCount - mMeasuredBatchCount >= MEMORY_MEASURE_BATCHES) {
+                mMeasuredBatchCount = mBatchCount;
+                synchronized (mEmulatorLock) {
+                    mTranscriptMemoryUsage = mTranscriptScreen.getMemoryUsage();
+                }
+                budget.enforce();
+            }
+            if (mParseThread == null) {
+                notifyUpdate();
+            } else {
+                synchronized (mEmulatorLock) {
+                    publishScreenSnapshot();
+                }
+                if (mUpdatePending.compareAndSet(false, true)) {
+                    mMainHandler.post(mNotifyUpdateRunnable);
+                }
+            }
+        }
+        if (mByteQueue.getBytesAvailable() > 0) {
+            scheduleInputDrain();
+        }
     }
 
     /**
      * Look for new input from the ptty, send it to the terminal emulator.
+     *
+     * @param maxBytes The most input to process.
+     * @return The number of bytes processed.
      */
-    private void readFromProcess() {
-        int bytesAvailable = mByteQueue.getBytesAvailable();
-        int bytesToRead = Math.min(bytesAvailable, mReceiveBuffer.length);
-        int bytesRead = 0;
-        try {
-            bytesRead = mByteQueue.read(mReceiveBuffer, 0, bytesToRead);
-        } catch (InterruptedException e) {
+    private int readFromProcess(int maxBytes) {
+        ByteQueue byteQueue = mByteQueue;
+        int[] segments = mReceiveSegments;
+        if (byteQueue.readSegments(segments) == 0) {
+            return 0;
+        }
+        int firstCount = Math.min(segments[1], maxBytes);
+        int secondCount = Math.min(segments[3], maxBytes - firstCount);
+
+        // Give subclasses a chance to process the read data.  The data is
+        // handed over in place in the queue, and its space only goes back to
+        // the reader thread once it has been processed.
+        byte[] buffer = byteQueue.getBuffer();
+        synchronized (mEmulatorLock) {
+            if (!mIsRunning) {
+                // finish() has closed the emulator under us
+                return 0;
+            }
+            processInput(buffer, segments[0], firstCount);
+            if (secondCount > 0) {
+                processInput(buffer, segments[2], secondCount);
+            }
+        }
+        int bytesRead = firstCount + secondCount;
+        byteQueue.release(bytesRead);
+        mBatchCount++;
+        mBytesProcessed += bytesRead;
+        return bytesRead;
+    }
+
+    /**
+     * Capture the emulator's screen into a snapshot and make it the one the
+     * main thread draws next.  Only does anything with a parse thread.  Must
+     * be called with the emulator lock held.
+     */
+    private void publishScreenSnapshot() {
+        if (mParseThread == null || mEmulator == null) {
             return;
         }
+        ScreenSnapshot snapshot = mSpareSnapshot.getAndSet(null);
+        if (snapshot == null || !snapshot.fits(mEmulator)) {
+            TranscriptScreen screen = mEmulator.getScreen();
+            snapshot = new ScreenSnapshot(screen.getColumns(), screen.getScreenRows());
+        }
+        snapshot.capture(mEmulator, ++mSnapshotVersion);
+        ScreenSnapshot undrawn = mPendingSnapshot.getAndSet(snapshot);
+        if (undrawn != null) {
+            // The main thread never saw it, so it's free to reuse
+            mSpareSnapshot.compareAndSet(null, undrawn);
+        }
+    }
 
-        // Give subclasses a chance to process the read data
-        processInput(mReceiveBuffer, 0, bytesRead);
-        notifyUpdate();
+    /**
+     * Get the latest screen snapshot for drawing.  Must be called on the main
+     * thread; the snapshot stays valid until the next call.
+     *
+     * @return The snapshot, or null if the session has no parse thread (or
+     *         nothing has been published yet), in which case the emulator
+     *         should be drawn directly while holding {@link #getEmulatorLock}.
+     */
+    ScreenSnapshot acquireScreenSnapshot() {
+        ScreenSnapshot latest = mPendingSnapshot.getAndSet(null);
+        if (latest != null) {
+            if (mDrawnSnapshot != null) {
+                mSpareSnapshot.compareAndSet(null, mDrawnSnapshot);
+            }
+            mDrawnSnapshot = latest;
+        }
+        return mDrawnSnapshot;
+    }
+
+    /**
+     * Whether the emulator runs on a parse thread rather than the main thread.
+     */
+    boolean hasParseThread() {
+        return mParseThread != null;
+    }
+
+    /**
+     * Get the lock which must be held while using the emulator or its screens
+     * from the main thread when the session has a parse thread.  Without one
+     * it is never contended.
+     */
+    Object getEmulatorLock() {
+        return mEmulatorLock;
+    }
+
+    /**
+     * Wrap a callback so that it always runs on the main thread, posting it
+     * there when it's invoked on the parse thread.
+     */
+    private UpdateCallback onMainThread(final UpdateCallback callback) {
+        if (mParseThread == null || callback == null) {
+            return callback;
+        }
+        return new UpdateCallback() {
+            @Override
+            public void onUpdate() {
+                if (Looper.myLooper() == Looper.getMainLooper()) {
+                    callback.onUpdate();
+                } else {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onUpdate();
+                        }
+                    });
+                }
+            }
+        };
+    }
+
+    private TerminalClient onMainThread(final TerminalClient client) {
+        if (mParseThread == null || client == null) {
+            return client;
+        }
+        return new TerminalClient() {
+            @Override
+            public void onBell() {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        client.onBell();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * A snapshot of the I/O buffer sizes a session is using, as returned by
+     * {@link #getBufferStats}.  Queue sizes are the actual capacities, after
+     * rounding up to a power of two.
+     */
+    public static final class BufferStats {
+        public final int inputQueueSize;
+        public final int outputQueueSize;
+        public final int readChunkSize;
+        /** The parse batch size currently in use. */
+        public final int batchSize;
+        /** The largest parse batch size used so far. */
+        public final int peakBatchSize;
+        public final boolean adaptiveBatching;
+        /** The number of batches parsed so far. */
+        public final long batchCount;
+        /** The number of bytes parsed so far. */
+        public final long bytesProcessed;
+
+        BufferStats(int inputQueueSize, int outputQueueSize, int readChunkSize,
+                    int batchSize, int peakBatchSize, boolean adaptiveBatching,
+                    long batchCount, long bytesProcessed) {
+            this.inputQueueSize = inputQueueSize;
+            this.outputQueueSize = outputQueueSize;
+            this.readChunkSize = readChunkSize;
+            this.batchSize = batchSize;
+            this.peakBatchSize = peakBatchSize;
+            this.adaptiveBatching = adaptiveBatching;
+            this.batchCount = batchCount;
+            this.bytesProcessed = bytesProcessed;
+        }
+    }
+
+    /**
+     * Get the I/O buffer sizes this session has chosen, for tuning its
+     * {@link TermSessionConfig}.  With a parse thread the counters may lag
+     * slightly behind.
+     */
+    public BufferStats getBufferStats() {
+        return new BufferStats(mByteQueue.getCapacity(), mWriteQueue.getCapacity(),
+                mConfig.getReadChunkSize(), mBatchSize, mPeakBatchSize,
+                mConfig.isAdaptiveBatching(), mBatchCount, mBytesProcessed);
     }
 
     /**
@@ -557,7 +1068,10 @@ public class TermSession {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setColorScheme(scheme);
+        synchronized (mEmulatorLock) {
+            mEmulator.setColorScheme(scheme);
+            publishScreenSnapshot();
+        }
     }
 
     /**
@@ -576,7 +1090,9 @@ public class TermSession {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        synchronized (mEmulatorLock) {
+            mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        }
     }
 
     /**
@@ -600,7 +1116,7 @@ public class TermSession {
      */
     public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
         if (mEmulator != null) {
-            mEmulator.setUTF8ModeUpdateCallback(utf8ModeNotify);
+            mEmulator.setUTF8ModeUpdateCallback(onMainThread(utf8ModeNotify));
         }
     }
 
@@ -608,7 +1124,10 @@ public class TermSession {
      * Reset the terminal emulator's state.
      */
     public void reset() {
-        mEmulator.reset();
+        synchronized (mEmulatorLock) {
+            mEmulator.reset();
+            publishScreenSnapshot();
+        }
         notifyUpdate();
     }
 
@@ -629,7 +1148,17 @@ public class TermSession {
      */
     public void finish() {
         mIsRunning = false;
-        mEmulator.finish();
+        ScrollbackBudget budget = mConfig.getScrollbackBudget();
+        if (budget != null) {
+            budget.remove(this);
+        }
+        synchronized (mEmulatorLock) {
+            mEmulator.finish();
+            mTranscriptScreen.closeScrollback();
+        }
+        if (mParseThread != null) {
+            mParseThread.quit();
+        }
 
         // Stop the reader and writer threads, and close the I/O streams
         if (mWriterHandler != null) {
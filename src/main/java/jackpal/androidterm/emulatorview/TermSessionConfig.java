@@ -0,0 +1,306 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.File;
+
+/**
+ * Buffer sizes, threading and scrollback for a {@link TermSession}.
+ * <p>
+ * Data read from the process goes through three stages: the reader thread
+ * reads it from the {@link java.io.InputStream} in chunks of up to
+ * {@link #getReadChunkSize} bytes, queues it in a ring of
+ * {@link #getInputQueueSize} bytes, and the main thread then parses it in
+ * batches of up to the current batch size.  Larger sizes mean fewer handoffs
+ * between the threads per megabyte of output, at the cost of memory and of
+ * latency for each individual batch.
+ * <p>
+ * With adaptive batching, the batch size starts at {@link #getMinBatchSize}
+ * and doubles, up to {@link #getMaxBatchSize}, while the process keeps the
+ * queue full.  It drops back to the minimum as soon as the output slows down
+ * or the user types something.  Without it, every batch is
+ * {@link #getMaxBatchSize} bytes.
+ * <p>
+ * Normally the main thread parses the input, competing with drawing and touch
+ * handling for frame time.  With {@link #isParseThread} the session gets a
+ * parse thread of its own instead (see {@link TermSession} for what changes).
+ * <p>
+ * The transcript keeps up to {@link #getTranscriptRows} rows.  With
+ * {@link #isPackedScrollback}, only the most recent part of it is kept as
+ * ordinary row objects, and older rows are packed into large arrays, which
+ * saves memory and garbage collection work with many sessions open.  With
+ * {@link #isCompressedScrollback} as well, all but the most recent packed
+ * rows are compressed in the background, which for typical text fits
+ * several times as many rows in the same memory.  With a
+ * {@link #getScrollbackSpillDirectory spill directory}, the oldest packed
+ * rows move out to a memory-mapped file there, which
+ * {@link TermSession#finish} deletes.  A {@link ScrollbackBudget} shared
+ * between sessions limits their transcripts by memory instead of (or as
+ * well as) by rows.
+ * <p>
+ * Create instances with {@link Builder}.
+ */
+public final class TermSessionConfig {
+    /** The sizes a {@link TermSession} uses if it isn't given a config. */
+    public static final TermSessionConfig DEFAULT = new Builder().build();
+
+    /**
+     * A transcript row count which sets no limit, leaving it to a
+     * {@link ScrollbackBudget}.
+     */
+    public static final int UNLIMITED_TRANSCRIPT_ROWS = Integer.MAX_VALUE;
+
+    private final int mInputQueueSize;
+    private final int mOutputQueueSize;
+    private final int mReadChunkSize;
+    private final int mMinBatchSize;
+    private final int mMaxBatchSize;
+    private final boolean mAdaptiveBatching;
+    private final boolean mParseThread;
+    private final boolean mPackedScrollback;
+    private final boolean mCompressedScrollback;
+    private final File mScrollbackSpillDirectory;
+    private final int mTranscriptRows;
+    private final ScrollbackBudget mScrollbackBudget;
+
+    private TermSessionConfig(Builder builder) {
+        mInputQueueSize = builder.mInputQueueSize;
+        mOutputQueueSize = builder.mOutputQueueSize;
+        mReadChunkSize = builder.mReadChunkSize;
+        mMinBatchSize = builder.mMinBatchSize;
+        mMaxBatchSize = builder.mMaxBatchSize;
+        mAdaptiveBatching = builder.mAdaptiveBatching;
+        mParseThread = builder.mParseThread;
+        mPackedScrollback = builder.mPackedScrollback;
+        mCompressedScrollback = builder.mCompressedScrollback;
+        mScrollbackSpillDirectory = builder.mScrollbackSpillDirectory;
+        mTranscriptRows = builder.mTranscriptRows;
+        mScrollbackBudget = builder.mScrollbackBudget;
+    }
+
+    /** The size in bytes of the queue between the reader and main threads. */
+    public int getInputQueueSize() {
+        return mInputQueueSize;
+    }
+
+    /** The size in bytes of the queue between the main and writer threads. */
+    public int getOutputQueueSize() {
+        return mOutputQueueSize;
+    }
+
+    /** The most bytes the reader thread asks the input stream for at once. */
+    public int getReadChunkSize() {
+        return mReadChunkSize;
+    }
+
+    /** The smallest parse batch in bytes, used while the session is interactive. */
+    public int getMinBatchSize() {
+        return mMinBatchSize;
+    }
+
+    /** The largest parse batch in bytes, used while the process streams output. */
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /** Whether the parse batch size adapts to the rate of output. */
+    public boolean isAdaptiveBatching() {
+        return mAdaptiveBatching;
+    }
+
+    /** Whether input is parsed on a dedicated thread instead of the main thread. */
+    public boolean isParseThread() {
+        return mParseThread;
+    }
+
+    /** Whether older transcript rows are packed into a compact store. */
+    public boolean isPackedScrollback() {
+        return mPackedScrollback;
+    }
+
+    /** Whether older packed transcript rows are compressed. */
+    public boolean isCompressedScrollback() {
+        return mCompressedScrollback;
+    }
+
+    /** Where older packed transcript rows are spilled to a file, or null. */
+    public File getScrollbackSpillDirectory() {
+        return mScrollbackSpillDirectory;
+    }
+
+    /**
+     * The most rows the transcript keeps, counting the screen, or
+     * {@link #UNLIMITED_TRANSCRIPT_ROWS}.
+     */
+    public int getTranscriptRows() {
+        return mTranscriptRows;
+    }
+
+    /** The memory budget the transcript shares with other sessions, or null. */
+    public ScrollbackBudget getScrollbackBudget() {
+        return mScrollbackBudget;
+    }
+
+    /**
+     * Builder for {@link TermSessionConfig}.  Every size defaults to 4 KB,
+     * with adaptive batching, the parse thread and packed and compressed
+     * scrollback off, and a transcript of 5000 rows with no memory budget,
+     * which matches how {@link TermSession} has always worked.
+     */
+    public static final class Builder {
+        private static final int DEFAULT_SIZE = 4 * 1024;
+        private static final int DEFAULT_TRANSCRIPT_ROWS = 5000;
+
+        private int mInputQueueSize = DEFAULT_SIZE;
+        private int mOutputQueueSize = DEFAULT_SIZE;
+        private int mReadChunkSize = DEFAULT_SIZE;
+        private int mMinBatchSize = DEFAULT_SIZE;
+        private int mMaxBatchSize = DEFAULT_SIZE;
+        private boolean mAdaptiveBatching;
+        private boolean mParseThread;
+        private boolean mPackedScrollback;
+        private boolean mCompressedScrollback;
+        private File mScrollbackSpillDirectory;
+        private int mTranscriptRows = DEFAULT_TRANSCRIPT_ROWS;
+        private ScrollbackBudget mScrollbackBudget;
+
+        public Builder() {
+        }
+
+        /**
+         * Set the size of the queue between the reader and main threads.  It
+         * is rounded up to a power of two, and must be at least as large as
+         * the maximum batch size.
+         */
+        public Builder setInputQueueSize(int size) {
+            mInputQueueSize = size;
+            return this;
+        }
+
+        /**
+         * Set the size of the queue between the main and writer threads.  It
+         * is rounded up to a power of two.
+         */
+        public Builder setOutputQueueSize(int size) {
+            mOutputQueueSize = size;
+            return this;
+        }
+
+        /** Set the most bytes the reader thread asks the input stream for at once. */
+        public Builder setReadChunkSize(int size) {
+            mReadChunkSize = size;
+            return this;
+        }
+
+        /**
+         * Set the range of the parse batch size.  Without adaptive batching
+         * only the maximum is used.
+         */
+        public Builder setBatchSize(int min, int max) {
+            mMinBatchSize = min;
+            mMaxBatchSize = max;
+            return this;
+        }
+
+        /** Set whether the parse batch size adapts to the rate of output. */
+        public Builder setAdaptiveBatching(boolean adaptive) {
+            mAdaptiveBatching = adaptive;
+            return this;
+        }
+
+        /** Set whether input is parsed on a dedicated thread. */
+        public Builder setParseThread(boolean parseThread) {
+            mParseThread = parseThread;
+            return this;
+        }
+
+        /** Set whether older transcript rows are packed into a compact store. */
+        public Builder setPackedScrollback(boolean packedScrollback) {
+            mPackedScrollback = packedScrollback;
+            return this;
+        }
+
+        /**
+         * Set whether older packed transcript rows are compressed.  Needs
+         * packed scrollback.
+         */
+        public Builder setCompressedScrollback(boolean compressedScrollback) {
+            mCompressedScrollback = compressedScrollback;
+            return this;
+        }
+
+        /**
+         * Set a directory, such as the app's cache directory, in which to
+         * spill older packed transcript rows to a file, or null to keep them
+         * in memory.  Needs packed scrollback.
+         */
+        public Builder setScrollbackSpillDirectory(File directory) {
+            mScrollbackSpillDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Set the most rows the transcript keeps, counting the screen.
+         * {@link #UNLIMITED_TRANSCRIPT_ROWS} needs packed scrollback and a
+         * scrollback budget.
+         */
+        public Builder setTranscriptRows(int rows) {
+            mTranscriptRows = rows;
+            return this;
+        }
+
+        /**
+         * Set a memory budget for the transcript, shared with every other
+         * session given the same budget, or null for none.
+         */
+        public Builder setScrollbackBudget(ScrollbackBudget budget) {
+            mScrollbackBudget = budget;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if a size is not positive, the
+         *                                  minimum batch size is larger than
+         *                                  the maximum, the maximum is
+         *                                  larger than the input queue, or
+         *                                  the transcript is unlimited
+         *                                  without packed scrollback and a
+         *                                  budget, or compressed scrollback
+         *                                  or a spill directory is asked for
+         *                                  without packed scrollback.
+         */
+        public TermSessionConfig build() {
+            if (mInputQueueSize <= 0 || mOutputQueueSize <= 0 || mReadChunkSize <= 0
+                    || mMinBatchSize <= 0 || mMinBatchSize > mMaxBatchSize
+                    || mMaxBatchSize > mInputQueueSize) {
+                throw new IllegalArgumentException("bad buffer sizes: input queue "
+                        + mInputQueueSize + ", output queue " + mOutputQueueSize
+                        + ", read chunk " + mReadChunkSize + ", batch "
+                        + mMinBatchSize + ".." + mMaxBatchSize);
+            }
+            if (mTranscriptRows <= 0 || (mTranscriptRows == UNLIMITED_TRANSCRIPT_ROWS
+                    && (!mPackedScrollback || mScrollbackBudget == null))) {
+                throw new IllegalArgumentException("bad transcript rows " + mTranscriptRows
+                        + ", packed " + mPackedScrollback + ", budget " + mScrollbackBudget);
+            }
+            if ((mCompressedScrollback || mScrollbackSpillDirectory != null)
+                    && !mPackedScrollback) {
+                throw new IllegalArgumentException("compressed or spilled scrollback"
+                        + " needs packed scrollback");
+            }
+            return new TermSessionConfig(this);
+        }
+    }
+}
@@ -85,6 +85,13 @@ class TerminalEmulator {
      */
     private int[] mArgs = new int[MAX_ESCAPE_PARAMETERS];
 
+    /**
+     * A bit for each argument which was separated from the one before by a
+     * colon rather than a semicolon, making it a sub-parameter of that one,
+     * as in the ITU T.416 form of SGR 38, 38:2:r:g:b.
+     */
+    private int mSubParameters;
+
     /**
      * Holds OSC arguments, which can be strings.
      */
@@ -293,17 +300,22 @@ class TerminalEmulator {
     private int mProcessedCharCount;
 
     /**
-     * Foreground color, 0..255
+     * Foreground color, a color index -- see TextStyle
      */
     private int mForeColor;
     private int mDefaultForeColor;
 
     /**
-     * Background color, 0..255
+     * Background color, a color index -- see TextStyle
      */
     private int mBackColor;
     private int mDefaultBackColor;
 
+    /**
+     * The 24-bit colors selected by SGR 38;2 and 48;2, shared by both screens.
+     */
+    private final TrueColorTable mTrueColors = new TrueColorTable();
+
     /**
      * Current TextStyle effect
      */
@@ -422,6 +434,9 @@ class TerminalEmulator {
     private TermKeyListener mKeyListener;
 
     private TerminalClient mTerminalClient;
+
+    /** The working directory the shell last reported (OSC 7), or null. */
+    private String mDirectory;
     /**
      * This is not accurate, but it makes the terminal more useful on
      * small screens.
@@ -442,6 +457,8 @@ class TerminalEmulator {
         mMainBuffer = screen;
         mScreen = mMainBuffer;
         mAltBuffer = new TranscriptScreen(columns, rows, rows);
+        mMainBuffer.setTrueColors(mTrueColors);
+        mAltBuffer.setTrueColors(mTrueColors);
         mRows = rows;
         mColumns = columns;
         mTabStop = new boolean[mColumns];
@@ -469,6 +486,14 @@ class TerminalEmulator {
         return mScreen;
     }
 
+    /**
+     * Get the working directory the shell last reported, as a file: URL, or
+     * null if it hasn't.
+     */
+    public String getDirectory() {
+        return mDirectory;
+    }
+
     public void updateSize(int columns, int rows) {
         if (mRows == rows && mColumns == columns) {
             return;
@@ -493,35 +518,13 @@ class TerminalEmulator {
         int[] cursor = {mCursorCol, mCursorRow};
         boolean fastResize = screen.fastResize(columns, rows, cursor);
 
-        GrowableIntArray cursorColor = null;
-        String charAtCursor = null;
-        GrowableIntArray colors = null;
-        String transcriptText = null;
         if (!fastResize) {
-            /* Save the character at the cursor (if one exists) and store an
-             * ASCII ESC character at the cursor's location
-             * This is an epic hack that lets us restore the cursor later...
-             */
-            cursorColor = new GrowableIntArray(1);
-            charAtCursor = screen.getSelectedText(cursorColor, mCursorCol, mCursorRow, mCursorCol + 1, mCursorRow);
-            screen.set(mCursorCol, mCursorRow, 27, 0);
-
-            colors = new GrowableIntArray(1024);
-            transcriptText = screen.getTranscriptText(colors);
-            screen.resize(columns, rows, getStyle());
-        }
-
-        boolean altFastResize = true;
-        GrowableIntArray altColors = null;
-        String altTranscriptText = null;
-        if (altScreen != null) {
-            altFastResize = altScreen.fastResize(columns, rows, null);
-
-            if (!altFastResize) {
-                altColors = new GrowableIntArray(1024);
-                altTranscriptText = altScreen.getTranscriptText(altColors);
-                altScreen.resize(columns, rows, getStyle());
-            }
+            // Rewrap the lines to the new width, keeping track of the cursor
+            screen.reflow(columns, rows, getStyle(), cursor);
+        }
+
+        if (altScreen != null && !altScreen.fastResize(columns, rows, null)) {
+            altScreen.reflow(columns, rows, getStyle(), null);
         }
 
         if (mRows != rows) {
@@ -538,109 +541,16 @@ class TerminalEmulator {
             System.arraycopy(oldTabStop, 0, mTabStop, 0, toTransfer);
         }
 
-        if (!altFastResize) {
-            boolean wasAboutToAutoWrap = mAboutToAutoWrap;
-
-            // Restore the contents of the inactive screen's buffer
-            mScreen = altScreen;
-            mCursorRow = 0;
-            mCursorCol = 0;
+        if (!fastResize) {
             mAboutToAutoWrap = false;
-
-            int end = altTranscriptText.length() - 1;
-            /* Unlike for the main transcript below, don't trim off trailing
-             * newlines -- the alternate transcript lacks a cursor marking, so
-             * we might introduce an unwanted vertical shift in the screen
-             * contents this way */
-            char c, cLow;
-            int colorOffset = 0;
-            for (int i = 0; i <= end; i++) {
-                c = altTranscriptText.charAt(i);
-                int style = altColors.at(i - colorOffset);
-                if (Character.isHighSurrogate(c)) {
-                    cLow = altTranscriptText.charAt(++i);
-                    emit(Character.toCodePoint(c, cLow), style);
-                    ++colorOffset;
-                } else if (c == '\n') {
-                    setCursorCol(0);
-                    doLinefeed();
-                } else {
-                    emit(c, style);
-                }
-            }
-
-            mScreen = screen;
-            mAboutToAutoWrap = wasAboutToAutoWrap;
-        }
-
-        if (fastResize) {
-            // Only need to make sure the cursor is in the right spot
-            if (cursor[0] >= 0 && cursor[1] >= 0) {
-                mCursorCol = cursor[0];
-                mCursorRow = cursor[1];
-            } else {
-                // Cursor scrolled off screen, reset the cursor to top left
-                mCursorCol = 0;
-                mCursorRow = 0;
-            }
-
-            return;
         }
-
-        mCursorRow = 0;
-        mCursorCol = 0;
-        mAboutToAutoWrap = false;
-
-        int newCursorRow = -1;
-        int newCursorCol = -1;
-        int newCursorTranscriptPos = -1;
-        int end = transcriptText.length() - 1;
-        while ((end >= 0) && transcriptText.charAt(end) == '\n') {
-            end--;
-        }
-        char c, cLow;
-        int colorOffset = 0;
-        for (int i = 0; i <= end; i++) {
-            c = transcriptText.charAt(i);
-            int style = colors.at(i - colorOffset);
-            if (Character.isHighSurrogate(c)) {
-                cLow = transcriptText.charAt(++i);
-                emit(Character.toCodePoint(c, cLow), style);
-                ++colorOffset;
-            } else if (c == '\n') {
-                setCursorCol(0);
-                doLinefeed();
-            } else if (c == 27) {
-                /* We marked the cursor location with ESC earlier, so this
-                   is the place to restore the cursor to */
-                newCursorRow = mCursorRow;
-                newCursorCol = mCursorCol;
-                newCursorTranscriptPos = screen.getActiveRows();
-                if (charAtCursor != null && charAtCursor.length() > 0) {
-                    // Emit the real character that was in this spot
-                    int encodedCursorColor = cursorColor.at(0);
-                    emit(charAtCursor.toCharArray(), 0, charAtCursor.length(), encodedCursorColor);
-                }
-            } else {
-                emit(c, style);
-            }
-        }
-
-        // If we marked a cursor location, move the cursor there now
-        if (newCursorRow != -1 && newCursorCol != -1) {
-            mCursorRow = newCursorRow;
-            mCursorCol = newCursorCol;
-
-            /* Adjust for any scrolling between the time we marked the cursor
-               location and now */
-            int scrollCount = screen.getActiveRows() - newCursorTranscriptPos;
-            if (scrollCount > 0 && scrollCount <= newCursorRow) {
-                mCursorRow -= scrollCount;
-            } else if (scrollCount > newCursorRow) {
-                // Cursor scrolled off screen -- reset to top left corner
-                mCursorRow = 0;
-                mCursorCol = 0;
-            }
+        if (cursor[0] >= 0 && cursor[1] >= 0) {
+            mCursorCol = cursor[0];
+            mCursorRow = cursor[1];
+        } else {
+            // Cursor scrolled off screen, reset the cursor to top left
+            mCursorCol = 0;
+            mCursorRow = 0;
         }
     }
 
@@ -701,6 +611,21 @@ class TerminalEmulator {
             Log.d(EmulatorDebug.LOG_TAG, "In: '" + EmulatorDebug.bytesToString(buffer, base, length) + "'");
         }
         for (int i = 0; i < length; i++) {
+            if (canEmitAsciiRun()) {
+                int runLength = asciiRunLength(buffer, base + i, length - i);
+                if (runLength > 0) {
+                    try {
+                        emitAsciiRun(buffer, base + i, runLength);
+                        mProcessedCharCount += runLength;
+                    } catch (Exception e) {
+                        Log.e(EmulatorDebug.LOG_TAG, "Exception while processing characters "
+                                + Integer.toString(mProcessedCharCount) + " length "
+                                + Integer.toString(runLength), e);
+                    }
+                    i += runLength - 1;
+                    continue;
+                }
+            }
             byte b = buffer[base + i];
             try {
                 process(b);
@@ -713,6 +638,32 @@ class TerminalEmulator {
         }
     }
 
+    /**
+     * Whether the next bytes of input can go through the printable ASCII fast
+     * path: we must not be in the middle of an escape sequence or a UTF-8
+     * sequence, and the special graphics character set must not be active.
+     */
+    private boolean canEmitAsciiRun() {
+        return mEscapeState == ESC_NONE && !mUseAlternateCharSet
+                && (!mUTF8Mode || mUTF8ToFollow == 0);
+    }
+
+    /**
+     * Find the length of the run of printable ASCII characters (0x20..0x7e)
+     * at the start of the given portion of the buffer.
+     */
+    private static int asciiRunLength(byte[] buffer, int offset, int length) {
+        int i = 0;
+        while (i < length) {
+            byte b = buffer[offset + i];
+            if (b < 0x20 || b > 0x7e) {
+                break;
+            }
+            ++i;
+        }
+        return i;
+    }
+
     private void process(byte b) {
         process(b, true);
     }
@@ -1039,6 +990,7 @@ class TerminalEmulator {
     private void startEscapeSequence(int escapeState) {
         mEscapeState = escapeState;
         mArgIndex = 0;
+        mSubParameters = 0;
         for (int j = 0; j < MAX_ESCAPE_PARAMETERS; j++) {
             mArgs[j] = -1;
         }
@@ -1434,7 +1386,9 @@ class TerminalEmulator {
 
     private void selectGraphicRendition() {
         // SGR
-        for (int i = 0; i <= mArgIndex; i++) {
+        // mArgIndex goes one past the last argument if there were too many
+        int lastArg = Math.min(mArgIndex, mArgs.length - 1);
+        for (int i = 0; i <= lastArg; i++) {
             int code = mArgs[i];
             if (code < 0) {
                 if (mArgIndex > 0) {
@@ -1443,6 +1397,11 @@ class TerminalEmulator {
                     code = 0;
                 }
             }
+            if (isSubParameter(i)) {
+                // Belongs to a code which doesn't take any, like the 3 of
+                // 4:3 for a curly underline
+                continue;
+            }
 
             // See http://en.wikipedia.org/wiki/ANSI_escape_code#graphics
 
@@ -1455,7 +1414,12 @@ class TerminalEmulator {
             } else if (code == 3) { // italics, but rarely used as such; "standout" (inverse colors) with TERM=screen
                 mEffect |= TextStyle.fxItalic;
             } else if (code == 4) { // underscore
-                mEffect |= TextStyle.fxUnderline;
+                if (i + 1 <= mArgIndex && isSubParameter(i + 1) && mArgs[i + 1] == 0) {
+                    // 4:0, no underline
+                    mEffect &= ~TextStyle.fxUnderline;
+                } else {
+                    mEffect |= TextStyle.fxUnderline;
+                }
             } else if (code == 5) { // blink
                 mEffect |= TextStyle.fxBlink;
             } else if (code == 7) { // inverse
@@ -1481,23 +1445,22 @@ class TerminalEmulator {
                 mEffect &= ~TextStyle.fxInvisible;
             } else if (code >= 30 && code <= 37) { // foreground color
                 mForeColor = code - 30;
-            } else if (code == 38 && i + 2 <= mArgIndex && mArgs[i + 1] == 5) { // foreground 256 color
-                int color = mArgs[i + 2];
-                if (checkColor(color)) {
+            } else if (code == 38 && isExtendedColor(i)) { // foreground 256 or 24-bit color
+                int color = getExtendedColor(i);
+                if (color >= 0) {
                     mForeColor = color;
                 }
-                i += 2;
+                i = getExtendedColorEnd(i) - 1;
             } else if (code == 39) { // set default text color
                 mForeColor = mDefaultForeColor;
             } else if (code >= 40 && code <= 47) { // background color
                 mBackColor = code - 40;
-            } else if (code == 48 && i + 2 <= mArgIndex && mArgs[i + 1] == 5) { // background 256 color
-                mBackColor = mArgs[i + 2];
-                int color = mArgs[i + 2];
-                if (checkColor(color)) {
+            } else if (code == 48 && isExtendedColor(i)) { // background 256 or 24-bit color
+                int color = getExtendedColor(i);
+                if (color >= 0) {
                     mBackColor = color;
                 }
-                i += 2;
+                i = getExtendedColorEnd(i) - 1;
             } else if (code == 49) { // set default background color
                 mBackColor = mDefaultBackColor;
             } else if (code >= 90 && code <= 97) { // bright foreground color
@@ -1512,6 +1475,84 @@ class TerminalEmulator {
         }
     }
 
+    private boolean isSubParameter(int index) {
+        return (mSubParameters & (1 << index)) != 0;
+    }
+
+    /**
+     * Whether the SGR 38 or 48 at mArgs[index] is followed by a color: 5;n
+     * for a color of the 256 color palette, or 2;r;g;b for a 24-bit color.
+     * Either may also come as colon separated sub-parameters, where the
+     * 24-bit form may have a color space id before the red, 2:id:r:g:b.
+     */
+    private boolean isExtendedColor(int index) {
+        int lastArg = Math.min(mArgIndex, mArgs.length - 1);
+        if (index + 1 > lastArg) {
+            return false;
+        }
+        if (isSubParameter(index + 1)) {
+            return true;
+        }
+        int mode = mArgs[index + 1];
+        return mode == 5 && index + 2 <= lastArg
+                || mode == 2 && index + 4 <= lastArg;
+    }
+
+    /**
+     * @return The index of the first argument after the color of the SGR 38
+     *         or 48 at mArgs[index], which must be an extended color.
+     */
+    private int getExtendedColorEnd(int index) {
+        if (isSubParameter(index + 1)) {
+            int lastArg = Math.min(mArgIndex, mArgs.length - 1);
+            int end = index + 2;
+            while (end <= lastArg && isSubParameter(end)) {
+                end++;
+            }
+            return end;
+        }
+        return mArgs[index + 1] == 5 ? index + 3 : index + 5;
+    }
+
+    /**
+     * @return The color index of the color of the SGR 38 or 48 at
+     *         mArgs[index], which must be an extended color, or -1 if it's
+     *         not a valid color.
+     */
+    private int getExtendedColor(int index) {
+        int mode = mArgs[index + 1];
+        int first = index + 2;
+        int end = getExtendedColorEnd(index);
+        if (mode == 5) {
+            if (first == end) {
+                return -1;
+            }
+            int color = mArgs[first];
+            return checkColor(color) ? color : -1;
+        }
+        if (mode != 2) {
+            unknownParameter(mode);
+            return -1;
+        }
+        if (end - first > 3) {
+            // Skip the color space id
+            first++;
+        }
+        if (first + 3 > end) {
+            return -1;
+        }
+        int rgb = 0;
+        for (int i = first; i < first + 3; i++) {
+            // An empty component is 0
+            int component = Math.max(mArgs[i], 0);
+            if (component > 0xff) {
+                return -1;
+            }
+            rgb = (rgb << 8) | component;
+        }
+        return mTrueColors.getColorIndex(rgb);
+    }
+
     private boolean checkColor(int color) {
         boolean result = isValidColor(color);
         if (!result) {
@@ -1566,6 +1607,13 @@ class TerminalEmulator {
             case 2: // Change window title to T
                 changeTitle(ps, nextOSCString(-1));
                 break;
+            case 7: // Current working directory, as a file: URL
+                mDirectory = nextOSCString(-1);
+                mScreen.addMark(TranscriptMarks.DIRECTORY, mCursorCol, mCursorRow, mDirectory);
+                break;
+            case 133: // Shell integration marks
+                doShellIntegrationMark(nextOSCString(';'));
+                break;
             default:
                 unknownParameter(ps);
                 break;
@@ -1573,6 +1621,31 @@ class TerminalEmulator {
         finishSequence();
     }
 
+    private void doShellIntegrationMark(String mark) {
+        int kind;
+        String value = null;
+        if ("A".equals(mark)) {
+            kind = TranscriptMarks.PROMPT;
+        } else if ("B".equals(mark)) {
+            kind = TranscriptMarks.COMMAND;
+        } else if ("C".equals(mark)) {
+            kind = TranscriptMarks.OUTPUT;
+        } else if ("D".equals(mark)) {
+            kind = TranscriptMarks.FINISHED;
+            // The exit status, if the shell gave one
+            value = nextOSCString(';');
+            if (value.length() == 0) {
+                value = null;
+            }
+        } else {
+            if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+                logError("Unknown shell integration mark " + mark);
+            }
+            return;
+        }
+        mScreen.addMark(kind, mCursorCol, mCursorRow, value);
+    }
+
     private void changeTitle(int parameter, String title) {
         if (parameter == 0 || parameter == 2) {
             mSession.setTitle(title);
@@ -1688,9 +1761,12 @@ class TerminalEmulator {
                 mArgs[mArgIndex] = value;
             }
             continueSequence();
-        } else if (b == ';') {
+        } else if (b == ';' || b == ':') {
             if (mArgIndex < mArgs.length) {
                 mArgIndex++;
+                if (b == ':') {
+                    mSubParameters |= 1 << mArgIndex;
+                }
             }
             continueSequence();
         } else {
@@ -1895,6 +1971,74 @@ class TerminalEmulator {
         emit(c, getStyle());
     }
 
+    /**
+     * Send a run of printable ASCII characters to the screen.  This has the
+     * same effect as calling {@link #emit(byte)} for each byte of the run, but
+     * stores each row's worth of characters with a single call to the screen.
+     *
+     * @param buffer A byte array containing only characters in 0x20..0x7e
+     *               in the given range
+     * @param offset The offset of the first character of the run
+     * @param length The number of characters in the run
+     */
+    private void emitAsciiRun(byte[] buffer, int offset, int length) {
+        boolean autoWrap = autoWrapEnabled();
+        int style = getStyle();
+        int columns = mColumns;
+
+        while (length > 0) {
+            if (autoWrap && mCursorCol == columns - 1 && mAboutToAutoWrap) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = 0;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scroll();
+                }
+            }
+
+            int cursorCol = mCursorCol;
+            int count = Math.min(length, columns - cursorCol);
+
+            if (mInsertMode) { // Move characters to the right
+                int destCol = cursorCol + count;
+                if (destCol < columns) {
+                    mScreen.blockCopy(cursorCol, mCursorRow, columns - destCol,
+                            1, destCol, mCursorRow);
+                }
+            }
+
+            if (!autoWrap && count < length) {
+                /* Without autowrap, everything past the end of the line is
+                   written into the last column, so only the final character
+                   of the run survives there */
+                if (count > 1) {
+                    mScreen.set(cursorCol, mCursorRow, buffer, offset, count - 1, style);
+                }
+                mScreen.set(columns - 1, mCursorRow, buffer, offset + length - 1, 1, style);
+                count = length;
+                mCursorCol = columns - 1;
+            } else {
+                mScreen.set(cursorCol, mCursorRow, buffer, offset, count, style);
+                int lastCol = cursorCol + count - 1;
+                if (autoWrap) {
+                    mAboutToAutoWrap = (lastCol == columns - 1);
+
+                    //Force line-wrap flag to trigger even for lines being typed
+                    if (mAboutToAutoWrap)
+                        mScreen.setLineWrap(mCursorRow);
+                }
+                mCursorCol = Math.min(lastCol + 1, columns - 1);
+            }
+
+            offset += count;
+            length -= count;
+        }
+
+        mJustWrapped = false;
+        mLastEmittedCharWidth = 1;
+    }
+
     private void emit(byte b) {
         if (mUseAlternateCharSet && b < 128) {
             emit((int) mSpecialGraphicsCharMap[b]);
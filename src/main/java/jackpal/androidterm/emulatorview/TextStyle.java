@@ -19,22 +19,27 @@ final class TextStyle {
 
     final static int ciColorLength = ciCursorBackground + 1;
 
+    // Color indices from ciTrueColor up to ciMaxColor refer to 24-bit colors
+    // in the session's TrueColorTable
+    final static int ciTrueColor = ciColorLength;
+    final static int ciMaxColor = 0xfff;
+
     final static int kNormalTextStyle = encode(ciForeground, ciBackground, fxNormal);
 
     static int encode(int foreColor, int backColor, int effect) {
-        return ((effect & 0x3f) << 18) | ((foreColor & 0x1ff) << 9) | (backColor & 0x1ff);
+        return ((effect & 0x3f) << 24) | ((foreColor & 0xfff) << 12) | (backColor & 0xfff);
     }
 
     static int decodeForeColor(int encodedColor) {
-        return (encodedColor >> 9) & 0x1ff;
+        return (encodedColor >> 12) & 0xfff;
     }
 
     static int decodeBackColor(int encodedColor) {
-        return encodedColor & 0x1ff;
+        return encodedColor & 0xfff;
     }
 
     static int decodeEffect(int encodedColor) {
-        return (encodedColor >> 18) & 0x3f;
+        return (encodedColor >> 24) & 0x3f;
     }
 
     private TextStyle() {
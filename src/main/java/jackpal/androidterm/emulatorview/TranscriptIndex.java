@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.Arrays;
+
+/**
+ * An index of the text in a transcript's rows, so that finding text doesn't
+ * mean reading all of them.
+ * <p>
+ * Rows are numbered by sequence number, which counts the rows which have
+ * scrolled into the transcript, and grouped into blocks of
+ * {@link #BLOCK_ROWS}.  Each block has a bitmap of the trigrams (hashed, and
+ * with their case folded) in the lines which start in it, including the
+ * parts of those lines which wrap onto the rows of later blocks.  Only the
+ * lines of the blocks whose bitmaps have every trigram of the text being
+ * looked for need to be read.  Bits are never cleared, so a bitmap may claim
+ * trigrams its block no longer has, which only costs a wasted read; it never
+ * lacks one the block has.
+ * <p>
+ * Rows are added in order, and blocks are dropped from the start as the
+ * transcript's oldest rows are, so the blocks form a queue.  The rows of a
+ * line go in one at a time, so a line may be left open, to be carried on by
+ * the next row added.
+ */
+final class TranscriptIndex {
+    /** The number of rows in a block. */
+    static final int BLOCK_ROWS = 128;
+
+    /** The number of bits in a block's bitmap, as a power of two. */
+    private static final int BLOCK_BITS_LOG2 = 13;
+    private static final int BLOCK_WORDS = (1 << BLOCK_BITS_LOG2) / 64;
+
+    /** The bitmaps, as a circular buffer; null for blocks where no line starts. */
+    private long[][] mBlocks = new long[16][];
+    private int mHead;
+    private int mBlockCount;
+    /** The number of the block at mHead. */
+    private long mFirstBlock;
+    /** A dropped bitmap, kept for the next block to reuse. */
+    private long[] mFreeBitmap;
+
+    /** The sequence number of the next row to be added. */
+    private long mEnd;
+    /** The block of the line the next row carries on, or -1 if it starts one. */
+    private long mLineBlock = -1;
+    /** The last two characters of that line, folded, or -1 if there aren't two yet. */
+    private int mPrev1 = -1;
+    private int mPrev2 = -1;
+
+    /** The sequence number of the next row to be added. */
+    long getEnd() {
+        return mEnd;
+    }
+
+    /** Whether the next row added carries on the line of the last one. */
+    boolean isLineOpen() {
+        return mLineBlock >= 0;
+    }
+
+    long getFirstBlock() {
+        return mFirstBlock;
+    }
+
+    int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /** An estimate of the memory used by the index, in bytes. */
+    long getMemoryUsage() {
+        long usage = 16 + 4L * mBlocks.length;
+        for (int i = 0; i < mBlockCount; ++i) {
+            if (mBlocks[(mHead + i) % mBlocks.length] != null) {
+                usage += 16 + 8 * BLOCK_WORDS;
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Add the next row.
+     *
+     * @param text The row's text, as compared by a search.
+     * @param lineWrap Whether the line carries on in the next row.
+     */
+    void addRow(char[] text, int length, boolean lineWrap) {
+        if (mLineBlock < 0) {
+            mLineBlock = mEnd / BLOCK_ROWS;
+            mPrev1 = -1;
+            mPrev2 = -1;
+        }
+        long[] bitmap = getBitmap(mLineBlock);
+        int prev1 = mPrev1;
+        int prev2 = mPrev2;
+        for (int i = 0; i < length; ++i) {
+            int c = fold(text[i]);
+            if (prev2 >= 0) {
+                int bit = hash(prev2, prev1, c);
+                bitmap[bit >>> 6] |= 1L << bit;
+            }
+            prev2 = prev1;
+            prev1 = c;
+        }
+        mPrev1 = prev1;
+        mPrev2 = prev2;
+        if (!lineWrap) {
+            mLineBlock = -1;
+        }
+        ++mEnd;
+    }
+
+    /**
+     * Forget the rows from end on, because they've been changed or have
+     * gone.  Any line left open is closed, so the rows added next had
+     * better start one.
+     */
+    void truncate(long end) {
+        if (end >= mEnd) {
+            return;
+        }
+        mEnd = end;
+        mLineBlock = -1;
+        long lastBlock = end / BLOCK_ROWS;
+        while (mBlockCount > 0 && mFirstBlock + mBlockCount - 1 > lastBlock) {
+            int i = (mHead + mBlockCount - 1) % mBlocks.length;
+            freeBitmap(mBlocks[i]);
+            mBlocks[i] = null;
+            --mBlockCount;
+        }
+    }
+
+    /**
+     * Drop the blocks of the rows before oldest, which have left the
+     * transcript.  Lines which start in those blocks go with them, even if
+     * they carry on past oldest, so the line at oldest has to be searched
+     * without the index's help.
+     */
+    void dropBefore(long oldest) {
+        long first = oldest / BLOCK_ROWS;
+        while (mBlockCount > 0 && mFirstBlock < first) {
+            freeBitmap(mBlocks[mHead]);
+            mBlocks[mHead] = null;
+            mHead = (mHead + 1) % mBlocks.length;
+            ++mFirstBlock;
+            --mBlockCount;
+        }
+        if (mBlockCount == 0) {
+            mFirstBlock = first;
+        }
+        if (mEnd < oldest) {
+            mEnd = oldest;
+            mLineBlock = -1;
+        } else if (mLineBlock >= 0 && mLineBlock < first) {
+            // Keep the rest of the line somewhere; see above
+            mLineBlock = first;
+        }
+    }
+
+    /**
+     * Whether the lines starting in a block may contain all the given
+     * trigrams, as hashed by hashTrigrams().
+     */
+    boolean mayContain(long block, int[] trigrams, int count) {
+        long i = block - mFirstBlock;
+        if (i < 0 || i >= mBlockCount) {
+            return false;
+        }
+        long[] bitmap = mBlocks[(int) ((mHead + i) % mBlocks.length)];
+        if (bitmap == null) {
+            return false;
+        }
+        for (int j = 0; j < count; ++j) {
+            int bit = trigrams[j];
+            if ((bitmap[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash the trigrams of some text, already folded, for mayContain().
+     *
+     * @return The number of trigrams, which is 0 for text too short to have
+     *         any; such text is in every block, as far as the index knows.
+     */
+    static int hashTrigrams(char[] text, int length, int[] trigrams) {
+        int count = 0;
+        for (int i = 2; i < length; ++i) {
+            trigrams[count++] = hash(text[i - 2], text[i - 1], text[i]);
+        }
+        return count;
+    }
+
+    /** Fold a character's case, for comparing text without regard to it. */
+    static char fold(char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(c);
+    }
+
+    private static int hash(int c1, int c2, int c3) {
+        int h = (c1 * 31 + c2) * 31 + c3;
+        return (h * 0x9e3779b1) >>> (32 - BLOCK_BITS_LOG2);
+    }
+
+    private long[] getBitmap(long block) {
+        if (mBlockCount == 0) {
+            mFirstBlock = block;
+        }
+        while (block >= mFirstBlock + mBlockCount) {
+            if (mBlockCount == mBlocks.length) {
+                long[][] blocks = new long[mBlocks.length * 2][];
+                for (int i = 0; i < mBlockCount; ++i) {
+                    blocks[i] = mBlocks[(mHead + i) % mBlocks.length];
+                }
+                mBlocks = blocks;
+                mHead = 0;
+            }
+            mBlocks[(mHead + mBlockCount) % mBlocks.length] = null;
+            ++mBlockCount;
+        }
+        int i = (int) ((mHead + block - mFirstBlock) % mBlocks.length);
+        long[] bitmap = mBlocks[i];
+        if (bitmap == null) {
+            bitmap = mFreeBitmap;
+            if (bitmap != null) {
+                mFreeBitmap = null;
+                Arrays.fill(bitmap, 0);
+            } else {
+                bitmap = new long[BLOCK_WORDS];
+            }
+            mBlocks[i] = bitmap;
+        }
+        return bitmap;
+    }
+
+    private void freeBitmap(long[] bitmap) {
+        if (bitmap != null) {
+            mFreeBitmap = bitmap;
+        }
+    }
+}
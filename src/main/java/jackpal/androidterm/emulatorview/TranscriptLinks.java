@@ -0,0 +1,370 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+
+import jackpal.androidterm.emulatorview.compat.Patterns;
+
+/**
+ * The http and https links in the rows of a session's transcript, found on a
+ * background thread, so that finding the link under a cell is a lookup.
+ * <p>
+ * The view asks for the rows it shows with {@link #request}; the search
+ * takes the emulator's lock a step at a time and reads only the lines of
+ * those rows which it hasn't read yet.  What it finds is kept by row
+ * sequence number (see UnicodeTranscript.mRowSequence), so it stays good
+ * as the rows scroll, for the {@link #MAX_ROWS} rows used most recently.
+ * The view tells it which rows have changed since it last drew with
+ * {@link #forgetChangedRows}, and those are read again when next shown.
+ * <p>
+ * The rows it knows about are only changed or read with the emulator
+ * locked.
+ */
+final class TranscriptLinks {
+    /** The number of rows whose links are kept. */
+    private static final int MAX_ROWS = 2048;
+    /** The number of rows each step reads, with the emulator locked. */
+    private static final int STEP_ROWS = 100;
+
+    private static final ExecutorService sLinker = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TranscriptLinks");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** The links in a row, and the line the row is part of. */
+    private static final class Row {
+        /** The sequence number of the line's first row. */
+        final long mLineStart;
+        final int mLineRows;
+        /** The URL of the link in each column, or null if there are none. */
+        String[] mUrls;
+
+        Row(long lineStart, int lineRows) {
+            mLineStart = lineStart;
+            mLineRows = lineRows;
+        }
+    }
+
+    private final TermSession mSession;
+    private final Matcher mMatcher = Patterns.WEB_URL.matcher("");
+    private final GrowableIntArray mMatches = new GrowableIntArray(16);
+    private final ArrayList<String> mTexts = new ArrayList<String>();
+
+    /** The transcript the rows are from. */
+    private UnicodeTranscript mTranscript;
+    /*
+     * Where a pass over the rows asked for is up to, between steps, by
+     * sequence number: the pass's first row and the row to go on from.  A
+     * pass which asks for more rows than are kept would otherwise read
+     * again the rows it read first, which it had to drop to make room, and
+     * never finish.
+     */
+    private boolean mStepping;
+    private long mStepTop;
+    private long mStepNext;
+    /** The rows read so far, by sequence number, least recently used first. */
+    private final LinkedHashMap<Long, Row> mRows =
+            new LinkedHashMap<Long, Row>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Row> eldest) {
+                    return size() > MAX_ROWS;
+                }
+            };
+
+    /* The rows asked for, guarded by this */
+    private int mTop;
+    private int mBottom;
+    private boolean mRequested;
+    private boolean mSearching;
+    /*
+     * The rows last searched, guarded by this; mSearched is cleared when any
+     * rows are forgotten, or when the rows turn out to be from a different
+     * transcript
+     */
+    private int mSearchedTop;
+    private int mSearchedBottom;
+    private boolean mSearched;
+
+    private final Runnable mSearcher = new Runnable() {
+        @Override
+        public void run() {
+            search();
+        }
+    };
+
+    TranscriptLinks(TermSession session) {
+        mSession = session;
+    }
+
+    /**
+     * Find the links in some rows of the session's screen and transcript,
+     * unless they're known already.  Doesn't wait for the emulator's lock,
+     * or start a search if those rows have been searched and nothing has
+     * changed since.
+     *
+     * @param top The first row, counting from the top of the screen.
+     * @param bottom The row after the last one.
+     */
+    void request(int top, int bottom) {
+        synchronized (this) {
+            if (mSearched && top == mSearchedTop && bottom == mSearchedBottom) {
+                return;
+            }
+            mTop = top;
+            mBottom = bottom;
+            mRequested = true;
+            if (mSearching) {
+                return;
+            }
+            mSearching = true;
+        }
+        sLinker.execute(mSearcher);
+    }
+
+    private void search() {
+        while (true) {
+            int top;
+            int bottom;
+            synchronized (this) {
+                if (!mRequested) {
+                    mSearching = false;
+                    return;
+                }
+                mRequested = false;
+                top = mTop;
+                bottom = mBottom;
+            }
+            boolean more = true;
+            while (more) {
+                synchronized (mSession.getEmulatorLock()) {
+                    TerminalEmulator emulator = mSession.getEmulator();
+                    more = emulator != null
+                            && emulator.getScreen().continueLinks(this, top, bottom, STEP_ROWS);
+                    if (!more && emulator != null) {
+                        // Nothing can be forgotten until the lock is let go
+                        synchronized (this) {
+                            mSearchedTop = top;
+                            mSearchedBottom = bottom;
+                            mSearched = true;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the lines of rows which haven't been read yet, for
+     * TranscriptScreen.
+     *
+     * @param bottom The row after the last one; no lower than the bottom
+     *               of the screen.
+     * @return Whether there are more rows to read.
+     */
+    boolean step(UnicodeTranscript transcript, int columns, int top, int bottom, int maxRows) {
+        if (transcript != mTranscript) {
+            clear();
+            mTranscript = transcript;
+        }
+        int firstRow = -transcript.getActiveTranscriptRows();
+        int row = Math.max(top, firstRow);
+        long topSequence = transcript.getRowSequence(top);
+        if (mStepping && mStepTop == topSequence) {
+            row = Math.max(row, (int) (mStepNext - transcript.getRowSequence(0)));
+        }
+        int rowsRead = 0;
+        for (; row < bottom; ++row) {
+            if (mRows.containsKey(transcript.getRowSequence(row))) {
+                continue;
+            }
+            if (rowsRead >= maxRows) {
+                mStepping = true;
+                mStepTop = topSequence;
+                mStepNext = transcript.getRowSequence(row);
+                return true;
+            }
+            int start = row;
+            while (start > firstRow && transcript.getLineWrap(start - 1)) {
+                --start;
+            }
+            row = readLine(transcript, columns, start) - 1;
+            rowsRead += row + 1 - start;
+        }
+        mStepping = false;
+        return false;
+    }
+
+    /**
+     * Find the links in the line starting at row, and remember them.
+     *
+     * @return The row after the line.
+     */
+    private int readLine(UnicodeTranscript transcript, int columns, int row) {
+        GrowableIntArray matches = mMatches;
+        ArrayList<String> texts = mTexts;
+        matches.clear();
+        texts.clear();
+        int end = transcript.findPatternInLine(mMatcher, row, matches, texts);
+        long lineStart = transcript.getRowSequence(row);
+        Row[] rows = new Row[end - row];
+        for (int i = 0; i < rows.length; ++i) {
+            rows[i] = new Row(lineStart, rows.length);
+        }
+        for (int i = 0; i < texts.size(); ++i) {
+            String url = texts.get(i);
+            // Only links which say where they go, as EmulatorView has always
+            // found them
+            if (!url.startsWith("http:") && !url.startsWith("https:")) {
+                continue;
+            }
+            int startColumn = matches.at(i * 4);
+            int startRow = matches.at(i * 4 + 1);
+            int endColumn = matches.at(i * 4 + 2);
+            int endRow = matches.at(i * 4 + 3);
+            for (int j = startRow; j <= endRow; ++j) {
+                Row line = rows[j - row];
+                if (line.mUrls == null) {
+                    line.mUrls = new String[columns];
+                }
+                int from = j == startRow ? startColumn : 0;
+                int to = Math.min(j == endRow ? endColumn : columns, columns);
+                for (int column = from; column < to; ++column) {
+                    line.mUrls[column] = url;
+                }
+            }
+        }
+        for (int i = 0; i < rows.length; ++i) {
+            mRows.put(lineStart + i, rows[i]);
+        }
+        return end;
+    }
+
+    /**
+     * Get the URL of the link at a cell, if its row has been read, for
+     * TranscriptScreen.
+     *
+     * @return The URL, or null if there's no link there (that's known of).
+     */
+    String getURL(UnicodeTranscript transcript, int column, int row) {
+        if (transcript != mTranscript) {
+            // Rewrapped since the rows were read; read them again when next
+            // asked for
+            setUnsearched();
+            return null;
+        }
+        Row links = mRows.get(transcript.getRowSequence(row));
+        if (links == null || links.mUrls == null
+                || column < 0 || column >= links.mUrls.length) {
+            return null;
+        }
+        return links.mUrls[column];
+    }
+
+    /**
+     * Forget the links of the rows which have changed since the transcript's
+     * dirty rows were last cleared, for TranscriptScreen.
+     *
+     * @param scrolled The number of times the emulator has scrolled since
+     *                 then.
+     */
+    void forgetChangedRows(UnicodeTranscript transcript, int screenRows, int scrolled) {
+        if (transcript != mTranscript) {
+            // The rows read are from another screen (the main one, with the
+            // alternate one showing, say), whose changes aren't tracked
+            // while it isn't showing
+            clear();
+            return;
+        }
+        if (mRows.isEmpty()) {
+            return;
+        }
+        int shift = transcript.getScrollShift();
+        if (shift != scrolled || (shift > 0 && (transcript.getScrollShiftTop() != 0
+                || transcript.getScrollShiftBottom() != screenRows))) {
+            // Rows moved without their sequence numbers; forget every row
+            // which has been on the screen since
+            forgetRows(transcript.getRowSequence(-scrolled), transcript.getEndSequence());
+            return;
+        }
+        // The rows which scrolled off the screen may have changed before
+        // they went
+        forgetRows(transcript.getRowSequence(-shift), transcript.getRowSequence(0));
+        for (int row = 0; row < screenRows; ++row) {
+            if (transcript.isRowDirty(row)) {
+                forgetLine(transcript.getRowSequence(row));
+            }
+        }
+    }
+
+    /** Forget the rows from start up to end, and the rest of their lines. */
+    private void forgetRows(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        setUnsearched();
+        forgetLine(start);
+        forgetLine(end - 1);
+        if (end - start <= mRows.size()) {
+            for (long sequence = start; sequence < end; ++sequence) {
+                mRows.remove(sequence);
+            }
+        } else {
+            Iterator<Long> iterator = mRows.keySet().iterator();
+            while (iterator.hasNext()) {
+                long sequence = iterator.next();
+                if (sequence >= start && sequence < end) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /** Forget all the rows of the line a row is part of. */
+    private void forgetLine(long sequence) {
+        Row row = mRows.remove(sequence);
+        if (row == null) {
+            return;
+        }
+        setUnsearched();
+        for (int i = 0; i < row.mLineRows; ++i) {
+            mRows.remove(row.mLineStart + i);
+        }
+    }
+
+    /** Forget every row's links. */
+    void clear() {
+        mRows.clear();
+        setUnsearched();
+    }
+
+    private synchronized void setUnsearched() {
+        mSearched = false;
+        // Rows the pass has been over may have been forgotten
+        mStepping = false;
+    }
+}
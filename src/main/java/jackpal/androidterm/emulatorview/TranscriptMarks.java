@@ -0,0 +1,290 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.Arrays;
+
+/**
+ * The marks a shell with shell integration leaves in a transcript: where
+ * each prompt, command and command's output starts and where the command
+ * finished (OSC 133 A, B, C and D), and the working directory it reports
+ * (OSC 7).
+ * <p>
+ * Each mark is at a column of a row, with the row by sequence number (see
+ * UnicodeTranscript.mRowSequence), so that marks don't move as the rows
+ * scroll.  The marks of each kind are kept in order of position, so the
+ * mark of a kind nearest a row is found by binary search.  Marks are added
+ * at the end, as the shell moves on down the transcript, and dropped from
+ * the start along with the rows they're on, so each kind's marks form a
+ * queue.
+ */
+final class TranscriptMarks {
+    /** The start of a prompt (OSC 133 ; A). */
+    static final int PROMPT = 0;
+    /** The start of the command, where the prompt ends (OSC 133 ; B). */
+    static final int COMMAND = 1;
+    /** The start of the command's output (OSC 133 ; C). */
+    static final int OUTPUT = 2;
+    /** The end of the command's output (OSC 133 ; D), with its exit status. */
+    static final int FINISHED = 3;
+    /** The working directory, as a file: URL (OSC 7). */
+    static final int DIRECTORY = 4;
+    /** The number of kinds of mark. */
+    static final int KINDS = 5;
+
+    /** The marks of one kind, in order. */
+    private static final class Queue {
+        /* The marks, from mStart up to mEnd */
+        long[] mSequences = new long[16];
+        int[] mColumns = new int[16];
+        /** The exit status or directory, for the marks which have one. */
+        String[] mValues = new String[16];
+        int mStart;
+        int mEnd;
+
+        void add(long sequence, int column, String value) {
+            int index = search(sequence, column);
+            if (index < mEnd && mSequences[index] == sequence && mColumns[index] == column) {
+                mValues[index] = value;
+                return;
+            }
+            if (mEnd == mSequences.length) {
+                makeRoom();
+                index -= mStart;
+                mStart = 0;
+            }
+            int count = mEnd - index;
+            System.arraycopy(mSequences, index, mSequences, index + 1, count);
+            System.arraycopy(mColumns, index, mColumns, index + 1, count);
+            System.arraycopy(mValues, index, mValues, index + 1, count);
+            mSequences[index] = sequence;
+            mColumns[index] = column;
+            mValues[index] = value;
+            ++mEnd;
+        }
+
+        /**
+         * Move the marks to the start of the arrays, doubling them if
+         * they're over half full.
+         */
+        private void makeRoom() {
+            int count = mEnd - mStart;
+            int length = mSequences.length;
+            if (count * 2 > length) {
+                length *= 2;
+            }
+            long[] sequences = length == mSequences.length ? mSequences : new long[length];
+            System.arraycopy(mSequences, mStart, sequences, 0, count);
+            mSequences = sequences;
+            int[] columns = length == mColumns.length ? mColumns : new int[length];
+            System.arraycopy(mColumns, mStart, columns, 0, count);
+            mColumns = columns;
+            String[] values = new String[length];
+            System.arraycopy(mValues, mStart, values, 0, count);
+            mValues = values;
+            mEnd = count;
+        }
+
+        /** Drop the marks from an index on. */
+        void truncate(int index) {
+            Arrays.fill(mValues, index, mEnd, null);
+            mEnd = index;
+        }
+
+        /** Drop the marks before an index. */
+        void dropBefore(int index) {
+            Arrays.fill(mValues, mStart, index, null);
+            mStart = index;
+            if (mStart == mEnd) {
+                mStart = mEnd = 0;
+            }
+        }
+
+        /** Get the index of the first mark at or after a place. */
+        int search(long sequence, int column) {
+            int low = mStart;
+            int high = mEnd;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                long midSequence = mSequences[mid];
+                if (midSequence < sequence
+                        || (midSequence == sequence && mColumns[mid] < column)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final Queue[] mQueues = new Queue[KINDS];
+
+    TranscriptMarks() {
+        for (int i = 0; i < KINDS; ++i) {
+            mQueues[i] = new Queue();
+        }
+    }
+
+    /**
+     * Add a mark.  A mark in the same place as one of the same kind replaces
+     * it.  A prompt starts the shell's output afresh, so a prompt mark drops
+     * any marks after its place, which the shell has drawn over (after
+     * clearing the screen, say).
+     */
+    void add(int kind, long sequence, int column, String value) {
+        if (kind == PROMPT) {
+            for (Queue queue : mQueues) {
+                queue.truncate(queue.search(sequence, column + 1));
+            }
+        }
+        mQueues[kind].add(sequence, column, value);
+    }
+
+    /** Drop the marks on the rows before a sequence number. */
+    void dropBefore(long sequence) {
+        for (Queue queue : mQueues) {
+            if (queue.mStart < queue.mEnd && queue.mSequences[queue.mStart] < sequence) {
+                queue.dropBefore(queue.search(sequence, 0));
+            }
+        }
+    }
+
+    /**
+     * Find the nearest mark of a kind on a row before a given row, or after
+     * it.
+     *
+     * @param forward Whether to look after the row rather than before it.
+     * @param position Gets the mark's column and the sequence number of its
+     *                 row.
+     * @return Whether there is one.
+     */
+    boolean find(int kind, long sequence, boolean forward, long[] position) {
+        Queue queue = mQueues[kind];
+        int index = forward ? queue.search(sequence + 1, 0) : queue.search(sequence, 0) - 1;
+        if (index < queue.mStart || index >= queue.mEnd) {
+            return false;
+        }
+        position[0] = queue.mColumns[index];
+        position[1] = queue.mSequences[index];
+        return true;
+    }
+
+    /**
+     * Get the value of the last mark of a kind on a row up to a given one,
+     * or null if there's none.
+     */
+    String getValue(int kind, long sequence) {
+        Queue queue = mQueues[kind];
+        int index = queue.search(sequence + 1, 0) - 1;
+        return index >= queue.mStart ? queue.mValues[index] : null;
+    }
+
+    /**
+     * Find the output of the last command to finish: from the last output
+     * mark with a finished or prompt mark at or after it, to the first such
+     * mark.
+     *
+     * @param range Gets the column and row sequence number of the output's
+     *              start, and of its end.
+     * @return Whether there is one.
+     */
+    boolean findLastOutput(long[] range) {
+        // Where the last command to finish ended
+        long[] end = {0, Long.MIN_VALUE};
+        boolean ended = findLast(FINISHED, end);
+        ended |= findLast(PROMPT, end);
+        if (!ended) {
+            return false;
+        }
+        // A command with no output finishes where its output starts
+        Queue output = mQueues[OUTPUT];
+        int index = output.search(end[1], (int) end[0] + 1) - 1;
+        if (index < output.mStart) {
+            return false;
+        }
+        range[0] = output.mColumns[index];
+        range[1] = output.mSequences[index];
+        // The output's own end
+        range[2] = Integer.MAX_VALUE;
+        range[3] = Long.MAX_VALUE;
+        findFirstAfter(FINISHED, range);
+        findFirstAfter(PROMPT, range);
+        return true;
+    }
+
+    /**
+     * Put the last mark of a kind in position, if it's after the place
+     * there.
+     *
+     * @return Whether it was.
+     */
+    private boolean findLast(int kind, long[] position) {
+        Queue queue = mQueues[kind];
+        int index = queue.mEnd - 1;
+        if (index < queue.mStart || !isBefore(position[1], (int) position[0],
+                queue.mSequences[index], queue.mColumns[index])) {
+            return false;
+        }
+        position[0] = queue.mColumns[index];
+        position[1] = queue.mSequences[index];
+        return true;
+    }
+
+    /**
+     * Find the first mark of a kind at or after the output start in
+     * range[0..1], and make it the end in range[2..3] if it comes before the
+     * end there.
+     */
+    private void findFirstAfter(int kind, long[] range) {
+        Queue queue = mQueues[kind];
+        int index = queue.search(range[1], (int) range[0]);
+        if (index < queue.mEnd && isBefore(queue.mSequences[index], queue.mColumns[index],
+                range[3], (int) range[2])) {
+            range[2] = queue.mColumns[index];
+            range[3] = queue.mSequences[index];
+        }
+    }
+
+    private static boolean isBefore(long sequence, int column,
+                                    long otherSequence, int otherColumn) {
+        return sequence < otherSequence
+                || (sequence == otherSequence && column < otherColumn);
+    }
+
+    /**
+     * Get the index of the first mark of a kind at or after a row, for
+     * copying them with the rows.
+     */
+    int indexOf(int kind, long sequence) {
+        return mQueues[kind].search(sequence, 0);
+    }
+
+    int getEnd(int kind) {
+        return mQueues[kind].mEnd;
+    }
+
+    long getSequence(int kind, int index) {
+        return mQueues[kind].mSequences[index];
+    }
+
+    int getColumn(int kind, int index) {
+        return mQueues[kind].mColumns[index];
+    }
+
+    String getValue(int kind, int index) {
+        return mQueues[kind].mValues[index];
+    }
+}
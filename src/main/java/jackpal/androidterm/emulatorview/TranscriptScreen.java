@@ -19,6 +19,7 @@ package jackpal.androidterm.emulatorview;
 import android.graphics.Canvas;
 import android.text.TextUtils;
 
+import java.io.File;
 import java.util.Arrays;
 
 /**
@@ -44,8 +45,49 @@ class TranscriptScreen {
      */
     private int mScreenRows;
 
+    /**
+     * The number of rows kept in a packed ScrollbackStore once they scroll
+     * out of the totalRows, or zero for none.
+     */
+    private int mScrollbackRows;
+
+    /**
+     * Whether the ScrollbackStore compresses its older rows.
+     */
+    private boolean mCompressScrollback;
+
+    /**
+     * Where the ScrollbackStore may spill its older rows, or null.
+     */
+    private File mSpillDirectory;
+
     private UnicodeTranscript mData;
 
+    /**
+     * The number of rows above the screen reflow() rewraps straight away.
+     */
+    private static final int REFLOW_MARGIN = 256;
+
+    /**
+     * The number of reflow()s in a row which may leave rows to rewrap later.
+     * Each one keeps a transcript around for them.
+     */
+    private static final int MAX_OLDER_TRANSCRIPTS = 8;
+
+    /**
+     * The 24-bit colors the styles of this screen may refer to, or null if
+     * they don't use any.
+     */
+    private TrueColorTable mTrueColors;
+
+    /*
+     * Scratch buffers for drawText, which runs for every row of every frame
+     * and so mustn't allocate: a row of spaces for drawing the selection and
+     * cursor on blank rows, and a copy of the IME text.
+     */
+    private char[] mBlankLine;
+    private char[] mImeChars;
+
     /**
      * Create a transcript screen.
      *
@@ -56,6 +98,45 @@ class TranscriptScreen {
      *                   screen.
      */
     public TranscriptScreen(int columns, int totalRows, int screenRows) {
+        this(columns, totalRows, screenRows, 0);
+    }
+
+    /**
+     * Create a transcript screen which keeps its oldest rows in a compact
+     * store.  The totalRows are kept as they are, ready for display and
+     * resizing; rows which scroll out of them are packed away, up to
+     * scrollbackRows of them.
+     *
+     * @param scrollbackRows the number of packed rows to keep, or zero to
+     *                       discard rows which scroll out of totalRows.
+     */
+    public TranscriptScreen(int columns, int totalRows, int screenRows, int scrollbackRows) {
+        this(columns, totalRows, screenRows, scrollbackRows, false);
+    }
+
+    /**
+     * Create a transcript screen which keeps its oldest rows in a compact
+     * store, and maybe compresses the older parts of that.
+     *
+     * @param compressScrollback whether to compress the older packed rows.
+     */
+    public TranscriptScreen(int columns, int totalRows, int screenRows, int scrollbackRows,
+                            boolean compressScrollback) {
+        this(columns, totalRows, screenRows, scrollbackRows, compressScrollback, null);
+    }
+
+    /**
+     * Create a transcript screen which keeps its oldest rows in a compact
+     * store, maybe compressed, and spills the oldest of those to a file.
+     *
+     * @param spillDirectory where to create the file, or null to keep all
+     *                       the rows in memory.
+     */
+    public TranscriptScreen(int columns, int totalRows, int screenRows, int scrollbackRows,
+                            boolean compressScrollback, File spillDirectory) {
+        mScrollbackRows = scrollbackRows;
+        mCompressScrollback = compressScrollback;
+        mSpillDirectory = spillDirectory;
         init(columns, totalRows, screenRows, TextStyle.kNormalTextStyle);
     }
 
@@ -64,14 +145,43 @@ class TranscriptScreen {
         mTotalRows = totalRows;
         mScreenRows = screenRows;
 
-        mData = new UnicodeTranscript(columns, totalRows, screenRows, style);
+        if (mData != null) {
+            // Resizing; the old rows have already been copied out
+            mData.closeScrollback();
+        }
+        ScrollbackStore scrollback = null;
+        if (mScrollbackRows > 0) {
+            scrollback = new ScrollbackStore(columns, mScrollbackRows, mCompressScrollback,
+                    mSpillDirectory);
+            // Rows reach the store by way of the transcript
+            if (totalRows <= screenRows) {
+                mTotalRows = totalRows = screenRows + 1;
+            }
+        }
+        mData = new UnicodeTranscript(columns, totalRows, screenRows, style, scrollback);
         mData.blockSet(0, 0, mColumns, mScreenRows, ' ', style);
+        ensureBlankLine();
+    }
+
+    private void ensureBlankLine() {
+        if (mBlankLine == null || mBlankLine.length < mColumns) {
+            mBlankLine = new char[mColumns];
+            Arrays.fill(mBlankLine, ' ');
+        }
     }
 
     public void setColorScheme(ColorScheme scheme) {
         mData.setDefaultStyle(TextStyle.kNormalTextStyle);
     }
 
+    void setTrueColors(TrueColorTable trueColors) {
+        mTrueColors = trueColors;
+    }
+
+    TrueColorTable getTrueColors() {
+        return mTrueColors;
+    }
+
     public void finish() {
         /*
          * The Android InputMethodService will sometimes hold a reference to
@@ -83,6 +193,16 @@ class TranscriptScreen {
         mData = null;
     }
 
+    /**
+     * Delete the file the transcript's oldest rows have been spilled to, if
+     * any.  Those rows are dropped; the rest of the transcript still works.
+     */
+    public void closeScrollback() {
+        if (mData != null) {
+            mData.closeScrollback();
+        }
+    }
+
     public void setLineWrap(int row) {
         mData.setLineWrap(row);
     }
@@ -102,6 +222,21 @@ class TranscriptScreen {
         mData.setChar(x, y, b, style);
     }
 
+    /**
+     * Store a run of printable ASCII characters into the screen, starting at
+     * location (x, y).  The run must fit within the row.
+     *
+     * @param x      X coordinate of the first character
+     * @param y      Y coordinate (also known as row)
+     * @param b      the array holding the characters
+     * @param offset the offset of the first character in the array
+     * @param count  the number of characters to store
+     * @param style  the style for all characters in the run
+     */
+    public void set(int x, int y, byte[] b, int offset, int count, int style) {
+        mData.setChars(x, y, b, offset, count, style);
+    }
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -168,6 +303,9 @@ class TranscriptScreen {
         StyleRow color;
         int cursorWidth = 1;
         try {
+            if (!ensureRow(row)) {
+                return;
+            }
             line = mData.getLine(row);
             color = mData.getLineColor(row);
         } catch (IllegalArgumentException | NullPointerException e) {
@@ -179,20 +317,18 @@ class TranscriptScreen {
             return;
         }
         int defaultStyle = mData.getDefaultStyle();
+        renderer.setTrueColors(mTrueColors);
 
         if (line == null) {
             // Line is blank.
+            char[] blank = mBlankLine;
             if (selx1 < selx2) {
                 // We need to draw a selection
-                char[] blank = new char[selx2 - selx1];
-                Arrays.fill(blank, ' ');
                 renderer.drawTextRun(canvas, x, y, selx1, selx2 - selx1,
                         blank, 0, 1, true, defaultStyle,
                         cx, 0, 1, 1, cursorMode);
             }
             if (cx != -1) {
-                char[] blank = new char[1];
-                Arrays.fill(blank, ' ');
                 // We need to draw the cursor
                 renderer.drawTextRun(canvas, x, y, cx, 1,
                         blank, 0, 1, true, defaultStyle,
@@ -216,6 +352,9 @@ class TranscriptScreen {
         int index = 0;
         int cursorIndex = 0;
         int cursorIncr = 0;
+        // The style run the current column is in
+        int style = 0;
+        int styleEnd = 0;
         while (column < columns && index < lineLen && line[index] != '\0') {
             int incr = 1;
             int width;
@@ -230,7 +369,10 @@ class TranscriptScreen {
                 column = nextColumn;
                 displayCharWidth = width;
             }
-            int style = color.get(column);
+            if (column >= styleEnd) {
+                style = color.get(column);
+                styleEnd = color.getRunEnd(column);
+            }
             boolean selectionStyle = false;
             if ((column >= selx1 || (displayCharWidth == 2 && column == selx1 - 1)) &&
                     column <= selx2) {
@@ -287,8 +429,12 @@ class TranscriptScreen {
             int imeLength = Math.min(columns, imeText.length());
             int imeOffset = imeText.length() - imeLength;
             int imePosition = Math.min(cx, columns - imeLength);
-            renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
-                    imeOffset, imeLength, true, TextStyle.encode(0x0f, 0x00, TextStyle.fxNormal),
+            if (mImeChars == null || mImeChars.length < imeLength) {
+                mImeChars = new char[columns];
+            }
+            imeText.getChars(imeOffset, imeOffset + imeLength, mImeChars, 0);
+            renderer.drawTextRun(canvas, x, y, imePosition, imeLength, mImeChars,
+                    0, imeLength, true, TextStyle.encode(0x0f, 0x00, TextStyle.fxNormal),
                     -1, 0, 0, 0, 0);
         }
     }
@@ -302,23 +448,113 @@ class TranscriptScreen {
         if (mData == null) {
             return 0;
         }
-        return mData.getActiveRows();
+        return mData.getEstimatedTranscriptRows() + mScreenRows;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getScreenRows() {
+        return mScreenRows;
     }
 
     /**
-     * Get the count of active transcript rows.
+     * Whether a screen row has changed since the last {@link #clearDirtyRows},
+     * other than by moving with a scroll.  Rows of a finished screen are
+     * always dirty.
+     *
+     * @param row the screen row.
+     */
+    public boolean isRowDirty(int row) {
+        return mData == null || mData.isRowDirty(row);
+    }
+
+    /**
+     * Get the number of lines the region from {@link #getScrollShiftTop} to
+     * {@link #getScrollShiftBottom} has scrolled up since the last
+     * {@link #clearDirtyRows}.  Rows in the region which aren't dirty show
+     * what was that many rows further down before.
+     *
+     * @return the number of lines scrolled, or 0 if there is no single region
+     * that scrolled.
+     */
+    public int getScrollShift() {
+        if (mData == null) {
+            return 0;
+        }
+        return mData.getScrollShift();
+    }
+
+    public int getScrollShiftTop() {
+        return mData.getScrollShiftTop();
+    }
+
+    public int getScrollShiftBottom() {
+        return mData.getScrollShiftBottom();
+    }
+
+    /**
+     * Forget about all changes so far, once they have been drawn.
+     */
+    public void clearDirtyRows() {
+        if (mData != null) {
+            mData.clearDirtyRows();
+        }
+    }
+
+    /**
+     * Copy the screen (but not the transcript) into another transcript screen
+     * of the same size.
+     *
+     * @param dst the screen to copy into.
+     */
+    public void copyScreenTo(TranscriptScreen dst) {
+        mData.copyScreenTo(dst.mData);
+        dst.mTrueColors = mTrueColors;
+    }
+
+    /**
+     * Get the count of active transcript rows.  Just after a reflow(), this
+     * is an estimate until the older rows are rewrapped.
      *
      * @return the count of active transcript rows.
      */
     public int getActiveTranscriptRows() {
-        return mData.getActiveTranscriptRows();
+        return mData.getEstimatedTranscriptRows();
+    }
+
+    /**
+     * Get an estimate of the memory used by the screen and transcript, in
+     * bytes.
+     */
+    public long getMemoryUsage() {
+        if (mData == null) {
+            return 0;
+        }
+        return mData.getMemoryUsage();
+    }
+
+    /**
+     * Drop the oldest transcript rows until at least the given number of
+     * bytes has been freed, or there is no transcript left.
+     *
+     * @return the number of bytes freed.
+     */
+    public long trimTranscript(long bytes) {
+        if (mData == null) {
+            return 0;
+        }
+        return mData.trimTranscript(bytes);
     }
 
     public String getTranscriptText() {
+        ensureRow(Integer.MIN_VALUE);
         return internalGetTranscriptText(null, 0, -mData.getActiveTranscriptRows(), mColumns + 1, mScreenRows);
     }
 
     public String getTranscriptText(GrowableIntArray colors) {
+        ensureRow(Integer.MIN_VALUE);
         return internalGetTranscriptText(colors, 0, -mData.getActiveTranscriptRows(), mColumns + 1, mScreenRows);
     }
 
@@ -332,6 +568,7 @@ class TranscriptScreen {
 
     private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int selY1, int selX2, int selY2) {
         StringBuilder builder = new StringBuilder();
+        ensureRow(selY1);
         UnicodeTranscript data = mData;
         int columns = mColumns;
         char[] line;
@@ -374,20 +611,23 @@ class TranscriptScreen {
             int lineLen = line.length;
             int i;
             int column = 0;
+            int style = defaultColor;
+            int styleEnd = rowColorBuffer != null ? 0 : Integer.MAX_VALUE;
             for (i = 0; i < lineLen; ++i) {
                 char c = line[i];
                 if (c == 0) {
                     break;
                 }
 
-                int style = defaultColor;
-                try {
-                    if (rowColorBuffer != null) {
+                if (column >= styleEnd) {
+                    try {
                         style = rowColorBuffer.get(column);
+                        styleEnd = rowColorBuffer.getRunEnd(column);
+                    } catch (ArrayIndexOutOfBoundsException e) {
+                        // XXX This probably shouldn't happen ...
+                        style = defaultColor;
+                        styleEnd = Integer.MAX_VALUE;
                     }
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    // XXX This probably shouldn't happen ...
-                    style = defaultColor;
                 }
 
                 if (c != ' ' || style != defaultColor) {
@@ -405,8 +645,13 @@ class TranscriptScreen {
             if (colors != null) {
                 if (rowColorBuffer != null) {
                     column = 0;
+                    styleEnd = 0;
                     for (int j = 0; j <= lastPrintingChar; ++j) {
-                        colors.append(rowColorBuffer.get(column));
+                        if (column >= styleEnd) {
+                            style = rowColorBuffer.get(column);
+                            styleEnd = rowColorBuffer.getRunEnd(column);
+                        }
+                        colors.append(style);
                         column += WcWidth.wcwidth(line, j);
                         if (Character.isHighSurrogate(line[j])) {
                             ++j;
@@ -432,6 +677,156 @@ class TranscriptScreen {
         return builder.toString();
     }
 
+    /**
+     * Find the occurrences of text in the transcript and on screen, oldest
+     * first.  Matches don't run from one line to the next, but they do run
+     * across rows which wrap.
+     *
+     * @param ignoreCase Whether to ignore the difference between upper and
+     *                   lower case.
+     * @param matches Gets four ints for each match: the column and row of
+     *                its first cell, and the column after its last cell and
+     *                that cell's row, as for getSelectedText().
+     * @return The number of matches.
+     */
+    public int findText(String text, boolean ignoreCase, GrowableIntArray matches) {
+        if (mData == null) {
+            return 0;
+        }
+        ensureRow(Integer.MIN_VALUE);
+        return mData.findText(text, ignoreCase, matches);
+    }
+
+    /**
+     * Take the next step of a search, adding its matches to matches as for
+     * findText().
+     *
+     * @return Whether there's more to search.
+     */
+    boolean continueSearch(TranscriptSearch search, int maxRows, GrowableIntArray matches) {
+        if (mData == null) {
+            return false;
+        }
+        ensureRow(Integer.MIN_VALUE);
+        return search.step(mData, maxRows, matches);
+    }
+
+    /**
+     * Format the next rows of an export.
+     *
+     * @return Whether there are more rows to format.
+     */
+    boolean continueExport(TranscriptWriter writer, int maxRows) {
+        if (mData == null) {
+            return false;
+        }
+        ensureRow(Integer.MIN_VALUE);
+        return writer.step(mData, maxRows);
+    }
+
+    /**
+     * Mark a place on the screen for shell integration.
+     *
+     * @param kind One of the kinds of TranscriptMarks.
+     * @param value The mark's exit status or directory, or null.
+     */
+    void addMark(int kind, int column, int row, String value) {
+        if (mData != null) {
+            mData.addMark(kind, column, row, value);
+        }
+    }
+
+    /**
+     * Find the nearest mark of a kind on a row above the given one, or below
+     * it.  Looking above may mean rewrapping the rows left by reflow(), if
+     * the rows already rewrapped don't have one.
+     *
+     * @param position Gets the mark's column and row.
+     * @return Whether there is one.
+     */
+    boolean findMark(int kind, int row, boolean forward, int[] position) {
+        if (mData == null) {
+            return false;
+        }
+        if (mData.findMark(kind, row, forward, position)) {
+            return true;
+        }
+        if (forward || !mData.hasOlderRows()) {
+            return false;
+        }
+        ensureRow(Integer.MIN_VALUE);
+        return mData.findMark(kind, row, false, position);
+    }
+
+    /**
+     * Find the output of the last command to finish.
+     *
+     * @param range Gets the column and row of the output's start, and the
+     *              column and row of the mark which ended it.
+     * @return Whether there is one.
+     */
+    boolean findLastOutput(int[] range) {
+        if (mData == null) {
+            return false;
+        }
+        if (mData.findLastOutput(range)) {
+            return true;
+        }
+        if (!mData.hasOlderRows()) {
+            return false;
+        }
+        ensureRow(Integer.MIN_VALUE);
+        return mData.findLastOutput(range);
+    }
+
+    /**
+     * Get the working directory the shell last reported on a row up to a
+     * given one, or null if it hasn't.
+     */
+    String getDirectory(int row) {
+        if (mData == null || !ensureRow(row)) {
+            return null;
+        }
+        return mData.getMarkValue(TranscriptMarks.DIRECTORY, row);
+    }
+
+    /**
+     * Find the links in the next rows a view has asked for.
+     *
+     * @return Whether there are more rows to read.
+     */
+    boolean continueLinks(TranscriptLinks links, int top, int bottom, int maxRows) {
+        if (mData == null) {
+            return false;
+        }
+        ensureRow(top);
+        return links.step(mData, mColumns, top, Math.min(bottom, mScreenRows), maxRows);
+    }
+
+    /**
+     * Get the URL of the link at a cell, if the links of its row have been
+     * found.
+     */
+    String getLinkURL(TranscriptLinks links, int column, int row) {
+        if (mData == null || !ensureRow(row)) {
+            return null;
+        }
+        return links.getURL(mData, column, row);
+    }
+
+    /**
+     * Forget the links of the rows which have changed since the last
+     * {@link #clearDirtyRows}.
+     *
+     * @param scrolled The number of times the emulator has scrolled since
+     *                 then.
+     */
+    void forgetChangedLinks(TranscriptLinks links, int scrolled) {
+        if (mData != null) {
+            links.forgetChangedRows(mData, mScreenRows, scrolled);
+        }
+    }
+
     public boolean fastResize(int columns, int rows, int[] cursor) {
         if (mData == null) {
             // XXX Trying to resize a finished TranscriptScreen?
@@ -440,6 +835,7 @@ class TranscriptScreen {
         if (mData.resize(columns, rows, cursor)) {
             mColumns = columns;
             mScreenRows = rows;
+            ensureBlankLine();
             return true;
         } else {
             return false;
@@ -454,6 +850,71 @@ class TranscriptScreen {
         init(columns, mTotalRows, rows, style);
     }
 
+    /**
+     * Resize the screen, rewrapping the transcript's lines to the new
+     * number of columns.  Use when fastResize() can't do the job.
+     * <p>
+     * Only the lines on screen and the REFLOW_MARGIN rows above them are
+     * rewrapped straight away.  The rest are left at their old width until
+     * something asks for them, so that resizing doesn't take longer the
+     * more transcript there is; until then, the number of transcript rows
+     * is an estimate.
+     *
+     * @param cursor The cursor's column and row, updated to where it ends up,
+     *               or null to keep every screen row rather than dropping the
+     *               blank rows below the cursor.
+     */
+    public void reflow(int columns, int rows, int style, int[] cursor) {
+        UnicodeTranscript old = mData;
+        if (old == null) {
+            // XXX Trying to resize a finished TranscriptScreen?
+            return;
+        }
+        // Keep the old rows, scrollback store and all, until they're copied
+        mData = null;
+        resize(columns, rows, style);
+
+        int oldestRow = -old.getActiveTranscriptRows();
+        int firstRow = old.findReflowStart(columns, rows + REFLOW_MARGIN, cursor);
+        if (old.hasOlderRows() && (old.getOlderTranscripts() >= MAX_OLDER_TRANSCRIPTS
+                || firstRow < oldestRow
+                && old.findReflowStart(columns, rows, cursor) < oldestRow)) {
+            // The rows there are can't fill the screen without the older
+            // ones, or there have been too many resizes since those were
+            // last needed; rewrap everything
+            old.reflowAllInto(mData, cursor, style);
+        } else {
+            old.reflowInto(mData, Math.max(firstRow, oldestRow), cursor, style);
+        }
+    }
+
+    /**
+     * Rewrap the rows reflow() left at their old width, now that they're
+     * wanted.  The rows already rewrapped stay where they are.
+     */
+    private void rewrapOlderRows() {
+        UnicodeTranscript old = mData;
+        mData = null;
+        int style = old.getDefaultStyle();
+        init(mColumns, mTotalRows, mScreenRows, style);
+        old.reflowAllInto(mData, null, style);
+    }
+
+    /**
+     * Make sure a row is there to be read, rewrapping the older rows if it's
+     * one of them (or if row is Integer.MIN_VALUE).
+     *
+     * @return false if the row is above the transcript, as rows counted in
+     *         the estimate may turn out to be once the older rows have been
+     *         rewrapped; such rows read as blank.
+     */
+    private boolean ensureRow(int row) {
+        if (mData.hasOlderRows() && row < -mData.getActiveTranscriptRows()) {
+            rewrapOlderRows();
+        }
+        return row >= -mData.getActiveTranscriptRows();
+    }
+
     /**
      * Return the UnicodeTranscript line at this row index.
      *
@@ -464,6 +925,9 @@ class TranscriptScreen {
         if (mData == null) {
             return null;
         }
+        if (!ensureRow(row)) {
+            return null;
+        }
         return mData.getLine(row);
     }
 
@@ -474,7 +938,7 @@ class TranscriptScreen {
      * @return The line wrap status of the row provided
      */
     boolean getScriptLineWrap(int row) {
-        return mData.getLineWrap(row);
+        return ensureRow(row) && mData.getLineWrap(row);
     }
 
     /**
@@ -483,7 +947,7 @@ class TranscriptScreen {
      */
     boolean isBasicLine(int row) {
         if (mData != null) {
-            return mData.isBasicLine(row);
+            return !ensureRow(row) || mData.isBasicLine(row);
         } else {
             return true;
         }
@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A search of a session's screen and scrollback buffer for a regular
+ * expression, which runs on a background thread and reports the matches as
+ * it finds them.  Start one with {@link TermSession#searchTranscript}.
+ * <p>
+ * The expression is run over each line (a row and the rows it wraps onto)
+ * in turn, oldest first, straight from the transcript's rows.  The search
+ * takes the emulator's lock a step of {@link #STEP_ROWS} rows at a time, so
+ * that output keeps flowing while it runs, and it covers the rows there
+ * were when it started.  Rows which scroll out of the scrollback buffer
+ * before it reaches them are missed.
+ */
+public final class TranscriptSearch {
+    /** Receives the results of a search. */
+    public interface Listener {
+        /**
+         * Called for each non-empty match, on the search thread, with the
+         * session's emulator locked; the position is only good until the
+         * emulator next runs, so use it (or post it on) straight away.
+         *
+         * @param startColumn The column of the match's first cell.
+         * @param startRow The row of that cell, counting from the top of the
+         *                 screen, so that scrollback rows are negative.
+         * @param endColumn The column after the match's last cell.
+         * @param endRow The row of that cell.
+         */
+        void onMatch(int startColumn, int startRow, int endColumn, int endRow);
+
+        /**
+         * Called on the search thread once the search is over, unless it
+         * was cancelled first.
+         *
+         * @param complete false if the search had to stop early, because the
+         *                 transcript was rewrapped to a new width, or never
+         *                 started, because the session had finished.
+         */
+        void onSearchFinished(boolean complete);
+    }
+
+    /** The number of rows each step reads, with the emulator locked. */
+    private static final int STEP_ROWS = 1000;
+
+    private static final ExecutorService sSearcher = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TranscriptSearch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Matcher mMatcher;
+    private final Listener mListener;
+    private final Object mLock;
+    private final TranscriptScreen mScreen;
+    /** Only changed with mLock held. */
+    private volatile boolean mCancelled;
+
+    /* Where the search is up to, in the transcript it started on */
+    private UnicodeTranscript mTranscript;
+    private long mNextRow;
+    private long mEndRow;
+
+    TranscriptSearch(Pattern pattern, Listener listener, Object lock, TranscriptScreen screen) {
+        mMatcher = pattern.matcher("");
+        mListener = listener;
+        mLock = lock;
+        mScreen = screen;
+    }
+
+    void start() {
+        sSearcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                search();
+            }
+        });
+    }
+
+    /**
+     * Stop the search.  Once this returns, the listener won't hear from it
+     * again.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mCancelled = true;
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private void search() {
+        GrowableIntArray matches = new GrowableIntArray(64);
+        boolean more = mScreen != null;
+        boolean complete = false;
+        while (more) {
+            synchronized (mLock) {
+                if (mCancelled) {
+                    return;
+                }
+                matches.clear();
+                more = mScreen.continueSearch(this, STEP_ROWS, matches);
+                // Only once a step has run is there a search to be complete
+                complete = !more && mTranscript != null && mNextRow >= mEndRow;
+                for (int i = 0; i < matches.length(); i += 4) {
+                    mListener.onMatch(matches.at(i), matches.at(i + 1),
+                            matches.at(i + 2), matches.at(i + 3));
+                    if (mCancelled) {
+                        return;
+                    }
+                }
+            }
+        }
+        mTranscript = null;
+        if (!mCancelled) {
+            mListener.onSearchFinished(complete);
+        }
+    }
+
+    /**
+     * Take a step through the transcript, for TranscriptScreen.
+     *
+     * @return Whether there's more to search.
+     */
+    boolean step(UnicodeTranscript transcript, int maxRows, GrowableIntArray matches) {
+        if (transcript != mTranscript) {
+            if (mTranscript != null) {
+                // The rows have been rewrapped, so where the search was up
+                // to is lost
+                return false;
+            }
+            mTranscript = transcript;
+            mNextRow = Long.MIN_VALUE;
+            mEndRow = transcript.getEndSequence();
+        }
+        mNextRow = transcript.findPattern(mMatcher, mNextRow, mEndRow, maxRows, matches);
+        return mNextRow < mEndRow;
+    }
+}
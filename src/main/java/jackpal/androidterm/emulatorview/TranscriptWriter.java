@@ -0,0 +1,366 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes out a transcript's rows, oldest first, as plain text, as text with
+ * ANSI escape sequences for the styles, or as HTML.
+ * <p>
+ * The rows are formatted a step of {@link #STEP_ROWS} at a time, with the
+ * emulator locked, and each step's text written out before the next, so
+ * neither the memory used nor the time the emulator is held up depends on
+ * the length of the transcript.  The export covers the rows there were when
+ * it started, as TranscriptSearch does.  Rows are laid out as
+ * TranscriptScreen.getTranscriptText() lays them out: trailing blanks
+ * dropped, and rows which wrap joined to the next.
+ */
+final class TranscriptWriter {
+    /** The number of rows each step formats, with the emulator locked. */
+    private static final int STEP_ROWS = 500;
+
+    private final int mFormat;
+    private final ColorScheme mColorScheme;
+    private final TrueColorTable mTrueColors;
+    private final StringBuilder mChunk = new StringBuilder();
+
+    /* Where the export is up to, in the transcript it started on */
+    private UnicodeTranscript mTranscript;
+    private long mNextRow;
+    private long mEndRow;
+    private boolean mComplete = true;
+
+    /** The transcript's default style, in which trailing blanks are dropped. */
+    private int mDefaultStyle = TextStyle.kNormalTextStyle;
+    /** The style of the text written last, or -1 if it's been reset. */
+    private int mStyle = -1;
+    /** The style of each char of the row being formatted. */
+    private int[] mStyles = new int[0];
+
+    /**
+     * @param format One of TermSession's TRANSCRIPT_ formats.
+     */
+    TranscriptWriter(int format, ColorScheme scheme, TrueColorTable trueColors) {
+        if (format != TermSession.TRANSCRIPT_PLAIN && format != TermSession.TRANSCRIPT_ANSI
+                && format != TermSession.TRANSCRIPT_HTML) {
+            throw new IllegalArgumentException("Unknown transcript format " + format);
+        }
+        mFormat = format;
+        mColorScheme = scheme;
+        mTrueColors = trueColors;
+    }
+
+    /**
+     * Write the screen's transcript to out, taking lock for each step.
+     *
+     * @return false if the export stopped short, because the transcript was
+     *         rewrapped to a new width before it was done.
+     */
+    boolean write(Writer out, Object lock, TranscriptScreen screen) throws IOException {
+        if (mFormat == TermSession.TRANSCRIPT_HTML) {
+            mChunk.append("<pre style=\"color:");
+            appendHtmlColor(mColorScheme.getForeColor());
+            mChunk.append(";background-color:");
+            appendHtmlColor(mColorScheme.getBackColor());
+            mChunk.append("\">");
+        }
+        boolean more = screen != null;
+        while (more) {
+            synchronized (lock) {
+                more = screen.continueExport(this, STEP_ROWS);
+            }
+            out.append(mChunk);
+            mChunk.setLength(0);
+        }
+        endStyle();
+        if (mFormat == TermSession.TRANSCRIPT_HTML) {
+            mChunk.append("</pre>\n");
+        }
+        out.append(mChunk);
+        mChunk.setLength(0);
+        out.flush();
+        mTranscript = null;
+        return mComplete;
+    }
+
+    /**
+     * Format the next rows, for TranscriptScreen.
+     *
+     * @return Whether there are more rows to format.
+     */
+    boolean step(UnicodeTranscript transcript, int maxRows) {
+        if (transcript != mTranscript) {
+            if (mTranscript != null) {
+                // The rows have been rewrapped, so where the export was up
+                // to is lost
+                mComplete = false;
+                return false;
+            }
+            mTranscript = transcript;
+            mNextRow = Long.MIN_VALUE;
+            mEndRow = transcript.getEndSequence();
+        }
+        long top = transcript.getRowSequence(0);
+        int firstRow = -transcript.getActiveTranscriptRows();
+        int row = mNextRow <= top + firstRow ? firstRow : (int) (mNextRow - top);
+        int lastRow = (int) (Math.min(mEndRow, transcript.getEndSequence()) - top) - 1;
+        int stopRow = row + maxRows;
+        mDefaultStyle = transcript.getDefaultStyle();
+        for (; row <= lastRow && row < stopRow; ++row) {
+            boolean lineWrap = transcript.getLineWrap(row);
+            appendRow(transcript.getLine(row), transcript.getLineColor(row), lineWrap);
+            if (!lineWrap && row < lastRow) {
+                endStyle();
+                mChunk.append('\n');
+            }
+        }
+        mNextRow = row > lastRow ? mEndRow : top + row;
+        return mNextRow < mEndRow;
+    }
+
+    private void appendRow(char[] line, StyleRow color, boolean lineWrap) {
+        if (line == null) {
+            return;
+        }
+        // Find where the row's text ends, and the style of each char, as
+        // getTranscriptText() does; plain text ignores the styles
+        int defaultStyle = mDefaultStyle;
+        boolean styled = mFormat != TermSession.TRANSCRIPT_PLAIN;
+        int[] styles = mStyles;
+        if (styled && styles.length < line.length) {
+            styles = mStyles = new int[line.length];
+        }
+        int lastPrintingChar = -1;
+        int length = 0;
+        int column = 0;
+        int style = defaultStyle;
+        int styleEnd = styled && color != null ? 0 : Integer.MAX_VALUE;
+        for (; length < line.length && line[length] != 0; ++length) {
+            char c = line[length];
+            if (styled) {
+                if (column >= styleEnd) {
+                    try {
+                        style = color.get(column);
+                        styleEnd = color.getRunEnd(column);
+                    } catch (ArrayIndexOutOfBoundsException e) {
+                        // Past the end of the row, after a wide character
+                        // which didn't fit
+                        style = defaultStyle;
+                        styleEnd = Integer.MAX_VALUE;
+                    }
+                }
+                styles[length] = style;
+                if (!Character.isLowSurrogate(c)) {
+                    column += WcWidth.wcwidth(line, length);
+                }
+            }
+            if (c != ' ' || style != defaultStyle) {
+                lastPrintingChar = length;
+            }
+        }
+        if (lineWrap && lastPrintingChar > -1) {
+            // If the line was wrapped, we shouldn't lose trailing space
+            lastPrintingChar = length - 1;
+        }
+
+        if (!styled) {
+            mChunk.append(line, 0, lastPrintingChar + 1);
+            return;
+        }
+        int i = 0;
+        while (i <= lastPrintingChar) {
+            // A run of chars in the same style
+            style = styles[i];
+            int end = i + 1;
+            while (end <= lastPrintingChar && styles[end] == style) {
+                ++end;
+            }
+            setStyle(style);
+            appendText(line, i, end);
+            i = end;
+        }
+    }
+
+    private void appendText(char[] text, int start, int end) {
+        StringBuilder chunk = mChunk;
+        if (mFormat != TermSession.TRANSCRIPT_HTML) {
+            chunk.append(text, start, end - start);
+            return;
+        }
+        for (int i = start; i < end; ++i) {
+            char c = text[i];
+            switch (c) {
+            case '&':
+                chunk.append("&amp;");
+                break;
+            case '<':
+                chunk.append("&lt;");
+                break;
+            case '>':
+                chunk.append("&gt;");
+                break;
+            default:
+                chunk.append(c);
+            }
+        }
+    }
+
+    /** Switch to writing text in a style. */
+    private void setStyle(int style) {
+        if (style == mStyle) {
+            return;
+        }
+        if (mStyle == -1 && style == TextStyle.kNormalTextStyle) {
+            // Nothing to switch from
+            mStyle = style;
+            return;
+        }
+        endStyle();
+        mStyle = style;
+        if (style == TextStyle.kNormalTextStyle) {
+            return;
+        }
+        if (mFormat == TermSession.TRANSCRIPT_ANSI) {
+            appendSgr(style);
+        } else {
+            appendHtmlSpan(style);
+        }
+    }
+
+    /**
+     * Go back to the default style, so that a line doesn't leave its style
+     * on whatever comes after it.
+     */
+    private void endStyle() {
+        int style = mStyle;
+        mStyle = -1;
+        if (style == -1 || style == TextStyle.kNormalTextStyle) {
+            return;
+        }
+        if (mFormat == TermSession.TRANSCRIPT_ANSI) {
+            mChunk.append("\033[0m");
+        } else if (mFormat == TermSession.TRANSCRIPT_HTML) {
+            mChunk.append("</span>");
+        }
+    }
+
+    /** Append the SGR escape sequence which sets a style from scratch. */
+    private void appendSgr(int style) {
+        StringBuilder chunk = mChunk;
+        chunk.append("\033[0");
+        int effect = TextStyle.decodeEffect(style);
+        if ((effect & TextStyle.fxBold) != 0) {
+            chunk.append(";1");
+        }
+        if ((effect & TextStyle.fxItalic) != 0) {
+            chunk.append(";3");
+        }
+        if ((effect & TextStyle.fxUnderline) != 0) {
+            chunk.append(";4");
+        }
+        if ((effect & TextStyle.fxBlink) != 0) {
+            chunk.append(";5");
+        }
+        if ((effect & TextStyle.fxInverse) != 0) {
+            chunk.append(";7");
+        }
+        if ((effect & TextStyle.fxInvisible) != 0) {
+            chunk.append(";8");
+        }
+        appendSgrColor(TextStyle.decodeForeColor(style), 30, TextStyle.ciForeground);
+        appendSgrColor(TextStyle.decodeBackColor(style), 40, TextStyle.ciBackground);
+        chunk.append('m');
+    }
+
+    /**
+     * @param base 30 for a foreground color, 40 for a background one.
+     * @param defaultColor The color index which is the default color.
+     */
+    private void appendSgrColor(int color, int base, int defaultColor) {
+        StringBuilder chunk = mChunk;
+        if (color == defaultColor) {
+            return;
+        } else if (color < 8) {
+            chunk.append(';').append(base + color);
+        } else if (color < 16) {
+            chunk.append(';').append(base + 60 + color - 8);
+        } else if (color < 256) {
+            chunk.append(';').append(base + 8).append(";5;").append(color);
+        } else if (color >= TextStyle.ciTrueColor && mTrueColors != null) {
+            int rgb = mTrueColors.getColor(color);
+            chunk.append(';').append(base + 8).append(";2;")
+                    .append((rgb >> 16) & 0xff).append(';')
+                    .append((rgb >> 8) & 0xff).append(';')
+                    .append(rgb & 0xff);
+        }
+    }
+
+    /** Open a span with a style's colors and effects, as the renderer draws them. */
+    private void appendHtmlSpan(int style) {
+        int foreColor = TextStyle.decodeForeColor(style);
+        int backColor = TextStyle.decodeBackColor(style);
+        int effect = TextStyle.decodeEffect(style);
+        if ((effect & (TextStyle.fxInverse | TextStyle.fxItalic)) != 0) {
+            int temp = foreColor;
+            foreColor = backColor;
+            backColor = temp;
+        }
+        if ((effect & TextStyle.fxInvisible) != 0) {
+            foreColor = backColor;
+        }
+        StringBuilder chunk = mChunk;
+        chunk.append("<span style=\"color:");
+        appendHtmlColor(getColor(foreColor));
+        chunk.append(";background-color:");
+        appendHtmlColor(getColor(backColor));
+        if ((effect & TextStyle.fxBold) != 0) {
+            chunk.append(";font-weight:bold");
+        }
+        if ((effect & TextStyle.fxUnderline) != 0) {
+            chunk.append(";text-decoration:underline");
+        }
+        chunk.append("\">");
+    }
+
+    /** Get the ARGB color for a color index, as PaintRenderer.getColor() does. */
+    private int getColor(int colorIndex) {
+        switch (colorIndex) {
+        case TextStyle.ciForeground:
+        case TextStyle.ciCursorForeground:
+            return mColorScheme.getForeColor();
+        case TextStyle.ciBackground:
+        case TextStyle.ciCursorBackground:
+            return mColorScheme.getBackColor();
+        }
+        if (colorIndex < PaintRenderer.sXterm256Paint.length) {
+            return PaintRenderer.sXterm256Paint[colorIndex];
+        }
+        if (mTrueColors == null) {
+            return mColorScheme.getForeColor();
+        }
+        return mTrueColors.getColor(colorIndex);
+    }
+
+    private void appendHtmlColor(int color) {
+        mChunk.append('#');
+        String hex = Integer.toHexString(color & 0xffffff);
+        for (int i = hex.length(); i < 6; ++i) {
+            mChunk.append('0');
+        }
+        mChunk.append(hex);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * The 24-bit colors a session has been asked to use, so that a style can
+ * refer to one by a color index like any other.
+ * <p>
+ * Each distinct color gets the next free index from TextStyle.ciTrueColor
+ * up, and keeps it for the life of the session, as rows using it may sit in
+ * the transcript for a long time.  Once the indices run out, further colors
+ * are drawn with the nearest color of the xterm 256 color palette instead.
+ * <p>
+ * Colors are only added by the thread running the emulator, but may be
+ * looked up by a renderer on any thread which has seen a style using them.
+ */
+final class TrueColorTable {
+    private static final int CAPACITY = TextStyle.ciMaxColor + 1 - TextStyle.ciTrueColor;
+
+    /** The colors, as 0xRRGGBB; replaced rather than modified in place when grown. */
+    private volatile int[] mColors = new int[16];
+    private int mSize;
+    /**
+     * Open addressing hash table from color to index in mColors + 1, with 0
+     * marking an empty slot.  Sized to stay under half full.
+     */
+    private final int[] mTable = new int[4 * Integer.highestOneBit(CAPACITY)];
+
+    /**
+     * Get the color index for a 24-bit color.
+     *
+     * @param rgb The color, as 0xRRGGBB.
+     */
+    int getColorIndex(int rgb) {
+        int[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash(rgb) & mask;
+        for (int entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask) {
+            if (mColors[entry - 1] == rgb) {
+                return TextStyle.ciTrueColor + entry - 1;
+            }
+        }
+        int size = mSize;
+        if (size == CAPACITY) {
+            return nearestXtermColor(rgb);
+        }
+        int[] colors = mColors;
+        if (size == colors.length) {
+            int[] grown = new int[Math.min(2 * size, CAPACITY)];
+            System.arraycopy(colors, 0, grown, 0, size);
+            colors = grown;
+        }
+        colors[size] = rgb;
+        // Publishes the new color along with any growth
+        mColors = colors;
+        mSize = size + 1;
+        table[slot] = size + 1;
+        return TextStyle.ciTrueColor + size;
+    }
+
+    /**
+     * @param colorIndex A color index from TextStyle.ciTrueColor up.
+     * @return The color, as an opaque ARGB color.
+     */
+    int getColor(int colorIndex) {
+        int[] colors = mColors;
+        int index = colorIndex - TextStyle.ciTrueColor;
+        if (index < 0 || index >= colors.length) {
+            return 0xff000000;
+        }
+        return 0xff000000 | colors[index];
+    }
+
+    private static int hash(int rgb) {
+        int h = rgb * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /** The levels of each channel in the xterm 6x6x6 color cube. */
+    private static final int[] CUBE_LEVELS = {0, 0x5f, 0x87, 0xaf, 0xd7, 0xff};
+
+    /**
+     * Find the closest color in the color cube and the gray ramp of the
+     * xterm 256 color palette.
+     */
+    static int nearestXtermColor(int rgb) {
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+        int ri = nearestCubeLevel(r);
+        int gi = nearestCubeLevel(g);
+        int bi = nearestCubeLevel(b);
+        int cubeDistance = distance(r, g, b,
+                CUBE_LEVELS[ri], CUBE_LEVELS[gi], CUBE_LEVELS[bi]);
+
+        // The gray ramp runs from 0x08 to 0xee in steps of 10
+        int average = (r + g + b) / 3;
+        int grayIndex = Math.max(0, Math.min(23, (average - 3) / 10));
+        int gray = 8 + 10 * grayIndex;
+        int grayDistance = distance(r, g, b, gray, gray, gray);
+
+        if (grayDistance < cubeDistance) {
+            return 232 + grayIndex;
+        }
+        return 16 + 36 * ri + 6 * gi + bi;
+    }
+
+    private static int nearestCubeLevel(int value) {
+        if (value < 48) {
+            return 0;
+        }
+        if (value < 115) {
+            return 1;
+        }
+        return (value - 35) / 40;
+    }
+
+    private static int distance(int r1, int g1, int b1, int r2, int g2, int b2) {
+        int dr = r1 - r2;
+        int dg = g1 - g2;
+        int db = b1 - b2;
+        return dr * dr + dg * dg + db * db;
+    }
+}
@@ -18,6 +18,10 @@ package jackpal.androidterm.emulatorview;
 
 import android.util.Log;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+
 /**
  * A backing store for a TranscriptScreen.
  *
@@ -38,6 +42,11 @@ import android.util.Log;
  * requires a "full" row.  "Basic" rows are converted to "full" rows when
  * needed.  There is no conversion in the other direction -- a "full" row
  * stays that way even if it contains only regular-width BMP characters.
+ *
+ * Optionally, rows which scroll out of the circular buffer move into a
+ * ScrollbackStore instead of being discarded.  They then sit above the rows
+ * in the buffer, and can still be read (but not modified) through the same
+ * row numbers.
  */
 class UnicodeTranscript {
     private static final String TAG = "UnicodeTranscript";
@@ -53,23 +62,103 @@ class UnicodeTranscript {
 
     private int mScreenFirstRow = 0;
 
+    /** Where rows go once they leave the circular buffer; may be null. */
+    private final ScrollbackStore mScrollback;
+
+    /*
+     * Rows older than any here which haven't been rewrapped to this
+     * transcript's width since the columns changed: those of mOlder above
+     * row mOlderEnd, preceded by mOlder's own older rows, if any.  See
+     * reflowInto().  mOlderRowEstimate is a guess at how many rows they'll
+     * make once rewrapped.
+     */
+    private UnicodeTranscript mOlder;
+    private int mOlderEnd;
+    private int mOlderRowEstimate;
+
+    private static final int NO_CURSOR = Integer.MIN_VALUE;
+
+    /** The styles of the expanded StyleRows in the circular buffer. */
+    private final StylePalette mPalette = new StylePalette();
+    private int mScrollsSinceCompaction;
+
+    /*
+     * Lines of rows which have fallen off the end of the buffer, for the
+     * next rows written to reuse, so that steady scrolling doesn't allocate.
+     * (Their StyleRows are reused straight away, for the blank rows which
+     * scroll in.)  All have mColumns columns.
+     */
+    private static final int FREE_LINES = 8;
+    private final char[][] mFreeBasicLines = new char[FREE_LINES][];
+    private int mFreeBasicLineCount;
+    private final FullUnicodeLine[] mFreeFullLines = new FullUnicodeLine[FREE_LINES];
+    private int mFreeFullLineCount;
+
     private char[] tmpLine;
     private StyleRow tmpColor;
 
+    /*
+     * The screen rows changed since the last clearDirtyRows(), as a bitset
+     * indexed by screen row.  Scrolling a region doesn't dirty its rows:
+     * it's recorded as a shift of the region instead (see getScrollShift()),
+     * and the dirty bits inside the region move up along with the rows.
+     */
+    private long[] mDirtyRows;
+    private int mShiftTop;
+    private int mShiftBottom;
+    private int mShiftCount;
+
+    /*
+     * The sequence number of the top screen row: the number of rows which
+     * have scrolled into the transcript, less any which resize() has brought
+     * back.  The index of the transcript's text, built by the first
+     * findText(), numbers rows this way, so that they keep their numbers as
+     * the transcript scrolls.
+     */
+    private long mRowSequence;
+    private TranscriptIndex mIndex;
+    private LineText mLineText;
+    /** The shell integration marks on the rows; null until there are some. */
+    private TranscriptMarks mMarks;
+
     UnicodeTranscript(int columns, int totalRows, int screenRows, int defaultStyle) {
+        this(columns, totalRows, screenRows, defaultStyle, null);
+    }
+
+    /**
+     * @param scrollback A store for the rows which scroll out of the
+     *                   totalRows kept in the circular buffer, or null to
+     *                   discard them.  It must have the same number of
+     *                   columns, and totalRows must leave room for at least
+     *                   one row of transcript.
+     */
+    UnicodeTranscript(int columns, int totalRows, int screenRows, int defaultStyle,
+                      ScrollbackStore scrollback) {
+        if (scrollback != null && (scrollback.getColumns() != columns
+                || totalRows <= screenRows)) {
+            Log.e(TAG, "illegal arguments! " + columns + " " + totalRows + " " + screenRows + " " + scrollback.getColumns());
+            throw new IllegalArgumentException();
+        }
+        mScrollback = scrollback;
         mColumns = columns;
         mTotalRows = totalRows;
         mScreenRows = screenRows;
         mLines = new Object[totalRows];
         mColor = new StyleRow[totalRows];
         mLineWrap = new boolean[totalRows];
-        tmpColor = new StyleRow(defaultStyle, mColumns);
+        tmpColor = new StyleRow(defaultStyle, mColumns, mPalette);
 
         mDefaultStyle = defaultStyle;
+
+        // Rows can only be dirtied while on screen, and the screen can grow
+        // to totalRows
+        mDirtyRows = new long[(totalRows + 63) >> 6];
+        markAllDirty();
     }
 
     public void setDefaultStyle(int defaultStyle) {
         mDefaultStyle = defaultStyle;
+        markAllDirty();
     }
 
     public int getDefaultStyle() {
@@ -77,11 +166,242 @@ class UnicodeTranscript {
     }
 
     public int getActiveTranscriptRows() {
-        return mActiveTranscriptRows;
+        return mActiveTranscriptRows + getScrollbackRows();
     }
 
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    private int getScrollbackRows() {
+        return mScrollback == null ? 0 : mScrollback.getRowCount();
+    }
+
+    /**
+     * Get the number of transcript rows, counting an estimate of the rows
+     * left by reflowInto() which haven't been rewrapped yet.
+     */
+    int getEstimatedTranscriptRows() {
+        int rows = getActiveTranscriptRows();
+        if (mOlder == null) {
+            return rows;
+        }
+        int maxRows = mTotalRows - mScreenRows;
+        if (mScrollback != null) {
+            maxRows += mScrollback.getMaxRows();
+        }
+        return (int) Math.min((long) rows + mOlderRowEstimate, maxRows);
+    }
+
+    /**
+     * Whether there are rows left by reflowInto() which haven't been
+     * rewrapped yet; see reflowAllInto().
+     */
+    boolean hasOlderRows() {
+        return mOlder != null;
+    }
+
+    /**
+     * Get the number of transcripts holding rows left by reflowInto().
+     */
+    int getOlderTranscripts() {
+        int count = 0;
+        for (UnicodeTranscript older = mOlder; older != null; older = older.mOlder) {
+            ++count;
+        }
+        return count;
+    }
+
+    private void setOlder(UnicodeTranscript older, int olderEnd) {
+        mOlder = older;
+        mOlderEnd = olderEnd;
+        long estimate = 0;
+        for (UnicodeTranscript t = this; t.mOlder != null; t = t.mOlder) {
+            long rows = t.mOlderEnd + t.mOlder.getActiveTranscriptRows();
+            estimate += (rows * t.mOlder.mColumns + mColumns - 1) / mColumns;
+        }
+        mOlderRowEstimate = (int) Math.min(estimate, Integer.MAX_VALUE);
+    }
+
+    private void dropOlder() {
+        for (UnicodeTranscript older = mOlder; older != null; older = older.mOlder) {
+            if (older.mScrollback != null) {
+                older.mScrollback.close();
+            }
+        }
+        mOlder = null;
+        mOlderRowEstimate = 0;
+    }
+
+    ScrollbackStore getScrollback() {
+        return mScrollback;
+    }
+
+    /**
+     * Delete the scrollback store's spill file, if it has one, dropping the
+     * rows in it, along with any rows still to be rewrapped.
+     */
+    public void closeScrollback() {
+        if (mScrollback != null) {
+            mScrollback.close();
+        }
+        dropOlder();
+    }
+
+    /**
+     * If a row is in the scrollback store rather than the circular buffer,
+     * load it there and return true.
+     */
+    private boolean loadStoredRow(int extRow) {
+        if (extRow >= -mActiveTranscriptRows) {
+            return false;
+        }
+        ScrollbackStore scrollback = mScrollback;
+        scrollback.load(scrollback.getRowCount() + mActiveTranscriptRows + extRow);
+        return true;
+    }
+
+    /**
+     * Move the oldest row in the circular buffer, which is about to be
+     * overwritten, into the scrollback store.  Only called when the
+     * transcript part of the buffer is full.
+     */
+    private void spillOldestRow(int internalRow) {
+        mScrollback.append(mLines[internalRow], mColor[internalRow], mLineWrap[internalRow]);
+    }
+
+    /**
+     * An estimate of the memory used by the rows, in bytes, including those
+     * in the scrollback store and those still to be rewrapped.
+     */
+    public long getMemoryUsage() {
+        long usage = 0;
+        for (UnicodeTranscript t = this; t != null; t = t.mOlder) {
+            usage += t.getOwnMemoryUsage();
+        }
+        return usage;
+    }
+
+    private long getOwnMemoryUsage() {
+        // Two references and a boolean for each row of the circular buffer
+        long usage = 9L * mTotalRows;
+        for (int row = 0; row < mTotalRows; ++row) {
+            usage += getRowMemoryUsage(row);
+        }
+        if (mScrollback != null) {
+            usage += mScrollback.getMemoryUsage();
+        }
+        if (mIndex != null) {
+            usage += mIndex.getMemoryUsage();
+        }
+        return usage;
+    }
+
+    private long getRowMemoryUsage(int internalRow) {
+        long usage = 0;
+        Object line = mLines[internalRow];
+        if (line instanceof char[]) {
+            usage += 16 + 2L * ((char[]) line).length;
+        } else if (line != null) {
+            usage += ((FullUnicodeLine) line).getMemoryUsage();
+        }
+        StyleRow color = mColor[internalRow];
+        if (color != null) {
+            usage += color.getMemoryUsage();
+        }
+        return usage;
+    }
+
+    /**
+     * Free memory by dropping the oldest rows of the transcript: any still
+     * to be rewrapped first, then those in the scrollback store, then those
+     * in the circular buffer.  Screen rows are never dropped.
+     *
+     * @param bytes How much memory to free, as measured by getMemoryUsage().
+     * @return The memory freed, which is less than asked for only if the
+     *         whole transcript was dropped.
+     */
+    public long trimTranscript(long bytes) {
+        long freed = 0;
+        if (mOlder != null) {
+            freed = trimOlder(bytes);
+        }
+        if (freed < bytes) {
+            freed += trimRows(bytes - freed, 0);
+        }
+        if (mIndex != null) {
+            long before = mIndex.getMemoryUsage();
+            mIndex.dropBefore(mRowSequence - getActiveTranscriptRows());
+            freed += before - mIndex.getMemoryUsage();
+        }
+        return freed;
+    }
+
+    /**
+     * Drop the oldest of the rows still to be rewrapped: the older
+     * transcripts, oldest first, as long as the whole of one is less than
+     * what's still to be freed, and then the oldest rows of the next.
+     *
+     * @return The memory freed.
+     */
+    private long trimOlder(long bytes) {
+        long freed = 0;
+        while (freed < bytes && mOlder != null) {
+            UnicodeTranscript newer = this;
+            while (newer.mOlder.mOlder != null) {
+                newer = newer.mOlder;
+            }
+            UnicodeTranscript oldest = newer.mOlder;
+            long usage = oldest.getOwnMemoryUsage();
+            if (usage > bytes - freed) {
+                freed += oldest.trimRows(bytes - freed, newer.mOlderEnd);
+                if (-oldest.getActiveTranscriptRows() < newer.mOlderEnd) {
+                    break;
+                }
+                // Every row wanted from it has gone, leaving only the
+                // buffer itself
+                usage = oldest.getOwnMemoryUsage();
+            }
+            if (oldest.mScrollback != null) {
+                oldest.mScrollback.close();
+            }
+            newer.mOlder = null;
+            freed += usage;
+        }
+        // Fix up the estimate of the rows left
+        setOlder(mOlder, mOlderEnd);
+        return freed;
+    }
+
+    /**
+     * Drop the oldest transcript rows of this transcript's own, those in
+     * the scrollback store first and then those in the circular buffer,
+     * stopping short of row end and of the screen.
+     *
+     * @return The memory freed.
+     */
+    private long trimRows(long bytes, int end) {
+        long freed = 0;
+        ScrollbackStore scrollback = mScrollback;
+        if (scrollback != null && scrollback.getRowCount() > 0) {
+            long before = scrollback.getMemoryUsage();
+            // Memory only comes back a chunk at a time
+            while (scrollback.getRowCount() > 0 && -getActiveTranscriptRows() < end
+                    && freed + before - scrollback.getMemoryUsage() < bytes) {
+                scrollback.removeOldestRow();
+            }
+            scrollback.trimIndex();
+            freed += before - scrollback.getMemoryUsage();
+        }
+        while (freed < bytes && mActiveTranscriptRows > 0 && -mActiveTranscriptRows < end) {
+            int row = externalToInternalRow(-mActiveTranscriptRows);
+            freed += getRowMemoryUsage(row);
+            mLines[row] = null;
+            mColor[row] = null;
+            mLineWrap[row] = false;
+            --mActiveTranscriptRows;
+        }
+        return freed;
     }
 
     /**
@@ -123,9 +443,93 @@ class UnicodeTranscript {
     }
 
     public boolean getLineWrap(int row) {
+        if (loadStoredRow(row)) {
+            return mScrollback.getLineWrap();
+        }
         return mLineWrap[externalToInternalRow(row)];
     }
 
+    /**
+     * Whether a screen row has changed since the last
+     * {@link #clearDirtyRows}, other than by moving with a scroll.
+     *
+     * @param row The screen row (0..mScreenRows-1)
+     */
+    public boolean isRowDirty(int row) {
+        return (mDirtyRows[row >> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * The number of lines the region from {@link #getScrollShiftTop} to
+     * {@link #getScrollShiftBottom} has scrolled up since the last
+     * {@link #clearDirtyRows}.  A row in the region which isn't dirty shows
+     * what was on the row that many lines below it before.  Zero if nothing
+     * scrolled (or if two different regions scrolled, in which case both are
+     * simply dirty).
+     */
+    public int getScrollShift() {
+        return mShiftCount;
+    }
+
+    public int getScrollShiftTop() {
+        return mShiftTop;
+    }
+
+    public int getScrollShiftBottom() {
+        return mShiftBottom;
+    }
+
+    public void clearDirtyRows() {
+        Arrays.fill(mDirtyRows, 0);
+        mShiftCount = 0;
+    }
+
+    public void markAllDirty() {
+        markRowsDirty(0, mScreenRows);
+        mShiftCount = 0;
+    }
+
+    private void markRowDirty(int row) {
+        // Only screen rows are tracked
+        if (row >= 0) {
+            mDirtyRows[row >> 6] |= 1L << row;
+        }
+    }
+
+    private void markRowsDirty(int top, int bottom) {
+        for (int row = top; row < bottom; ++row) {
+            mDirtyRows[row >> 6] |= 1L << row;
+        }
+    }
+
+    /**
+     * Record that the rows from topMargin to bottomMargin have moved up one
+     * line, with a newly exposed row at the bottom.
+     */
+    private void recordScroll(int topMargin, int bottomMargin) {
+        if (mShiftCount > 0
+                && (topMargin != mShiftTop || bottomMargin != mShiftBottom)) {
+            // Two different regions scrolled; don't try to track both
+            markRowsDirty(mShiftTop, mShiftBottom);
+            markRowsDirty(topMargin, bottomMargin);
+            mShiftCount = 0;
+            return;
+        }
+        mShiftTop = topMargin;
+        mShiftBottom = bottomMargin;
+        ++mShiftCount;
+        long[] dirty = mDirtyRows;
+        for (int row = topMargin; row < bottomMargin - 1; ++row) {
+            int below = row + 1;
+            if ((dirty[below >> 6] & (1L << below)) != 0) {
+                dirty[row >> 6] |= 1L << row;
+            } else {
+                dirty[row >> 6] &= ~(1L << row);
+            }
+        }
+        markRowDirty(bottomMargin - 1);
+    }
+
     /**
      * Resize the screen which this transcript backs.  Currently, this
      * only works if the number of columns does not change.
@@ -144,6 +548,11 @@ class UnicodeTranscript {
         if (newColumns != mColumns || newRows > mTotalRows) {
             return false;
         }
+        if (mScrollback != null && newRows == mTotalRows) {
+            // Rows must be able to scroll into the transcript on their way
+            // to the scrollback store
+            return false;
+        }
 
         int screenRows = mScreenRows;
         int activeTranscriptRows = mActiveTranscriptRows;
@@ -226,10 +635,16 @@ class UnicodeTranscript {
         } else {
             mActiveTranscriptRows += shift;
         }
+        mRowSequence += shift;
+        if (mIndex != null) {
+            // Rows brought back onto the screen can change
+            mIndex.truncate(mRowSequence);
+        }
         if (cursor != null) {
             cursor[1] -= shift;
         }
         mScreenRows = newRows;
+        markAllDirty();
 
         return true;
     }
@@ -303,6 +718,33 @@ class UnicodeTranscript {
         int screenRows = mScreenRows;
         int totalRows = mTotalRows;
 
+        recordScroll(topMargin, bottomMargin);
+        // Whatever the margins, one row goes into the transcript
+        ++mRowSequence;
+
+        if (mOlder != null && mActiveTranscriptRows == totalRows - screenRows
+                && (mScrollback == null || mScrollback.getRowCount() == mScrollback.getMaxRows())) {
+            // The oldest row is about to be dropped, and the rows still to
+            // be rewrapped, which are older, have to go first
+            dropOlder();
+        }
+        if (mScrollback != null && mActiveTranscriptRows == totalRows - screenRows) {
+            // The oldest row of the transcript is about to be overwritten
+            spillOldestRow((mScreenFirstRow + screenRows) % totalRows);
+        }
+        if (mScrollsSinceCompaction < totalRows) {
+            ++mScrollsSinceCompaction;
+        }
+        if (mPalette.needsCompaction()) {
+            compactStyles();
+        }
+
+        // The row which falls off the end of the buffer (having just been
+        // spilled to the scrollback store, if there is one) is recycled
+        int oldestRow = (mScreenFirstRow + screenRows) % totalRows;
+        Object deadLine = mLines[oldestRow];
+        StyleRow deadColor = mColor[oldestRow];
+
         if (topMargin == 0 && bottomMargin == screenRows) {
             // Fast path -- scroll the entire screen
             mScreenFirstRow = (mScreenFirstRow + 1) % totalRows;
@@ -310,11 +752,8 @@ class UnicodeTranscript {
                 ++mActiveTranscriptRows;
             }
 
-            // Blank the bottom margin
-            int blankRow = externalToInternalRow(bottomMargin - 1);
-            mLines[blankRow] = null;
-            mColor[blankRow] = new StyleRow(style, mColumns);
-            mLineWrap[blankRow] = false;
+            // Blank the bottom margin, which is the oldest row's slot
+            blankRow(externalToInternalRow(bottomMargin - 1), deadLine, deadColor, style);
 
             return;
         }
@@ -334,9 +773,17 @@ class UnicodeTranscript {
         boolean scrollLineWrap = lineWrap[topMarginInt];
         blockCopyLines(screenFirstRow, topMargin, 1);
         blockCopyLines(bottomMarginInt, screenRows - bottomMargin, 1);
-        lines[screenFirstRow] = scrollLine;
-        color[screenFirstRow] = scrollColor;
-        lineWrap[screenFirstRow] = scrollLineWrap;
+        if (totalRows > screenRows) {
+            lines[screenFirstRow] = scrollLine;
+            color[screenFirstRow] = scrollColor;
+            lineWrap[screenFirstRow] = scrollLineWrap;
+        } else {
+            // With no room for a transcript, the oldest row's slot is the
+            // bottom row of the screen, which has just been moved into it,
+            // and it's the scrolled line which is dropped
+            deadLine = scrollLine;
+            deadColor = scrollColor;
+        }
 
         // Update the screen location
         mScreenFirstRow = (screenFirstRow + 1) % totalRows;
@@ -345,14 +792,65 @@ class UnicodeTranscript {
         }
 
         // Blank the bottom margin
-        int blankRow = externalToInternalRow(bottomMargin - 1);
-        lines[blankRow] = null;
-        color[blankRow] = new StyleRow(style, mColumns);
-        lineWrap[blankRow] = false;
+        blankRow(externalToInternalRow(bottomMargin - 1), deadLine, deadColor, style);
 
         return;
     }
 
+    /**
+     * Blank a row scrolled in by scroll(), reusing the objects of the row
+     * which fell off the end of the buffer.
+     */
+    private void blankRow(int row, Object deadLine, StyleRow deadColor, int style) {
+        if (deadLine instanceof char[]) {
+            if (mFreeBasicLineCount < FREE_LINES) {
+                mFreeBasicLines[mFreeBasicLineCount++] = (char[]) deadLine;
+            }
+        } else if (deadLine != null) {
+            if (mFreeFullLineCount < FREE_LINES) {
+                mFreeFullLines[mFreeFullLineCount++] = (FullUnicodeLine) deadLine;
+            }
+        }
+        if (deadColor != null) {
+            deadColor.reset(style);
+        } else {
+            deadColor = new StyleRow(style, mColumns, mPalette);
+        }
+        mLines[row] = null;
+        mColor[row] = deadColor;
+        mLineWrap[row] = false;
+    }
+
+    /**
+     * Drop the styles no row uses any more from the palette, now that rows
+     * have been scrolled away.  A palette which is full of styles which are
+     * all still in use is left alone until every row of the buffer has been
+     * replaced, so that it isn't compacted in vain on every scroll.
+     */
+    private void compactStyles() {
+        StylePalette palette = mPalette;
+        if (palette.size() == StylePalette.MAX_STYLES
+                && mScrollsSinceCompaction < mTotalRows) {
+            return;
+        }
+        mScrollsSinceCompaction = 0;
+        StyleRow[] color = mColor;
+        boolean[] used = new boolean[palette.size()];
+        for (int row = 0; row < color.length; row++) {
+            if (color[row] != null) {
+                color[row].markStyles(used);
+            }
+        }
+        tmpColor.markStyles(used);
+        int[] map = palette.compact(used);
+        for (int row = 0; row < color.length; row++) {
+            if (color[row] != null) {
+                color[row].remapStyles(map);
+            }
+        }
+        tmpColor.remapStyles(map);
+    }
+
     /**
      * Block copy characters from one position in the screen to another. The two
      * positions can overlap. All characters of the source and destination must
@@ -372,6 +870,7 @@ class UnicodeTranscript {
                 || dy + h > mScreenRows) {
             throw new IllegalArgumentException();
         }
+        markRowsDirty(dy, dy + h);
         Object[] lines = mLines;
         StyleRow[] color = mColor;
         if (sy > dy) {
@@ -505,34 +1004,39 @@ class UnicodeTranscript {
     }
 
     private char[] getLine(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
+        Object rowLine;
+        if (loadStoredRow(row)) {
+            rowLine = mScrollback.getLine();
+        } else {
+            rowLine = mLines[externalToInternalRow(row)];
+        }
         int columns = mColumns;
-        row = externalToInternalRow(row);
-        if (mLines[row] == null) {
+        if (rowLine == null) {
             // Line is blank
             return null;
         }
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof char[]) {
             // Line contains only regular-width BMP characters
             if (x1 == 0 && x2 == columns) {
                 // Want the whole row? Easy.
-                return (char[]) mLines[row];
+                return (char[]) rowLine;
             } else {
                 if (tmpLine == null || tmpLine.length < columns + 1) {
                     tmpLine = new char[columns+1];
                 }
                 int length = x2 - x1;
-                System.arraycopy(mLines[row], x1, tmpLine, 0, length);
+                System.arraycopy(rowLine, x1, tmpLine, 0, length);
                 tmpLine[length] = 0;
                 return tmpLine;
             }
         }
 
         // Figure out how long the array needs to be
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         char[] rawLine = line.getLine();
 
         if (x1 == 0 && x2 == columns) {
@@ -583,18 +1087,25 @@ class UnicodeTranscript {
     }
 
     private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
-        row = externalToInternalRow(row);
-        StyleRow color = mColor[row];
+        Object rowLine;
+        StyleRow color;
+        if (loadStoredRow(row)) {
+            rowLine = mScrollback.getLine();
+            color = mScrollback.getColor();
+        } else {
+            row = externalToInternalRow(row);
+            rowLine = mLines[row];
+            color = mColor[row];
+        }
         StyleRow tmp = tmpColor;
         if (color != null) {
             int columns = mColumns;
-            if (!strictBounds && mLines[row] != null &&
-                    mLines[row] instanceof FullUnicodeLine) {
-                FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+            if (!strictBounds && rowLine instanceof FullUnicodeLine) {
+                FullUnicodeLine line = (FullUnicodeLine) rowLine;
                 /* If either the start or the end column is in the middle of
                  * an East Asian wide character, include the appropriate column
                  * of style information */
@@ -616,10 +1127,13 @@ class UnicodeTranscript {
     }
 
     boolean isBasicLine(int row) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
+        if (loadStoredRow(row)) {
+            return mScrollback.getLine() instanceof char[];
+        }
         return (mLines[externalToInternalRow(row)] instanceof char[]);
     }
 
@@ -643,19 +1157,24 @@ class UnicodeTranscript {
      * @return Whether or not there are characters following this one in the column.
      */
     public boolean getChar(int row, int column, int charIndex, char[] out, int offset) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
-        row = externalToInternalRow(row);
+        Object rowLine;
+        if (loadStoredRow(row)) {
+            rowLine = mScrollback.getLine();
+        } else {
+            rowLine = mLines[externalToInternalRow(row)];
+        }
 
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof char[]) {
             // Fast path: all regular-width BMP chars in the row
-            char[] line = (char[]) mLines[row];
+            char[] line = (char[]) rowLine;
             out[offset] = line[column];
             return false;
         }
 
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         return line.getChar(column, charIndex, out, offset);
     }
 
@@ -664,7 +1183,13 @@ class UnicodeTranscript {
     }
 
     private char[] allocateBasicLine(int row, int columns) {
-        char[] line = new char[columns];
+        char[] line;
+        if (mFreeBasicLineCount > 0) {
+            line = mFreeBasicLines[--mFreeBasicLineCount];
+            mFreeBasicLines[mFreeBasicLineCount] = null;
+        } else {
+            line = new char[columns];
+        }
 
         // Fill the line with blanks
         for (int i = 0; i < columns; ++i) {
@@ -673,17 +1198,24 @@ class UnicodeTranscript {
 
         mLines[row] = line;
         if (mColor[row] == null) {
-            mColor[row] = new StyleRow(0, columns);
+            mColor[row] = new StyleRow(0, columns, mPalette);
         }
         return line;
     }
 
     private FullUnicodeLine allocateFullLine(int row, int columns) {
-        FullUnicodeLine line = new FullUnicodeLine(columns);
+        FullUnicodeLine line;
+        if (mFreeFullLineCount > 0) {
+            line = mFreeFullLines[--mFreeFullLineCount];
+            mFreeFullLines[mFreeFullLineCount] = null;
+            line.clear();
+        } else {
+            line = new FullUnicodeLine(columns);
+        }
 
         mLines[row] = line;
         if (mColor[row] == null) {
-            mColor[row] = new StyleRow(0, columns);
+            mColor[row] = new StyleRow(0, columns, mPalette);
         }
         return line;
     }
@@ -704,6 +1236,7 @@ class UnicodeTranscript {
             Log.e(TAG, "illegal arguments! " + row + " " + column + " " + mScreenRows + " " + mColumns);
             throw new IllegalArgumentException();
         }
+        markRowDirty(row);
         row = externalToInternalRow(row);
 
         /*
@@ -741,289 +1274,1114 @@ class UnicodeTranscript {
             }
 
             // Need to switch to the full-featured mode
-            mLines[row] = new FullUnicodeLine(line);
+            if (mFreeFullLineCount > 0) {
+                FullUnicodeLine fullLine = mFreeFullLines[--mFreeFullLineCount];
+                mFreeFullLines[mFreeFullLineCount] = null;
+                fullLine.copyFrom(line);
+                mLines[row] = fullLine;
+            } else {
+                mLines[row] = new FullUnicodeLine(line);
+            }
+            if (mFreeBasicLineCount < FREE_LINES) {
+                mFreeBasicLines[mFreeBasicLineCount++] = line;
+            }
         }
 
         FullUnicodeLine line = (FullUnicodeLine) mLines[row];
         line.setChar(column, codePoint);
         return true;
     }
-}
 
-/*
- * A representation of a line that's capable of handling non-BMP characters,
- * East Asian wide characters, and combining characters.
- *
- * The text of the line is stored in an array of char[], allowing easy
- * conversion to a String and/or reuse by other string-handling functions.
- * An array of short[] is used to keep track of the difference between a column
- * and the starting index corresponding to its contents in the char[] array (so
- * if column 42 starts at index 45 in the char[] array, the offset stored is 3).
- * Column 0 always starts at index 0 in the char[] array, so we use that
- * element of the array to keep track of how much of the char[] array we're
- * using at the moment.
- */
-class FullUnicodeLine {
-    private static final float SPARE_CAPACITY_FACTOR = 1.5f;
+    /**
+     * Store a run of printable ASCII characters into a row, all with the
+     * same style.  Equivalent to calling setChar() for each character, but
+     * stores straight into the array when the row is "basic".
+     *
+     * @param column The column of the first character
+     * @param row The row to store into (0..mScreenRows-1)
+     * @param b The array holding the characters (0x20..0x7e only)
+     * @param offset The offset of the first character in the array
+     * @param count The number of characters; the run must fit in the row
+     * @param style The style for the characters
+     */
+    public void setChars(int column, int row, byte[] b, int offset, int count, int style) {
+        if (row >= mScreenRows || column < 0 || column + count > mColumns) {
+            Log.e(TAG, "illegal arguments! " + row + " " + column + " " + count + " " + mScreenRows + " " + mColumns);
+            throw new IllegalArgumentException();
+        }
+        markRowDirty(row);
+        row = externalToInternalRow(row);
 
-    private char[] mText;
-    private short[] mOffset;
-    private int mColumns;
+        // Allocate a row on demand; ASCII always fits in a "basic" row
+        if (mLines[row] == null) {
+            allocateBasicLine(row, mColumns);
+        }
 
-    public FullUnicodeLine(int columns) {
-        commonConstructor(columns);
-        char[] text = mText;
-        // Fill in the line with blanks
-        for (int i = 0; i < columns; ++i) {
-            text[i] = ' ';
+        if (mLines[row] instanceof char[]) {
+            char[] line = (char[]) mLines[row];
+            for (int i = 0; i < count; ++i) {
+                line[column + i] = (char) b[offset + i];
+            }
+        } else {
+            FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+            for (int i = 0; i < count; ++i) {
+                line.setChar(column + i, b[offset + i]);
+            }
         }
-        // Store the space used
-        mOffset[0] = (short) columns;
+
+        mColor[row].set(column, count, style);
     }
 
-    public FullUnicodeLine(char[] basicLine) {
-        commonConstructor(basicLine.length);
-        System.arraycopy(basicLine, 0, mText, 0, mColumns);
-        // Store the space used
-        mOffset[0] = (short) basicLine.length;
+    /**
+     * Copy the screen (but not the transcript) into another transcript with
+     * the same number of columns and screen rows, reusing the destination's
+     * row storage where possible.
+     *
+     * @param dst The transcript to copy into; its existing contents are
+     *            replaced.
+     */
+    void copyScreenTo(UnicodeTranscript dst) {
+        if (dst.mColumns != mColumns || dst.mScreenRows != mScreenRows) {
+            Log.e(TAG, "illegal arguments! " + dst.mColumns + " " + dst.mScreenRows + " " + mColumns + " " + mScreenRows);
+            throw new IllegalArgumentException();
+        }
+        dst.mDefaultStyle = mDefaultStyle;
+        for (int i = 0; i < mScreenRows; ++i) {
+            int srcRow = externalToInternalRow(i);
+            int dstRow = dst.externalToInternalRow(i);
+            Object line = mLines[srcRow];
+            if (line instanceof char[]) {
+                char[] text = (char[]) line;
+                if (dst.mLines[dstRow] instanceof char[]
+                        && ((char[]) dst.mLines[dstRow]).length == text.length) {
+                    System.arraycopy(text, 0, (char[]) dst.mLines[dstRow], 0, text.length);
+                } else {
+                    dst.mLines[dstRow] = text.clone();
+                }
+            } else if (line != null) {
+                if (dst.mLines[dstRow] instanceof FullUnicodeLine) {
+                    ((FullUnicodeLine) dst.mLines[dstRow]).copyFrom((FullUnicodeLine) line);
+                } else {
+                    dst.mLines[dstRow] = new FullUnicodeLine((FullUnicodeLine) line);
+                }
+            } else {
+                dst.mLines[dstRow] = null;
+            }
+
+            StyleRow color = mColor[srcRow];
+            if (color == null) {
+                dst.mColor[dstRow] = null;
+            } else {
+                if (dst.mColor[dstRow] == null) {
+                    dst.mColor[dstRow] = new StyleRow(mDefaultStyle, mColumns, dst.mPalette);
+                }
+                dst.mColor[dstRow].copyFrom(color);
+            }
+            dst.mLineWrap[dstRow] = mLineWrap[srcRow];
+        }
     }
 
-    private void commonConstructor(int columns) {
-        mColumns = columns;
-        mOffset = new short[columns];
-        mText = new char[(int)(SPARE_CAPACITY_FACTOR*columns)];
+    /**
+     * Find the occurrences of text in the transcript and on screen, oldest
+     * first, without regard to case if ignoreCase is set.  A match may run
+     * on from a row onto the row it wraps onto, but not from one line to the
+     * next, and the trailing blanks of rows which don't wrap aren't part of
+     * their lines.
+     * <p>
+     * The transcript rows are indexed by the first call, and after that only
+     * the rows which have scrolled into the transcript since the last call
+     * are, so only the lines which may have a match are read.
+     *
+     * @param matches Gets four ints for each match: the column and row of
+     *                its first cell, and the column after its last cell and
+     *                that cell's row.
+     * @return The number of matches.
+     */
+    int findText(String text, boolean ignoreCase, GrowableIntArray matches) {
+        int patternLength = text.length();
+        if (patternLength == 0) {
+            return 0;
+        }
+        char[] pattern = text.toCharArray();
+        if (ignoreCase) {
+            for (int i = 0; i < patternLength; ++i) {
+                pattern[i] = TranscriptIndex.fold(pattern[i]);
+            }
+        }
+        char[] folded = pattern;
+        if (!ignoreCase) {
+            folded = pattern.clone();
+            for (int i = 0; i < patternLength; ++i) {
+                folded[i] = TranscriptIndex.fold(folded[i]);
+            }
+        }
+        int[] trigrams = new int[Math.max(patternLength - 2, 0)];
+        int trigramCount = TranscriptIndex.hashTrigrams(folded, patternLength, trigrams);
+
+        updateIndex();
+        TranscriptIndex index = mIndex;
+        LineText line = getLineText();
+        int count = 0;
+        int firstRow = -getActiveTranscriptRows();
+        int lastRow = mScreenRows - 1;
+        // The line which carries on onto the screen isn't all in the index
+        int screenLine = 0;
+        while (screenLine > firstRow && getLineWrap(screenLine - 1)) {
+            --screenLine;
+        }
+        // The start of the next line to read
+        int row = firstRow;
+        if (firstRow < screenLine) {
+            // Nor is the first line, if it lost its start to the index
+            row = readLine(firstRow, lastRow, line);
+            count += line.find(pattern, patternLength, ignoreCase, matches);
+        }
+        long block = index.getFirstBlock();
+        for (int i = 0; i < index.getBlockCount() && row < screenLine; ++i, ++block) {
+            if (!index.mayContain(block, trigrams, trigramCount)) {
+                continue;
+            }
+            long blockRow = block * TranscriptIndex.BLOCK_ROWS - mRowSequence;
+            int blockEnd = (int) Math.min(blockRow + TranscriptIndex.BLOCK_ROWS, screenLine);
+            int start = (int) Math.max(blockRow, row);
+            if (start > row) {
+                // Skip the end of a line which started in an earlier block
+                while (start < blockEnd && getLineWrap(start - 1)) {
+                    ++start;
+                }
+            }
+            while (start < blockEnd) {
+                start = readLine(start, lastRow, line);
+                count += line.find(pattern, patternLength, ignoreCase, matches);
+                row = start;
+            }
+        }
+        for (row = Math.max(row, screenLine); row <= lastRow; ) {
+            row = readLine(row, lastRow, line);
+            count += line.find(pattern, patternLength, ignoreCase, matches);
+        }
+        return count;
     }
 
-    public int getSpaceUsed() {
-        return mOffset[0];
+    /**
+     * Get the sequence number (see mRowSequence) of the row after the bottom
+     * of the screen.
+     */
+    long getEndSequence() {
+        return mRowSequence + mScreenRows;
     }
 
-    public char[] getLine() {
-        return mText;
+    /** Get the sequence number (see mRowSequence) of a row. */
+    long getRowSequence(int row) {
+        return mRowSequence + row;
     }
 
-    public int findStartOfColumn(int column) {
-        if (column == 0) {
-            return 0;
-        } else {
-            return column + mOffset[column];
+    /**
+     * Mark a place for shell integration.
+     *
+     * @param kind One of the kinds of TranscriptMarks.
+     * @param value The mark's exit status or directory, or null.
+     */
+    void addMark(int kind, int column, int row, String value) {
+        TranscriptMarks marks = getMarks();
+        if (marks == null) {
+            marks = mMarks = new TranscriptMarks();
         }
+        marks.add(kind, mRowSequence + row, column, value);
     }
 
-    public boolean getChar(int column, int charIndex, char[] out, int offset) {
-        int pos = findStartOfColumn(column);
-        int length;
-        if (column + 1 < mColumns) {
-            length = findStartOfColumn(column + 1) - pos;
-        } else {
-            length = getSpaceUsed() - pos;
+    /**
+     * Find the nearest mark of a kind on a row above the given one, or below
+     * it.
+     *
+     * @param position Gets the mark's column and row.
+     * @return Whether there is one.
+     */
+    boolean findMark(int kind, int row, boolean forward, int[] position) {
+        TranscriptMarks marks = getMarks();
+        long[] found = new long[2];
+        if (marks == null || !marks.find(kind, mRowSequence + row, forward, found)) {
+            return false;
         }
-        if (charIndex >= length) {
-            throw new IllegalArgumentException();
+        position[0] = (int) found[0];
+        position[1] = getMarkRow(found[1]);
+        return true;
+    }
+
+    /**
+     * Find the output of the last command to finish, from its output mark to
+     * the mark after that which ended it.
+     *
+     * @param range Gets the column and row of the output's start, and of
+     *              its end.
+     * @return Whether there is one.
+     */
+    boolean findLastOutput(int[] range) {
+        TranscriptMarks marks = getMarks();
+        long[] found = new long[4];
+        if (marks == null || !marks.findLastOutput(found)) {
+            return false;
         }
-        out[offset] = mText[pos + charIndex];
-        return (charIndex + 1 < length);
+        range[0] = (int) found[0];
+        range[1] = getMarkRow(found[1]);
+        range[2] = (int) found[2];
+        range[3] = getMarkRow(found[3]);
+        return true;
     }
 
-    public void setChar(int column, int codePoint) {
-        int columns = mColumns;
-        if (column < 0 || column >= columns) {
-            throw new IllegalArgumentException();
+    /**
+     * Get the value of the last mark of a kind on a row up to a given one,
+     * or null if there's none.
+     */
+    String getMarkValue(int kind, int row) {
+        TranscriptMarks marks = getMarks();
+        return marks != null ? marks.getValue(kind, mRowSequence + row) : null;
+    }
+
+    /**
+     * Get the marks, less those whose rows have left the transcript; null if
+     * there have never been any.
+     */
+    private TranscriptMarks getMarks() {
+        if (mMarks != null) {
+            mMarks.dropBefore(mRowSequence - getActiveTranscriptRows());
         }
+        return mMarks;
+    }
 
-        char[] text = mText;
-        short[] offset = mOffset;
-        int spaceUsed = offset[0];
+    /**
+     * Get the row of a mark, which a reflow may have carried onto the row
+     * below the screen.
+     */
+    private int getMarkRow(long sequence) {
+        return (int) Math.min(sequence - mRowSequence, mScreenRows - 1);
+    }
 
-        int pos = findStartOfColumn(column);
+    /**
+     * Find the matches of a regular expression, line by line, as a step of
+     * a search which may go on after the transcript has scrolled.  Lines are
+     * read in order until about maxRows rows have been, so that each step
+     * takes a bounded time.  Matches are appended to matches as for
+     * findText(), except that empty ones are left out.
+     *
+     * @param start The sequence number (see mRowSequence) of the first row
+     *              of the first line to read.  If that row has left the
+     *              transcript, the oldest row is read first instead.
+     * @param end The sequence number of the row to stop before.
+     * @return The sequence number of the row after the last line read; end
+     *         once the search is over.
+     */
+    long findPattern(Matcher matcher, long start, long end, int maxRows,
+                     GrowableIntArray matches) {
+        int firstRow = -getActiveTranscriptRows();
+        int row = start <= mRowSequence + firstRow ? firstRow : (int) (start - mRowSequence);
+        int lastRow = (int) Math.min(end - mRowSequence, mScreenRows) - 1;
+        int stopRow = row + maxRows;
+        LineText line = getLineText();
+        while (row <= lastRow && row < stopRow) {
+            row = readLine(row, lastRow, line);
+            line.find(matcher, matches, null);
+        }
+        return row > lastRow ? end : mRowSequence + row;
+    }
 
-        int charWidth = WcWidth.wcwidth(codePoint);
-        int oldCharWidth = WcWidth.wcwidth(text, pos);
+    /**
+     * Read the line starting at row and find the matches of a regular
+     * expression in it, as findPattern() does.
+     *
+     * @param texts Gets the text of each match.
+     * @return The row after the line.
+     */
+    int findPatternInLine(Matcher matcher, int row, GrowableIntArray matches,
+                          List<String> texts) {
+        LineText line = getLineText();
+        row = readLine(row, mScreenRows - 1, line);
+        line.find(matcher, matches, texts);
+        return row;
+    }
 
-        if (charWidth == 2 && column == columns - 1) {
-            // A width 2 character doesn't fit in the last column.
-            codePoint = ' ';
-            charWidth = 1;
+    /** Bring the index up to date with the transcript rows, making it if need be. */
+    private void updateIndex() {
+        TranscriptIndex index = mIndex;
+        if (index == null) {
+            index = mIndex = new TranscriptIndex();
+        }
+        int transcriptRows = getActiveTranscriptRows();
+        index.dropBefore(mRowSequence - transcriptRows);
+        index.truncate(mRowSequence);
+        int row = (int) (index.getEnd() - mRowSequence);
+        if (!index.isLineOpen() && row > -transcriptRows && getLineWrap(row - 1)) {
+            // The index lost track of the line this row carries on; go back
+            // to its start
+            do {
+                --row;
+            } while (row > -transcriptRows && getLineWrap(row - 1));
+            index.truncate(mRowSequence + row);
         }
+        LineText line = getLineText();
+        for (; row < 0; ++row) {
+            line.clear(row);
+            boolean lineWrap = appendRowText(row, line);
+            index.addRow(line.mText, line.mLength, lineWrap);
+        }
+    }
 
-        boolean wasExtraColForWideChar = false;
-        if (oldCharWidth == 2 && column > 0) {
-            /* If the previous screen column starts at the same offset in the
-             * array as this one, this column must be the second column used
-             * by an East Asian wide character */
-            wasExtraColForWideChar = (findStartOfColumn(column - 1) == pos);
+    private LineText getLineText() {
+        if (mLineText == null) {
+            mLineText = new LineText();
         }
+        return mLineText;
+    }
 
-        // Get the number of elements in the mText array this column uses now
-        int oldLen;
-        if (wasExtraColForWideChar && column + 1 < columns) {
-            oldLen = findStartOfColumn(column + 1) - pos;
-        } else if (column + oldCharWidth < columns) {
-            oldLen = findStartOfColumn(column+oldCharWidth) - pos;
-        } else {
-            oldLen = spaceUsed - pos;
-        }
-
-        // Find how much space this column will need
-        int newLen = Character.charCount(codePoint);
-        if (charWidth == 0) {
-            /* Combining characters are added to the contents of the column
-               instead of overwriting them, so that they modify the existing
-               contents */
-            newLen += oldLen;
-        }
-        int shift = newLen - oldLen;
-
-        // Shift the rest of the line right to make room if necessary
-        if (shift > 0) {
-            if (spaceUsed + shift > text.length) {
-                // We need to grow the array
-                char[] newText = new char[text.length + columns];
-                System.arraycopy(text, 0, newText, 0, pos);
-                System.arraycopy(text, pos + oldLen, newText, pos + newLen, spaceUsed - pos - oldLen);
-                mText = text = newText;
-            } else {
-                System.arraycopy(text, pos + oldLen, text, pos + newLen, spaceUsed - pos - oldLen);
-            }
+    /**
+     * Read the line starting at row, up to lastRow at most, into out.
+     *
+     * @return The row after the line.
+     */
+    private int readLine(int row, int lastRow, LineText out) {
+        out.clear(row);
+        while (appendRowText(row, out) && row < lastRow) {
+            ++row;
         }
+        return row + 1;
+    }
 
-        // Store the character
-        if (charWidth > 0) {
-            Character.toChars(codePoint, text, pos);
+    /**
+     * Append a row's text to out: every character if the row wraps, else
+     * all but the trailing blanks.
+     *
+     * @return Whether the row wraps.
+     */
+    private boolean appendRowText(int row, LineText out) {
+        Object line;
+        boolean lineWrap;
+        if (loadStoredRow(row)) {
+            line = mScrollback.getLine();
+            lineWrap = mScrollback.getLineWrap();
         } else {
-            /* Store a combining character at the end of the existing contents,
-               so that it modifies them */
-            Character.toChars(codePoint, text, pos + oldLen);
+            int internalRow = externalToInternalRow(row);
+            line = mLines[internalRow];
+            lineWrap = mLineWrap[internalRow];
+        }
+        char[] text = null;
+        int length = 0;
+        if (line instanceof char[]) {
+            text = (char[]) line;
+            length = mColumns;
+        } else if (line != null) {
+            text = ((FullUnicodeLine) line).getLine();
+            int spaceUsed = ((FullUnicodeLine) line).getSpaceUsed();
+            while (length < spaceUsed && text[length] != 0) {
+                ++length;
+            }
         }
+        if (!lineWrap) {
+            while (length > 0 && text[length - 1] == ' ') {
+                --length;
+            }
+        }
+        out.appendRow(text, length);
+        return lineWrap;
+    }
 
-        // Shift the rest of the line left to eliminate gaps if necessary
-        if (shift < 0) {
-            System.arraycopy(text, pos + oldLen, text, pos + newLen, spaceUsed - pos - oldLen);
+    /**
+     * The text of a line, as findText() compares it, and where each of its
+     * rows starts in it.  It's a CharSequence so that regular expressions
+     * can run over it without it being copied into a String.
+     */
+    private static final class LineText implements CharSequence {
+        char[] mText = new char[256];
+        int mLength;
+        private int mFirstRow;
+        private int[] mRowStarts = new int[8];
+        private int mRowCount;
+
+        void clear(int firstRow) {
+            mLength = 0;
+            mFirstRow = firstRow;
+            mRowCount = 0;
         }
 
-        // Update space used
-        if (shift != 0) {
-            spaceUsed += shift;
-            offset[0] = (short) spaceUsed;
+        void appendRow(char[] text, int length) {
+            if (mRowCount == mRowStarts.length) {
+                mRowStarts = Arrays.copyOf(mRowStarts, mRowCount * 2);
+            }
+            mRowStarts[mRowCount++] = mLength;
+            if (mLength + length > mText.length) {
+                mText = Arrays.copyOf(mText, Math.max(mText.length * 2, mLength + length));
+            }
+            if (length > 0) {
+                System.arraycopy(text, 0, mText, mLength, length);
+                mLength += length;
+            }
         }
 
-        /*
-         * Handle cases where we need to pad with spaces to preserve column
-         * alignment
+        /**
+         * Find the occurrences of pattern in the line, appending them to
+         * matches as for UnicodeTranscript.findText().
          *
-         * width 2 -> width 1: pad with a space before or after the new
-         * character, depending on which of the two previously-occupied columns
-         * we wrote into
+         * @param ignoreCase Whether to fold the line's case; pattern's must
+         *                   already have been.
+         * @return The number found.
+         */
+        int find(char[] pattern, int patternLength, boolean ignoreCase,
+                 GrowableIntArray matches) {
+            char[] text = mText;
+            int last = mLength - patternLength;
+            char first = pattern[0];
+            int count = 0;
+            int i = 0;
+            while (i <= last) {
+                char c = ignoreCase ? TranscriptIndex.fold(text[i]) : text[i];
+                if (c != first || !matchesAt(i, pattern, patternLength, ignoreCase)) {
+                    ++i;
+                    continue;
+                }
+                int end = i + patternLength;
+                appendMatch(i, end, matches);
+                ++count;
+                i = end;
+            }
+            return count;
+        }
+
+        /**
+         * Find the matches of a regular expression in the line, appending
+         * them to matches as for find().  Empty matches are left out.
          *
-         * inserting width 2 character into the second column of an existing
-         * width 2 character: pad with a space before the new character
+         * @param texts Gets the text of each match, unless it's null.
+         * @return The number found.
          */
-        if (oldCharWidth == 2 && charWidth == 1 || wasExtraColForWideChar && charWidth == 2) {
-            int nextPos = pos + newLen;
-            char[] newText = text;
-            if (spaceUsed + 1 > text.length) {
-                // Array needs growing
-                newText = new char[text.length + columns];
-                System.arraycopy(text, 0, newText, 0, wasExtraColForWideChar ? pos : nextPos);
-            }
-
-            if (wasExtraColForWideChar) {
-                // Padding goes before the new character
-                System.arraycopy(text, pos, newText, pos + 1, spaceUsed - pos);
-                newText[pos] = ' ';
+        int find(Matcher matcher, GrowableIntArray matches, List<String> texts) {
+            matcher.reset(this);
+            int count = 0;
+            while (matcher.find()) {
+                int start = matcher.start();
+                int end = matcher.end();
+                if (end > start) {
+                    appendMatch(start, end, matches);
+                    if (texts != null) {
+                        texts.add(new String(mText, start, end - start));
+                    }
+                    ++count;
+                }
+            }
+            return count;
+        }
+
+        private void appendMatch(int start, int end, GrowableIntArray matches) {
+            int startIndex = findRowIndex(start, 0);
+            int endIndex = findRowIndex(end - 1, startIndex);
+            matches.append(getColumn(startIndex, start));
+            matches.append(mFirstRow + startIndex);
+            matches.append(getColumn(endIndex, end));
+            matches.append(mFirstRow + endIndex);
+        }
+
+        private boolean matchesAt(int start, char[] pattern, int patternLength,
+                                  boolean ignoreCase) {
+            char[] text = mText;
+            for (int j = 1; j < patternLength; ++j) {
+                char c = text[start + j];
+                if (ignoreCase) {
+                    c = TranscriptIndex.fold(c);
+                }
+                if (c != pattern[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Find which of the rows (counting from 0) holds a character. */
+        private int findRowIndex(int offset, int from) {
+            int index = from;
+            while (index + 1 < mRowCount && mRowStarts[index + 1] <= offset) {
+                ++index;
+            }
+            return index;
+        }
+
+        /** Get the column of a row at which a character starts. */
+        private int getColumn(int rowIndex, int offset) {
+            char[] text = mText;
+            int column = 0;
+            for (int i = mRowStarts[rowIndex]; i < offset; ++i) {
+                if (!Character.isLowSurrogate(text[i])) {
+                    column += WcWidth.wcwidth(text, i);
+                }
+            }
+            return column;
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index >= mLength) {
+                throw new IndexOutOfBoundsException();
+            }
+            return mText[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > mLength || start > end) {
+                throw new IndexOutOfBoundsException();
+            }
+            return new String(mText, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mText, 0, mLength);
+        }
+    }
+
+    /**
+     * Find where reflowInto() should start so that the rewrapped rows fill
+     * at least the given number of rows at the given width, leaving the
+     * older rows to be rewrapped later, if at all.  The count is a lower
+     * bound, so the rows really will be filled.
+     *
+     * @param cursor The cursor's column and row, or null; as for reflowInto().
+     * @return The first row of the line to start from, or one above the
+     *         oldest row if the whole transcript isn't enough.
+     */
+    int findReflowStart(int columns, int rows, int[] cursor) {
+        int cursorRow = cursor != null ? cursor[1] : NO_CURSOR;
+        int firstRow = -getActiveTranscriptRows();
+        int end = getReflowLastRow(cursor);
+        int count = 0;
+        while (end >= firstRow) {
+            int start = end;
+            while (start > firstRow && getLineWrap(start - 1)) {
+                --start;
+            }
+            // Count the line's cells up to the last which isn't a blank,
+            // with each row before that one short, as a blank left where a
+            // wide character didn't fit may be dropped
+            int cells = 0;
+            for (int row = end; row >= start; --row) {
+                int length = getReflowLength(row);
+                if (row == cursorRow) {
+                    length = Math.max(length, cursor[0] + 1);
+                }
+                if (length > 0) {
+                    cells = (row - start) * (mColumns - 1) + length;
+                    break;
+                }
+            }
+            count += Math.max(1, (cells + columns - 1) / columns);
+            if (count >= rows) {
+                return start;
+            }
+            end = start - 1;
+        }
+        return firstRow - 1;
+    }
+
+    /**
+     * Copy the rows of this transcript from firstRow down into dst, a new
+     * transcript with a different number of columns, rewrapping each
+     * logical line (a row and the rows it wraps onto) to the new width.
+     * The rows go in from the top of dst's screen, scrolling it as they run
+     * past the bottom, so that the most recent rows end up on screen.
+     * <p>
+     * Any rows above firstRow, and any older rows this transcript was itself
+     * left, are left to dst, to be rewrapped by reflowAllInto() if they're
+     * ever needed.  This transcript mustn't be used again afterwards.
+     * <p>
+     * Trailing blanks in the default style are dropped from rows which
+     * don't wrap, as are any blank rows below the cursor.
+     *
+     * @param dst The transcript to copy into, with a blank screen.
+     * @param firstRow The first row to copy, the first row of a line.
+     * @param cursor The cursor's column and row, updated to where the cell
+     *               under it ends up in dst, or to 0, 0 if that scrolled off
+     *               the screen.  If null, every screen row is copied, blank
+     *               or not.
+     * @param style The style for rows scrolled onto dst's screen.
+     */
+    void reflowInto(UnicodeTranscript dst, int firstRow, int[] cursor, int style) {
+        Rewrapper out = new Rewrapper(dst, style);
+        copyRows(out, firstRow, getReflowLastRow(cursor), cursor, mColumns == dst.mColumns);
+        finishReflow(dst, out, cursor);
+
+        if (firstRow > -getActiveTranscriptRows()) {
+            dst.setOlder(this, firstRow);
+            // Only the rows above firstRow are wanted from now on
+            for (int row = Math.max(firstRow, -mActiveTranscriptRows); row < mScreenRows; ++row) {
+                int internalRow = externalToInternalRow(row);
+                mLines[internalRow] = null;
+                mColor[internalRow] = null;
+            }
+        } else {
+            dst.setOlder(mOlder, mOlderEnd);
+            if (mScrollback != null) {
+                mScrollback.close();
+            }
+        }
+    }
+
+    /**
+     * Copy all the rows of this transcript, including any older rows left
+     * to it by reflowInto(), into dst, rewrapping them to dst's width.
+     * This transcript, and the older ones, mustn't be used again afterwards.
+     *
+     * @see #reflowInto
+     */
+    void reflowAllInto(UnicodeTranscript dst, int[] cursor, int style) {
+        Rewrapper out = new Rewrapper(dst, style);
+        int olderCount = 0;
+        for (UnicodeTranscript older = mOlder; older != null; older = older.mOlder) {
+            ++olderCount;
+        }
+        // Oldest first
+        UnicodeTranscript[] transcripts = new UnicodeTranscript[olderCount + 1];
+        int[] lastRows = new int[olderCount + 1];
+        transcripts[olderCount] = this;
+        lastRows[olderCount] = getReflowLastRow(cursor);
+        for (int i = olderCount - 1; i >= 0; --i) {
+            transcripts[i] = transcripts[i + 1].mOlder;
+            lastRows[i] = transcripts[i + 1].mOlderEnd - 1;
+        }
+        for (int i = 0; i < olderCount; ++i) {
+            UnicodeTranscript older = transcripts[i];
+            older.copyRows(out, -older.getActiveTranscriptRows(), lastRows[i], null, false);
+            out.newLine(false);
+        }
+        // The rows already rewrapped to dst's width mustn't move
+        copyRows(out, -getActiveTranscriptRows(), lastRows[olderCount], cursor,
+                mColumns == dst.mColumns);
+        finishReflow(dst, out, cursor);
+        closeScrollback();
+    }
+
+    private static void finishReflow(UnicodeTranscript dst, Rewrapper out, int[] cursor) {
+        if (cursor != null) {
+            if (out.mCursorRow >= 0) {
+                cursor[0] = out.mCursorCol;
+                cursor[1] = out.mCursorRow;
             } else {
-                // Padding goes after the new character
-                System.arraycopy(text, nextPos, newText, nextPos + 1, spaceUsed - nextPos);
-                newText[nextPos] = ' ';
+                // The cursor scrolled off the screen
+                cursor[0] = 0;
+                cursor[1] = 0;
             }
+        }
+        dst.markAllDirty();
+    }
 
-            if (newText != text) {
-                // Update mText to point to the newly grown array
-                mText = text = newText;
+    /**
+     * Get the last row to copy when reflowing: the bottom of the screen,
+     * less any blank rows below the cursor.
+     */
+    private int getReflowLastRow(int[] cursor) {
+        int lastRow = mScreenRows - 1;
+        if (cursor != null) {
+            while (lastRow > cursor[1] && getReflowLength(lastRow) == 0) {
+                --lastRow;
             }
+        }
+        return lastRow;
+    }
 
-            // Update space used
-            spaceUsed = ++offset[0];
+    /**
+     * Copy rows firstRow to lastRow through a Rewrapper.
+     *
+     * @param asIs Whether to copy the rows one for one, as they are, rather
+     *             than rewrapping them; only for a transcript of the same
+     *             width.
+     */
+    private void copyRows(Rewrapper out, int firstRow, int lastRow, int[] cursor,
+                          boolean asIs) {
+        int cursorCol = cursor != null ? cursor[0] : -1;
+        int cursorRow = cursor != null ? cursor[1] : NO_CURSOR;
+        out.mDefaultStyle = mDefaultStyle;
+        TranscriptMarks marks = getMarks();
+        // The next mark of each kind to copy
+        int[] nextMarks = null;
+        if (marks != null) {
+            nextMarks = new int[TranscriptMarks.KINDS];
+            for (int kind = 0; kind < nextMarks.length; ++kind) {
+                nextMarks[kind] = marks.indexOf(kind, mRowSequence + firstRow);
+            }
+        }
+        for (int row = firstRow; row <= lastRow; ++row) {
+            Object line;
+            StyleRow color;
+            boolean lineWrap;
+            if (loadStoredRow(row)) {
+                line = mScrollback.getLine();
+                color = mScrollback.getColor();
+                lineWrap = mScrollback.getLineWrap();
+            } else {
+                int internalRow = externalToInternalRow(row);
+                line = mLines[internalRow];
+                color = mColor[internalRow];
+                lineWrap = mLineWrap[internalRow];
+            }
+            int length = getReflowLength(line, color);
+            int rowCursorCol = -1;
+            if (row == cursorRow) {
+                rowCursorCol = cursorCol;
+                length = Math.max(length, cursorCol + 1);
+            }
+            if (asIs) {
+                if (lineWrap) {
+                    length = mColumns;
+                }
+            } else if (length > 0) {
+                out.copyPendingBlanks(startsWithWideChar(line));
+            }
+            if (marks != null) {
+                out.takeMarks(marks, mRowSequence + row, nextMarks);
+            }
 
-            // Correct the offset for the just-modified column to reflect
-            // width change
-            if (wasExtraColForWideChar) {
-                ++offset[column];
-                ++pos;
+            if (line instanceof FullUnicodeLine) {
+                out.copyFullLine((FullUnicodeLine) line, mColumns, color, length, rowCursorCol);
             } else {
-                if (column == 0) {
-                    offset[1] = (short) (newLen - 1);
-                } else if (column + 1 < columns) {
-                    offset[column + 1] = (short) (offset[column] + newLen - 1);
+                if (line == null) {
+                    line = getBlankLine();
+                }
+                out.copyBasicLine((char[]) line, color, length, rowCursorCol);
+            }
+            if (lineWrap && !asIs) {
+                out.mPendingBlanks += mColumns - length;
+            }
+            if (row < lastRow) {
+                if (asIs) {
+                    // Lines which exactly fit and all
+                    out.newLine(lineWrap);
+                } else if (!lineWrap) {
+                    out.newLine(false);
                 }
-                ++column;
             }
+        }
+    }
 
-            ++shift;
+    private int getReflowLength(int row) {
+        if (loadStoredRow(row)) {
+            return getReflowLength(mScrollback.getLine(), mScrollback.getColor());
         }
-        
-        /*
-         * Handle cases where we need to clobber the contents of the next
-         * column in order to preserve column alignment
+        int internalRow = externalToInternalRow(row);
+        return getReflowLength(mLines[internalRow], mColor[internalRow]);
+    }
+
+    /**
+     * Get the number of columns of a row left after dropping trailing blanks
+     * in the default style.
+     */
+    private int getReflowLength(Object line, StyleRow color) {
+        int length = mColumns;
+        while (length > 0 && isDefaultBlank(line, color, length - 1)) {
+            --length;
+        }
+        return length;
+    }
+
+    private boolean isDefaultBlank(Object line, StyleRow color, int column) {
+        if (line == null) {
+            return true;
+        }
+        if (color != null && color.get(column) != mDefaultStyle) {
+            return false;
+        }
+        if (line instanceof char[]) {
+            return ((char[]) line)[column] == ' ';
+        }
+        FullUnicodeLine fullLine = (FullUnicodeLine) line;
+        int start = fullLine.findStartOfColumn(column);
+        if (column > 0 && fullLine.findStartOfColumn(column - 1) == start) {
+            // The second column of an East Asian wide character
+            return false;
+        }
+        int end = column + 1 < mColumns
+                ? fullLine.findStartOfColumn(column + 1) : fullLine.getSpaceUsed();
+        return end - start == 1 && fullLine.getLine()[start] == ' ';
+    }
+
+    private static boolean startsWithWideChar(Object line) {
+        return line instanceof FullUnicodeLine
+                && WcWidth.wcwidth(((FullUnicodeLine) line).getLine(), 0) == 2;
+    }
+
+    private char[] getBlankLine() {
+        if (tmpLine == null || tmpLine.length < mColumns + 1) {
+            tmpLine = new char[mColumns + 1];
+        }
+        Arrays.fill(tmpLine, 0, mColumns, ' ');
+        return tmpLine;
+    }
+
+    /**
+     * Writes cells into a transcript the way the emulator would print them
+     * with autowrap on, for reflowInto().
+     */
+    private static final class Rewrapper {
+        private final UnicodeTranscript mDst;
+        final int mColumns;
+        private final int mScreenRows;
+        private final int mStyle;
+        /** The default style of the rows being copied. */
+        int mDefaultStyle;
+        /** Where the next cell goes; mCol may be mColumns for a full row. */
+        private int mRow;
+        private int mCol;
+        /** Where the cursor's cell went, if it has been copied yet. */
+        int mCursorRow = -1;
+        int mCursorCol = -1;
+        /**
+         * The number of blanks in the default style at the end of the rows
+         * copied so far of the current line, which are only copied if
+         * something else on the line follows them.
+         */
+        int mPendingBlanks;
+        private char[] mBlanks;
+        /* The marks on the row being copied, for TranscriptMarks */
+        private int mMarkCount;
+        private int[] mMarkKinds = new int[TranscriptMarks.KINDS];
+        private int[] mMarkColumns = new int[TranscriptMarks.KINDS];
+        private String[] mMarkValues = new String[TranscriptMarks.KINDS];
+
+        Rewrapper(UnicodeTranscript dst, int style) {
+            mDst = dst;
+            mColumns = dst.mColumns;
+            mScreenRows = dst.mScreenRows;
+            mStyle = style;
+        }
+
+        void newLine(boolean lineWrap) {
+            UnicodeTranscript dst = mDst;
+            if (lineWrap) {
+                dst.mLineWrap[dst.externalToInternalRow(mRow)] = true;
+            } else {
+                mPendingBlanks = 0;
+            }
+            mCol = 0;
+            if (mRow + 1 < mScreenRows) {
+                ++mRow;
+                return;
+            }
+            dst.scroll(0, mScreenRows, mStyle);
+            if (mCursorRow != -1) {
+                // Stays negative once it has scrolled off
+                --mCursorRow;
+            }
+        }
+
+        /**
+         * Take the marks on the row about to be copied, to copy them to
+         * where their cells go.
          *
-         * width 1 -> width 2: should clobber the contents of the next
-         * column (if next column contains wide char, need to pad with a space)
+         * @param nextMarks The index of the next mark of each kind to copy,
+         *                  which is moved on past the row's marks.
+         */
+        void takeMarks(TranscriptMarks marks, long sequence, int[] nextMarks) {
+            mMarkCount = 0;
+            for (int kind = 0; kind < nextMarks.length; ++kind) {
+                int end = marks.getEnd(kind);
+                int i = nextMarks[kind];
+                for (; i < end && marks.getSequence(kind, i) == sequence; ++i) {
+                    if (mMarkCount == mMarkKinds.length) {
+                        int length = mMarkCount * 2;
+                        mMarkKinds = Arrays.copyOf(mMarkKinds, length);
+                        mMarkColumns = Arrays.copyOf(mMarkColumns, length);
+                        mMarkValues = Arrays.copyOf(mMarkValues, length);
+                    }
+                    mMarkKinds[mMarkCount] = kind;
+                    mMarkColumns[mMarkCount] = marks.getColumn(kind, i);
+                    mMarkValues[mMarkCount] = marks.getValue(kind, i);
+                    ++mMarkCount;
+                }
+                nextMarks[kind] = i;
+            }
+        }
+
+        /**
+         * Copy the row's marks at columns from start up to end to the cell
+         * about to be copied.
+         */
+        private void copyMarks(int start, int end) {
+            for (int i = 0; i < mMarkCount; ++i) {
+                int column = mMarkColumns[i];
+                if (column >= start && column < end) {
+                    mDst.addMark(mMarkKinds[i], mCol, mRow, mMarkValues[i]);
+                }
+            }
+        }
+
+        /**
+         * Copy the row's marks at or after a column, which go in the cells
+         * on from the next one, one column to a cell.
+         */
+        private void copyMarksFrom(int start) {
+            for (int i = 0; i < mMarkCount; ++i) {
+                int column = mMarkColumns[i] - start;
+                if (column >= 0) {
+                    column += mCol;
+                    mDst.addMark(mMarkKinds[i], column % mColumns, mRow + column / mColumns,
+                            mMarkValues[i]);
+                }
+            }
+            mMarkCount = 0;
+        }
+
+        /** Make room for a cell of the given width on the current row. */
+        private void fit(int width) {
+            if (mCol + width > mColumns && mCol > 0) {
+                newLine(true);
+            }
+        }
+
+        private void markCursor(int width) {
+            fit(width);
+            mCursorRow = mRow;
+            mCursorCol = mCol;
+        }
+
+        /**
+         * Copy the pending blanks, before the rest of the line.
          *
-         * inserting width 2 character into the second column of an existing
-         * width 2 character: same
+         * @param wideNext Whether the line goes on with an East Asian wide
+         *                 character.  If so, the last blank may be the
+         *                 padding left when it didn't fit at the end of a
+         *                 row, which would pile up over repeated resizes if
+         *                 it were kept, so it's dropped.
          */
-        if (oldCharWidth == 1 && charWidth == 2 || wasExtraColForWideChar && charWidth == 2) {
-            if (column == columns - 2) {
-                // Correct offset for the next column to reflect width change
-                offset[column + 1] = (short) (offset[column] - 1);
-
-                // Truncate the line after this character.
-                offset[0] = (short) (pos + newLen);
-                shift = 0;
+        void copyPendingBlanks(boolean wideNext) {
+            int blanks = mPendingBlanks;
+            mPendingBlanks = 0;
+            if (wideNext && blanks > 0) {
+                --blanks;
+            }
+            if (blanks > 0 && mBlanks == null) {
+                mBlanks = new char[mColumns];
+                Arrays.fill(mBlanks, ' ');
+            }
+            while (blanks > 0) {
+                int count = Math.min(blanks, mColumns);
+                copyBasicCells(mBlanks, null, 0, count);
+                blanks -= count;
+            }
+        }
+
+        void copyBasicLine(char[] text, StyleRow color, int length, int cursorCol) {
+            copyMarksFrom(0);
+            if (cursorCol >= 0) {
+                copyBasicCells(text, color, 0, cursorCol);
+                markCursor(1);
+                copyBasicCells(text, color, cursorCol, length);
             } else {
-                // Overwrite the contents of the next column.
-                int nextPos = pos + newLen;
-                int nextWidth = WcWidth.wcwidth(text, nextPos);
-                int nextLen;
-                if (column + nextWidth + 1 < columns) {
-                    nextLen = findStartOfColumn(column + nextWidth + 1) + shift - nextPos;
-                } else {
-                    nextLen = spaceUsed - nextPos;
-                }
+                copyBasicCells(text, color, 0, length);
+            }
+        }
 
-                if (nextWidth == 2) {
-                    text[nextPos] = ' ';
-                    // Shift the array to match
-                    if (nextLen > 1) {
-                        System.arraycopy(text, nextPos + nextLen, text, nextPos + 1, spaceUsed - nextPos - nextLen);
-                        shift -= nextLen - 1;
-                        offset[0] -= nextLen - 1;
-                    }
+        private void copyBasicCells(char[] text, StyleRow color, int start, int end) {
+            UnicodeTranscript dst = mDst;
+            int column = start;
+            while (column < end) {
+                int style;
+                int runEnd;
+                if (color != null) {
+                    style = color.get(column);
+                    runEnd = Math.min(color.getRunEnd(column), end);
                 } else {
-                    // Shift the array leftwards
-                    System.arraycopy(text, nextPos + nextLen, text, nextPos, spaceUsed - nextPos - nextLen);
-                    shift -= nextLen;
+                    style = mDefaultStyle;
+                    runEnd = end;
+                }
+                while (column < runEnd) {
+                    fit(1);
+                    int count = Math.min(runEnd - column, mColumns - mCol);
+                    dst.copyBasicChars(mCol, mRow, text, column, count, style);
+                    mCol += count;
+                    column += count;
+                }
+            }
+        }
 
-                    // Truncate the line
-                    offset[0] -= nextLen;
+        void copyFullLine(FullUnicodeLine line, int srcColumns, StyleRow color, int length,
+                          int cursorCol) {
+            UnicodeTranscript dst = mDst;
+            char[] text = line.getLine();
+            int spaceUsed = line.getSpaceUsed();
+            int column = 0;
+            int start = 0;
+            while (column < length) {
+                // The columns after the first of an East Asian wide character
+                // start at the same place
+                int next = column + 1;
+                while (next < srcColumns && line.findStartOfColumn(next) <= start) {
+                    ++next;
+                }
+                int end = Math.min(next < srcColumns
+                        ? line.findStartOfColumn(next) : spaceUsed, spaceUsed);
+                if (end > start && end < spaceUsed && Character.isHighSurrogate(text[end - 1])
+                        && Character.isLowSurrogate(text[end])) {
+                    // Don't split a surrogate pair between cells
+                    ++end;
+                }
+                boolean empty = end <= start;
+                int codePoint = empty ? ' ' : Character.codePointAt(text, start, end);
+                int width = WcWidth.wcwidth(codePoint);
+                boolean combining = !empty;
+                if (width > mColumns || width < 1
+                        || Character.getType(codePoint) == Character.SURROGATE) {
+                    // Can't be shown at this width, or a stray combining mark
+                    // or half of a surrogate pair
+                    codePoint = ' ';
+                    width = 1;
+                    combining = false;
                 }
+                int style = color != null ? color.get(column) : mDefaultStyle;
 
-                // Correct the offset for the next column to reflect width change
-                if (column == 0) {
-                    offset[1] = -1;
+                if (cursorCol >= column && cursorCol < next) {
+                    markCursor(width);
                 } else {
-                    offset[column + 1] = (short) (offset[column] - 1);
+                    fit(width);
                 }
-                ++column;
+                copyMarks(column, next);
+                dst.setChar(mCol, mRow, codePoint);
+                if (combining) {
+                    for (int i = start + Character.charCount(codePoint); i < end; ) {
+                        int c = Character.codePointAt(text, i, end);
+                        if (Character.getType(c) != Character.SURROGATE) {
+                            dst.setChar(mCol, mRow, c);
+                        }
+                        i += Character.charCount(c);
+                    }
+                }
+                dst.mColor[dst.externalToInternalRow(mRow)].set(mCol, width, style);
+                mCol += width;
+                column = next;
+                start = end;
             }
+            copyMarksFrom(column);
         }
+    }
 
-        // Update offset table
-        if (shift != 0) {
-            for (int i = column + 1; i < columns; ++i) {
-                offset[i] += shift;
+    /**
+     * Store a run of basic characters into a screen row, for reflowInto().
+     */
+    private void copyBasicChars(int column, int row, char[] src, int offset, int count,
+                                int style) {
+        markRowDirty(row);
+        row = externalToInternalRow(row);
+        if (mLines[row] == null) {
+            allocateBasicLine(row, mColumns);
+        }
+        Object line = mLines[row];
+        if (line instanceof char[]) {
+            System.arraycopy(src, offset, line, column, count);
+        } else {
+            FullUnicodeLine fullLine = (FullUnicodeLine) line;
+            for (int i = 0; i < count; ++i) {
+                fullLine.setChar(column + i, src[offset + i]);
             }
         }
+        mColor[row].set(column, count, style);
     }
 }
-
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.graphics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Stands in for the framework's Bitmap in JVM tests.  It has a size but no
+ * pixels; instead it remembers the text drawn into it and where, so that a
+ * test can tell what part of it would show.
+ */
+public class Bitmap {
+    public enum Config {
+        ALPHA_8,
+        RGB_565,
+        ARGB_8888
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    /** Text drawn into the bitmap, by the position it was drawn at. */
+    private HashMap<Point, String> mText;
+
+    private Bitmap(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void eraseColor(int color) {
+    }
+
+    public void recycle() {
+    }
+
+    void drawText(String text, int x, int y) {
+        if (mText == null) {
+            mText = new HashMap<>();
+        }
+        mText.put(new Point(x, y), text);
+    }
+
+    void clearText(int left, int top, int right, int bottom) {
+        if (mText == null) {
+            return;
+        }
+        Iterator<Point> it = mText.keySet().iterator();
+        while (it.hasNext()) {
+            Point p = it.next();
+            if (p.x >= left && p.x < right && p.y >= top && p.y < bottom) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the text drawn into part of the bitmap.  Not in the framework.
+     *
+     * @return The text, or null if there isn't exactly one piece of text
+     * there.
+     */
+    public String getText(Rect rect) {
+        if (mText == null) {
+            return null;
+        }
+        String found = null;
+        for (Map.Entry<Point, String> entry : mText.entrySet()) {
+            Point p = entry.getKey();
+            if (p.x >= rect.left && p.x < rect.right && p.y >= rect.top && p.y < rect.bottom) {
+                if (found != null) {
+                    return null;
+                }
+                found = entry.getValue();
+            }
+        }
+        return found;
+    }
+}
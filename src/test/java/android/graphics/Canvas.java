@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.graphics;
+
+/**
+ * Stands in for the framework's Canvas in JVM tests.  Drawing into a bitmap
+ * records the text drawn, and clearing it forgets the text in the clip;
+ * nothing else is drawn.  Tests which need to see what was drawn on the
+ * screen override the methods they care about.
+ */
+public class Canvas {
+    private final Bitmap mBitmap;
+    private final Rect mClip = new Rect();
+    private final Rect mSavedClip = new Rect();
+
+    public Canvas() {
+        mBitmap = null;
+    }
+
+    public Canvas(Bitmap bitmap) {
+        mBitmap = bitmap;
+        mClip.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    public int save() {
+        mSavedClip.set(mClip.left, mClip.top, mClip.right, mClip.bottom);
+        return 1;
+    }
+
+    public void restore() {
+        mClip.set(mSavedClip.left, mSavedClip.top, mSavedClip.right, mSavedClip.bottom);
+    }
+
+    public boolean clipRect(int left, int top, int right, int bottom) {
+        mClip.set(Math.max(left, mClip.left), Math.max(top, mClip.top),
+                Math.min(right, mClip.right), Math.min(bottom, mClip.bottom));
+        return mClip.left < mClip.right && mClip.top < mClip.bottom;
+    }
+
+    public void concat(Matrix matrix) {
+    }
+
+    public void drawColor(int color, PorterDuff.Mode mode) {
+        if (mBitmap != null && mode == PorterDuff.Mode.CLEAR) {
+            mBitmap.clearText(mClip.left, mClip.top, mClip.right, mClip.bottom);
+        }
+    }
+
+    public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+    }
+
+    public void drawPath(Path path, Paint paint) {
+    }
+
+    public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+        if (mBitmap != null) {
+            mBitmap.drawText(describe(text, index, count, paint), (int) x, (int) y);
+        }
+    }
+
+    /**
+     * Describe text drawn with a paint, so that tests can compare what was
+     * drawn.  Not in the framework.
+     */
+    public static String describe(char[] text, int index, int count, Paint paint) {
+        return new String(text, index, count)
+                + (paint.isFakeBoldText() ? "/bold" : "")
+                + (paint.isUnderlineText() ? "/underline" : "");
+    }
+
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+    }
+
+    public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+    }
+}
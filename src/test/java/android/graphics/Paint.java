@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.graphics;
+
+/**
+ * Stands in for the framework's Paint in JVM tests.  It keeps the state
+ * the renderers set, and measures every character as a fixed fraction of
+ * the text size.
+ */
+public class Paint {
+    public enum Style {
+        FILL,
+        STROKE,
+        FILL_AND_STROKE
+    }
+
+    private int mColor;
+    private float mTextSize = 12;
+    private boolean mFakeBoldText;
+    private boolean mUnderlineText;
+
+    public Paint() {
+    }
+
+    public Paint(Paint paint) {
+        mColor = paint.mColor;
+        mTextSize = paint.mTextSize;
+        mFakeBoldText = paint.mFakeBoldText;
+        mUnderlineText = paint.mUnderlineText;
+    }
+
+    public void setColor(int color) {
+        mColor = color;
+    }
+
+    public int getColor() {
+        return mColor;
+    }
+
+    public void setTextSize(float textSize) {
+        mTextSize = textSize;
+    }
+
+    public void setFakeBoldText(boolean fakeBoldText) {
+        mFakeBoldText = fakeBoldText;
+    }
+
+    public boolean isFakeBoldText() {
+        return mFakeBoldText;
+    }
+
+    public void setUnderlineText(boolean underlineText) {
+        mUnderlineText = underlineText;
+    }
+
+    public boolean isUnderlineText() {
+        return mUnderlineText;
+    }
+
+    public Typeface setTypeface(Typeface typeface) {
+        return typeface;
+    }
+
+    public void setAntiAlias(boolean aa) {
+    }
+
+    public void setFilterBitmap(boolean filter) {
+    }
+
+    public void setStrokeWidth(float width) {
+    }
+
+    public void setStyle(Style style) {
+    }
+
+    public ColorFilter setColorFilter(ColorFilter filter) {
+        return filter;
+    }
+
+    public float getFontSpacing() {
+        return mTextSize * 1.25f;
+    }
+
+    public float ascent() {
+        return -mTextSize * 0.9f;
+    }
+
+    public float measureText(char[] text, int index, int count) {
+        return count * mTextSize * 0.6f;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.HashMap;
+
+/**
+ * Stands in for the framework's LongSparseArray in JVM tests.
+ */
+public class LongSparseArray<E> {
+    private final HashMap<Long, E> mMap = new HashMap<>();
+
+    public E get(long key) {
+        return mMap.get(key);
+    }
+
+    public void put(long key, E value) {
+        mMap.put(key, value);
+    }
+
+    public void remove(long key) {
+        mMap.remove(key);
+    }
+
+    public void clear() {
+        mMap.clear();
+    }
+
+    public int size() {
+        return mMap.size();
+    }
+}
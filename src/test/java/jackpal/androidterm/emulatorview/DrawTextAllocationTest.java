@@ -0,0 +1,107 @@
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Canvas;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drawing a frame mustn't allocate, or continuous output makes the GC run
+ * while the user watches.  Allocations are counted with the HotSpot
+ * per-thread allocation counter, so this only runs on JVMs which have one.
+ */
+public class DrawTextAllocationTest {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+
+    private com.sun.management.ThreadMXBean mThreadBean;
+    private TranscriptScreen mScreen;
+    private PaintRenderer mRenderer;
+    private Canvas mCanvas;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        mThreadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+
+        mScreen = new TranscriptScreen(COLUMNS, 100, ROWS);
+        mRenderer = new PaintRenderer();
+        mRenderer.updateSize(16, null);
+        mCanvas = new Canvas();
+
+        int normal = TextStyle.kNormalTextStyle;
+        int bold = TextStyle.encode(1, 0, TextStyle.fxBold);
+        int underline = TextStyle.encode(2, 3, TextStyle.fxUnderline);
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                int style = column % 3 == 0 ? normal : column % 3 == 1 ? bold : underline;
+                mScreen.set(column, row, 'a' + (row + column) % 26, style);
+            }
+        }
+        // Rows of wide, astral and combining characters
+        for (int column = 0; column < COLUMNS; column += 2) {
+            mScreen.set(column, 3, 0x4e2d, normal);
+        }
+        for (int column = 0; column < COLUMNS; column += 2) {
+            mScreen.set(column, 4, 0x1f600, bold);
+        }
+        mScreen.set(10, 5, 0x301, normal);
+        // Scroll some blank rows onto the bottom of the screen
+        for (int i = 0; i < 4; i++) {
+            mScreen.scroll(0, ROWS, normal);
+        }
+    }
+
+    private void drawFrame() {
+        float y = 0;
+        for (int row = 0; row < ROWS; row++) {
+            y += 16;
+            int cursorX = row == 2 || row == ROWS - 1 ? 5 : -1;
+            int selx1 = row >= 6 && row <= 8 ? 3 : -1;
+            int selx2 = row >= 6 && row <= 8 ? 40 : -1;
+            String imeText = row == 2 ? "ime text" : null;
+            mScreen.drawText(row, mCanvas, 0, y, mRenderer, cursorX, selx1, selx2, imeText, 0);
+        }
+        // Rows in the transcript
+        for (int row = -4; row < 0; row++) {
+            mScreen.drawText(row, mCanvas, 0, 0, mRenderer, -1, 0, COLUMNS - 1, null, 0);
+        }
+    }
+
+    private long allocatedBytes() {
+        return mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testDrawTextDoesNotAllocate() {
+        // Let any scratch buffers reach their final size
+        for (int i = 0; i < 10; i++) {
+            drawFrame();
+        }
+
+        // Reading the counter may itself allocate; measure that first
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long before = allocatedBytes();
+            long after = allocatedBytes();
+            overhead = Math.min(overhead, after - before);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            long before = allocatedBytes();
+            for (int frame = 0; frame < 100; frame++) {
+                drawFrame();
+            }
+            long after = allocatedBytes();
+            assertEquals("bytes allocated by 100 frames", 0, after - before - overhead);
+        }
+    }
+}
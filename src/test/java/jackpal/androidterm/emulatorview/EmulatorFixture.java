@@ -0,0 +1,40 @@
+package jackpal.androidterm.emulatorview;
+
+import java.nio.charset.Charset;
+
+/**
+ * Emulators with no session behind them, for the tests which feed them
+ * output directly.
+ */
+final class EmulatorFixture {
+    static final int COLUMNS = 80;
+    static final int ROWS = 24;
+
+    private EmulatorFixture() {
+    }
+
+    static ColorScheme newColorScheme() {
+        return new ColorScheme(0xffffffff, 0xff000000);
+    }
+
+    /** Make a UTF-8 emulator the size of a screen's rows. */
+    static TerminalEmulator newEmulator(TranscriptScreen screen) {
+        TerminalEmulator emulator = new TerminalEmulator(null, screen, screen.getColumns(),
+                screen.getScreenRows(), newColorScheme());
+        emulator.setDefaultUTF8Mode(true);
+        return emulator;
+    }
+
+    static void write(TerminalEmulator emulator, String text) {
+        byte[] bytes = text.getBytes(Charset.forName("UTF-8"));
+        emulator.append(bytes, 0, bytes.length);
+    }
+
+    static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,120 @@
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A hardware canvas reads the atlas when the frame is played back, not when
+ * a glyph is copied from it, so every glyph of a frame has to still be in
+ * its slot once the whole frame has been drawn.
+ */
+public class GlyphAtlasRendererTest {
+    private static final int WIDE_GLYPHS_PER_ROW = 40;
+
+    /** Records what was drawn, to be looked at once the frame is over. */
+    private static class FrameCanvas extends Canvas {
+        private final List<Bitmap> mBitmaps = new ArrayList<>();
+        private final List<Rect> mSources = new ArrayList<>();
+        private final List<String> mTexts = new ArrayList<>();
+        int mBitmapDraws;
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+            Rect copy = new Rect();
+            copy.set(src.left, src.top, src.right, src.bottom);
+            mBitmaps.add(bitmap);
+            mSources.add(copy);
+            mTexts.add(null);
+            mBitmapDraws++;
+        }
+
+        @Override
+        public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+            mBitmaps.add(null);
+            mSources.add(null);
+            mTexts.add(describe(text, index, count, paint));
+        }
+
+        /** What the frame shows, in the order it was drawn. */
+        List<String> playBack() {
+            List<String> shown = new ArrayList<>();
+            for (int i = 0; i < mTexts.size(); i++) {
+                Bitmap bitmap = mBitmaps.get(i);
+                shown.add(bitmap != null ? bitmap.getText(mSources.get(i)) : mTexts.get(i));
+            }
+            return shown;
+        }
+    }
+
+    private GlyphAtlasRenderer mRenderer;
+
+    @Before
+    public void setUp() {
+        mRenderer = new GlyphAtlasRenderer();
+        mRenderer.updateSize(16, null);
+    }
+
+    /**
+     * Draw a frame of distinct wide glyphs, every other row of them bold.
+     *
+     * @return What the frame should show.
+     */
+    private List<String> drawFrame(FrameCanvas canvas, int firstCodePoint, int glyphs) {
+        mRenderer.beginFrame();
+        List<String> expected = new ArrayList<>();
+        int bold = TextStyle.encode(TextStyle.ciForeground, TextStyle.ciBackground,
+                TextStyle.fxBold);
+        char[] text = new char[WIDE_GLYPHS_PER_ROW];
+        for (int row = 0; row * WIDE_GLYPHS_PER_ROW < glyphs; row++) {
+            int count = Math.min(WIDE_GLYPHS_PER_ROW, glyphs - row * WIDE_GLYPHS_PER_ROW);
+            boolean isBold = row % 2 == 1;
+            for (int i = 0; i < count; i++) {
+                text[i] = (char) (firstCodePoint + row * WIDE_GLYPHS_PER_ROW + i);
+                expected.add(text[i] + (isBold ? "/bold" : ""));
+            }
+            mRenderer.drawTextRun(canvas, 0, (row + 1) * mRenderer.mCharHeight, 0, 2 * count,
+                    text, 0, count, false, isBold ? bold : TextStyle.kNormalTextStyle,
+                    -1, 0, 0, 1, 0);
+        }
+        return expected;
+    }
+
+    @Test
+    public void testAtlasGrowsToHoldAFrame() {
+        FrameCanvas canvas = new FrameCanvas();
+        List<String> expected = drawFrame(canvas, 0x4e00, 600);
+        assertEquals(expected, canvas.playBack());
+        assertEquals(600, canvas.mBitmapDraws);
+    }
+
+    @Test
+    public void testMoreGlyphsThanTheAtlasHolds() {
+        FrameCanvas canvas = new FrameCanvas();
+        List<String> expected = drawFrame(canvas, 0x4e00, 3000);
+        assertEquals(expected, canvas.playBack());
+        assertTrue("glyphs drawn from the atlas: " + canvas.mBitmapDraws,
+                canvas.mBitmapDraws > 512 && canvas.mBitmapDraws < 3000);
+    }
+
+    @Test
+    public void testGlyphsEvictedBetweenFrames() {
+        for (int frame = 0; frame < 4; frame++) {
+            FrameCanvas canvas = new FrameCanvas();
+            int first = frame % 2 == 0 ? 0x4e00 : 0x6000;
+            List<String> expected = drawFrame(canvas, first, 2000);
+            assertEquals("frame " + frame, expected, canvas.playBack());
+            assertEquals(2000, canvas.mBitmapDraws);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rows have to come back out of the store exactly as they went in, whether
+ * they were read from a raw chunk, a compressed one or the spill file, and
+ * however far the index and the chunks have wrapped around their rings.
+ */
+public class ScrollbackStoreTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+    private final StylePalette mPalette = new StylePalette();
+    private boolean mCommonStyles;
+
+    /** A row as it was appended: its cells, styles and line wrap. */
+    private static final class Row {
+        final String mCells;
+        final int[] mStyles;
+        final boolean mWrap;
+
+        Row(String cells, int[] styles, boolean wrap) {
+            mCells = cells;
+            mStyles = styles;
+            mWrap = wrap;
+        }
+    }
+
+    /** The chars in each column of a row, separated by bars. */
+    static String describeCells(Object line, int columns) {
+        if (line == null) {
+            return null;
+        }
+        StringBuilder cells = new StringBuilder();
+        if (line instanceof char[]) {
+            char[] text = (char[]) line;
+            for (int column = 0; column < columns; column++) {
+                cells.append(text[column]).append('|');
+            }
+            return cells.toString();
+        }
+        FullUnicodeLine full = (FullUnicodeLine) line;
+        char[] text = full.getLine();
+        for (int column = 0; column < columns; column++) {
+            int start = full.findStartOfColumn(column);
+            int end = column + 1 < columns ? full.findStartOfColumn(column + 1)
+                    : full.getSpaceUsed();
+            cells.append(text, start, end - start).append('|');
+        }
+        return cells.toString();
+    }
+
+    static int[] describeStyles(StyleRow color, int columns) {
+        if (color == null) {
+            return null;
+        }
+        int[] styles = new int[columns];
+        for (int column = 0; column < columns; column++) {
+            styles[column] = color.get(column);
+        }
+        return styles;
+    }
+
+    private int randomStyle() {
+        // Effects go in the top byte, so both halves of a style are stored
+        return TextStyle.encode(mRandom.nextInt(TextStyle.ciMaxColor + 1),
+                mRandom.nextInt(TextStyle.ciMaxColor + 1), mRandom.nextInt(64));
+    }
+
+    /** One of a few styles, for rows which have to compress well. */
+    private int commonStyle() {
+        return TextStyle.encode(mRandom.nextInt(8), TextStyle.ciBackground,
+                mRandom.nextInt(2) * TextStyle.fxBold);
+    }
+
+    /** A random char[] row, which may end in spaces. */
+    private char[] randomBasicLine(int columns) {
+        char[] text = new char[columns];
+        int length = mRandom.nextInt(columns + 1);
+        for (int column = 0; column < columns; column++) {
+            text[column] = column < length ? (char) ('a' + mRandom.nextInt(8)) : ' ';
+        }
+        return text;
+    }
+
+    /** A random row of wide, astral and combining characters. */
+    private FullUnicodeLine randomFullLine(int columns) {
+        FullUnicodeLine line = new FullUnicodeLine(columns);
+        int column = 0;
+        while (column < columns) {
+            int kind = mRandom.nextInt(6);
+            if (kind == 0 && column < columns - 1) {
+                line.setChar(column, 0x4e00 + mRandom.nextInt(100));
+                column += 2;
+            } else if (kind == 1 && column < columns - 1) {
+                line.setChar(column, 0x1f600 + mRandom.nextInt(50));
+                column += 2;
+            } else if (kind == 2) {
+                line.setChar(column, 'a' + mRandom.nextInt(8));
+                line.setChar(column, 0x301 + mRandom.nextInt(4));
+                column += 1;
+            } else {
+                line.setChar(column, 'a' + mRandom.nextInt(8));
+                column += 1;
+            }
+        }
+        return line;
+    }
+
+    private StyleRow randomColor(int columns) {
+        // Some rows with enough runs to be expanded into palette indices
+        boolean busy = mRandom.nextInt(4) == 0;
+        StyleRow color = new StyleRow(randomStyle(), columns, mPalette);
+        int runs = busy ? columns / 2 : mRandom.nextInt(4);
+        for (int i = 0; i < runs; i++) {
+            int start = mRandom.nextInt(columns);
+            int style = mCommonStyles ? commonStyle() : randomStyle();
+            color.set(start, 1 + mRandom.nextInt(columns - start), style);
+        }
+        return color;
+    }
+
+    /** Append a random row, returning what should come back out. */
+    private Row appendRandomRow(ScrollbackStore store, int columns) {
+        return appendRandomRow(columns, store);
+    }
+
+    /** Append the same random row to several stores. */
+    private Row appendRandomRow(int columns, ScrollbackStore... stores) {
+        Object line;
+        switch (mRandom.nextInt(5)) {
+            case 0:
+                line = null;
+                break;
+            case 1:
+            case 2:
+                line = randomBasicLine(columns);
+                break;
+            default:
+                line = randomFullLine(columns);
+                break;
+        }
+        StyleRow color = randomColor(columns);
+        boolean wrap = mRandom.nextBoolean();
+        for (ScrollbackStore store : stores) {
+            store.append(line, color, wrap);
+        }
+        // Blank rows lose their style
+        return new Row(describeCells(line, columns),
+                line == null ? null : describeStyles(color, columns), wrap);
+    }
+
+    private void assertRows(ScrollbackStore store, List<Row> rows) {
+        int columns = store.getColumns();
+        int count = store.getRowCount();
+        assertTrue(count <= rows.size());
+        int first = rows.size() - count;
+        // Backwards, so that reads jump between chunks
+        for (int row = count - 1; row >= 0; row--) {
+            Row expected = rows.get(first + row);
+            store.load(row);
+            assertEquals("cells of row " + row, expected.mCells,
+                    describeCells(store.getLine(), columns));
+            int[] styles = describeStyles(store.getColor(), columns);
+            if (expected.mStyles == null) {
+                assertNull("styles of blank row " + row, styles);
+            } else {
+                for (int column = 0; column < columns; column++) {
+                    assertEquals("style of row " + row + " column " + column,
+                            expected.mStyles[column], styles[column]);
+                }
+            }
+            assertEquals("wrap of row " + row, expected.mWrap, store.getLineWrap());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+        ScrollbackStore store = new ScrollbackStore(20, 1000);
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            rows.add(appendRandomRow(store, 20));
+        }
+        assertEquals(500, store.getRowCount());
+        assertRows(store, rows);
+    }
+
+    @Test
+    public void testRingWrap() {
+        // The index starts at 256 rows and grows to 300, so both wrap
+        ScrollbackStore store = new ScrollbackStore(40, 300);
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            rows.add(appendRandomRow(store, 40));
+            if (i % 997 == 0) {
+                assertRows(store, rows);
+            }
+        }
+        assertEquals(300, store.getRowCount());
+        assertRows(store, rows);
+    }
+
+    @Test
+    public void testRemoveOldestRows() {
+        ScrollbackStore store = new ScrollbackStore(40, 3000);
+        List<Row> rows = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 2000; i++) {
+                rows.add(appendRandomRow(store, 40));
+            }
+            while (store.getRowCount() > 100) {
+                store.removeOldestRow();
+            }
+            store.trimIndex();
+            assertRows(store, rows);
+        }
+        while (store.getRowCount() > 0) {
+            store.removeOldestRow();
+        }
+        rows.add(appendRandomRow(store, 40));
+        assertRows(store, rows);
+    }
+
+    @Test
+    public void testCompressedChunks() throws InterruptedException {
+        mCommonStyles = true;
+        ScrollbackStore store = new ScrollbackStore(80, 5000, true, null);
+        ScrollbackStore raw = new ScrollbackStore(80, 5000);
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 8000; i++) {
+            rows.add(appendRandomRow(80, store, raw));
+        }
+        ScrollbackStore.waitForCompressor();
+        assertTrue("compressed " + raw.getMemoryUsage() + " to " + store.getMemoryUsage(),
+                store.getMemoryUsage() < raw.getMemoryUsage() / 2);
+        assertRows(store, rows);
+        // Read again from the cache of inflated chunks
+        assertRows(store, rows);
+    }
+
+    private void testSpill(boolean compress) throws InterruptedException {
+        mCommonStyles = compress;
+        File directory = mFolder.getRoot();
+        ScrollbackStore store = new ScrollbackStore(80, 4000, compress, directory);
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            rows.add(appendRandomRow(store, 80));
+            if (i % 5000 == 4999) {
+                ScrollbackStore.waitForCompressor();
+                assertRows(store, rows);
+            }
+        }
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        // Segments whose chunks were all dropped have been reused
+        assertTrue("spill file of " + files[0].length(), files[0].length() <= 2 * 1024 * 1024);
+
+        int before = store.getRowCount();
+        store.close();
+        assertEquals(0, directory.listFiles().length);
+        assertTrue(store.getRowCount() < before);
+        assertTrue(store.getRowCount() > 0);
+        assertRows(store, rows);
+
+        // The store carries on in memory
+        for (int i = 0; i < 5000; i++) {
+            rows.add(appendRandomRow(store, 80));
+        }
+        assertEquals(4000, store.getRowCount());
+        assertRows(store, rows);
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testSpill() throws InterruptedException {
+        testSpill(false);
+    }
+
+    @Test
+    public void testSpillCompressed() throws InterruptedException {
+        testSpill(true);
+    }
+
+    /** The chars in each column of a transcript row, separated by bars. */
+    private static String describeTranscriptCells(UnicodeTranscript transcript, int row,
+                                                  int columns) {
+        if (transcript.getLine(row) == null) {
+            return null;
+        }
+        StringBuilder cells = new StringBuilder();
+        for (int column = 0; column < columns; column++) {
+            char[] text = transcript.getLine(row, column, column + 1);
+            for (int i = 0; i < text.length && text[i] != 0; i++) {
+                cells.append(text[i]);
+            }
+            cells.append('|');
+        }
+        return cells.toString();
+    }
+
+    @Test
+    public void testTranscriptScrollsIntoStore() {
+        int columns = 20;
+        int screenRows = 5;
+        int style = TextStyle.kNormalTextStyle;
+        ScrollbackStore store = new ScrollbackStore(columns, 1500, true, null);
+        UnicodeTranscript transcript = new UnicodeTranscript(columns, 12, screenRows, style,
+                store);
+        // The same rows, all kept in the circular buffer
+        UnicodeTranscript reference = new UnicodeTranscript(columns, 2100, screenRows, style);
+
+        int bottom = screenRows - 1;
+        for (int i = 0; i < 2000; i++) {
+            int column = 0;
+            while (column < columns) {
+                int codePoint;
+                int kind = mRandom.nextInt(8);
+                if (kind == 0 && column < columns - 1) {
+                    codePoint = 0x4e00 + mRandom.nextInt(100);
+                } else if (kind == 1 && column < columns - 1) {
+                    codePoint = 0x1f600 + mRandom.nextInt(50);
+                } else if (kind == 2) {
+                    // A blank rest of the row
+                    break;
+                } else {
+                    codePoint = 'a' + mRandom.nextInt(8);
+                }
+                int cellStyle = mRandom.nextInt(3) == 0 ? randomStyle() : style;
+                transcript.setChar(column, bottom, codePoint, cellStyle);
+                reference.setChar(column, bottom, codePoint, cellStyle);
+                if (kind == 3 && mRandom.nextBoolean()) {
+                    transcript.setChar(column, bottom, 0x301);
+                    reference.setChar(column, bottom, 0x301);
+                }
+                column += WcWidth.wcwidth(codePoint);
+            }
+            if (mRandom.nextBoolean()) {
+                transcript.setLineWrap(bottom);
+                reference.setLineWrap(bottom);
+            }
+            transcript.scroll(0, screenRows, style);
+            reference.scroll(0, screenRows, style);
+        }
+
+        assertEquals(1500 + 12 - screenRows, transcript.getActiveTranscriptRows());
+        for (int row = -transcript.getActiveTranscriptRows(); row < screenRows; row++) {
+            String cells = describeTranscriptCells(reference, row, columns);
+            assertEquals("cells of row " + row, cells,
+                    describeTranscriptCells(transcript, row, columns));
+            if (cells != null) {
+                int[] expected = describeStyles(reference.getLineColor(row), columns);
+                int[] actual = describeStyles(transcript.getLineColor(row), columns);
+                for (int column = 0; column < columns; column++) {
+                    assertEquals("style of row " + row + " column " + column,
+                            expected[column], actual[column]);
+                }
+            }
+            assertEquals("wrap of row " + row, reference.getLineWrap(row),
+                    transcript.getLineWrap(row));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StylePaletteTest {
+    @Test
+    public void testIntern() {
+        StylePalette palette = new StylePalette();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, palette.intern(TextStyle.encode(i, 0, 0)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, palette.intern(TextStyle.encode(i, 0, 0)));
+            assertEquals(TextStyle.encode(i, 0, 0), palette.getStyle(i));
+        }
+        assertEquals(1000, palette.size());
+    }
+
+    @Test
+    public void testCompact() {
+        StylePalette palette = new StylePalette();
+        for (int i = 0; i < 300; i++) {
+            palette.intern(i);
+        }
+        boolean[] used = new boolean[300];
+        for (int i = 0; i < 300; i += 3) {
+            used[i] = true;
+        }
+        int[] map = palette.compact(used);
+        assertEquals(100, palette.size());
+        for (int i = 0; i < 300; i++) {
+            if (i % 3 == 0) {
+                assertEquals(i / 3, map[i]);
+                assertEquals(i, palette.getStyle(i / 3));
+                assertEquals(i / 3, palette.intern(i));
+            } else {
+                assertEquals(-1, map[i]);
+            }
+        }
+        // Dropped styles come back at the end
+        assertEquals(100, palette.intern(1));
+    }
+
+    @Test
+    public void testCompactionThreshold() {
+        StylePalette palette = new StylePalette();
+        for (int i = 0; i < StylePalette.NARROW_STYLES - 1; i++) {
+            palette.intern(i);
+        }
+        assertFalse(palette.needsCompaction());
+        palette.intern(-1);
+        assertTrue(palette.needsCompaction());
+
+        // With most styles still in use, wait for the palette to double
+        boolean[] used = new boolean[palette.size()];
+        for (int i = 0; i < 200; i++) {
+            used[i] = true;
+        }
+        palette.compact(used);
+        for (int i = 0; palette.size() < 2 * StylePalette.NARROW_STYLES - 1; i++) {
+            palette.intern(1000 + i);
+        }
+        assertFalse(palette.needsCompaction());
+        palette.intern(-2);
+        assertTrue(palette.needsCompaction());
+    }
+
+    @Test
+    public void testFull() {
+        StylePalette palette = new StylePalette();
+        for (int i = 0; i < StylePalette.MAX_STYLES; i++) {
+            assertEquals(i, palette.intern(i));
+        }
+        assertEquals(-1, palette.intern(-1));
+        assertEquals(12345, palette.intern(12345));
+        assertTrue(palette.needsCompaction());
+
+        boolean[] used = new boolean[StylePalette.MAX_STYLES];
+        used[StylePalette.MAX_STYLES - 1] = true;
+        int[] map = palette.compact(used);
+        assertEquals(0, map[StylePalette.MAX_STYLES - 1]);
+        assertEquals(1, palette.intern(-1));
+    }
+}
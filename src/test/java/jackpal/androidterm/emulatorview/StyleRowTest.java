@@ -0,0 +1,253 @@
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A StyleRow may hold its styles as a solid style, as runs, or expanded into
+ * palette indices, and switches between them as it's written; whichever it
+ * is, it has to read back the same as a plain int per column would.
+ */
+public class StyleRowTest {
+    private static final int COLUMNS = 80;
+
+    private final Random mRandom = new Random(7);
+
+    private int randomStyle() {
+        if (mRandom.nextInt(10) == 0) {
+            // Enough distinct styles to need more than a byte per index
+            return TextStyle.encode(mRandom.nextInt(TextStyle.ciMaxColor + 1),
+                    mRandom.nextInt(TextStyle.ciMaxColor + 1), mRandom.nextInt(64));
+        }
+        return TextStyle.encode(mRandom.nextInt(4), TextStyle.ciBackground,
+                mRandom.nextInt(2) * TextStyle.fxUnderline);
+    }
+
+    static void assertRow(String message, int[] expected, StyleRow row) {
+        int columns = expected.length;
+        for (int column = 0; column < columns; column++) {
+            assertEquals(message + ", column " + column, expected[column], row.get(column));
+        }
+        // Walking the row a run at a time visits runs of a single style
+        for (int column = 0; column < columns; ) {
+            int end = row.getRunEnd(column);
+            assertTrue(message + ", run end " + end + " at " + column,
+                    end > column && end <= columns);
+            for (int i = column; i < end; i++) {
+                assertEquals(message + ", run at " + column, expected[column], expected[i]);
+            }
+            column = end;
+        }
+    }
+
+    /** Apply a random operation to one of the rows and to its model. */
+    private String randomOperation(StyleRow[] rows, int[][] models) {
+        int which = mRandom.nextInt(rows.length);
+        StyleRow row = rows[which];
+        int[] model = models[which];
+        int column = mRandom.nextInt(COLUMNS);
+        int style = randomStyle();
+        switch (mRandom.nextInt(12)) {
+            case 0: {
+                row.reset(style);
+                Arrays.fill(model, style);
+                return "reset row " + which;
+            }
+            case 1: {
+                row.set(0, COLUMNS, style);
+                Arrays.fill(model, style);
+                return "set all of row " + which;
+            }
+            case 2: {
+                int other = mRandom.nextInt(rows.length);
+                rows[which].copyFrom(rows[other]);
+                models[which] = models[other].clone();
+                return "copy row " + other + " to row " + which;
+            }
+            case 3:
+            case 4: {
+                int other = mRandom.nextInt(rows.length);
+                int start = mRandom.nextInt(COLUMNS);
+                int offset = mRandom.nextInt(COLUMNS);
+                int len = mRandom.nextInt(COLUMNS - Math.max(start, offset) + 1);
+                rows[other].copy(start, row, offset, len);
+                System.arraycopy(models[other], start, model, offset, len);
+                return "copy " + len + " from row " + other + " at " + start
+                        + " to row " + which + " at " + offset;
+            }
+            case 5:
+            case 6: {
+                row.set(column, style);
+                model[column] = style;
+                return "set row " + which + " column " + column;
+            }
+            default: {
+                int count = mRandom.nextInt(Math.min(8, COLUMNS - column) + 1);
+                row.set(column, count, style);
+                Arrays.fill(model, column, column + count, style);
+                return "set row " + which + " columns " + column + " + " + count;
+            }
+        }
+    }
+
+    /** Compact a palette the way the transcript does, over the rows using it. */
+    static void compact(StylePalette palette, StyleRow... rows) {
+        boolean[] used = new boolean[palette.size()];
+        for (StyleRow row : rows) {
+            row.markStyles(used);
+        }
+        int[] map = palette.compact(used);
+        for (StyleRow row : rows) {
+            row.remapStyles(map);
+        }
+    }
+
+    private void testRandomOperations(StylePalette palette, StylePalette otherPalette,
+            boolean compact) {
+        StyleRow[] rows = new StyleRow[6];
+        int[][] models = new int[rows.length][COLUMNS];
+        for (int i = 0; i < rows.length; i++) {
+            int style = randomStyle();
+            // One row from another palette, to copy indices between them
+            rows[i] = new StyleRow(style, COLUMNS, i == 0 ? otherPalette : palette);
+            Arrays.fill(models[i], style);
+        }
+        for (int op = 0; op < 20000; op++) {
+            String operation = randomOperation(rows, models);
+            if (compact && palette.needsCompaction()) {
+                compact(otherPalette, rows[0]);
+                compact(palette, Arrays.copyOfRange(rows, 1, rows.length));
+                operation += ", then compact";
+            }
+            for (int i = 0; i < rows.length; i++) {
+                assertRow("op " + op + " (" + operation + "), row " + i, models[i], rows[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testRandomOperations() {
+        testRandomOperations(new StylePalette(), new StylePalette(), false);
+    }
+
+    @Test
+    public void testRandomOperationsWithCompaction() {
+        // Compaction keeps taking the palette back under 256 styles, so rows
+        // keep switching between a byte and a char per column
+        testRandomOperations(new StylePalette(), new StylePalette(), true);
+    }
+
+    @Test
+    public void testRandomOperationsWithoutPalette() {
+        // Rows with no palette stay as runs however busy they get
+        testRandomOperations(null, null, false);
+    }
+
+    @Test
+    public void testBusyRowExpands() {
+        StylePalette palette = new StylePalette();
+        StyleRow row = new StyleRow(TextStyle.kNormalTextStyle, COLUMNS, palette);
+        int[] model = new int[COLUMNS];
+        Arrays.fill(model, TextStyle.kNormalTextStyle);
+        long solid = row.getMemoryUsage();
+        for (int column = 0; column < COLUMNS; column += 2) {
+            int style = TextStyle.encode(column % 7, TextStyle.ciBackground, 0);
+            row.set(column, style);
+            model[column] = style;
+        }
+        assertRow("alternating", model, row);
+        // A byte per column, rather than two ints per run
+        assertTrue(row.getMemoryUsage() < solid + 16 + 4 * COLUMNS);
+        assertTrue(palette.size() > 0);
+
+        row.set(0, COLUMNS, TextStyle.kNormalTextStyle);
+        assertTrue(row.isSolidStyle());
+        assertEquals(TextStyle.kNormalTextStyle, row.getSolidStyle());
+    }
+
+    @Test
+    public void testFullPaletteCollapsesRow() {
+        StylePalette palette = new StylePalette();
+        StyleRow row = new StyleRow(TextStyle.kNormalTextStyle, COLUMNS, palette);
+        int[] model = new int[COLUMNS];
+        Arrays.fill(model, TextStyle.kNormalTextStyle);
+        for (int column = 0; column < COLUMNS; column++) {
+            int style = TextStyle.encode(column % 5, TextStyle.ciBackground, 0);
+            row.set(column, style);
+            model[column] = style;
+        }
+        for (int style = 0; palette.size() < StylePalette.MAX_STYLES; style++) {
+            palette.intern(0x7f000000 | style);
+        }
+        assertEquals(-1, palette.intern(0x7effffff));
+
+        // A style the palette has no room for turns the row back into runs
+        for (int column = 10; column < 30; column += 3) {
+            int style = TextStyle.encode(TextStyle.ciForeground, column, TextStyle.fxBold);
+            row.set(column, 2, style);
+            model[column] = style;
+            model[column + 1] = style;
+            assertRow("after setting column " + column, model, row);
+        }
+    }
+
+    @Test
+    public void testCopyFromItself() {
+        StylePalette palette = new StylePalette();
+        StyleRow row = new StyleRow(TextStyle.kNormalTextStyle, COLUMNS, palette);
+        int[] model = new int[COLUMNS];
+        for (int column = 0; column < COLUMNS; column++) {
+            int style = TextStyle.encode(column % 3, TextStyle.ciBackground, 0);
+            row.set(column, style);
+            model[column] = style;
+        }
+        row.copyFrom(row);
+        assertRow("expanded", model, row);
+
+        row.set(0, COLUMNS, TextStyle.kNormalTextStyle);
+        row.set(5, 10, TextStyle.encode(1, 2, 0));
+        Arrays.fill(model, TextStyle.kNormalTextStyle);
+        Arrays.fill(model, 5, 15, TextStyle.encode(1, 2, 0));
+        row.copyFrom(row);
+        assertRow("runs", model, row);
+    }
+
+    @Test
+    public void testCompactionNarrowsRow() {
+        StylePalette palette = new StylePalette();
+        StyleRow row = new StyleRow(TextStyle.kNormalTextStyle, COLUMNS, palette);
+        StyleRow other = new StyleRow(TextStyle.kNormalTextStyle, COLUMNS, palette);
+        int[] model = new int[COLUMNS];
+        int[] otherModel = new int[COLUMNS];
+        Arrays.fill(model, TextStyle.kNormalTextStyle);
+        Arrays.fill(otherModel, TextStyle.kNormalTextStyle);
+        for (int i = 0; i < StylePalette.NARROW_STYLES; i++) {
+            int style = TextStyle.encode(i, TextStyle.ciBackground, 0);
+            other.set(i % COLUMNS, style);
+            otherModel[i % COLUMNS] = style;
+        }
+        for (int column = 0; column < COLUMNS; column += 2) {
+            int style = TextStyle.encode(column, column, TextStyle.fxItalic);
+            row.set(column, style);
+            model[column] = style;
+        }
+        assertTrue(palette.size() > StylePalette.NARROW_STYLES);
+        long wide = row.getMemoryUsage();
+
+        // Overwriting the other row frees the styles only it used
+        other.set(0, COLUMNS, TextStyle.kNormalTextStyle);
+        Arrays.fill(otherModel, TextStyle.kNormalTextStyle);
+        assertTrue(palette.needsCompaction());
+        compact(palette, row, other);
+        assertTrue(palette.size() < StylePalette.NARROW_STYLES);
+        assertRow("compacted", model, row);
+        assertRow("compacted other", otherModel, other);
+        assertTrue("memory " + row.getMemoryUsage() + " from " + wide,
+                row.getMemoryUsage() < wide);
+    }
+}
@@ -0,0 +1,337 @@
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static jackpal.androidterm.emulatorview.EmulatorFixture.COLUMNS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.ROWS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.repeat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TerminalEmulatorTest {
+    private TerminalEmulator mEmulator;
+
+    @Before
+    public void setUp() {
+        mEmulator = newEmulator(COLUMNS);
+    }
+
+    private static TerminalEmulator newEmulator(int columns) {
+        return EmulatorFixture.newEmulator(new TranscriptScreen(columns, 1000, ROWS));
+    }
+
+    private void write(String text) {
+        EmulatorFixture.write(mEmulator, text);
+    }
+
+    private int getStyle(int column, int row) {
+        GrowableIntArray colors = new GrowableIntArray(1);
+        mEmulator.getScreen().getSelectedText(colors, column, row, column + 1, row);
+        return colors.at(0);
+    }
+
+    /**
+     * Draw an X at the start of the first row with the style set by an SGR,
+     * after setting up the style with another.
+     *
+     * @return The X's style.
+     */
+    private int getStyle(String before, String sgr) {
+        write("\033[0m\033[" + before + "m\033[H\033[" + sgr + "mX");
+        return getStyle(0, 0);
+    }
+
+    private int getStyle(String sgr) {
+        return getStyle("0", sgr);
+    }
+
+    /** The whole transcript, less the blank rows at the bottom of the screen. */
+    private static String getText(TerminalEmulator emulator) {
+        String text = emulator.getScreen().getTranscriptText();
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == '\n') {
+            --end;
+        }
+        return text.substring(0, end);
+    }
+
+    private String getText() {
+        return getText(mEmulator);
+    }
+
+    /**
+     * Check that the emulator, having been resized, looks like one which
+     * was that size all along.
+     */
+    private void assertSameAsWritten(String output) {
+        int columns = mEmulator.getScreen().getColumns();
+        TerminalEmulator written = newEmulator(columns);
+        EmulatorFixture.write(written, output);
+        String message = columns + " columns";
+        assertEquals(message, getText(written), getText());
+        assertEquals(message, written.getCursorCol(), mEmulator.getCursorCol());
+        assertEquals(message, written.getCursorRow(), mEmulator.getCursorRow());
+    }
+
+    private String getCharUnderCursor() {
+        int column = mEmulator.getCursorCol();
+        int row = mEmulator.getCursorRow();
+        return mEmulator.getScreen().getSelectedText(column, row, column + 1, row);
+    }
+
+    private int getTrueColor(int colorIndex) {
+        assertTrue("color index " + colorIndex, colorIndex >= TextStyle.ciTrueColor);
+        return mEmulator.getScreen().getTrueColors().getColor(colorIndex) & 0xffffff;
+    }
+
+    @Test
+    public void testPaletteColors() {
+        int style = getStyle("38;5;196;48;5;21");
+        assertEquals(196, TextStyle.decodeForeColor(style));
+        assertEquals(21, TextStyle.decodeBackColor(style));
+        assertEquals(0, TextStyle.decodeEffect(style));
+
+        style = getStyle("48;5;255;1");
+        assertEquals(TextStyle.ciForeground, TextStyle.decodeForeColor(style));
+        assertEquals(255, TextStyle.decodeBackColor(style));
+        assertEquals(TextStyle.fxBold, TextStyle.decodeEffect(style));
+
+        style = getStyle("38:5:100");
+        assertEquals(100, TextStyle.decodeForeColor(style));
+    }
+
+    @Test
+    public void testTrueColors() {
+        int style = getStyle("38;2;1;2;3;48;2;250;128;0;4");
+        assertEquals(0x010203, getTrueColor(TextStyle.decodeForeColor(style)));
+        assertEquals(0xfa8000, getTrueColor(TextStyle.decodeBackColor(style)));
+        assertEquals(TextStyle.fxUnderline, TextStyle.decodeEffect(style));
+
+        // The same color gets the same index, however it's written
+        int fore = TextStyle.decodeForeColor(style);
+        assertEquals(fore, TextStyle.decodeForeColor(getStyle("38:2::1:2:3")));
+        assertEquals(fore, TextStyle.decodeForeColor(getStyle("38:2:0:1:2:3")));
+        assertEquals(fore, TextStyle.decodeForeColor(getStyle("38:2:1:2:3")));
+        assertEquals(fore, TextStyle.decodeBackColor(getStyle("48;2;1;2;3")));
+
+        // Empty components are 0
+        style = getStyle("38;2;;255;");
+        assertEquals(0x00ff00, getTrueColor(TextStyle.decodeForeColor(style)));
+        style = getStyle("38:2::255::");
+        assertEquals(0xff0000, getTrueColor(TextStyle.decodeForeColor(style)));
+    }
+
+    @Test
+    public void testMalformedColors() {
+        int before = TextStyle.encode(3, 4, 0);
+        // Components out of range leave the color alone, but the codes
+        // after them still count
+        int style = getStyle("33;44", "38;2;300;0;0;1");
+        assertEquals(3, TextStyle.decodeForeColor(style));
+        assertEquals(TextStyle.fxBold, TextStyle.decodeEffect(style));
+        assertEquals(before, getStyle("33;44", "48;5;260"));
+        assertEquals(before, getStyle("33;44", "38:2:1:2"));
+        assertEquals(before, getStyle("33;44", "38:5"));
+        assertEquals(before, getStyle("33;44", "38:7:1"));
+
+        // Too short to be a color, so not taken as one
+        style = getStyle("33;44", "38;2;1;2");
+        assertEquals(3, TextStyle.decodeForeColor(style));
+        style = getStyle("33;44", "48;5");
+        assertEquals(4, TextStyle.decodeBackColor(style));
+
+        // A sequence too long for the argument buffer mustn't break the parser
+        StringBuilder sgr = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            sgr.append("38;2;1;2;3;");
+        }
+        sgr.append('1');
+        getStyle(sgr.toString());
+        write("\033[0mAB");
+        assertEquals("AB", mEmulator.getScreen().getSelectedText(1, 0, 3, 0));
+        assertEquals(TextStyle.kNormalTextStyle, getStyle(1, 0));
+    }
+
+    @Test
+    public void testSubParameters() {
+        // The sub-parameter of 4 is the underline style, not another code
+        assertEquals(TextStyle.encode(TextStyle.ciForeground, TextStyle.ciBackground,
+                TextStyle.fxUnderline), getStyle("4:3"));
+        assertEquals(TextStyle.encode(TextStyle.ciForeground, TextStyle.ciBackground,
+                TextStyle.fxBold), getStyle("1;4", "4:0"));
+        assertEquals(TextStyle.encode(TextStyle.ciForeground, 1, TextStyle.fxBold),
+                getStyle("1:7;41"));
+    }
+
+    @Test
+    public void testStyleLayout() {
+        // Color indices and effects each have a field of their own
+        int style = TextStyle.encode(TextStyle.ciMaxColor, TextStyle.ciMaxColor,
+                TextStyle.fxInvisible | TextStyle.fxBold);
+        assertEquals(TextStyle.ciMaxColor, TextStyle.decodeForeColor(style));
+        assertEquals(TextStyle.ciMaxColor, TextStyle.decodeBackColor(style));
+        assertEquals(TextStyle.fxInvisible | TextStyle.fxBold, TextStyle.decodeEffect(style));
+        // Effects start at bit 24, above two 12 bit color indices
+        assertEquals(0x21ffffff, style);
+
+        style = TextStyle.encode(TextStyle.ciCursorForeground, 600, TextStyle.fxInverse);
+        assertEquals(TextStyle.ciCursorForeground, TextStyle.decodeForeColor(style));
+        assertEquals(600, TextStyle.decodeBackColor(style));
+        assertEquals(TextStyle.fxInverse, TextStyle.decodeEffect(style));
+    }
+
+    @Test
+    public void testTrueColorsRunOut() {
+        int capacity = TextStyle.ciMaxColor + 1 - TextStyle.ciTrueColor;
+        for (int i = 0; i < capacity; i++) {
+            int style = getStyle("1;38;2;" + (i >> 8) + ";" + (i & 0xff) + ";7");
+            // Still bold, however large the color index
+            assertEquals(TextStyle.fxBold, TextStyle.decodeEffect(style));
+            assertEquals(TextStyle.ciTrueColor + i, TextStyle.decodeForeColor(style));
+            assertEquals(TextStyle.ciBackground, TextStyle.decodeBackColor(style));
+        }
+        // Then new colors are drawn as the nearest palette color, while the
+        // old ones keep their indices
+        int style = getStyle("1;38;2;255;0;0");
+        assertEquals(196, TextStyle.decodeForeColor(style));
+        assertEquals(TextStyle.fxBold, TextStyle.decodeEffect(style));
+        style = getStyle("48;2;0;0;7");
+        assertEquals(TextStyle.ciTrueColor, TextStyle.decodeBackColor(style));
+        assertEquals(7, getTrueColor(TextStyle.ciTrueColor));
+        style = getStyle("48;2;14;251;7");
+        assertEquals(TextStyle.ciMaxColor, TextStyle.decodeBackColor(style));
+    }
+
+    @Test
+    public void testNearestXtermColor() {
+        assertEquals(16, TrueColorTable.nearestXtermColor(0x000000));
+        assertEquals(231, TrueColorTable.nearestXtermColor(0xffffff));
+        assertEquals(196, TrueColorTable.nearestXtermColor(0xff0000));
+        assertEquals(16 + 36 * 2 + 6 * 3 + 4, TrueColorTable.nearestXtermColor(0x87afd7));
+        assertEquals(244, TrueColorTable.nearestXtermColor(0x808080));
+        assertEquals(232, TrueColorTable.nearestXtermColor(0x0a0a0a));
+    }
+
+    @Test
+    public void testReflowKeepsText() {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            String line = "line " + i + ":" + repeat((char) ('a' + i % 26), i * 37 % 190);
+            write(line + "\r\n");
+            expected.append(line).append('\n');
+        }
+        write("$ ");
+        expected.append("$");
+        String text = expected.toString();
+        assertEquals(text, getText());
+
+        int[] widths = {33, 120, 7, 80, 79, 81};
+        for (int width : widths) {
+            mEmulator.updateSize(width, ROWS);
+            assertEquals(width + " columns", text, getText());
+            assertEquals(width + " columns", 2, mEmulator.getCursorCol());
+            assertEquals(width + " columns", ROWS - 1, mEmulator.getCursorRow());
+        }
+    }
+
+    @Test
+    public void testReflowMovesCursor() {
+        write(repeat('B', 50) + "C" + repeat('B', 49) + "\r\n$ X\b");
+        assertEquals(2, mEmulator.getCursorCol());
+        assertEquals(2, mEmulator.getCursorRow());
+
+        mEmulator.updateSize(40, ROWS);
+        assertEquals(2, mEmulator.getCursorCol());
+        assertEquals(3, mEmulator.getCursorRow());
+        assertEquals("X", getCharUnderCursor());
+        mEmulator.updateSize(120, ROWS);
+        assertEquals(2, mEmulator.getCursorCol());
+        assertEquals(1, mEmulator.getCursorRow());
+        assertEquals("X", getCharUnderCursor());
+
+        // The cursor in the middle of a wrapped line stays on its cell
+        mEmulator.updateSize(COLUMNS, ROWS);
+        write("\033[1;51H");
+        assertEquals("C", getCharUnderCursor());
+        mEmulator.updateSize(40, ROWS);
+        assertEquals(10, mEmulator.getCursorCol());
+        assertEquals(1, mEmulator.getCursorRow());
+        assertEquals("C", getCharUnderCursor());
+        mEmulator.updateSize(30, ROWS);
+        assertEquals(20, mEmulator.getCursorCol());
+        assertEquals(1, mEmulator.getCursorRow());
+        assertEquals("C", getCharUnderCursor());
+    }
+
+    @Test
+    public void testReflowWideCharacters() {
+        String wide = repeat('\u4e00', 45);
+        String output = "\u00e9a" + wide + "\r\n";
+        write(output);
+        mEmulator.updateSize(41, ROWS);
+        // A wide character which doesn't fit goes onto the next row whole,
+        // leaving a blank behind
+        assertEquals("\u00e9a" + repeat('\u4e00', 19) + " ",
+                mEmulator.getScreen().getSelectedText(0, 0, 41, 0));
+        assertSameAsWritten(output);
+        // The blank goes again when the line is rewrapped
+        mEmulator.updateSize(COLUMNS, ROWS);
+        assertEquals("\u00e9a" + wide, getText());
+        assertSameAsWritten(output);
+    }
+
+    @Test
+    public void testReflowAltScreen() {
+        String line = repeat('m', 100);
+        write(line + "\r\n");
+        write("\033[?1049h");
+        write("\033[H" + repeat('a', 60) + "\r\n$ ");
+        String altText = repeat('a', 60) + "\n$";
+        assertEquals(altText, getText());
+
+        mEmulator.updateSize(40, ROWS);
+        assertEquals(altText, getText());
+        assertEquals(2, mEmulator.getCursorCol());
+        assertEquals(2, mEmulator.getCursorRow());
+
+        // The main screen was rewrapped along with the alternate one, all
+        // its rows kept as it had no cursor to go by, so that the line's
+        // extra row pushed the first one off the screen
+        write("\033[?1049l");
+        assertEquals(line, getText());
+        assertEquals(repeat('m', 40), mEmulator.getScreen().getSelectedText(0, -1, 40, -1));
+        assertEquals(repeat('m', 40), mEmulator.getScreen().getSelectedText(0, 0, 40, 0));
+        assertEquals(repeat('m', 20), mEmulator.getScreen().getSelectedText(0, 1, 40, 1));
+    }
+
+    @Test
+    public void testTrimAfterReflow() {
+        int lines = 900;
+        for (int i = 0; i < lines; i++) {
+            write("line " + i + "\r\n");
+        }
+        // Leaves most of the rows to be rewrapped when they're wanted
+        mEmulator.updateSize(40, ROWS);
+        TranscriptScreen screen = mEmulator.getScreen();
+        long usage = screen.getMemoryUsage();
+        long freed = screen.trimTranscript(usage / 2);
+        assertTrue("freed " + freed + " of " + usage,
+                freed >= usage / 2 && freed < usage * 6 / 10);
+        String[] text = getText().split("\n");
+        assertTrue("lines left " + text.length, text.length > lines / 3);
+        for (int i = 0; i < text.length; i++) {
+            assertEquals("line " + (lines - text.length + i), text[i]);
+        }
+
+        // Freeing a little drops the oldest line, not all those still to
+        // be rewrapped
+        int first = lines - text.length;
+        mEmulator.updateSize(COLUMNS, ROWS);
+        freed = screen.trimTranscript(1);
+        assertTrue("freed " + freed, freed > 0 && freed < 1000);
+        text = getText().split("\n");
+        assertEquals("line " + (first + 1), text[0]);
+        assertEquals(lines - first - 1, text.length);
+    }
+}
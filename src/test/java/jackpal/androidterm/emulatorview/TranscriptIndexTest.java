@@ -0,0 +1,131 @@
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static jackpal.androidterm.emulatorview.EmulatorFixture.COLUMNS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.ROWS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.newEmulator;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.repeat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TranscriptIndexTest {
+    private TerminalEmulator mEmulator;
+
+    private TranscriptScreen newScreen(int totalRows) {
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, totalRows, ROWS);
+        mEmulator = newEmulator(screen);
+        return screen;
+    }
+
+    private void write(String text) {
+        EmulatorFixture.write(mEmulator, text);
+    }
+
+    /** Count the matches by reading the whole transcript. */
+    private static int countMatches(TranscriptScreen screen, String text, boolean ignoreCase) {
+        if (ignoreCase) {
+            text = text.toLowerCase(Locale.US);
+        }
+        int count = 0;
+        for (String line : screen.getTranscriptText().split("\n")) {
+            if (ignoreCase) {
+                line = line.toLowerCase(Locale.US);
+            }
+            for (int i = line.indexOf(text); i >= 0; i = line.indexOf(text, i + text.length())) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Check that findText() finds every match there is, and only where the
+     * text is.
+     */
+    private static void assertFinds(TranscriptScreen screen, String text, boolean ignoreCase) {
+        GrowableIntArray matches = new GrowableIntArray(64);
+        int count = screen.findText(text, ignoreCase, matches);
+        assertEquals(text, countMatches(screen, text, ignoreCase), count);
+        assertEquals(4 * count, matches.length());
+        for (int i = 0; i < matches.length(); i += 4) {
+            String found = screen.getSelectedText(matches.at(i), matches.at(i + 1),
+                    matches.at(i + 2), matches.at(i + 3));
+            if (ignoreCase) {
+                assertTrue(text + " found as " + found, text.equalsIgnoreCase(found));
+            } else {
+                assertEquals(text, found);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchAcrossWrappedRows() {
+        TranscriptScreen screen = newScreen(1000);
+        for (int i = 0; i < 300; i++) {
+            write("line " + i + "\r\n");
+            if (i % 50 == 0) {
+                write(repeat('x', COLUMNS - 3) + "Needle" + repeat('y', 2 * COLUMNS) + "\r\n");
+            }
+        }
+        // And one on the screen
+        write(repeat('x', COLUMNS - 1) + "needle\r\n");
+
+        GrowableIntArray matches = new GrowableIntArray(64);
+        assertEquals(7, screen.findText("needle", true, matches));
+        // Starting near the end of one row, ending on the next
+        for (int i = 0; i < matches.length(); i += 4) {
+            assertEquals(i < 4 * 6 ? COLUMNS - 3 : COLUMNS - 1, matches.at(i));
+            assertEquals(matches.at(i + 1) + 1, matches.at(i + 3));
+        }
+        assertEquals(1, screen.findText("needle", false, matches));
+        assertFinds(screen, "needle", true);
+        assertFinds(screen, "Needle", false);
+        assertFinds(screen, "xNeedley", false);
+        assertFinds(screen, "yyyyyyyyyy", false);
+    }
+
+    @Test
+    public void testShortPatterns() {
+        TranscriptScreen screen = newScreen(1000);
+        for (int i = 0; i < 500; i++) {
+            write("row " + i + (i % 7 == 0 ? " Q" : "") + "\r\n");
+        }
+        // Too short to have a trigram, so every block has to be read
+        assertFinds(screen, "Q", false);
+        assertFinds(screen, "q", true);
+        assertFinds(screen, "42", false);
+        assertFinds(screen, " Q", false);
+        assertFinds(screen, "w 49", false);
+    }
+
+    @Test
+    public void testSearchAfterScrollbackTruncated() {
+        TranscriptScreen screen = newScreen(300);
+        for (int i = 0; i < 200; i++) {
+            write("line " + i + "\r\n");
+        }
+        assertFinds(screen, "line 1", false);
+
+        // Lines of three rows, so that the oldest row is partway through one
+        for (int i = 0; i < 400; i++) {
+            write("line " + i + " " + repeat('-', 2 * COLUMNS) + " end " + i + "\r\n");
+            if (i % 37 == 0) {
+                // The index is brought up to date as the transcript scrolls
+                assertFinds(screen, "end 1", false);
+            }
+        }
+        assertTrue(screen.getSelectedText(0, -screen.getActiveTranscriptRows(),
+                COLUMNS, -screen.getActiveTranscriptRows()).startsWith("-"));
+        assertFinds(screen, "end 3", false);
+        assertFinds(screen, "----", false);
+        assertFinds(screen, "line 2", false);
+
+        screen.trimTranscript(screen.getMemoryUsage() / 3);
+        assertFinds(screen, "end 3", false);
+        assertFinds(screen, "ne 3", false);
+        assertFinds(screen, "3", false);
+    }
+}
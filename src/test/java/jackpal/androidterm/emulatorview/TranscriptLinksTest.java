@@ -0,0 +1,168 @@
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import static jackpal.androidterm.emulatorview.EmulatorFixture.COLUMNS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.ROWS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.newEmulator;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.repeat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives TranscriptLinks a step at a time, as its search thread would, with
+ * no session behind it.
+ */
+public class TranscriptLinksTest {
+    private TranscriptScreen mScreen;
+    private TerminalEmulator mEmulator;
+    private final TranscriptLinks mLinks = new TranscriptLinks(null);
+
+    private void newScreen(int totalRows) {
+        mScreen = new TranscriptScreen(COLUMNS, totalRows, ROWS);
+        mEmulator = newEmulator(mScreen);
+    }
+
+    private void write(String text) {
+        EmulatorFixture.write(mEmulator, text);
+    }
+
+    /**
+     * Read the links in some rows.
+     *
+     * @return The number of steps it took.
+     */
+    private int readLinks(int top, int bottom) {
+        int steps = 1;
+        while (mScreen.continueLinks(mLinks, top, bottom, 100)) {
+            ++steps;
+        }
+        return steps;
+    }
+
+    private String getURL(int column, int row) {
+        return mScreen.getLinkURL(mLinks, column, row);
+    }
+
+    @Test
+    public void testLinkAcrossRows() {
+        newScreen(100);
+        String url = "https://example.com/" + repeat('a', 30);
+        write(repeat('x', 60) + " see " + url + " here\r\n");
+        readLinks(0, ROWS);
+
+        assertNull(getURL(64, 0));
+        assertEquals(url, getURL(65, 0));
+        assertEquals(url, getURL(COLUMNS - 1, 0));
+        assertEquals(url, getURL(0, 1));
+        // The URL is 50 characters, 15 on the first row
+        assertEquals(url, getURL(34, 1));
+        assertNull(getURL(35, 1));
+        assertNull(getURL(0, 2));
+    }
+
+    @Test
+    public void testOnlyWebLinks() {
+        newScreen(100);
+        write("example.com ftp://example.com http://example.com/x\r\n");
+        readLinks(0, ROWS);
+        assertNull(getURL(0, 0));
+        assertNull(getURL(12, 0));
+        assertEquals("http://example.com/x", getURL(31, 0));
+    }
+
+    @Test
+    public void testForgetChangedRows() {
+        newScreen(1000);
+        for (int i = 0; i < 100; i++) {
+            write("line " + i + " http://example.com/" + i + "\r\n");
+        }
+        readLinks(-100, ROWS);
+        mScreen.clearDirtyRows();
+        int row = mEmulator.getCursorRow() - 1;
+        assertEquals("http://example.com/99", getURL(10, row));
+
+        // A row overwritten in place is read again once it's forgotten
+        write("\033[" + (row + 1) + ";1H\033[Kno link\r\n");
+        assertEquals("http://example.com/99", getURL(10, row));
+        mScreen.forgetChangedLinks(mLinks, 0);
+        mScreen.clearDirtyRows();
+        assertNull(getURL(10, row));
+        readLinks(-100, ROWS);
+        assertNull(getURL(10, row));
+
+        // Rows which scroll away keep their links, without being read again
+        write("\033[" + ROWS + ";1H\r\n\r\n\r\nhttp://example.com/new");
+        mScreen.forgetChangedLinks(mLinks, 3);
+        mScreen.clearDirtyRows();
+        assertEquals("http://example.com/50", getURL(10, row - 52));
+        assertNull(getURL(0, ROWS - 1));
+        readLinks(ROWS - 1, ROWS);
+        assertEquals("http://example.com/new", getURL(0, ROWS - 1));
+
+        // As does a line on the screen whose rows moved with the scroll
+        assertEquals("http://example.com/98", getURL(10, row - 4));
+    }
+
+    @Test
+    public void testForgetWrappedLine() {
+        newScreen(100);
+        String url = "https://example.com/" + repeat('b', 100);
+        write(repeat('x', 70) + " " + url + "\r\n");
+        readLinks(0, ROWS);
+        mScreen.clearDirtyRows();
+        assertEquals(url, getURL(0, 1));
+
+        // Changing one row of a line forgets all of it
+        write("\033[1;1Hhttp://example.com/c ");
+        mScreen.forgetChangedLinks(mLinks, 0);
+        assertNull(getURL(0, 1));
+        readLinks(0, ROWS);
+        assertEquals("http://example.com/c", getURL(0, 0));
+        assertEquals(url, getURL(0, 1));
+    }
+
+    @Test
+    public void testReadInSteps() {
+        newScreen(1000);
+        for (int i = 0; i < 500; i++) {
+            write("http://example.com/" + i + "\r\n");
+        }
+        assertTrue(readLinks(-300, ROWS) > 3);
+        assertEquals("http://example.com/200", getURL(0, -277));
+        // Rows already read aren't read again
+        assertEquals(1, readLinks(-300, ROWS));
+        assertEquals(2, readLinks(-450, ROWS));
+        assertEquals("http://example.com/27", getURL(0, -450));
+        assertEquals("http://example.com/100", getURL(0, -377));
+    }
+
+    @Test
+    public void testEviction() {
+        newScreen(4000);
+        int lines = 3000;
+        for (int i = 0; i < lines; i++) {
+            write("http://example.com/" + i + "\r\n");
+        }
+        // The row of a line, counting from the top of the screen
+        int top = mEmulator.getCursorRow() - lines;
+        // A pass over more rows than are kept still finishes
+        assertTrue(readLinks(top, ROWS) > lines / 100);
+
+        // Only the rows used most recently are kept
+        assertEquals("http://example.com/2999", getURL(0, top + 2999));
+        assertNull(getURL(0, top));
+        int firstKept = lines + ROWS - mEmulator.getCursorRow() - 2048;
+        assertNull(getURL(0, top + firstKept - 1));
+        assertEquals("http://example.com/" + (firstKept + 10), getURL(0, top + firstKept + 10));
+
+        // Using a row keeps it longer than those around it
+        readLinks(top, top + 100);
+        assertEquals("http://example.com/0", getURL(0, top));
+        assertEquals("http://example.com/" + (firstKept + 10), getURL(0, top + firstKept + 10));
+        assertNull(getURL(0, top + firstKept + 9));
+        assertFalse(mScreen.continueLinks(mLinks, top, top + 100, 100));
+    }
+}
@@ -0,0 +1,243 @@
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import static jackpal.androidterm.emulatorview.EmulatorFixture.COLUMNS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.ROWS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.newEmulator;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.repeat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TranscriptMarksTest {
+    private TranscriptScreen mScreen;
+    private TerminalEmulator mEmulator;
+
+    private void newScreen(int totalRows) {
+        mScreen = new TranscriptScreen(COLUMNS, totalRows, ROWS);
+        mEmulator = newEmulator(mScreen);
+    }
+
+    private void write(String text) {
+        EmulatorFixture.write(mEmulator, text);
+    }
+
+    /** Write a prompt and a command, as a shell with shell integration would. */
+    private void writeCommand(String command, String output, String status) {
+        write("\033]133;A\007$ \033]133;B\007" + command + "\r\n\033]133;C\007" + output
+                + "\033]133;D;" + status + "\007");
+    }
+
+    private int[] findMark(int kind, int row, boolean forward) {
+        int[] position = new int[2];
+        return mScreen.findMark(kind, row, forward, position) ? position : null;
+    }
+
+    private int[] findLastOutput() {
+        int[] range = new int[4];
+        return mScreen.findLastOutput(range) ? range : null;
+    }
+
+    @Test
+    public void testCommandMarks() {
+        newScreen(100);
+        assertNull(findLastOutput());
+        writeCommand("ls", "a\r\nb\r\n", "0");
+        write("\033]133;A\007$ ");
+        assertArrayEquals(new int[] {0, 1, 0, 3}, findLastOutput());
+
+        // A command with no output, with the marks ended by ESC \ this time
+        write("\033]133;B\033\\false\r\n\033]133;C\033\\\033]133;D;1\033\\");
+        write("\033]133;A\007$ ");
+        assertArrayEquals(new int[] {0, 4, 0, 4}, findLastOutput());
+        // Marks the shell doesn't send are left out
+        write("\033]133;Z\007");
+
+        assertArrayEquals(new int[] {0, 3}, findMark(TranscriptMarks.PROMPT, 4, false));
+        assertArrayEquals(new int[] {0, 0}, findMark(TranscriptMarks.PROMPT, 3, false));
+        assertNull(findMark(TranscriptMarks.PROMPT, 0, false));
+        assertArrayEquals(new int[] {0, 3}, findMark(TranscriptMarks.PROMPT, 0, true));
+        assertArrayEquals(new int[] {0, 4}, findMark(TranscriptMarks.PROMPT, 3, true));
+        assertNull(findMark(TranscriptMarks.PROMPT, 4, true));
+        assertArrayEquals(new int[] {2, 3}, findMark(TranscriptMarks.COMMAND, 4, false));
+        assertArrayEquals(new int[] {0, 4}, findMark(TranscriptMarks.FINISHED, 3, true));
+    }
+
+    @Test
+    public void testCommandStillRunning() {
+        newScreen(100);
+        writeCommand("make", "ok\r\n", "0");
+        write("\033]133;A\007$ \033]133;B\007sleep 9\r\n\033]133;C\007zz");
+        // The last command to finish is the one before
+        assertArrayEquals(new int[] {0, 1, 0, 2}, findLastOutput());
+    }
+
+    @Test
+    public void testDirectory() {
+        newScreen(100);
+        assertNull(mEmulator.getDirectory());
+        write("\033]7;file://host/home\007");
+        writeCommand("cd /tmp", "", "0");
+        write("\033]7;file://host/tmp\033\\\033]133;A\007$ ");
+        assertEquals("file://host/tmp", mEmulator.getDirectory());
+        assertEquals("file://host/home", mScreen.getDirectory(0));
+        // cd had no output, so reported the new directory on the next row
+        assertEquals("file://host/tmp", mScreen.getDirectory(1));
+        assertEquals("file://host/tmp", mScreen.getDirectory(ROWS - 1));
+    }
+
+    @Test
+    public void testPromptDropsMarksDrawnOver() {
+        newScreen(100);
+        for (int i = 0; i < 5; i++) {
+            writeCommand("true", "", "0");
+        }
+        write("\033[H\033[2J");
+        write("\033]133;A\007$ ");
+        assertNull(findMark(TranscriptMarks.PROMPT, 0, true));
+        assertNull(findMark(TranscriptMarks.FINISHED, 0, true));
+        assertNull(findLastOutput());
+    }
+
+    @Test
+    public void testMarksScroll() {
+        // 76 rows of transcript
+        newScreen(100);
+        write("\033]7;file://host/old\007");
+        write("\033]133;A\007$ \033]133;B\007seq 50\r\n\033]133;C\007");
+        for (int i = 0; i < 50; i++) {
+            write(i + "\r\n");
+        }
+        write("\033]133;D;0\007\033]133;A\007$ ");
+
+        // The marks move up with their rows
+        int scrolled = 51 - mEmulator.getCursorRow();
+        assertArrayEquals(new int[] {0, -scrolled}, findMark(TranscriptMarks.PROMPT, 0, false));
+        assertArrayEquals(new int[] {0, 1 - scrolled, 0, 51 - scrolled}, findLastOutput());
+        assertEquals("file://host/old", mScreen.getDirectory(-scrolled));
+
+        // And are dropped as they leave the transcript
+        for (int i = 0; i < 120; i++) {
+            write(i + "\r\n");
+        }
+        int firstRow = -mScreen.getActiveTranscriptRows();
+        assertNull(findMark(TranscriptMarks.PROMPT, firstRow, true));
+        assertNull(findMark(TranscriptMarks.PROMPT, ROWS, false));
+        assertNull(findLastOutput());
+        assertNull(mScreen.getDirectory(firstRow));
+        assertEquals("file://host/old", mEmulator.getDirectory());
+
+        // The first new mark starts the queues again
+        write("\033]133;A\007$ ");
+        int row = mEmulator.getCursorRow();
+        assertArrayEquals(new int[] {0, row}, findMark(TranscriptMarks.PROMPT, firstRow, true));
+        assertNull(findMark(TranscriptMarks.PROMPT, row, false));
+    }
+
+    @Test
+    public void testMarksReflow() {
+        newScreen(100);
+        // A directory reported partway through a command wrapped over two
+        // rows, 90 characters into the line
+        write("\033]133;A\007$ \033]133;B\007" + repeat('x', 88) + "\033]7;file://host/x\007"
+                + repeat('y', 12) + "\r\n\033]133;C\007out\r\n\033]133;D;0\007");
+        write("\033]133;A\007$ ");
+        assertArrayEquals(new int[] {0, 2, 0, 3}, findLastOutput());
+        assertArrayEquals(new int[] {10, 1}, findMark(TranscriptMarks.DIRECTORY, 0, true));
+        assertNull(mScreen.getDirectory(0));
+
+        // The marks keep their places in the text
+        mEmulator.updateSize(40, ROWS);
+        assertArrayEquals(new int[] {0, 3, 0, 4}, findLastOutput());
+        assertArrayEquals(new int[] {2, 0}, findMark(TranscriptMarks.COMMAND, 4, false));
+        assertArrayEquals(new int[] {0, 4}, findMark(TranscriptMarks.PROMPT, 0, true));
+        assertArrayEquals(new int[] {10, 2}, findMark(TranscriptMarks.DIRECTORY, 0, true));
+        assertNull(mScreen.getDirectory(1));
+        assertEquals("file://host/x", mScreen.getDirectory(2));
+
+        mEmulator.updateSize(120, ROWS);
+        assertArrayEquals(new int[] {0, 1, 0, 2}, findLastOutput());
+        assertArrayEquals(new int[] {0, 0}, findMark(TranscriptMarks.PROMPT, 2, false));
+        assertArrayEquals(new int[] {90, 0}, findMark(TranscriptMarks.DIRECTORY, 1, false));
+        assertEquals("file://host/x", mScreen.getDirectory(0));
+
+        mEmulator.updateSize(COLUMNS, ROWS);
+        assertArrayEquals(new int[] {0, 2, 0, 3}, findLastOutput());
+        assertArrayEquals(new int[] {10, 1}, findMark(TranscriptMarks.DIRECTORY, 0, true));
+        assertNull(mScreen.getDirectory(0));
+    }
+
+    @Test
+    public void testMarksReflowIntoTranscript() {
+        newScreen(100);
+        for (int i = 0; i < ROWS - 2; i++) {
+            write("\033]133;A\007$ \033]133;B\007" + repeat('z', 60) + "\r\n");
+        }
+        // Narrower, the lines take two rows each, so the first ones go into
+        // the transcript with their marks
+        mEmulator.updateSize(40, ROWS);
+        int row = mEmulator.getCursorRow();
+        int[] position = findMark(TranscriptMarks.PROMPT, row, false);
+        for (int i = ROWS - 3; i >= 0; i--) {
+            assertEquals(0, position[0]);
+            assertEquals(row - 2 * (ROWS - 2 - i), position[1]);
+            position = findMark(TranscriptMarks.PROMPT, position[1], false);
+        }
+        assertNull(position);
+    }
+
+    @Test
+    public void testExitStatus() {
+        TranscriptMarks marks = new TranscriptMarks();
+        marks.add(TranscriptMarks.FINISHED, 10, 0, "0");
+        marks.add(TranscriptMarks.FINISHED, 12, 0, null);
+        marks.add(TranscriptMarks.FINISHED, 15, 3, "127");
+        assertNull(marks.getValue(TranscriptMarks.FINISHED, 9L));
+        assertEquals("0", marks.getValue(TranscriptMarks.FINISHED, 10L));
+        assertEquals("0", marks.getValue(TranscriptMarks.FINISHED, 11L));
+        assertNull(marks.getValue(TranscriptMarks.FINISHED, 12L));
+        assertEquals("127", marks.getValue(TranscriptMarks.FINISHED, 20L));
+
+        // A mark in the same place replaces the one there
+        marks.add(TranscriptMarks.FINISHED, 15, 3, "1");
+        assertEquals("1", marks.getValue(TranscriptMarks.FINISHED, 15L));
+        assertEquals(3, marks.getEnd(TranscriptMarks.FINISHED));
+    }
+
+    @Test
+    public void testManyMarks() {
+        TranscriptMarks marks = new TranscriptMarks();
+        long[] position = new long[2];
+        for (int i = 0; i < 1000; i++) {
+            marks.add(TranscriptMarks.PROMPT, 3 * i, i % 7, null);
+            marks.add(TranscriptMarks.OUTPUT, 3 * i + 1, 0, null);
+            marks.add(TranscriptMarks.FINISHED, 3 * i + 2, 0, Integer.toString(i));
+            if (i % 100 == 99) {
+                // Dropped from the start as the rows leave, while growing
+                marks.dropBefore(3 * (i - 500));
+            }
+        }
+        assertTrue(marks.find(TranscriptMarks.PROMPT, 2000, false, position));
+        assertEquals(1998, position[1]);
+        assertEquals(666 % 7, position[0]);
+        assertTrue(marks.find(TranscriptMarks.PROMPT, 2000, true, position));
+        assertEquals(2001, position[1]);
+        assertEquals("665", marks.getValue(TranscriptMarks.FINISHED, 1999L));
+        assertFalse(marks.find(TranscriptMarks.PROMPT, 1497, false, position));
+        assertTrue(marks.find(TranscriptMarks.PROMPT, 1496, true, position));
+        assertEquals(1497, position[1]);
+
+        long[] range = new long[4];
+        assertTrue(marks.findLastOutput(range));
+        assertArrayEquals(new long[] {0, 2998, 0, 2999}, range);
+
+        marks.dropBefore(3 * 999);
+        assertFalse(marks.find(TranscriptMarks.PROMPT, 2997, false, position));
+        assertTrue(marks.find(TranscriptMarks.PROMPT, 2996, true, position));
+        assertEquals(2997, position[1]);
+        assertNull(marks.getValue(TranscriptMarks.FINISHED, 2996L));
+    }
+}
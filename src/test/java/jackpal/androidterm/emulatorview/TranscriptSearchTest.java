@@ -0,0 +1,89 @@
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static jackpal.androidterm.emulatorview.EmulatorFixture.COLUMNS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.ROWS;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.newEmulator;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.repeat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TranscriptSearchTest {
+    private TerminalEmulator mEmulator;
+
+    private TranscriptScreen newScreen(int totalRows) {
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, totalRows, ROWS);
+        mEmulator = newEmulator(screen);
+        return screen;
+    }
+
+    private void write(String text) {
+        EmulatorFixture.write(mEmulator, text);
+    }
+
+    /** Collects what a search reports, and waits for it to finish. */
+    private static final class Results implements TranscriptSearch.Listener {
+        final List<int[]> mMatches = new ArrayList<>();
+        final CountDownLatch mFinished = new CountDownLatch(1);
+        boolean mComplete;
+
+        @Override
+        public void onMatch(int startColumn, int startRow, int endColumn, int endRow) {
+            mMatches.add(new int[] {startColumn, startRow, endColumn, endRow});
+        }
+
+        @Override
+        public void onSearchFinished(boolean complete) {
+            mComplete = complete;
+            mFinished.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mFinished.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testSearch() throws InterruptedException {
+        TranscriptScreen screen = newScreen(3000);
+        for (int i = 0; i < 2500; i++) {
+            write("line " + i + (i % 100 == 0 ? repeat(' ', COLUMNS) + "wrapped" : "") + "\r\n");
+        }
+        GrowableIntArray expected = new GrowableIntArray(64);
+        int count = screen.findText("wrapped", false, expected);
+        assertEquals(25, count);
+
+        Results results = new Results();
+        new TranscriptSearch(Pattern.compile("wrap+ed"), results, this, screen).start();
+        results.await();
+        assertTrue(results.mComplete);
+        assertEquals(count, results.mMatches.size());
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < 4; j++) {
+                assertEquals(expected.at(4 * i + j), results.mMatches.get(i)[j]);
+            }
+        }
+    }
+
+    @Test
+    public void testSearchFinishedSession() throws InterruptedException {
+        TranscriptScreen screen = newScreen(100);
+        write("line\r\n");
+        screen.finish();
+
+        // Nothing was searched, so the search didn't complete
+        Results results = new Results();
+        new TranscriptSearch(Pattern.compile("line"), results, this, screen).start();
+        results.await();
+        assertFalse(results.mComplete);
+        assertTrue(results.mMatches.isEmpty());
+    }
+}
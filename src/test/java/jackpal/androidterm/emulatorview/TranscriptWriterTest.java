@@ -0,0 +1,96 @@
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static jackpal.androidterm.emulatorview.EmulatorFixture.newColorScheme;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.newEmulator;
+import static jackpal.androidterm.emulatorview.EmulatorFixture.repeat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TranscriptWriterTest {
+    private static final String WRAPPED = repeat('x', 78);
+
+    private TranscriptScreen mScreen;
+    private TerminalEmulator mEmulator;
+    private final ColorScheme mScheme = newColorScheme();
+
+    @Before
+    public void setUp() {
+        // Few enough rows on screen that some of the text is in the transcript
+        mScreen = new TranscriptScreen(80, 20, 4);
+        mEmulator = newEmulator(mScreen);
+        // (The wrapped line comes first, as a row scrolled in after it wraps
+        // would be blanked in its style.)
+        write(WRAPPED + "\033[4;32mgreen\033[0m\r\n"
+                + "plain text\r\n"
+                + "\033[1;31mbold red\033[0m plain\r\n"
+                + "<a href=\"x\">&amp;</a>\r\n"
+                + "\033[7minverse\033[0m \033[38;2;1;2;3mtrue\033[48;5;196mboth\033[0m\r\n"
+                + "$ ");
+    }
+
+    private void write(String text) {
+        EmulatorFixture.write(mEmulator, text);
+    }
+
+    private String export(int format) throws IOException {
+        StringWriter out = new StringWriter();
+        TranscriptWriter writer = new TranscriptWriter(format, mScheme, mScreen.getTrueColors());
+        assertTrue(writer.write(out, this, mScreen));
+        return out.toString();
+    }
+
+    @Test
+    public void testPlain() throws IOException {
+        assertEquals(WRAPPED + "green\n"
+                + "plain text\n"
+                + "bold red plain\n"
+                + "<a href=\"x\">&amp;</a>\n"
+                + "inverse trueboth\n"
+                + "$", export(TermSession.TRANSCRIPT_PLAIN));
+        // As the transcript reads
+        assertEquals(mScreen.getTranscriptText().trim(), export(TermSession.TRANSCRIPT_PLAIN));
+    }
+
+    @Test
+    public void testAnsi() throws IOException {
+        assertEquals(WRAPPED + "\033[0;4;32mgreen\033[0m\n"
+                + "plain text\n"
+                + "\033[0;1;31mbold red\033[0m plain\n"
+                + "<a href=\"x\">&amp;</a>\n"
+                + "\033[0;7minverse\033[0m \033[0;38;2;1;2;3mtrue\033[0m"
+                + "\033[0;38;2;1;2;3;48;5;196mboth\033[0m\n"
+                + "$", export(TermSession.TRANSCRIPT_ANSI));
+    }
+
+    @Test
+    public void testHtml() throws IOException {
+        assertEquals("<pre style=\"color:#ffffff;background-color:#000000\">"
+                + WRAPPED + "<span style=\"color:#00cd00;background-color:#000000;"
+                + "text-decoration:underline\">green</span>\n"
+                + "plain text\n"
+                + "<span style=\"color:#cd0000;background-color:#000000;font-weight:bold\">"
+                + "bold red</span> plain\n"
+                + "&lt;a href=\"x\"&gt;&amp;amp;&lt;/a&gt;\n"
+                + "<span style=\"color:#000000;background-color:#ffffff\">inverse</span> "
+                + "<span style=\"color:#010203;background-color:#000000\">true</span>"
+                + "<span style=\"color:#010203;background-color:#ff0000\">both</span>\n"
+                + "$</pre>\n", export(TermSession.TRANSCRIPT_HTML));
+    }
+
+    @Test
+    public void testStyleEndsWithLine() throws IOException {
+        // A style still set at the end of the output is ended, and a line's
+        // trailing blanks in another style are kept
+        write("\r\n\033[44mblue  \033[0m\r\n\033[1mbold");
+        String ansi = export(TermSession.TRANSCRIPT_ANSI);
+        assertTrue(ansi, ansi.endsWith("$\n\033[0;44mblue  \033[0m\n\033[0;1mbold\033[0m"));
+        String html = export(TermSession.TRANSCRIPT_HTML);
+        assertTrue(html, html.endsWith("font-weight:bold\">bold</span></pre>\n"));
+    }
+}